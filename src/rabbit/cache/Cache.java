@@ -1,6 +1,8 @@
 package rabbit.cache;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /** A cache, mostly works like a map in lookup, insert and delete.
@@ -47,6 +49,15 @@ public interface Cache<K, V> {
      */ 
     CacheEntry<K, V> getEntry (K k) throws CacheException;
 
+    /** Get the CacheEntry assosiated with given object without
+     *  counting it as a use of the entry, so that the eviction order
+     *  and the statistics of the cache are left as they are.
+     * @param k the key.
+     * @return the CacheEntry or null (if not found).
+     * @throws CacheException upon failure to get the key
+     */
+    CacheEntry<K, V> peekEntry (K k) throws CacheException;
+
     /** Get the file name for a cache entry. 
      * @param id the id of the cache entry
      * @param real false if this is a temporary cache file, 
@@ -56,6 +67,13 @@ public interface Cache<K, V> {
      */
     File getEntryName (long id, boolean real, String extension);
 
+    /** Open the stored resource of a cache entry for reading.
+     * @param entry the cache entry
+     * @return the part of a file that holds the resource
+     * @throws IOException if the resource can not be opened
+     */
+    CacheRegion getRegion (CacheEntry<K, V> entry) throws IOException;
+
     /** Reserve space for a CacheEntry with key o.
      * @param k the key for the CacheEntry.
      * @return a new CacheEntry initialized for the cache.
@@ -63,6 +81,15 @@ public interface Cache<K, V> {
      */
     CacheEntry<K, V> newEntry (K k) throws CacheException;
 
+    /** Check if a new resource should be added to the cache.
+     *  A cache may refuse resources that are unlikely to be used again,
+     *  this should be checked before the resource is written.
+     * @param k the key of the resource
+     * @param size the size of the resource or -1 if unknown
+     * @return true if the resource should be cached
+     */
+    boolean admit (K k, long size);
+
     /** Insert a CacheEntry into the cache.
      * @param ent the CacheEntry to store.
      * @throws CacheException if adding the entry fails
@@ -98,6 +125,11 @@ public interface Cache<K, V> {
      */
     void flush ();
     
+    /** Get runtime statistics of this cache, like hit rates.
+     * @return a map of statistic name to value, in presentation order
+     */
+    Map<String, String> getStatistics ();
+
     /** Get the logger of this cache 
      * @return the Logger used by the cache
      */
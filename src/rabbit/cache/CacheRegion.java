@@ -0,0 +1,48 @@
+package rabbit.cache;
+
+import java.nio.channels.FileChannel;
+
+/** The part of a file that holds a cached resource.
+ *
+ *  The channel is opened for the user of the region, who has to
+ *  close it when done.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CacheRegion {
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+
+    /** Create a new CacheRegion.
+     * @param channel the channel to read the resource from
+     * @param offset the position of the resource in the channel
+     * @param length the size of the resource
+     */
+    public CacheRegion (FileChannel channel, long offset, long length) {
+	this.channel = channel;
+	this.offset = offset;
+	this.length = length;
+    }
+
+    /** Get the channel that holds the resource.
+     * @return an open FileChannel
+     */
+    public FileChannel getChannel () {
+	return channel;
+    }
+
+    /** Get the position where the resource starts.
+     * @return the offset of the resource in the channel
+     */
+    public long getOffset () {
+	return offset;
+    }
+
+    /** Get the size of the resource.
+     * @return the number of bytes in the resource
+     */
+    public long getLength () {
+	return length;
+    }
+}
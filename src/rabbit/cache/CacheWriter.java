@@ -0,0 +1,497 @@
+package rabbit.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.khelekore.rnio.BufferHandler;
+import rabbit.io.BufferHandle;
+import rabbit.io.FileHelper;
+import rabbit.util.SProperties;
+
+/** A writer that moves the writing of cache files off the selector
+ *  threads.
+ *
+ *  Each cache file gets its own bounded queue of data blocks that is
+ *  written, in order, by one of a few writer threads. Blocks are
+ *  queued by reference when the BufferHandle can give away its buffer,
+ *  the buffer is then shared with the client write and given back to
+ *  the BufferHandler when both are done with it. When the queue of a
+ *  file is full the file is dropped instead of making the client wait
+ *  for the disk.
+ *
+ *  A file is committed, by telling its listener on a writer thread,
+ *  only after all of its queued blocks have been written and the file
+ *  has been closed.
+ *
+ *  Every directory that cache files are written to gets its own writer
+ *  threads, so that a cache that is spread over several disks keeps
+ *  all of them busy and one slow disk does not hold up the others.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CacheWriter {
+    private static final String DEFAULT_THREADS = "2";
+    private static final String DEFAULT_QUEUE_SIZE = "64";
+    /** The seconds an idle writer thread is kept. */
+    private static final long IDLE_SECONDS = 60;
+
+    private final BufferHandler bufHandler;
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    // all fields below are guarded by this
+    private final Map<File, ExecutorService> executors =
+	new HashMap<File, ExecutorService> ();
+    private int threads = 0;
+    private int queueSize = 64;
+    private long queued = 0;
+    private long backlog = 0;
+    private long committed = 0;
+    private long dropped = 0;
+    private long errors = 0;
+
+    /** Create a new CacheWriter.
+     * @param config the properties describing the writer
+     * @param bufHandler the BufferHandler that shared buffers are
+     *        given back to
+     */
+    public CacheWriter (SProperties config, BufferHandler bufHandler) {
+	this.bufHandler = bufHandler;
+	setup (config);
+    }
+
+    /** Configure the writer. Files that are already being written
+     *  are finished by the old writer threads, that then time out.
+     * @param config the properties describing the writer
+     */
+    public synchronized void setup (SProperties config) {
+	if (config == null)
+	    config = new SProperties ();
+	int t = getInt (config, "threads", DEFAULT_THREADS);
+	queueSize = Math.max (1, getInt (config, "queuesize",
+					 DEFAULT_QUEUE_SIZE));
+	if (t != threads) {
+	    // open streams still use the old executors, their idle
+	    // threads stop by themselves
+	    executors.clear ();
+	    threads = Math.max (0, t);
+	}
+    }
+
+    private int getInt (SProperties config, String key, String def) {
+	String s = config.getProperty (key, def);
+	try {
+	    return Integer.parseInt (s.trim ());
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache writer " + key + ": '" +
+			    s + "'");
+	    return Integer.parseInt (def);
+	}
+    }
+
+    private static class Factory implements ThreadFactory {
+	private final int lane;
+	private int count = 0;
+
+	public Factory (int lane) {
+	    this.lane = lane;
+	}
+
+	public synchronized Thread newThread (Runnable r) {
+	    Thread t = new Thread (r, "CacheWriter-" + lane + "-" + (++count));
+	    t.setDaemon (true);
+	    return t;
+	}
+    }
+
+    /** Start writing a cache file.
+     * @param channel the channel to write the data to, it is closed
+     *        by the writer
+     * @param file the cache file, it is removed if it is dropped
+     * @return a Stream to queue the data on, or null if the writer is
+     *         turned off and the data has to be written directly
+     */
+    public synchronized Stream open (WritableByteChannel channel, File file) {
+	if (threads == 0)
+	    return null;
+	File dir = file.getParentFile ();
+	ExecutorService executor = executors.get (dir);
+	if (executor == null) {
+	    Factory f = new Factory (executors.size () + 1);
+	    ThreadPoolExecutor tpe =
+		new ThreadPoolExecutor (threads, threads,
+					IDLE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable> (),
+					f);
+	    tpe.allowCoreThreadTimeOut (true);
+	    executor = tpe;
+	    executors.put (dir, executor);
+	}
+	return new Stream (channel, file, executor, queueSize);
+    }
+
+    /** Stop the writer threads, the files that are already being
+     *  written are finished first.
+     */
+    public void shutdown () {
+	ExecutorService[] ess;
+	synchronized (this) {
+	    ess = executors.values ().toArray (new ExecutorService[0]);
+	    executors.clear ();
+	    threads = 0;
+	}
+	for (ExecutorService es : ess)
+	    es.shutdown ();
+	long end = System.currentTimeMillis () + 30 * 1000;
+	try {
+	    for (ExecutorService es : ess) {
+		long left = Math.max (0, end - System.currentTimeMillis ());
+		if (!es.awaitTermination (left, TimeUnit.MILLISECONDS)) {
+		    logger.warning ("Cache writer did not finish in time");
+		    return;
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread ().interrupt ();
+	}
+    }
+
+    private synchronized void blockQueued () {
+	queued++;
+	backlog++;
+    }
+
+    private synchronized void blocksDone (int count) {
+	backlog -= count;
+    }
+
+    private synchronized void streamDone (boolean ok, boolean error) {
+	if (ok)
+	    committed++;
+	else
+	    dropped++;
+	if (error)
+	    errors++;
+    }
+
+    /** Get the statistics of this writer.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Cache writer threads",
+		   Integer.toString (threads * executors.size ()));
+	stats.put ("Cache writer directories",
+		   Integer.toString (executors.size ()));
+	stats.put ("Cache writer queued blocks", Long.toString (queued));
+	stats.put ("Cache writer backlog", Long.toString (backlog));
+	stats.put ("Cache writer committed files", Long.toString (committed));
+	stats.put ("Cache writer dropped files", Long.toString (dropped));
+	stats.put ("Cache writer errors", Long.toString (errors));
+	return stats;
+    }
+
+    /** A listener that is told when a stream has been closed.
+     */
+    public interface CloseListener {
+	/** All the data has been written and the file has been closed.
+	 */
+	void committed ();
+
+	/** The stream was dropped and the file has been removed.
+	 */
+	void dropped ();
+    }
+
+    /** A block of data that is waiting to be written. */
+    private class Block {
+	private final ByteBuffer data;
+	/** The buffer to give back, or null if the buffer is not ours. */
+	private final ByteBuffer owned;
+	/** The number of users of the buffer. */
+	private int refs;
+
+	public Block (ByteBuffer data, ByteBuffer owned, int refs) {
+	    this.data = data;
+	    this.owned = owned;
+	    this.refs = refs;
+	}
+
+	public void release () {
+	    boolean free;
+	    synchronized (this) {
+		free = --refs == 0;
+	    }
+	    if (free && owned != null)
+		bufHandler.putBuffer (owned);
+	}
+    }
+
+    /** The handle the client write uses for a buffer that is shared
+     *  with the writer.
+     */
+    private static class SharedBufferHandle implements BufferHandle {
+	private final Block block;
+	private ByteBuffer buffer;
+
+	public SharedBufferHandle (Block block) {
+	    this.block = block;
+	    this.buffer = block.owned;
+	}
+
+	public boolean isEmpty () {
+	    return buffer == null || !buffer.hasRemaining ();
+	}
+
+	public ByteBuffer getBuffer () {
+	    return buffer;
+	}
+
+	public ByteBuffer getLargeBuffer () {
+	    throw new RuntimeException ("Not implemented");
+	}
+
+	public boolean isLarge (ByteBuffer buffer) {
+	    return false;
+	}
+
+	public void possiblyFlush () {
+	    if (buffer != null && !buffer.hasRemaining ()) {
+		buffer = null;
+		block.release ();
+	    }
+	}
+
+	public void setMayBeFlushed (boolean mayBeFlushed) {
+	    // ignore
+	}
+
+	public ByteBuffer detachBuffer () {
+	    return null;
+	}
+    }
+
+    /** The queue of data blocks for one cache file.
+     */
+    public class Stream implements Runnable {
+	private final WritableByteChannel channel;
+	private final File file;
+	private final ExecutorService executor;
+	private final int maxBlocks;
+
+	// all fields below are guarded by this
+	private final ArrayDeque<Block> blocks = new ArrayDeque<Block> ();
+	private long size = 0;
+	private boolean running = false;
+	private boolean closing = false;
+	private boolean dropped = false;
+	private boolean failed = false;
+	private CloseListener closeListener;
+
+	private Stream (WritableByteChannel channel, File file,
+			ExecutorService executor, int maxBlocks) {
+	    this.channel = channel;
+	    this.file = file;
+	    this.executor = executor;
+	    this.maxBlocks = maxBlocks;
+	}
+
+	/** Queue the remaining data of the given buffer for writing.
+	 *  The position of the buffer is not changed.
+	 * @param bufHandle the handle of the data to write
+	 * @return the handle the data should be sent to the client from,
+	 *         the buffer of the given handle may have been taken over
+	 */
+	public BufferHandle write (BufferHandle bufHandle) {
+	    ByteBuffer buf = bufHandle.getBuffer ();
+	    if (!buf.hasRemaining ())
+		return bufHandle;
+	    synchronized (this) {
+		if (dropped || closing)
+		    return bufHandle;
+		if (blocks.size () >= maxBlocks) {
+		    logger.fine ("Cache write queue full, dropping: " + file);
+		    drop ();
+		    return bufHandle;
+		}
+		size += buf.remaining ();
+		BufferHandle ret = bufHandle;
+		Block b;
+		ByteBuffer owned = bufHandle.detachBuffer ();
+		if (owned != null) {
+		    b = new Block (owned.duplicate (), owned, 2);
+		    ret = new SharedBufferHandle (b);
+		} else {
+		    b = new Block (copy (buf), null, 1);
+		}
+		blocks.add (b);
+		blockQueued ();
+		schedule ();
+		// if the writer has stopped the block has been dropped
+		return ret;
+	    }
+	}
+
+	private ByteBuffer copy (ByteBuffer buf) {
+	    ByteBuffer c = ByteBuffer.allocate (buf.remaining ());
+	    c.put (buf.duplicate ());
+	    c.flip ();
+	    return c;
+	}
+
+	/** Get the number of bytes queued on this stream.
+	 * @return the size of the file once all the data has been written
+	 */
+	public synchronized long getSize () {
+	    return size;
+	}
+
+	/** Check if this stream has been dropped.
+	 * @return true if the data will not be cached
+	 */
+	public synchronized boolean isDropped () {
+	    return dropped;
+	}
+
+	/** Close the stream when all queued data has been written.
+	 * @param closeListener the listener to tell, on a writer thread,
+	 *        when the file is complete or has been dropped, may be null
+	 */
+	public void close (CloseListener closeListener) {
+	    synchronized (this) {
+		if (closing)
+		    return;
+		this.closeListener = closeListener;
+		closing = true;
+		if (schedule ())
+		    return;
+	    }
+	    // the writer has stopped, close and remove the file here
+	    finish ();
+	}
+
+	/** Drop the queued data, close the stream and remove the file.
+	 */
+	public void abort () {
+	    synchronized (this) {
+		drop ();
+	    }
+	    close (null);
+	}
+
+	private void drop () {
+	    dropped = true;
+	    blocksDone (blocks.size ());
+	    for (Block b : blocks)
+		b.release ();
+	    blocks.clear ();
+	}
+
+	/** Make sure a writer thread handles this stream.
+	 * @return false if the writer has been shut down, the queued
+	 *         data is then dropped
+	 */
+	private boolean schedule () {
+	    if (running)
+		return true;
+	    try {
+		executor.execute (this);
+	    } catch (RejectedExecutionException e) {
+		if (!dropped)
+		    logger.warning ("Cache writer is shut down, dropping: " +
+				    file);
+		drop ();
+		return false;
+	    }
+	    running = true;
+	    return true;
+	}
+
+	public void run () {
+	    while (true) {
+		Block b;
+		synchronized (this) {
+		    b = blocks.poll ();
+		    if (b == null) {
+			if (!closing) {
+			    running = false;
+			    return;
+			}
+			break;
+		    }
+		}
+		try {
+		    ByteBuffer data = b.data;
+		    while (data.hasRemaining ())
+			channel.write (data);
+		} catch (IOException e) {
+		    logger.log (Level.WARNING, "Failed to write cache file: " +
+				file, e);
+		    synchronized (this) {
+			failed = true;
+			drop ();
+		    }
+		} finally {
+		    blocksDone (1);
+		    b.release ();
+		}
+	    }
+	    finish ();
+	}
+
+	private void finish () {
+	    CloseListener cl;
+	    boolean ok;
+	    synchronized (this) {
+		cl = closeListener;
+		ok = !dropped && cl != null;
+	    }
+	    try {
+		channel.close ();
+	    } catch (IOException e) {
+		logger.log (Level.WARNING, "Failed to close cache file: " +
+			    file, e);
+		ok = false;
+		synchronized (this) {
+		    failed = true;
+		}
+	    }
+	    if (!ok) {
+		try {
+		    FileHelper.delete (file);
+		} catch (IOException e) {
+		    logger.log (Level.WARNING, "Failed to delete cache file: " +
+				file, e);
+		}
+	    }
+	    if (cl != null) {
+		try {
+		    if (ok)
+			cl.committed ();
+		    else
+			cl.dropped ();
+		} catch (RuntimeException e) {
+		    logger.log (Level.WARNING, "Failed to commit cache file: " +
+				file, e);
+		}
+	    }
+	    boolean error;
+	    synchronized (this) {
+		error = failed;
+	    }
+	    streamDone (ok, error);
+	}
+    }
+}
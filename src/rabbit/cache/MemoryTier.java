@@ -0,0 +1,372 @@
+package rabbit.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import rabbit.cache.utils.FrequencySketch;
+import rabbit.util.SProperties;
+
+/** A memory tier for small and popular cached resources.
+ *
+ *  The resources are kept in direct ByteBuffers outside of the java
+ *  heap. The memory is allocated in slabs that are cut into chunks of
+ *  one size, every resource is stored in the smallest chunk size it
+ *  fits in. A slab is never moved to another chunk size, when there is
+ *  no free chunk of the right size and no more slabs may be allocated
+ *  the least recently used resource of that size is dropped.
+ *
+ *  Resources are only promoted to this tier when they have been read
+ *  from the disk cache a few times, so that one time resources do not
+ *  push out the popular ones.
+ *
+ *  Resources are identified by the id and size of their cache entry.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class MemoryTier {
+    private static final int MIN_CHUNK = 1024;
+    private static final String DEFAULT_MEMORY_SIZE = "16";   // MB
+    private static final String DEFAULT_SLAB_SIZE = "1024";   // kB
+    private static final String DEFAULT_MAX_OBJECT = "64";    // kB
+    private static final String DEFAULT_PROMOTE = "2";
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    private int slabSize = 1024 * 1024;
+    private int maxSlabs = 16;
+    private int maxObjectSize = 64 * 1024;
+    private int promoteCount = 2;
+
+    // all fields below are guarded by this
+    private SizeClass[] classes;
+    private final Map<Long, Chunk> chunks = new HashMap<Long, Chunk> ();
+    private FrequencySketch sketch;
+    private int slabs = 0;
+    private long used = 0;
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long promotions = 0;
+    private long evictions = 0;
+
+    /** All the chunks of one size. */
+    private static class SizeClass {
+	private final int chunkSize;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer> ();
+	/** The stored resources in least recently used order. */
+	private final LinkedHashMap<Long, Chunk> lru =
+	    new LinkedHashMap<Long, Chunk> (16, 0.75f, true);
+	private int slabs = 0;
+
+	public SizeClass (int chunkSize) {
+	    this.chunkSize = chunkSize;
+	}
+    }
+
+    /** One stored resource. */
+    private static class Chunk {
+	private final long id;
+	private final int size;
+	private final ByteBuffer data;
+	private final SizeClass sc;
+	/** The number of users, the chunk may not be reused while used. */
+	private int refs = 0;
+	private boolean loaded = false;
+	private boolean dropped = false;
+
+	public Chunk (long id, int size, ByteBuffer data, SizeClass sc) {
+	    this.id = id;
+	    this.size = size;
+	    this.data = data;
+	    this.sc = sc;
+	}
+    }
+
+    /** A resource that is served from memory. The memory may not be
+     *  reused until the body is released.
+     */
+    public class Body {
+	private final Chunk chunk;
+	private boolean released = false;
+
+	private Body (Chunk chunk) {
+	    this.chunk = chunk;
+	}
+
+	/** Get the data of the resource.
+	 * @return a read only buffer with the resource from position 0
+	 *         to the limit
+	 */
+	public ByteBuffer getBuffer () {
+	    ByteBuffer buf = chunk.data.duplicate ();
+	    buf.clear ();
+	    buf.limit (chunk.size);
+	    return buf.asReadOnlyBuffer ();
+	}
+
+	/** Get the size of the resource.
+	 * @return the number of bytes in the resource
+	 */
+	public int getSize () {
+	    return chunk.size;
+	}
+
+	/** Tell the memory tier that this body is no longer used.
+	 */
+	public void release () {
+	    synchronized (MemoryTier.this) {
+		if (released)
+		    return;
+		released = true;
+		chunk.refs--;
+		if (chunk.dropped && chunk.refs == 0)
+		    chunk.sc.free.add (chunk.data);
+	    }
+	}
+    }
+
+    /** Create a new memory tier.
+     * @param config the properties describing the tier
+     */
+    public MemoryTier (SProperties config) {
+	setup (config);
+    }
+
+    /** Configure the tier, all stored resources are dropped.
+     * @param config the properties describing the tier
+     */
+    public synchronized void setup (SProperties config) {
+	if (config == null)
+	    config = new SProperties ();
+	long memorySize = getSize (config, "memorysize", DEFAULT_MEMORY_SIZE,
+				   1024 * 1024);
+	slabSize = (int)getSize (config, "slabsize", DEFAULT_SLAB_SIZE, 1024);
+	slabSize = Math.max (slabSize, MIN_CHUNK);
+	maxObjectSize = (int)Math.min (slabSize,
+				       getSize (config, "maxobjectsize",
+						DEFAULT_MAX_OBJECT, 1024));
+	maxSlabs = (int)(memorySize / slabSize);
+	String pc = config.getProperty ("promote", DEFAULT_PROMOTE);
+	try {
+	    promoteCount = Math.max (1, Integer.parseInt (pc.trim ()));
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for memory tier promote: '" + pc + "'");
+	}
+	int n = 1;
+	while ((MIN_CHUNK << (n - 1)) < maxObjectSize)
+	    n++;
+	classes = new SizeClass[n];
+	for (int i = 0; i < n; i++)
+	    classes[i] = new SizeClass (MIN_CHUNK << i);
+	chunks.clear ();
+	slabs = 0;
+	used = 0;
+	int chunksInMemory = maxSlabs * (slabSize / MIN_CHUNK);
+	sketch = new FrequencySketch (Math.max (1024, chunksInMemory * 4));
+    }
+
+    private long getSize (SProperties config, String key, String def,
+			  long unit) {
+	String s = config.getProperty (key, def);
+	try {
+	    return Long.parseLong (s.trim ()) * unit;
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for memory tier " + key + ": '" +
+			    s + "'");
+	    return Long.parseLong (def) * unit;
+	}
+    }
+
+    private boolean isEnabled () {
+	return maxSlabs > 0;
+    }
+
+    /** Get a resource from memory.
+     *  If the resource is not in memory it is counted as a disk hit.
+     * @param id the id of the cache entry
+     * @param size the size of the cached resource
+     * @return the Body of the resource or null if it is not in memory,
+     *         the Body has to be released when it is no longer used.
+     */
+    public synchronized Body get (long id, long size) {
+	Chunk c = chunks.get (id);
+	if (c != null && c.loaded) {
+	    if (c.size == size) {
+		c.sc.lru.get (id);
+		c.refs++;
+		memoryHits++;
+		return new Body (c);
+	    }
+	    // the resource has changed
+	    drop (c);
+	}
+	diskHits++;
+	return null;
+    }
+
+    /** Count a use of a resource that was read from disk and check if
+     *  the resource is popular enough to be moved to memory.
+     * @param id the id of the cache entry
+     * @param size the size of the cached resource
+     * @return true if the resource should be loaded into memory
+     */
+    public synchronized boolean shouldPromote (long id, long size) {
+	if (!isEnabled () || size <= 0 || size > maxObjectSize
+	    || chunks.containsKey (id))
+	    return false;
+	sketch.increment (id);
+	return sketch.frequency (id) >= promoteCount;
+    }
+
+    /** Read a resource into memory.
+     *  The file is read without holding the lock of the tier.
+     * @param id the id of the cache entry
+     * @param size the size of the cached resource
+     * @param fc the channel to read the resource from
+     * @param offset the position of the resource in the channel
+     * @return true if the resource was stored in memory
+     * @throws IOException if reading the resource fails
+     */
+    public boolean load (long id, long size, FileChannel fc, long offset)
+	throws IOException {
+	Chunk c;
+	synchronized (this) {
+	    if (!isEnabled () || size <= 0 || size > maxObjectSize
+		|| chunks.containsKey (id))
+		return false;
+	    SizeClass sc = getSizeClass ((int)size);
+	    ByteBuffer buf = allocate (sc);
+	    if (buf == null)
+		return false;
+	    c = new Chunk (id, (int)size, buf, sc);
+	    // kept out of use until it is loaded
+	    c.refs = 1;
+	    chunks.put (id, c);
+	}
+	boolean ok = false;
+	try {
+	    ByteBuffer buf = c.data.duplicate ();
+	    buf.clear ();
+	    buf.limit (c.size);
+	    long pos = offset;
+	    while (buf.hasRemaining ()) {
+		int read = fc.read (buf, pos);
+		if (read < 0)
+		    throw new EOFException ("Cached resource is too short: " + id);
+		pos += read;
+	    }
+	    ok = true;
+	} finally {
+	    synchronized (this) {
+		c.refs--;
+		if (ok && !c.dropped) {
+		    c.loaded = true;
+		    c.sc.lru.put (id, c);
+		    used += c.sc.chunkSize;
+		    promotions++;
+		} else {
+		    if (chunks.get (id) == c)
+			chunks.remove (id);
+		    c.dropped = true;
+		    c.sc.free.add (c.data);
+		}
+	    }
+	}
+	return ok;
+    }
+
+    private SizeClass getSizeClass (int size) {
+	for (SizeClass sc : classes) {
+	    if (size <= sc.chunkSize)
+		return sc;
+	}
+	return classes[classes.length - 1];
+    }
+
+    /** Get a free chunk of the given size, allocate a new slab or drop
+     *  the least recently used resource of the same size if needed.
+     * @return the chunk or null if no chunk could be found
+     */
+    private ByteBuffer allocate (SizeClass sc) {
+	ByteBuffer buf = sc.free.poll ();
+	if (buf != null)
+	    return buf;
+	if (slabs < maxSlabs) {
+	    ByteBuffer slab = ByteBuffer.allocateDirect (slabSize);
+	    for (int pos = 0; pos + sc.chunkSize <= slabSize;
+		 pos += sc.chunkSize) {
+		slab.limit (pos + sc.chunkSize);
+		slab.position (pos);
+		sc.free.add (slab.slice ());
+	    }
+	    slabs++;
+	    sc.slabs++;
+	    return sc.free.poll ();
+	}
+	Iterator<Chunk> i = sc.lru.values ().iterator ();
+	while (i.hasNext ()) {
+	    Chunk c = i.next ();
+	    if (c.refs > 0)
+		continue;
+	    i.remove ();
+	    chunks.remove (c.id);
+	    c.dropped = true;
+	    used -= sc.chunkSize;
+	    evictions++;
+	    return c.data;
+	}
+	return null;
+    }
+
+    /** Remove a resource, the memory is reused once it is no longer used.
+     */
+    private void drop (Chunk c) {
+	chunks.remove (c.id);
+	if (c.loaded) {
+	    c.sc.lru.remove (c.id);
+	    used -= c.sc.chunkSize;
+	}
+	c.dropped = true;
+	if (c.refs == 0)
+	    c.sc.free.add (c.data);
+    }
+
+    /** Remove all resources from memory, the slabs are kept.
+     */
+    public synchronized void clear () {
+	for (Chunk c : chunks.values ().toArray (new Chunk[chunks.size ()]))
+	    drop (c);
+	sketch.clear ();
+    }
+
+    /** Get the statistics of this tier.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	long hits = memoryHits + diskHits;
+	stats.put ("Memory tier size", used + " / " +
+		   ((long)maxSlabs * slabSize) + " bytes");
+	stats.put ("Memory tier slabs", slabs + " / " + maxSlabs);
+	stats.put ("Memory tier entries", Integer.toString (chunks.size ()));
+	stats.put ("Memory tier hits", Long.toString (memoryHits));
+	stats.put ("Memory tier hit ratio", getRatio (memoryHits, hits));
+	stats.put ("Disk tier hits", Long.toString (diskHits));
+	stats.put ("Disk tier hit ratio", getRatio (diskHits, hits));
+	stats.put ("Memory tier promotions", Long.toString (promotions));
+	stats.put ("Memory tier evictions", Long.toString (evictions));
+	return stats;
+    }
+
+    private String getRatio (long part, long total) {
+	if (total == 0)
+	    return "-";
+	return String.format ("%.1f%%", part * 100.0 / total);
+    }
+}
@@ -0,0 +1,101 @@
+package rabbit.cache.ncache;
+
+import rabbit.cache.CacheEntry;
+
+/** A cache entry of one of the caches that a bigger cache is made of.
+ *
+ *  The id of the entry holds the number of the cache that the entry
+ *  lives in, above the given bit, so that the files of an entry can be
+ *  found from the id alone.
+ *
+ * @param <K> the key type of this entry
+ * @param <V> the value type of this entry
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class ChildEntry<K, V> implements CacheEntry<K, V> {
+    private final int child;
+    private final int shift;
+    private final CacheEntry<K, V> entry;
+
+    /** Create a new ChildEntry.
+     * @param child the number of the cache the entry lives in
+     * @param shift the bit the number of the cache is stored at
+     * @param entry the entry of that cache
+     */
+    public ChildEntry (int child, int shift, CacheEntry<K, V> entry) {
+	if (entry.getId () >>> shift != 0)
+	    throw new IllegalStateException ("Entry id too big: " + entry);
+	this.child = child;
+	this.shift = shift;
+	this.entry = entry;
+    }
+
+    /** Get the number of the cache of an entry id.
+     * @param id the id of a ChildEntry
+     * @param shift the bit the number of the cache is stored at
+     * @return the number of the cache
+     */
+    public static int getChild (long id, int shift) {
+	return (int)(id >>> shift);
+    }
+
+    /** Get the id that the cache of an entry uses.
+     * @param id the id of a ChildEntry
+     * @param shift the bit the number of the cache is stored at
+     * @return the id of the entry in its cache
+     */
+    public static long getChildId (long id, int shift) {
+	return id & ((1L << shift) - 1);
+    }
+
+    /** Get the number of the cache that this entry lives in.
+     * @return the number of the cache
+     */
+    public int getChild () {
+	return child;
+    }
+
+    /** Get the entry of the cache that this entry lives in.
+     * @return the real entry
+     */
+    public CacheEntry<K, V> getEntry () {
+	return entry;
+    }
+
+    public long getId () {
+	return ((long)child << shift) | entry.getId ();
+    }
+
+    public K getKey () {
+	return entry.getKey ();
+    }
+
+    public long getCacheTime () {
+	return entry.getCacheTime ();
+    }
+
+    public long getSize () {
+	return entry.getSize ();
+    }
+
+    public long getExpires () {
+	return entry.getExpires ();
+    }
+
+    public void setExpires (long d) {
+	entry.setExpires (d);
+    }
+
+    public V getDataHook () {
+	return entry.getDataHook ();
+    }
+
+    public void setDataHook (V o) {
+	entry.setDataHook (o);
+    }
+
+    @Override public String toString () {
+	return entry.toString ();
+    }
+}
@@ -0,0 +1,47 @@
+package rabbit.cache.ncache;
+
+/** A policy that decides in which order the cache entries are evicted
+ *  when the cache grows too big.
+ *
+ *  The policy works on the slot numbers of the in memory index of the
+ *  cache, a slot number stays the same for as long as the entry is
+ *  in the cache, but may be reused for a new entry later on.
+ *
+ *  Implementations do not need to be thread safe, the cache
+ *  synchronizes on the policy object for all calls to it.
+ *  All methods should run in constant time.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public interface EvictionPolicy {
+    /** A new entry has been added to the cache.
+     * @param slot the slot of the new entry
+     */
+    void inserted (int slot);
+
+    /** An entry has been used.
+     * @param slot the slot of the entry
+     */
+    void accessed (int slot);
+
+    /** An entry has been removed from the cache.
+     * @param slot the slot of the removed entry
+     */
+    void removed (int slot);
+
+    /** Get the entry that should be evicted first.
+     * @return the slot of the entry to evict, or -1 if there are no entries
+     */
+    int first ();
+
+    /** Get the entry that should be evicted after the given one.
+     *  Used to walk all entries in eviction order.
+     * @param slot the current slot
+     * @return the slot of the next entry to evict, or -1 if there is none
+     */
+    int next (int slot);
+
+    /** Forget about all entries.
+     */
+    void clear ();
+}
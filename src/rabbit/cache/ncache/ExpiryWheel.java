@@ -0,0 +1,143 @@
+package rabbit.cache.ncache;
+
+import java.util.Arrays;
+
+/** A hierarchical timer wheel that keeps index slots ordered by the
+ *  minute they expire in.
+ *
+ *  The first level has one bucket for each of the next 64 minutes,
+ *  the second level one bucket for every 64 minutes and the third
+ *  level one bucket for every 4096 minutes. Slots that expire even
+ *  later are kept in an overflow bucket. When the wheel moves past the
+ *  end of a bucket range the slots of the next higher level bucket are
+ *  spread out on the lower levels.
+ *
+ *  Adding and removing slots are constant time operations and finding
+ *  the expired slots only visits the slots that are due, and the ones
+ *  in the current minute.
+ *
+ *  This class is not thread safe, the user has to synchronize.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class ExpiryWheel {
+    private static final long MINUTE = 60 * 1000;
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 3;
+    private static final int OVERFLOW = LEVELS * SIZE;
+
+    private final SlotList lists = new SlotList (OVERFLOW + 1);
+    /** The list each slot is in, or -1. */
+    private int[] listOf = new int[16];
+    /** The expiry time of each slot. */
+    private long[] expires = new long[16];
+    /** The minute that the wheel is at. */
+    private long current;
+
+    /** Create a new empty wheel.
+     * @param now the current time
+     */
+    public ExpiryWheel (long now) {
+	current = now / MINUTE;
+	Arrays.fill (listOf, -1);
+    }
+
+    /** Remove all slots from the wheel.
+     */
+    public void clear () {
+	lists.clear ();
+	Arrays.fill (listOf, -1);
+    }
+
+    /** Add a slot to the wheel.
+     * @param slot the slot to add
+     * @param expiry the time the slot expires
+     */
+    public void add (int slot, long expiry) {
+	if (slot >= listOf.length) {
+	    int size = Math.max (listOf.length * 2, slot + 1);
+	    int old = listOf.length;
+	    listOf = Arrays.copyOf (listOf, size);
+	    Arrays.fill (listOf, old, size, -1);
+	    expires = Arrays.copyOf (expires, size);
+	}
+	if (listOf[slot] >= 0)
+	    remove (slot);
+	expires[slot] = expiry;
+	place (slot);
+    }
+
+    /** Remove a slot from the wheel, slots that are not in the wheel
+     *  are ignored.
+     * @param slot the slot to remove
+     */
+    public void remove (int slot) {
+	if (slot >= listOf.length || listOf[slot] < 0)
+	    return;
+	lists.remove (listOf[slot], slot);
+	listOf[slot] = -1;
+    }
+
+    private void place (int slot) {
+	long minute = expires[slot] / MINUTE;
+	long delta = minute - current;
+	int list;
+	if (delta < SIZE)
+	    list = (int)(Math.max (minute, current) & MASK);
+	else if (delta < (1L << (2 * BITS)))
+	    list = SIZE + (int)((minute >>> BITS) & MASK);
+	else if (delta < (1L << (3 * BITS)))
+	    list = 2 * SIZE + (int)((minute >>> (2 * BITS)) & MASK);
+	else
+	    list = OVERFLOW;
+	lists.addLast (list, slot);
+	listOf[slot] = list;
+    }
+
+    /** Find and remove one expired slot.
+     * @param now the current time
+     * @return an expired slot or -1 if no slot has expired
+     */
+    public int poll (long now) {
+	long target = now / MINUTE;
+	while (true) {
+	    int list = (int)(current & MASK);
+	    for (int slot = lists.first (list); slot >= 0;
+		 slot = lists.next (slot)) {
+		if (current < target || expires[slot] < now) {
+		    remove (slot);
+		    return slot;
+		}
+	    }
+	    if (current >= target)
+		return -1;
+	    advance ();
+	}
+    }
+
+    /** Move to the next minute and spread out the slots of the higher
+     *  level buckets that now are within reach of the lower levels.
+     */
+    private void advance () {
+	current++;
+	for (int level = 1; level < LEVELS; level++) {
+	    if ((current & ((1L << (level * BITS)) - 1)) != 0)
+		return;
+	    cascade (level * SIZE + (int)((current >>> (level * BITS)) & MASK));
+	}
+	if ((current & ((1L << (LEVELS * BITS)) - 1)) == 0)
+	    cascade (OVERFLOW);
+    }
+
+    private void cascade (int list) {
+	int slot;
+	int count = lists.size (list);
+	// slots may be put back in the same list, so only move those we have
+	for (int i = 0; i < count && (slot = lists.first (list)) >= 0; i++) {
+	    lists.remove (list, slot);
+	    place (slot);
+	}
+    }
+}
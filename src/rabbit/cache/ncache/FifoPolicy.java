@@ -0,0 +1,12 @@
+package rabbit.cache.ncache;
+
+/** An eviction policy that evicts the oldest entry first, 
+ *  no matter how often it is used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class FifoPolicy extends LruPolicy {
+    @Override public void accessed (int slot) {
+	// insertion order only
+    }
+}
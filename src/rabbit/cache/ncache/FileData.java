@@ -1,8 +1,10 @@
 package rabbit.cache.ncache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,4 +62,57 @@ class FileData<T> implements Serializable {
 	}
 	return name.length ();
     }    
+
+    /** Read the uncompressed data bytes from disk.
+     * @param name the name of the file to read the data from
+     * @param logger the logger to use
+     * @throws IOException if file reading fails
+     * @return the bytes read or null if the file does not exist
+     */
+    protected byte[] readBytes (File name, Logger logger) throws IOException {
+	FileInputStream fis;
+	try {
+	    fis = new FileInputStream (name);
+	} catch (FileNotFoundException e) {
+	    return null;
+	}
+	try {
+	    InputStream is = new GZIPInputStream (fis);
+	    try {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream (1024);
+		byte[] buf = new byte[1024];
+		int read;
+		while ((read = is.read (buf)) > 0)
+		    bos.write (buf, 0, read);
+		return bos.toByteArray ();
+	    } finally {
+		Closer.close (is, logger);
+	    }
+	} finally {
+	    Closer.close (fis, logger);
+	}
+    }
+
+    /** Write already serialized data to disk.
+     * @param name the name of the file to write the data to
+     * @param data the uncompressed bytes to store
+     * @param logger the logger to use
+     * @throws IOException if file writing fails
+     * @return the size of the file that was written
+     */
+    protected long writeBytes (File name, byte[] data, Logger logger)
+	throws IOException {
+	FileOutputStream fos = new FileOutputStream (name);
+	try {
+	    OutputStream os = new GZIPOutputStream (fos);
+	    try {
+		os.write (data);
+	    } finally {
+		Closer.close (os, logger);
+	    }
+	} finally {
+	    Closer.close (fos, logger);
+	}
+	return name.length ();
+    }
 }
@@ -23,37 +23,32 @@ class FiledHook<V> extends FileData<V> {
 	return cache.getEntryName (id, true, getExtension ());
     }
     
-    /** Get the hooked data. 
+    /** Get the serialized hooked data. 
      * @param <K> the type of the keys used in the cache
      * @param cache the Caching reading the data
-     * @param entry the CacheEntry that holds the data
+     * @param id the id of the cache entry that holds the data
      * @param logger the Logger to use
-     * @return the data read from the file cache
+     * @return the uncompressed bytes of the stored hook or null if 
+     *         there is no stored hook
      * @throws IOException if reading the data fails
      */
-    public <K> V getData (NCache<K, V> cache, NCacheData<K, V> entry,
-			  Logger logger) throws IOException {
-	return readData (getFileName (cache, entry.getId ()),
-			 cache.getHookFileHandler (), 
-			 logger);
+    public <K> byte[] getBytes (NCache<K, V> cache, long id,
+				Logger logger) throws IOException {
+	return readBytes (getFileName (cache, id), logger);
     }
 
-    /** Set the hooked data. 
+    /** Set the serialized hooked data. 
      * @param <K> the type of the keys used in the cache
      * @param cache the Caching storing the data
      * @param id the id of the cache entry storing this data
-     * @param fh the FileHandler used to do the data conversion
-     * @param hook the data to store
+     * @param data the uncompressed bytes of the hook
      * @param logger the Logger to use
      * @return the size of the file that was written
-     * @throws IOException if reading the data fails
+     * @throws IOException if writing the data fails
      */
-    protected <K> long storeHook (NCache<K, V> cache, 
-				  long id,
-				  FileHandler<V> fh, 
-				  V hook,
-				  Logger logger) 
+    protected <K> long storeBytes (NCache<K, V> cache, long id, 
+				   byte[] data, Logger logger) 
 	throws IOException {
-	return writeData (getFileName (cache, id), fh, hook, logger);
+	return writeBytes (getFileName (cache, id), data, logger);
     }    
 }
@@ -11,27 +11,31 @@ import java.util.logging.Logger;
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 class FiledKey<K> extends FileData<K> {
-    private static final long serialVersionUID = 20050430;
+    private static final long serialVersionUID = 20120401;
 
-    protected int hashCode; // the hashCode for the contained object.
-    private long id;
-    protected transient NCache<K, ?> cache;
+    private final transient NCache<K, ?> cache;
+    private final long id;
 
-    protected String getExtension () {
-	return "key";
+    /** Create a new FiledKey for the given cache entry.
+     * @param cache the cache the entry lives in
+     * @param id the id of the cache entry
+     */
+    public FiledKey (NCache<K, ?> cache, long id) {
+	this.cache = cache;
+	this.id = id;
     }
 
-    protected <V> void setCache (NCache<K, V> cache) {
-	this.cache = cache;
+    protected String getExtension () {
+	return "key";
     }
 
-    protected <V> long storeKey (NCache<K, V> cache,
-				 long id, K key, 
-				 Logger logger) 
-	throws IOException {
-	setCache (cache);
-	hashCode = key.hashCode ();
-	this.id = id;
+    /** Store the key on disk.
+     * @param key the key to store
+     * @param logger the Logger to use
+     * @return the size of the file that was written
+     * @throws IOException if writing the key fails
+     */
+    protected long storeKey (K key, Logger logger) throws IOException {
 	return writeData (getFileName (), cache.getKeyFileHandler (),
 			  key, logger);
     }
@@ -40,29 +44,6 @@ class FiledKey<K> extends FileData<K> {
 	return cache.getEntryName (id, true, getExtension ());
     }
 
-    /** Get the hashCode for the contained key object. */
-    @Override public int hashCode () {
-	return hashCode;
-    }
-
-    /** Check if the given object is equal to the contained key. */
-    @Override public boolean equals (Object data) {
-	if (data == null)
-	    return false;
-	try {
-	    K myData = getData ();
-	    if (data instanceof FiledKey) {
-		data = ((FiledKey)data).getData ();
-	    }
-	    if (myData != null) {
-		return myData.equals (data);
-	    }
-	    return data == null;
-	} catch (IOException e) {
-	    throw new RuntimeException ("Failed to read contents", e);
-	}
-    }
-
     /** Get the actual key object. 
      * @return the key object
      * @throws IOException if reading the data fails
@@ -80,6 +61,6 @@ class FiledKey<K> extends FileData<K> {
     }
 
     @Override public String toString () {
-	return "FiledKey: " + hashCode + ", " + getFileName ();
+	return "FiledKey: " + id + ", " + getFileName ();
     }
 }
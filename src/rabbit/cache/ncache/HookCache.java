@@ -0,0 +1,176 @@
+package rabbit.cache.ncache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A size bounded in memory cache of stored data hooks.
+ *
+ *  The hooks are kept in their serialized, uncompressed, form so that
+ *  every user gets its own copy of the hook, but finding it does not
+ *  need any disk access or decompression. The least recently used hooks
+ *  are dropped when the cache grows too big.
+ *
+ *  The hooks are spread over a number of segments, each with its own
+ *  lock and its own part of the size limit.
+ *
+ *  This class is thread safe.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class HookCache {
+    private final Segment[] segments;
+    private final int mask;
+
+    /** Create a new HookCache.
+     * @param maxSize the maximum number of bytes to keep in memory
+     * @param segmentCount the number of segments, must be a power of 2
+     */
+    public HookCache (long maxSize, int segmentCount) {
+	segments = new Segment[segmentCount];
+	for (int i = 0; i < segmentCount; i++)
+	    segments[i] = new Segment (maxSize / segmentCount);
+	mask = segmentCount - 1;
+    }
+
+    private Segment getSegment (long id) {
+	return segments[(int)(id ^ (id >>> 32)) & mask];
+    }
+
+    /** Set the maximum size of this cache.
+     * @param maxSize the maximum number of bytes to keep in memory
+     */
+    public void setMaxSize (long maxSize) {
+	for (Segment s : segments)
+	    s.setMaxSize (maxSize / segments.length);
+    }
+
+    /** Get the stored hook for the given entry.
+     * @param id the id of the cache entry
+     * @return the serialized hook or null if it is not in memory
+     */
+    public byte[] get (long id) {
+	return getSegment (id).get (id);
+    }
+
+    /** Store the serialized hook of the given entry.
+     * @param id the id of the cache entry
+     * @param data the serialized hook
+     */
+    public void put (long id, byte[] data) {
+	getSegment (id).put (id, data);
+    }
+
+    /** Store the serialized hook of the given entry, unless some
+     *  other thread has already stored a hook for it.
+     * @param id the id of the cache entry
+     * @param data the serialized hook
+     */
+    public void putIfAbsent (long id, byte[] data) {
+	getSegment (id).putIfAbsent (id, data);
+    }
+
+    /** Remove the hook of the given entry.
+     * @param id the id of the cache entry
+     */
+    public void remove (long id) {
+	getSegment (id).remove (id);
+    }
+
+    /** Remove all hooks.
+     */
+    public void clear () {
+	for (Segment s : segments)
+	    s.clear ();
+    }
+
+    /** Add the statistics of this cache to the given map.
+     * @param stats the map to add the statistics to
+     */
+    public void addStatistics (Map<String, String> stats) {
+	long entries = 0;
+	long currentSize = 0;
+	long maxSize = 0;
+	long hits = 0;
+	long misses = 0;
+	for (Segment s : segments) {
+	    synchronized (s) {
+		entries += s.hooks.size ();
+		currentSize += s.currentSize;
+		maxSize += s.maxSize;
+		hits += s.hits;
+		misses += s.misses;
+	    }
+	}
+	stats.put ("Hook cache entries", Long.toString (entries));
+	stats.put ("Hook cache size", currentSize + " / " + maxSize + " bytes");
+	stats.put ("Hook cache hits", Long.toString (hits));
+	stats.put ("Hook cache misses", Long.toString (misses));
+	long total = hits + misses;
+	String rate = total == 0 ? "-" : (hits * 100 / total) + " %";
+	stats.put ("Hook cache hit rate", rate);
+    }
+
+    private static class Segment {
+	private final Map<Long, byte[]> hooks =
+	    new LinkedHashMap<Long, byte[]> (64, 0.75f, true);
+	private long maxSize;
+	private long currentSize = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public Segment (long maxSize) {
+	    this.maxSize = maxSize;
+	}
+
+	public synchronized void setMaxSize (long maxSize) {
+	    this.maxSize = maxSize;
+	    shrink ();
+	}
+
+	public synchronized byte[] get (long id) {
+	    byte[] b = hooks.get (id);
+	    if (b == null)
+		misses++;
+	    else
+		hits++;
+	    return b;
+	}
+
+	public synchronized void put (long id, byte[] data) {
+	    if (data.length > maxSize) {
+		remove (id);
+		return;
+	    }
+	    byte[] old = hooks.put (id, data);
+	    if (old != null)
+		currentSize -= old.length;
+	    currentSize += data.length;
+	    shrink ();
+	}
+
+	public synchronized void putIfAbsent (long id, byte[] data) {
+	    if (!hooks.containsKey (id))
+		put (id, data);
+	}
+
+	public synchronized void remove (long id) {
+	    byte[] old = hooks.remove (id);
+	    if (old != null)
+		currentSize -= old.length;
+	}
+
+	public synchronized void clear () {
+	    hooks.clear ();
+	    currentSize = 0;
+	}
+
+	private void shrink () {
+	    Iterator<byte[]> i = hooks.values ().iterator ();
+	    while (currentSize > maxSize && i.hasNext ()) {
+		currentSize -= i.next ().length;
+		i.remove ();
+	    }
+	}
+    }
+}
@@ -0,0 +1,321 @@
+package rabbit.cache.ncache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.khelekore.rnio.impl.Closer;
+
+/** An append only journal of the changes to the cache index.
+ *
+ *  Every change to the index is written as a small record, so the cost
+ *  of keeping the index on disk is proportional to the number of
+ *  changes and not to the size of the cache. The records are buffered
+ *  and a background thread writes and syncs them at regular intervals,
+ *  so many changes share one fsync.
+ *
+ *  The journal is compacted by writing a checkpoint of the full index.
+ *  Before the checkpoint is taken the journal is rotated, the old
+ *  journals are only removed once the checkpoint is safely written.
+ *  Records may therefore be replayed on an index that already has the
+ *  change, so replaying a record has to be idempotent.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class IndexJournal implements Runnable {
+    /** The start of the journal file: "RabbIT" and the journal version. */
+    private static final long JOURNAL_MAGIC = 0x526162624954a001L;
+
+    /** A record for an added entry. */
+    public static final byte ADD = 1;
+    /** A record for a removed entry. */
+    public static final byte REMOVE = 2;
+
+    private final File dir;
+    private final String name;
+    private final File file;
+    private final String fingerprinterName;
+    private final Logger logger;
+    private final long syncInterval;
+    /** The least number of records before a checkpoint is wanted. */
+    private static final long MIN_RECORDS = 10000;
+
+    private FileOutputStream fos;
+    private DataOutputStream os;
+    private long records = 0;
+    private boolean broken = false;
+    private volatile boolean running = true;
+    private Thread syncer;
+
+    /** Something that can apply journal records to an index.
+     */
+    public interface Replayer {
+	/** Add an entry, ignore the record if the entry is already there.
+	 */
+	void add (long fp, int hash, long id, long cacheTime, long expires,
+		  long size, int keySize, int hookSize, int flags);
+
+	/** Remove an entry, ignore the record if the entry is not there.
+	 */
+	void remove (long fp, int hash, long id);
+    }
+
+    /** Create a new journal in the given directory.
+     * @param dir the cache directory
+     * @param name the file name of the journal
+     * @param fingerprinterName the name of the key fingerprinter used
+     * @param syncInterval the number of milliseconds between syncs
+     * @param logger the Logger to use
+     */
+    public IndexJournal (File dir, String name, String fingerprinterName,
+			 long syncInterval, Logger logger) {
+	this.dir = dir;
+	this.name = name;
+	file = new File (dir, name);
+	this.fingerprinterName = fingerprinterName;
+	this.syncInterval = syncInterval;
+	this.logger = logger;
+    }
+
+    /** Get the file of an old journal.
+     * @param n the number of the old journal, the oldest is 1.
+     */
+    private File getOldFile (int n) {
+	return new File (dir, name + "." + n);
+    }
+
+    /** Replay the old journals, that is the journals that were written
+     *  before this journal was opened and that are not yet in a
+     *  checkpoint. The oldest journal is replayed first.
+     * @param r the Replayer to apply the records to
+     * @param fpName the name of the fingerprinter used by the checkpoint,
+     *        journals written with another fingerprinter are ignored.
+     * @return the number of records replayed
+     * @throws IOException if the journal can not be read
+     */
+    public long replay (Replayer r, String fpName) throws IOException {
+	long count = 0;
+	File f;
+	for (int n = 1; (f = getOldFile (n)).exists (); n++)
+	    count += replay (f, r, fpName);
+	return count;
+    }
+
+    private long replay (File f, Replayer r, String fpName)
+	throws IOException {
+	if (!f.exists ())
+	    return 0;
+	long count = 0;
+	FileInputStream fis = new FileInputStream (f);
+	try {
+	    DataInputStream is =
+		new DataInputStream (new BufferedInputStream (fis));
+	    if (is.readLong () != JOURNAL_MAGIC
+		|| !is.readUTF ().equals (fpName)) {
+		logger.warning ("Ignoring cache journal from other setup: " + f);
+		return 0;
+	    }
+	    while (true) {
+		byte type = is.readByte ();
+		if (type != ADD && type != REMOVE)
+		    // garbage at the end of a journal that was not synced
+		    break;
+		long fp = is.readLong ();
+		int hash = is.readInt ();
+		long id = is.readLong ();
+		if (type == ADD) {
+		    long cacheTime = is.readLong ();
+		    long expires = is.readLong ();
+		    long size = is.readLong ();
+		    int keySize = is.readInt ();
+		    int hookSize = is.readInt ();
+		    int flags = is.readInt ();
+		    r.add (fp, hash, id, cacheTime, expires, size,
+			   keySize, hookSize, flags);
+		} else {
+		    r.remove (fp, hash, id);
+		}
+		count++;
+	    }
+	} catch (EOFException e) {
+	    // the last record was not completely written, that is ok.
+	} finally {
+	    Closer.close (fis, logger);
+	}
+	return count;
+    }
+
+    /** Start a new, empty, journal and start the thread that syncs it.
+     *  A journal left on disk is kept as an old journal until the next
+     *  checkpoint has been written.
+     * @throws IOException if the journal can not be created
+     */
+    public synchronized void open () throws IOException {
+	rotate ();
+	syncer = new Thread (this, getClass ().getName () + ".syncer");
+	syncer.setDaemon (true);
+	syncer.start ();
+    }
+
+    private void openFile () throws IOException {
+	fos = new FileOutputStream (file);
+	os = new DataOutputStream (new BufferedOutputStream (fos, 8192));
+	os.writeLong (JOURNAL_MAGIC);
+	os.writeUTF (fingerprinterName);
+	records = 0;
+	broken = false;
+    }
+
+    /** Check if it is time to compact the journal into a checkpoint.
+     *  That is when the journal is bigger than a checkpoint would be, or
+     *  if writing to the journal has failed.
+     * @param entries the number of entries in the cache
+     * @return true if a checkpoint should be taken
+     */
+    public synchronized boolean needsCheckpoint (long entries) {
+	return broken || records > Math.max (MIN_RECORDS, entries);
+    }
+
+    /** Log an added entry.
+     */
+    public synchronized void add (long fp, int hash, long id, long cacheTime,
+				  long expires, long size, long keySize,
+				  long hookSize, int flags) {
+	if (os == null)
+	    return;
+	try {
+	    os.writeByte (ADD);
+	    os.writeLong (fp);
+	    os.writeInt (hash);
+	    os.writeLong (id);
+	    os.writeLong (cacheTime);
+	    os.writeLong (expires);
+	    os.writeLong (size);
+	    os.writeInt ((int)keySize);
+	    os.writeInt ((int)hookSize);
+	    os.writeInt (flags);
+	    records++;
+	} catch (IOException e) {
+	    failed (e);
+	}
+    }
+
+    /** Log a removed entry.
+     */
+    public synchronized void remove (long fp, int hash, long id) {
+	if (os == null)
+	    return;
+	try {
+	    os.writeByte (REMOVE);
+	    os.writeLong (fp);
+	    os.writeInt (hash);
+	    os.writeLong (id);
+	    records++;
+	} catch (IOException e) {
+	    failed (e);
+	}
+    }
+
+    private void failed (IOException e) {
+	logger.log (Level.WARNING, "Failed to write cache journal, " +
+		    "changes will only be saved at the next checkpoint", e);
+	Closer.close (os, logger);
+	os = null;
+	fos = null;
+	broken = true;
+    }
+
+    /** Write all buffered records and force them to disk.
+     */
+    public void sync () {
+	FileChannel fc;
+	synchronized (this) {
+	    if (os == null)
+		return;
+	    try {
+		os.flush ();
+	    } catch (IOException e) {
+		failed (e);
+		return;
+	    }
+	    fc = fos.getChannel ();
+	}
+	try {
+	    // done outside the lock so that writers are not blocked.
+	    fc.force (false);
+	} catch (ClosedChannelException e) {
+	    // the journal was rotated, rotate syncs the old journal.
+	} catch (IOException e) {
+	    logger.log (Level.WARNING, "Failed to sync cache journal", e);
+	}
+    }
+
+    /** Start a new journal, the current one is kept as an old journal
+     *  until a checkpoint has been written.
+     *  The caller has to make sure that the checkpoint is taken after
+     *  this method returns.
+     * @throws IOException if the journal can not be rotated
+     */
+    public synchronized void rotate () throws IOException {
+	if (os != null) {
+	    os.flush ();
+	    fos.getChannel ().force (false);
+	    os.close ();
+	    os = null;
+	}
+	int n = 1;
+	while (getOldFile (n).exists ())
+	    n++;
+	File oldFile = getOldFile (n);
+	if (file.exists () && !file.renameTo (oldFile))
+	    throw new IOException ("Failed to rename: " + file + " to " +
+				   oldFile);
+	openFile ();
+    }
+
+    /** The checkpoint has been written, the old journals can be removed.
+     */
+    public synchronized void checkpointDone () {
+	File f;
+	for (int n = 1; (f = getOldFile (n)).exists (); n++) {
+	    if (!f.delete ())
+		logger.warning ("Failed to remove old cache journal: " + f);
+	}
+    }
+
+    /** Sync and close this journal.
+     */
+    public void close () {
+	running = false;
+	if (syncer != null)
+	    syncer.interrupt ();
+	sync ();
+	synchronized (this) {
+	    Closer.close (os, logger);
+	    os = null;
+	    fos = null;
+	}
+    }
+
+    /** Sync the journal at regular intervals.
+     */
+    public void run () {
+	while (running) {
+	    try {
+		Thread.sleep (syncInterval);
+	    } catch (InterruptedException e) {
+		// ignore
+	    }
+	    sync ();
+	}
+    }
+}
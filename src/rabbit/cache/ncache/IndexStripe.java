@@ -0,0 +1,238 @@
+package rabbit.cache.ncache;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** One part of the NCache index.
+ *
+ *  Every stripe has its own index, eviction policy and lock, so
+ *  operations on keys in different stripes do not block each other.
+ *
+ *  The index and policy may only be used while holding the lock, the
+ *  read lock is enough for lookups. Changes need the write lock, except
+ *  for touching entries in the policy which is done under the read lock
+ *  while synchronized on the policy.
+ *
+ *  The size and number of entries may be read without any lock.
+ *
+ *  The entries are also kept in an expiry wheel, so that the expired
+ *  entries can be found without looking at all entries.
+ *
+ *  All changes are written to the journal, if there is one, while
+ *  holding the write lock so that the journal has the changes of
+ *  each stripe in the right order.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class IndexStripe {
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock ();
+    /** The read lock of this stripe. */
+    final Lock r = rwl.readLock ();
+    /** The write lock of this stripe. */
+    final Lock w = rwl.writeLock ();
+
+    private KeyIndex index = new KeyIndex (0);
+    private EvictionPolicy policy;
+    private final ExpiryWheel expiry =
+	new ExpiryWheel (System.currentTimeMillis ());
+    private IndexJournal journal = null;
+    private volatile long currentSize = 0;
+    private volatile int entries = 0;
+
+    /** Create a new empty stripe.
+     * @param policy the eviction policy to use
+     */
+    public IndexStripe (EvictionPolicy policy) {
+	this.policy = policy;
+    }
+
+    /** Set the journal to write changes to, the caller must hold
+     *  the write lock.
+     * @param journal the journal, may be null
+     */
+    public void setJournal (IndexJournal journal) {
+	this.journal = journal;
+    }
+
+    /** Get the index of this stripe.
+     * @return the current index
+     */
+    public KeyIndex getIndex () {
+	return index;
+    }
+
+    /** Get the size of the entries in this stripe.
+     * @return the number of bytes used by the entries in this stripe
+     */
+    public long getCurrentSize () {
+	return currentSize;
+    }
+
+    /** Get the number of entries in this stripe.
+     * @return the number of entries
+     */
+    public int getNumberOfEntries () {
+	return entries;
+    }
+
+    /** Add a new entry, the caller must hold the write lock.
+     * @return the slot of the new entry
+     */
+    public int insert (long fp, int hash, long id, long cacheTime,
+		       long expires, long size, long keySize, long hookSize,
+		       int flags) {
+	int slot = index.insert (fp, hash, id, cacheTime, expires, size,
+				 keySize, hookSize, flags);
+	synchronized (policy) {
+	    policy.inserted (slot);
+	}
+	expiry.add (slot, expires);
+	currentSize += size + keySize + hookSize;
+	entries = index.size ();
+	if (journal != null)
+	    journal.add (fp, hash, id, cacheTime, expires, size, keySize,
+			 hookSize, flags);
+	return slot;
+    }
+
+    /** Remove the entry in the given slot, the caller must hold
+     *  the write lock.
+     * @param slot the slot of the entry to remove
+     * @return the id of the removed entry
+     */
+    public long detach (int slot) {
+	long id = index.getId (slot);
+	if (journal != null)
+	    journal.remove (index.getFingerprint (slot), index.getHash (slot),
+			    id);
+	currentSize -= index.getTotalSize (slot);
+	synchronized (policy) {
+	    policy.removed (slot);
+	}
+	expiry.remove (slot);
+	index.remove (slot);
+	entries = index.size ();
+	return id;
+    }
+
+    /** Update the sizes of an entry, the caller must hold the write lock.
+     */
+    public void update (int slot, long expires, long size, long keySize,
+			long hookSize, int flags) {
+	currentSize -= index.getTotalSize (slot);
+	index.setExpires (slot, expires);
+	expiry.add (slot, expires);
+	index.setSize (slot, size);
+	index.setKeySize (slot, keySize);
+	index.setHookSize (slot, hookSize);
+	index.setFlags (slot, (index.getFlags (slot) & ~KeyIndex.HAS_HOOK)
+			| flags);
+	currentSize += index.getTotalSize (slot);
+	if (journal != null) {
+	    long fp = index.getFingerprint (slot);
+	    int hash = index.getHash (slot);
+	    long id = index.getId (slot);
+	    journal.remove (fp, hash, id);
+	    journal.add (fp, hash, id, index.getCacheTime (slot), expires,
+			 size, keySize, hookSize, index.getFlags (slot));
+	}
+    }
+
+    /** Tell the eviction policy that an entry was used, the caller must
+     *  hold the read lock.
+     * @param slot the slot of the used entry
+     */
+    public void accessed (int slot) {
+	synchronized (policy) {
+	    policy.accessed (slot);
+	}
+    }
+
+    /** Get the slot of the entry that should be evicted first,
+     *  the caller must hold the lock.
+     * @return the slot to evict or -1 if the stripe is empty
+     */
+    public int getVictim () {
+	synchronized (policy) {
+	    return policy.first ();
+	}
+    }
+
+    /** Get the slot of an entry that has expired and remove it from the
+     *  expiry wheel, the caller must hold the write lock and should
+     *  detach the entry.
+     * @param now the current time
+     * @return an expired slot or -1 if no entry has expired
+     */
+    public int pollExpired (long now) {
+	return expiry.poll (now);
+    }
+
+    /** Get all the slots in the order they will be evicted, the caller
+     *  must hold the lock.
+     * @return the slots in eviction order
+     */
+    public int[] getEvictionOrder () {
+	int[] slots = new int[index.size ()];
+	int i = 0;
+	synchronized (policy) {
+	    for (int slot = policy.first (); slot >= 0;
+		 slot = policy.next (slot))
+		slots[i++] = slot;
+	}
+	return slots;
+    }
+
+    /** Switch to another eviction policy, the current entries are
+     *  moved to the new policy in their current eviction order.
+     *  The caller must hold the write lock.
+     * @param newPolicy the new eviction policy
+     */
+    public void setPolicy (EvictionPolicy newPolicy) {
+	for (int slot : getEvictionOrder ())
+	    newPolicy.inserted (slot);
+	policy = newPolicy;
+    }
+
+    /** Remove all entries, the caller must hold the write lock.
+     * @return the ids of the removed entries
+     */
+    public long[] clear () {
+	long[] ids = new long[index.size ()];
+	int i = 0;
+	for (int slot = index.first (); slot >= 0; slot = index.next (slot)) {
+	    ids[i++] = index.getId (slot);
+	    if (journal != null)
+		journal.remove (index.getFingerprint (slot),
+				index.getHash (slot), ids[i - 1]);
+	}
+	index.clear ();
+	synchronized (policy) {
+	    policy.clear ();
+	}
+	expiry.clear ();
+	currentSize = 0;
+	entries = 0;
+	return ids;
+    }
+
+    /** Replace the content of this stripe, the caller must hold
+     *  the write lock.
+     * @param newIndex the new index
+     * @param newPolicy the eviction policy that holds the entries of
+     *        the new index
+     */
+    public void replace (KeyIndex newIndex, EvictionPolicy newPolicy) {
+	long size = 0;
+	expiry.clear ();
+	for (int slot = newIndex.first (); slot >= 0;
+	     slot = newIndex.next (slot)) {
+	    size += newIndex.getTotalSize (slot);
+	    expiry.add (slot, newIndex.getExpires (slot));
+	}
+	index = newIndex;
+	policy = newPolicy;
+	currentSize = size;
+	entries = newIndex.size ();
+    }
+}
@@ -0,0 +1,20 @@
+package rabbit.cache.ncache;
+
+/** An object that can compute a 64 bit fingerprint of cache keys.
+ *
+ *  Two keys that are equal must have the same fingerprint. The cache
+ *  uses the fingerprint, together with the hashCode of the key, to
+ *  find entries without having to read the stored keys from disk,
+ *  so the fingerprint should be well distributed over all 64 bits.
+ *
+ * @param <K> the type of keys to fingerprint
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public interface KeyFingerprinter<K> {
+    /** Get the fingerprint of the given key.
+     * @param key the key to compute the fingerprint for
+     * @return the 64 bit fingerprint of the key
+     */
+    long fingerprint (K key);
+}
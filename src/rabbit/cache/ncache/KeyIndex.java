@@ -0,0 +1,454 @@
+package rabbit.cache.ncache;
+
+import java.util.Arrays;
+
+/** The in memory index of a NCache.
+ *
+ *  The index is an open addressing hash table over the fingerprints of
+ *  the keys. All the entry data is kept in primitive arrays, indexed by
+ *  a slot number that stays the same for as long as the entry is in the
+ *  index. This means that an entry costs a few dozen bytes and no objects,
+ *  and that finding an entry never has to read the stored key from disk.
+ *
+ *  The entries are also kept in a doubly linked list in insertion order.
+ *
+ *  This class is not thread safe, the cache has to do the locking.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class KeyIndex {
+    /** The flag for slots that hold an entry. */
+    public static final int USED = 1;
+    /** The flag for entries that have a data hook. */
+    public static final int HAS_HOOK = 2;
+    /** The flag for entries that share fingerprint with some other key. */
+    public static final int COLLISION = 4;
+
+    private static final int MIN_SLOTS = 16;
+
+    /** The hash table, holds slot + 1 for used positions, 0 for free. */
+    private int[] table;
+    private int mask;
+
+    private long[] fingerprints;
+    private int[] hashes;
+    private long[] ids;
+    private long[] cacheTimes;
+    private long[] expires;
+    private long[] sizes;
+    private int[] keySizes;
+    private int[] hookSizes;
+    private int[] flags;
+    /** Insertion order links, next is also used for the free list. */
+    private int[] next;
+    private int[] prev;
+
+    private int head = -1;
+    private int tail = -1;
+    private int free = -1;
+    /** All slots below this one have been used at some time. */
+    private int slotLimit = 0;
+    private int size = 0;
+
+    /** Create a new empty index.
+     * @param expectedSize the number of entries to make room for
+     */
+    public KeyIndex (int expectedSize) {
+	int slots = Math.max (MIN_SLOTS, expectedSize);
+	allocateSlots (slots);
+	allocateTable (tableSizeFor (slots));
+    }
+
+    private static int tableSizeFor (int entries) {
+	int n = MIN_SLOTS;
+	// keep the table at most half full
+	while (n < entries * 2)
+	    n <<= 1;
+	return n;
+    }
+
+    private void allocateSlots (int slots) {
+	fingerprints = new long[slots];
+	hashes = new int[slots];
+	ids = new long[slots];
+	cacheTimes = new long[slots];
+	expires = new long[slots];
+	sizes = new long[slots];
+	keySizes = new int[slots];
+	hookSizes = new int[slots];
+	flags = new int[slots];
+	next = new int[slots];
+	prev = new int[slots];
+    }
+
+    private void allocateTable (int tableSize) {
+	table = new int[tableSize];
+	mask = tableSize - 1;
+    }
+
+    private static int spread (long fp) {
+	int h = (int)(fp ^ (fp >>> 32));
+	return h ^ (h >>> 16);
+    }
+
+    /** Get the number of entries in this index.
+     * @return the number of entries
+     */
+    public int size () {
+	return size;
+    }
+
+    /** Get the upper limit for slot numbers, all used slots are below
+     *  this number.
+     * @return the slot limit
+     */
+    public int getSlotLimit () {
+	return slotLimit;
+    }
+
+    /** Check if the given slot holds an entry.
+     * @param slot the slot to check
+     * @return true if the slot is in use
+     */
+    public boolean isUsed (int slot) {
+	return (flags[slot] & USED) != 0;
+    }
+
+    /** Find the entry with the given fingerprint and hash.
+     * @param fp the fingerprint of the key
+     * @param hash the hashCode of the key
+     * @return the slot of the entry or -1 if no such entry is found
+     */
+    public int find (long fp, int hash) {
+	return find (fp, hash, 0);
+    }
+
+    /** Find one of the entries with the given fingerprint and hash.
+     *  Different keys may have the same fingerprint and hash, all such
+     *  entries are marked as collisions.
+     * @param fp the fingerprint of the key
+     * @param hash the hashCode of the key
+     * @param skip the number of matching entries to skip
+     * @return the slot of the entry or -1 if no such entry is found
+     */
+    public int find (long fp, int hash, int skip) {
+	int i = spread (fp) & mask;
+	int t;
+	while ((t = table[i]) != 0) {
+	    int slot = t - 1;
+	    if (fingerprints[slot] == fp && hashes[slot] == hash
+		&& skip-- == 0)
+		return slot;
+	    i = (i + 1) & mask;
+	}
+	return -1;
+    }
+
+    /** Add a new entry to this index, the entry is placed last in the
+     *  insertion order. The caller has to make sure that the key of the
+     *  entry is not already in the index.
+     * @param fp the fingerprint of the key
+     * @param hash the hashCode of the key
+     * @param id the id of the entry
+     * @param cacheTime the time the entry was cached
+     * @param expiry the time the entry expires
+     * @param size the size of the cached resource
+     * @param keySize the size of the stored key
+     * @param hookSize the size of the stored data hook
+     * @param entryFlags the flags of the entry
+     * @return the slot of the new entry
+     */
+    public int insert (long fp, int hash, long id, long cacheTime,
+		       long expiry, long size, long keySize, long hookSize,
+		       int entryFlags) {
+	if ((this.size + 1) * 2 > table.length)
+	    rehash (table.length * 2);
+	int slot = allocateSlot ();
+	fingerprints[slot] = fp;
+	hashes[slot] = hash;
+	ids[slot] = id;
+	cacheTimes[slot] = cacheTime;
+	expires[slot] = expiry;
+	sizes[slot] = size;
+	keySizes[slot] = (int)keySize;
+	hookSizes[slot] = (int)hookSize;
+	flags[slot] = (entryFlags & ~USED) | USED;
+	linkLast (slot);
+
+	int i = spread (fp) & mask;
+	int t;
+	while ((t = table[i]) != 0) {
+	    int other = t - 1;
+	    if (fingerprints[other] == fp) {
+		// different keys with the same fingerprint
+		flags[other] |= COLLISION;
+		flags[slot] |= COLLISION;
+	    }
+	    i = (i + 1) & mask;
+	}
+	table[i] = slot + 1;
+	this.size++;
+	return slot;
+    }
+
+    /** Remove the entry in the given slot from this index.
+     * @param slot the slot of the entry to remove
+     */
+    public void remove (int slot) {
+	int i = spread (fingerprints[slot]) & mask;
+	while (table[i] != slot + 1)
+	    i = (i + 1) & mask;
+	// Shift back entries that are in the same probe sequence
+	int j = i;
+	while (true) {
+	    j = (j + 1) & mask;
+	    int t = table[j];
+	    if (t == 0)
+		break;
+	    int home = spread (fingerprints[t - 1]) & mask;
+	    boolean stays =
+		i <= j ? (i < home && home <= j) : (i < home || home <= j);
+	    if (stays)
+		continue;
+	    table[i] = t;
+	    i = j;
+	}
+	table[i] = 0;
+	unlink (slot);
+	flags[slot] = 0;
+	next[slot] = free;
+	free = slot;
+	size--;
+    }
+
+    /** Remove all entries from this index.
+     */
+    public void clear () {
+	Arrays.fill (table, 0);
+	Arrays.fill (flags, 0);
+	head = tail = free = -1;
+	slotLimit = 0;
+	size = 0;
+    }
+
+    /** Get a copy of this index.
+     * @return a new index with the same content
+     */
+    public KeyIndex copy () {
+	KeyIndex c = new KeyIndex (MIN_SLOTS);
+	c.table = table.clone ();
+	c.mask = mask;
+	c.fingerprints = fingerprints.clone ();
+	c.hashes = hashes.clone ();
+	c.ids = ids.clone ();
+	c.cacheTimes = cacheTimes.clone ();
+	c.expires = expires.clone ();
+	c.sizes = sizes.clone ();
+	c.keySizes = keySizes.clone ();
+	c.hookSizes = hookSizes.clone ();
+	c.flags = flags.clone ();
+	c.next = next.clone ();
+	c.prev = prev.clone ();
+	c.head = head;
+	c.tail = tail;
+	c.free = free;
+	c.slotLimit = slotLimit;
+	c.size = size;
+	return c;
+    }
+
+    private int allocateSlot () {
+	if (free >= 0) {
+	    int slot = free;
+	    free = next[slot];
+	    return slot;
+	}
+	if (slotLimit == flags.length)
+	    growSlots (flags.length * 2);
+	return slotLimit++;
+    }
+
+    private void growSlots (int slots) {
+	fingerprints = Arrays.copyOf (fingerprints, slots);
+	hashes = Arrays.copyOf (hashes, slots);
+	ids = Arrays.copyOf (ids, slots);
+	cacheTimes = Arrays.copyOf (cacheTimes, slots);
+	expires = Arrays.copyOf (expires, slots);
+	sizes = Arrays.copyOf (sizes, slots);
+	keySizes = Arrays.copyOf (keySizes, slots);
+	hookSizes = Arrays.copyOf (hookSizes, slots);
+	flags = Arrays.copyOf (flags, slots);
+	next = Arrays.copyOf (next, slots);
+	prev = Arrays.copyOf (prev, slots);
+    }
+
+    private void rehash (int tableSize) {
+	allocateTable (tableSize);
+	for (int slot = 0; slot < slotLimit; slot++) {
+	    if (!isUsed (slot))
+		continue;
+	    int i = spread (fingerprints[slot]) & mask;
+	    while (table[i] != 0)
+		i = (i + 1) & mask;
+	    table[i] = slot + 1;
+	}
+    }
+
+    private void linkLast (int slot) {
+	prev[slot] = tail;
+	next[slot] = -1;
+	if (tail >= 0)
+	    next[tail] = slot;
+	else
+	    head = slot;
+	tail = slot;
+    }
+
+    private void unlink (int slot) {
+	int p = prev[slot];
+	int n = next[slot];
+	if (p >= 0)
+	    next[p] = n;
+	else
+	    head = n;
+	if (n >= 0)
+	    prev[n] = p;
+	else
+	    tail = p;
+    }
+
+    /** Get the oldest entry in this index.
+     * @return the slot of the first entry in insertion order or -1
+     */
+    public int first () {
+	return head;
+    }
+
+    /** Get the entry that was inserted after the given one.
+     * @param slot the current slot
+     * @return the slot of the next entry in insertion order or -1
+     */
+    public int next (int slot) {
+	return next[slot];
+    }
+
+    /** Get the fingerprint of the key for the given slot.
+     * @param slot the slot of the entry
+     * @return the fingerprint of the key
+     */
+    public long getFingerprint (int slot) {
+	return fingerprints[slot];
+    }
+
+    /** Get the hashCode of the key for the given slot.
+     * @param slot the slot of the entry
+     * @return the hashCode of the key
+     */
+    public int getHash (int slot) {
+	return hashes[slot];
+    }
+
+    /** Get the id of the entry in the given slot.
+     * @param slot the slot of the entry
+     * @return the id of the entry
+     */
+    public long getId (int slot) {
+	return ids[slot];
+    }
+
+    /** Get the time the entry in the given slot was cached.
+     * @param slot the slot of the entry
+     * @return the cache time (millis since the epoch)
+     */
+    public long getCacheTime (int slot) {
+	return cacheTimes[slot];
+    }
+
+    /** Get the expiry time of the entry in the given slot.
+     * @param slot the slot of the entry
+     * @return the expiry time (millis since the epoch)
+     */
+    public long getExpires (int slot) {
+	return expires[slot];
+    }
+
+    /** Set the expiry time of the entry in the given slot.
+     * @param slot the slot of the entry
+     * @param expiry the new expiry time (millis since the epoch)
+     */
+    public void setExpires (int slot, long expiry) {
+	expires[slot] = expiry;
+    }
+
+    /** Get the size of the cached resource in the given slot.
+     * @param slot the slot of the entry
+     * @return the number of bytes of the resource
+     */
+    public long getSize (int slot) {
+	return sizes[slot];
+    }
+
+    /** Set the size of the cached resource in the given slot.
+     * @param slot the slot of the entry
+     * @param size the number of bytes of the resource
+     */
+    public void setSize (int slot, long size) {
+	sizes[slot] = size;
+    }
+
+    /** Get the size of the stored key in the given slot.
+     * @param slot the slot of the entry
+     * @return the number of bytes of the stored key
+     */
+    public long getKeySize (int slot) {
+	return keySizes[slot];
+    }
+
+    /** Set the size of the stored key in the given slot.
+     * @param slot the slot of the entry
+     * @param keySize the number of bytes of the stored key
+     */
+    public void setKeySize (int slot, long keySize) {
+	keySizes[slot] = (int)keySize;
+    }
+
+    /** Get the size of the stored data hook in the given slot.
+     * @param slot the slot of the entry
+     * @return the number of bytes of the stored hook
+     */
+    public long getHookSize (int slot) {
+	return hookSizes[slot];
+    }
+
+    /** Set the size of the stored data hook in the given slot.
+     * @param slot the slot of the entry
+     * @param hookSize the number of bytes of the stored hook
+     */
+    public void setHookSize (int slot, long hookSize) {
+	hookSizes[slot] = (int)hookSize;
+    }
+
+    /** Get the total number of bytes used by the entry in the given slot.
+     * @param slot the slot of the entry
+     * @return the size of the resource, the key and the hook
+     */
+    public long getTotalSize (int slot) {
+	return sizes[slot] + keySizes[slot] + hookSizes[slot];
+    }
+
+    /** Get the flags of the entry in the given slot.
+     * @param slot the slot of the entry
+     * @return the flags of the entry
+     */
+    public int getFlags (int slot) {
+	return flags[slot];
+    }
+
+    /** Set the flags of the entry in the given slot.
+     * @param slot the slot of the entry
+     * @param entryFlags the new flags, the USED flag is kept as is
+     */
+    public void setFlags (int slot, int entryFlags) {
+	flags[slot] = (entryFlags & ~USED) | (flags[slot] & USED);
+    }
+}
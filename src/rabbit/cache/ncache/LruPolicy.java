@@ -0,0 +1,33 @@
+package rabbit.cache.ncache;
+
+/** An eviction policy that evicts the least recently used entry first.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final SlotList list = new SlotList (1);
+
+    public void inserted (int slot) {
+	list.addLast (0, slot);
+    }
+
+    public void accessed (int slot) {
+	list.moveLast (0, 0, slot);
+    }
+
+    public void removed (int slot) {
+	list.remove (0, slot);
+    }
+
+    public int first () {
+	return list.first (0);
+    }
+
+    public int next (int slot) {
+	return list.next (slot);
+    }
+
+    public void clear () {
+	list.clear ();
+    }
+}
@@ -1,29 +1,32 @@
 package rabbit.cache.ncache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import rabbit.cache.Cache;
 import rabbit.cache.CacheConfiguration;
 import rabbit.cache.CacheEntry;
 import rabbit.cache.CacheException;
+import rabbit.cache.CacheRegion;
 import rabbit.cache.utils.CacheConfigurationBase;
 import rabbit.cache.utils.CacheUtils;
 import rabbit.io.FileHelper;
@@ -31,8 +34,21 @@ import rabbit.util.SProperties;
 
 /** The NCache is like a Map in lookup/insert/delete
  *  The NCache is persistent over sessions (saves itself to disk).
+ *  Changes to the index are written to a journal that is compacted
+ *  into a checkpoint of the full index when it has grown big enough.
  *  The NCache is selfcleaning, that is it removes old stuff.
  *
+ *  The entries are found through an in memory index over the
+ *  fingerprints of the keys, so a lookup only reads the stored key
+ *  from disk if the fingerprint is known to collide with another key.
+ *
+ *  The index is split into a number of stripes, selected by the key
+ *  fingerprint, that each have their own lock and eviction policy.
+ *
+ *  The stored index is read by a background thread so that the cache
+ *  can be used at once, lookups of entries that are not loaded yet
+ *  are misses.
+ *
  * @param <K> the key type of the cache
  * @param <V> the data resource
  *
@@ -41,36 +57,57 @@ import rabbit.util.SProperties;
 public class NCache<K, V> implements Cache<K, V>, Runnable {
     private static final String DIR = "/tmp/rabbit/cache";  // standard dir.
     private static final String DEFAULT_CLEAN_LOOP = "60";  // 1 minute
+    private static final String DEFAULT_HOOK_CACHE_SIZE = "1024"; // 1 MB
+    private static final String DEFAULT_EVICTION = "lru";
+    private static final String DEFAULT_ADMISSION = "none";
+    /** The average entry size used to size the admission filter. */
+    private static final long AVERAGE_ENTRY_SIZE = 8 * 1024;
+    private static final String DEFAULT_STRIPES = "16";
+    private static final String DEFAULT_JOURNAL_SYNC = "1000"; // 1 second
+    /** The number of entries evicted for every take of the lock. */
+    private static final int EVICTION_BATCH = 128;
 
     private static final String CACHEINDEX = "cache.index"; // the indexfile.
+    private static final String JOURNAL = "cache.journal";
+    /** The start of the index file: "RabbIT" and the format version. */
+    private static final long INDEX_MAGIC = 0x5261626249540004L;
+    /** The position of the entry count in the index file. */
+    private static final int INDEX_COUNT_POS = 16;
+    /** The size of one entry in the index file. */
+    private static final int INDEX_RECORD_SIZE = 56;
 
     private Configuration configuration = new Configuration ();
-    private boolean changed = false;                  // have we changed?
     private Thread cleaner = null;                    // remover of old stuff.
     private int cleanLoopTime = 60 * 1000;      // sleeptime between cleanups.
 
-    private long fileNo = 0;
-    private long currentSize = 0;
-    private File dir = null;
-    private Map<FiledKey<K>, NCacheData<K, V>> htab = null;
-    private List<NCacheData<K, V>> vec = null;
+    private final AtomicLong fileNo = new AtomicLong ();
+    private volatile File dir = null;
+    private final IndexStripe[] stripes;
+    private final int stripeMask;
+    private volatile String evictionName = DEFAULT_EVICTION;
+    private volatile TinyLfuAdmission admission = null;
+    private volatile IndexJournal journal = null;
+    private long journalSync = 1000;
+    private volatile IndexLoader loader = null;
+    private volatile String loadStatus = "-";
 
     private File tempdir = null;
     private final Object dirLock = new Object ();
 
     private final Logger logger = Logger.getLogger (getClass ().getName ());
 
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock ();
-    private final Lock r = rwl.readLock ();
-    private final Lock w = rwl.writeLock ();
-
     private final FileHandler<K> fhk;
     private final FileHandler<V> fhv;
+    private final KeyFingerprinter<K> kfp;
+    private final FiledHook<V> filedHook = new FiledHook<V> ();
+    private final HookCache hookCache;
 
     private volatile boolean running = true;
 
     /** Create a cache that uses default values.
      *  Note that you must call start to have the cache fully up.
+     *  Since no fingerprinter is given every match in the index will
+     *  be verified against the key stored on disk.
      * @param props the configuration of the cache
      * @param fhk the FileHandler for the cache keys
      * @param fhv the FileHandler for the cache values
@@ -78,13 +115,71 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
      */
     public NCache (SProperties props, FileHandler<K> fhk, FileHandler<V> fhv)
 	throws IOException {
+	this (props, fhk, fhv, null);
+    }
+
+    /** Create a cache that uses default values.
+     *  Note that you must call start to have the cache fully up.
+     * @param props the configuration of the cache
+     * @param fhk the FileHandler for the cache keys
+     * @param fhv the FileHandler for the cache values
+     * @param kfp the KeyFingerprinter for the cache keys, may be null
+     * @throws IOException if the cache file directory can not be configured
+     */
+    public NCache (SProperties props, FileHandler<K> fhk, FileHandler<V> fhv,
+		   KeyFingerprinter<K> kfp)
+	throws IOException {
 	this.fhk = fhk;
 	this.fhv = fhv;
-	htab = new HashMap<FiledKey<K>, NCacheData<K, V>> ();
-	vec = new ArrayList<NCacheData<K, V>> ();
+	this.kfp = kfp;
+	int count = getStripeCount (props);
+	stripes = new IndexStripe[count];
+	for (int i = 0; i < count; i++)
+	    stripes[i] = new IndexStripe (new LruPolicy ());
+	stripeMask = count - 1;
+	hookCache = new HookCache (1024 * 1024, count);
 	setup (props);
     }
 
+    /** Get the number of stripes to use, this is always a power of 2.
+     *  The number of stripes can not be changed once the cache is created.
+     */
+    private int getStripeCount (SProperties props) {
+	String sc = DEFAULT_STRIPES;
+	if (props != null)
+	    sc = props.getProperty ("stripes", DEFAULT_STRIPES);
+	int wanted = 16;
+	try {
+	    wanted = Math.max (1, Math.min (1024, Integer.parseInt (sc)));
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache stripes: '" + sc + "'");
+	}
+	int count = 1;
+	while (count < wanted)
+	    count <<= 1;
+	return count;
+    }
+
+    private int getStripeIndex (long fp) {
+	return (int)(fp >>> 40) & stripeMask;
+    }
+
+    private IndexStripe getStripe (long fp) {
+	return stripes[getStripeIndex (fp)];
+    }
+
+    /** Take the write locks of all the stripes, always in the same order.
+     */
+    private void lockAll () {
+	for (IndexStripe s : stripes)
+	    s.w.lock ();
+    }
+
+    private void unlockAll () {
+	for (int i = stripes.length - 1; i >= 0; i--)
+	    stripes[i].w.unlock ();
+    }
+
     /** Start the thread that cleans the cache.
      */
     public void start () {
@@ -99,15 +194,13 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 
     private class Configuration extends CacheConfigurationBase {
 	public URL getCacheDir () {
-	    r.lock ();
+	    File d = dir;
 	    try {
-		if (dir == null)
+		if (d == null)
 		    return null;
-		return dir.toURI ().toURL ();
+		return d.toURI ().toURL ();
 	    } catch (MalformedURLException e) {
 		return null;
-	    } finally {
-		r.unlock ();
 	    }
 	}
 
@@ -117,11 +210,14 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 	 * @throws IOException if the new cache file directory can not be configured
 	 */
 	private void setCacheDir (String newDir) throws IOException {
-	    w.lock ();
+	    waitForLoader ();
+	    lockAll ();
 	    try {
 		// save old cachedir.
-		if (dir != null)
-		    writeCacheIndex ();
+		if (journal != null) {
+		    checkpoint ();
+		    closeJournal ();
+		}
 
 		// does new dir exist?
 		dir = new File (newDir);
@@ -152,8 +248,19 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 		if (readCache)
 		    // move to new dir.
 		    readCacheIndex ();
+		else
+		    fileNo.set (0);
+		openJournal ();
 	    } finally {
-		w.unlock ();
+		unlockAll ();
+	    }
+	    IndexLoader l = loader;
+	    if (l != null) {
+		Thread t = new Thread (l, NCache.this.getClass ().getName () +
+				       ".loader");
+		t.setDaemon (true);
+		l.thread = t;
+		t.start ();
 	    }
 	}
     }
@@ -176,39 +283,67 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
      * @return the current size of the cache in bytes.
      */
     public long getCurrentSize () {
-	r.lock ();
-	try {
-	    return currentSize;
-	} finally {
-	    r.unlock ();
-	}
+	long size = 0;
+	for (IndexStripe s : stripes)
+	    size += s.getCurrentSize ();
+	return size;
     }
 
     /** Get the current number of entries in the cache.
      * @return the current number of entries in the cache.
      */
     public long getNumberOfEntries () {
-	r.lock ();
-	try {
-	    return htab.size ();
-	} finally {
-	    r.unlock ();
+	long entries = 0;
+	for (IndexStripe s : stripes)
+	    entries += s.getNumberOfEntries ();
+	return entries;
+    }
+
+    private long fingerprint (K k) {
+	if (kfp != null)
+	    return kfp.fingerprint (k);
+	return k.hashCode () * 0x9E3779B97F4A7C15L;
+    }
+
+    private String getFingerprinterName () {
+	return kfp == null ? "" : kfp.getClass ().getName ();
+    }
+
+    /** Check if a match in the index has to be verified against the
+     *  key stored on disk.
+     */
+    private boolean mustVerify (KeyIndex index, int slot) {
+	return kfp == null || (index.getFlags (slot) & KeyIndex.COLLISION) != 0;
+    }
+
+    /** Find the index slot of the given key.
+     *  The caller must hold the lock of the stripe.
+     * @return the slot or -1 if the key is not in the cache
+     */
+    private int findSlot (KeyIndex index, K k, long fp, int hash)
+	throws IOException {
+	int slot;
+	for (int n = 0; (slot = index.find (fp, hash, n)) >= 0; n++) {
+	    if (!mustVerify (index, slot))
+		return slot;
+	    K stored = new FiledKey<K> (this, index.getId (slot)).getData ();
+	    if (k.equals (stored))
+		return slot;
 	}
+	return -1;
     }
 
-    /** Check that the data hook exists.
-     * @param e the NCacheEntry to check
-     * @return true if the cache data is valid, false otherwise
+    /** Find the index slot of the entry with the given id.
+     *  The caller must hold the lock of the stripe.
+     * @return the slot or -1 if the entry is not in the cache
      */
-    private boolean checkHook (NCacheData<K, V> e) {
-	FiledHook<V> hook = e.getDataHook ();
-	if (hook != null) {
-	    File entryName = getEntryName (e.getId (), true, "hook");
-	    if (!entryName.exists ())
-		return false;
+    private int findSlot (KeyIndex index, long id, long fp, int hash) {
+	int slot;
+	for (int n = 0; (slot = index.find (fp, hash, n)) >= 0; n++) {
+	    if (index.getId (slot) == id)
+		return slot;
 	}
-	// no hook is legal.
-	return true;
+	return -1;
     }
 
     /** Get the CacheEntry assosiated with given object.
@@ -216,39 +351,93 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
      * @return the CacheEntry or null (if not found).
      */
     public CacheEntry<K, V> getEntry (K k) throws CacheException {
-	NCacheData<K, V> cacheEntry = getCurrentData (k);
-	if (cacheEntry != null && !checkHook (cacheEntry)) {
-	    // bad entry...
-	    remove (k);
+	return getEntry (k, true);
+    }
+
+    public CacheEntry<K, V> peekEntry (K k) throws CacheException {
+	return getEntry (k, false);
+    }
+
+    private CacheEntry<K, V> getEntry (K k, boolean access)
+	throws CacheException {
+	NCacheEntry<K, V> entry;
+	boolean hasHook;
+	long fp = fingerprint (k);
+	IndexStripe stripe = getStripe (fp);
+	TinyLfuAdmission a = admission;
+	if (a != null && access)
+	    a.record (fp);
+	stripe.r.lock ();
+	try {
+	    KeyIndex index = stripe.getIndex ();
+	    int slot = findSlot (index, k, fp, k.hashCode ());
+	    if (slot < 0)
+		return null;
+	    entry = getEntry (slot, index);
+	    hasHook = (index.getFlags (slot) & KeyIndex.HAS_HOOK) != 0;
+	    if (access)
+		stripe.accessed (slot);
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to read key: " + k, e);
+	} finally {
+	    stripe.r.unlock ();
 	}
-	/* If you want to implement LRU or something like that:
-	   if (cacheEntry != null)
-	       cacheEntry.setVisited (System.currentTimeMillis ());
-	*/
-	return getEntry (cacheEntry);
+	try {
+	    if (hasHook && entry.readDataHook () == null) {
+		// bad entry...
+		remove (k);
+		return null;
+	    }
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to get: entry: " + entry, e);
+	}
+	return entry;
     }
 
     public File getEntryName (long id, boolean real, String extension) {
 	return CacheUtils.getEntryName (dir, id, real, extension);
     }
 
+    public CacheRegion getRegion (CacheEntry<K, V> entry) throws IOException {
+	File f = getEntryName (entry.getId (), true, null);
+	FileChannel fc = new FileInputStream (f).getChannel ();
+	return new CacheRegion (fc, 0, fc.size ());
+    }
+
+    public boolean admit (K k, long size) {
+	TinyLfuAdmission a = admission;
+	if (a == null)
+	    return true;
+	// there is room for everything while the cache is not full
+	long maxSize = configuration.getMaxSize ();
+	if (getCurrentSize () + Math.max (size, 0) <= maxSize)
+	    return true;
+	long fp = fingerprint (k);
+	IndexStripe stripe = getStripe (fp);
+	long victim;
+	stripe.r.lock ();
+	try {
+	    int slot = stripe.getVictim ();
+	    if (slot < 0)
+		return true;
+	    victim = stripe.getIndex ().getFingerprint (slot);
+	} finally {
+	    stripe.r.unlock ();
+	}
+	return a.admit (fp, victim);
+    }
+
     /** Reserve space for a CacheEntry with key o.
      * @param k the key for the CacheEntry.
      * @return a new CacheEntry initialized for the cache.
      */
     public CacheEntry<K, V> newEntry (K k) {
-	long newId = 0;
 	// allocate the id for the new entry.
-	w.lock ();
-	try {
-	    newId = fileNo;
-	    fileNo++;
-	} finally {
-	    w.unlock ();
-	}
+	long newId = fileNo.getAndIncrement ();
 	long now = System.currentTimeMillis ();
 	long expires = now + configuration.getCacheTime ();
-	return new NCacheEntry<K, V> (newId, now, expires, 0, k, null);
+	return new NCacheEntry<K, V> (newId, now, expires, 0,
+				      fingerprint (k), k.hashCode (), k, null);
     }
 
     /** Get the file handler for the keys.
@@ -290,19 +479,42 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 			       newName.getAbsolutePath ());
 	}
 	cfile = newName;
-	NCacheData<K, V> data = getData (ent, cfile);
-	w.lock ();
+	long id = ent.getId ();
+	long size = cfile.length ();
+	long keySize;
+	long hookSize;
 	try {
-	    remove (ent.getKey ());
-	    htab.put (data.getKey (), data);
-	    currentSize +=
-		data.getSize () + data.getKeySize () + data.getHookSize ();
-	    vec.add (data);
+	    keySize = storeKey (ent.getKey (), id);
+	    hookSize = storeHook (ent.getDataHook (), id);
+	} catch (IOException e) {
+	    // TODO: do we need to clean anything up?
+	    throw new CacheException ("Failed to store data", e);
+	}
+	int flags = ent.getDataHook () != null ? KeyIndex.HAS_HOOK : 0;
+	long oldId = -1;
+	IndexStripe stripe = getStripe (ent.getFingerprint ());
+	stripe.w.lock ();
+	try {
+	    int slot = findSlot (stripe.getIndex (), ent.getKey (),
+				 ent.getFingerprint (), ent.getKeyHash ());
+	    if (slot >= 0)
+		oldId = stripe.detach (slot);
+	    stripe.insert (ent.getFingerprint (), ent.getKeyHash (), id,
+			   ent.getCacheTime (), ent.getExpires (), size,
+			   keySize, hookSize, flags);
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to check old entry", e);
 	} finally {
-	    w.unlock ();
+	    stripe.w.unlock ();
+	}
+	if (oldId >= 0) {
+	    try {
+		removeFiles (oldId);
+	    } catch (IOException e) {
+		logWarning ("Failed to remove replaced entry: " + oldId, e);
+	    }
 	}
 
-	changed = true;
     }
 
     private void ensureCacheDirIsValid (File f) {
@@ -323,35 +535,55 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
      */
     public void entryChanged (CacheEntry<K, V> ent, K newKey, V newHook)
 	throws CacheException {
-	NCacheData<K, V> data = getCurrentData (ent.getKey ());
-	if (data == null) {
-	    Thread.dumpStack ();
-	    logger.warning ("Failed to find changed entry so ignoring: " +
-			    ent.getId ());
-	    return;
-	}
+	NCacheEntry<K, V> nent = (NCacheEntry<K, V>)ent;
+	long id = ent.getId ();
+	long keySize;
+	long hookSize;
 	try {
-	    data.updateExpireAndSize (ent);
-	    long id = ent.getId ();
-	    FiledWithSize<FiledKey<K>> fkws = storeKey (newKey, id);
-	    data.setKey (fkws.t, fkws.size);
-	    FiledWithSize<FiledHook<V>> fhws = storeHook (newHook, id);
-	    data.setDataHook (fhws.t, fhws.size);
+	    keySize = storeKey (newKey, id);
+	    hookSize = storeHook (newHook, id);
 	} catch (IOException e) {
 	    throw new CacheException ("Failed to update entry: entry: " + ent +
 				      ", newKey: " + newKey, e);
-	} finally {
-	    changed = true;
 	}
-    }
-
-    private NCacheData<K, V> getCurrentData (K key) {
-	MemoryKey<K> mkey = new MemoryKey<K> (key);
-	r.lock ();
+	long fp = fingerprint (newKey);
+	int hash = newKey.hashCode ();
+	int flags = newHook != null ? KeyIndex.HAS_HOOK : 0;
+	boolean moved = false;
+	long cacheTime = 0;
+	IndexStripe stripe = getStripe (nent.getFingerprint ());
+	stripe.w.lock ();
 	try {
-	    return htab.get (mkey);
+	    KeyIndex index = stripe.getIndex ();
+	    int slot = findSlot (index, id, nent.getFingerprint (),
+				 nent.getKeyHash ());
+	    if (slot < 0) {
+		logger.warning ("Failed to find changed entry so ignoring: " +
+				id);
+		return;
+	    }
+	    if (fp != index.getFingerprint (slot)
+		|| hash != index.getHash (slot)) {
+		// the key changed, so the entry has to be reindexed
+		cacheTime = index.getCacheTime (slot);
+		stripe.detach (slot);
+		moved = true;
+	    } else {
+		stripe.update (slot, ent.getExpires (), ent.getSize (),
+			       keySize, hookSize, flags);
+	    }
 	} finally {
-	    r.unlock ();
+	    stripe.w.unlock ();
+	}
+	if (moved) {
+	    stripe = getStripe (fp);
+	    stripe.w.lock ();
+	    try {
+		stripe.insert (fp, hash, id, cacheTime, ent.getExpires (),
+			       ent.getSize (), keySize, hookSize, flags);
+	    } finally {
+		stripe.w.unlock ();
+	    }
 	}
     }
 
@@ -366,48 +598,32 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
     /** Remove the Entry with key k from the cache.
      * @param k the key for the CacheEntry.
      */
-    public void remove (K k) throws CacheException{
-	NCacheData<K, V> r;
-	w.lock ();
+    public void remove (K k) throws CacheException {
+	if (k == null) {
+	    // Odd, but seems to happen. Probably removed
+	    // by someone else before enumeration gets to it.
+	    return;
+	}
+	long id = -1;
+	long fp = fingerprint (k);
+	IndexStripe stripe = getStripe (fp);
+	stripe.w.lock ();
 	try {
-	    if (k == null) {
-		// Odd, but seems to happen. Probably removed
-		// by someone else before enumeration gets to it.
-		return;
-	    }
-	    FiledKey<K> fk = new MemoryKey<K> (k);
-	    r = htab.get (fk);
-	    if (r != null) {
-		// remove entries while it is still in htab.
-		vec.remove (r);
-		currentSize -=
-		    (r.getSize () + r.getKeySize () + r.getHookSize ());
-		htab.remove (fk);
-	    }
+	    int slot = findSlot (stripe.getIndex (), k, fp, k.hashCode ());
+	    if (slot >= 0)
+		id = stripe.detach (slot);
+	    IndexLoader l = loader;
+	    if (l != null)
+		// the key may also be in the part of the index not yet loaded
+		l.removed (k, fp);
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to read key: " + k, e);
 	} finally {
-	    w.unlock ();
+	    stripe.w.unlock ();
 	}
-
-	if (r != null) {
-	    // this removes the key => htab.remove can not work..
-	    File entryName = getEntryName (r.getId (), true, null);
+	if (id >= 0) {
 	    try {
-		removeHook (entryName, ".hook");
-		removeHook (entryName, ".key");
-		r.setDataHook (null, 0);
-		File cfile = entryName;
-		if (cfile.exists ()) {
-		    File p = cfile.getParentFile ();
-		    FileHelper.delete (cfile);
-		    // Until NT does rename in a nice manner check for tempdir.
-		    synchronized (dirLock) {
-			if (p.exists () && !p.equals (tempdir)) {
-			    String ls[] = p.list ();
-			    if (ls != null && ls.length == 0)
-				FileHelper.delete (p);
-			}
-		    }
-		}
+		removeFiles (id);
 	    } catch (IOException e) {
 		throw new CacheException ("Failed to remove file, key: " + k,
 					  e);
@@ -415,27 +631,56 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 	}
     }
 
+    /** Remove the files of a cache entry that is no longer in the index.
+     * @param id the id of the removed entry
+     */
+    private void removeFiles (long id) throws IOException {
+	hookCache.remove (id);
+	File entryName = getEntryName (id, true, null);
+	removeHook (entryName, ".hook");
+	removeHook (entryName, ".key");
+	File cfile = entryName;
+	if (cfile.exists ()) {
+	    File p = cfile.getParentFile ();
+	    FileHelper.delete (cfile);
+	    // Until NT does rename in a nice manner check for tempdir.
+	    synchronized (dirLock) {
+		if (p.exists () && !p.equals (tempdir)) {
+		    String ls[] = p.list ();
+		    if (ls != null && ls.length == 0)
+			FileHelper.delete (p);
+		}
+	    }
+	}
+    }
+
+    /** Remove the files of many entries and log any failures.
+     */
+    private void removeFiles (long[] ids, int count) {
+	for (int i = 0; i < count; i++) {
+	    try {
+		removeFiles (ids[i]);
+	    } catch (IOException e) {
+		logWarning ("Failed to remove entry: " + ids[i], e);
+	    }
+	}
+    }
+
     /** Clear the Cache from files.
      */
     public void clear () throws CacheException {
-	ArrayList<FiledKey<K>> ls;
-	w.lock ();
-	try {
-	    ls = new ArrayList<FiledKey<K>> (htab.keySet ());
-	    for (FiledKey<K> k : ls) {
-		try {
-		    remove (k.getData ());
-		} catch (IOException e) {
-		    throw new CacheException ("Failed to remove entry, key: " +
-					      k, e);
-		}
+	waitForLoader ();
+	for (IndexStripe stripe : stripes) {
+	    long[] ids;
+	    stripe.w.lock ();
+	    try {
+		ids = stripe.clear ();
+	    } finally {
+		stripe.w.unlock ();
 	    }
-	    vec.clear (); // just to be safe.
-	    currentSize = 0;
-	    changed = true;
-	} finally {
-	    w.unlock ();
+	    removeFiles (ids, ids.length);
 	}
+	hookCache.clear ();
     }
 
     /** Get the CacheEntries in the cache.
@@ -443,37 +688,53 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
      * @return a Collection of the CacheEntries.
      */
     public Iterable<NCacheEntry<K, V>> getEntries () {
-	// Defensive copy so that nothing happen when the user iterates
-	r.lock ();
-	try {
-	    return new NCacheIterator (htab.values ());
-	} finally {
-	    r.unlock ();
+	// Defensive copy so that nothing happen when the user iterates,
+	// the stripes are copied one at a time.
+	List<KeyIndex> snapshots = new ArrayList<KeyIndex> (stripes.length);
+	for (IndexStripe stripe : stripes) {
+	    stripe.r.lock ();
+	    try {
+		snapshots.add (stripe.getIndex ().copy ());
+	    } finally {
+		stripe.r.unlock ();
+	    }
 	}
+	return new NCacheIterator (snapshots);
     }
 
-    private class NCacheIterator 
+    private class NCacheIterator
 	implements Iterable<NCacheEntry<K, V>>, Iterator<NCacheEntry<K, V>> {
-	private Iterator<NCacheData<K, V>> dataIterator;
+	private final Iterator<KeyIndex> snapshots;
+	private KeyIndex snapshot;
+	private int slot = -1;
+
+	public NCacheIterator (List<KeyIndex> snapshots) {
+	    this.snapshots = snapshots.iterator ();
+	    findNext ();
+	}
 
-	public NCacheIterator (Collection<NCacheData<K, V>> c) {
-	    dataIterator = new ArrayList<NCacheData<K, V>> (c).iterator ();
+	private void findNext () {
+	    while (slot < 0 && snapshots.hasNext ()) {
+		snapshot = snapshots.next ();
+		slot = snapshot.first ();
+	    }
 	}
-	
+
 	public Iterator<NCacheEntry<K, V>> iterator () {
 	    return this;
 	}
 
 	public NCacheEntry<K, V> next () {
-	    try {
-		return getEntry (dataIterator.next ());
-	    } catch (CacheException e) {
-		throw new RuntimeException ("Failed to get entry", e);
-	    }
+	    if (slot < 0)
+		throw new NoSuchElementException ();
+	    NCacheEntry<K, V> ret = getEntry (slot, snapshot);
+	    slot = snapshot.next (slot);
+	    findNext ();
+	    return ret;
 	}
 
 	public boolean hasNext () {
-	    return dataIterator.hasNext ();
+	    return slot >= 0;
 	}
 
 	public void remove () {
@@ -481,94 +742,575 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 	}
     }
 
-    /** Read the info from an old cache.
+    /** Start to read the info from an old cache, the checkpoint and the
+     *  old journals. Only the header of the checkpoint is read here,
+     *  the entries are read by the loader thread.
+     *  The caller must hold all the locks.
      */
     private void readCacheIndex () {
+	IndexLoader l = new IndexLoader ();
+	File index = new File (dir, CACHEINDEX);
 	try {
-	    File index = new File (dir, CACHEINDEX);
 	    if (index.exists ())
-		readCacheIndex (index);
+		l.open (index);
 	    else
 		logger.info ("No cache index found: " + index +
 			     ", treating as empty cache");
 	} catch (IOException e) {
-	    logWarning ("Couldnt read " + dir + File.separator + CACHEINDEX +
+	    logWarning ("Couldnt read " + index +
 			". This is bad (but not serius).\nTreating as empty. ",
 			e);
-	} catch (ClassNotFoundException e) {
-	    logger.log (Level.SEVERE, "Couldn't find classes", e);
-	}
-    }
-
-    @SuppressWarnings( "unchecked" )
-    private void readCacheIndex (File index)
-	throws IOException, ClassNotFoundException {
-	long fileNo;
-	long currentSize;
-	FileInputStream fis = new FileInputStream (index);
-	ObjectInputStream is =
-	    new ObjectInputStream (new GZIPInputStream (fis));
-	fileNo = is.readLong ();
-	currentSize = is.readLong ();
-	int size = is.readInt ();
-	Map<FiledKey<K>, NCacheData<K, V>> htab =
-	    new HashMap<FiledKey<K>, NCacheData<K, V>> ((int)(size * 1.2));
-	for (int i = 0; i < size; i++) {
-	    FiledKey<K> fk = (FiledKey<K>)is.readObject ();
-	    fk.setCache (this);
-	    NCacheData<K, V> entry = (NCacheData<K, V>)is.readObject ();
-	    htab.put (fk, entry);
-	}
-	List<NCacheData<K, V>> vec =
-	    (List<NCacheData<K, V>>)is.readObject ();
-	is.close ();
-
-	// Only set internal state if we managed to get it all.
-	this.fileNo = fileNo;
-	this.currentSize = currentSize;
-	this.htab = htab;
-	this.vec = vec;
+	}
+	// New entries must not get the id of an entry that is not loaded yet
+	fileNo.set (Math.max (l.fileNo, getFreeId ()));
+	loader = l;
+    }
+
+    /** Get an id that is higher than the id of every entry that has
+     *  its files in the cache directory. This only lists the cache
+     *  directory so it is quick even for a big cache.
+     */
+    private long getFreeId () {
+	long id = 0;
+	String[] ls = dir.list ();
+	if (ls == null)
+	    return id;
+	for (String s : ls) {
+	    try {
+		long fdir = Long.parseLong (s);
+		id = Math.max (id, (fdir + 1) * CacheUtils.FILES_PER_DIR);
+	    } catch (NumberFormatException e) {
+		// not an entry directory
+	    }
+	}
+	return id;
+    }
+
+    /** Wait until the index loader, if any, has finished.
+     */
+    private void waitForLoader () {
+	IndexLoader l = loader;
+	if (l == null || l.thread == null)
+	    return;
+	try {
+	    l.thread.join ();
+	} catch (InterruptedException e) {
+	    Thread.currentThread ().interrupt ();
+	}
+    }
+
+    /** Builds up the stored index from the checkpoint and the old
+     *  journals, in the background, and then merges it with the
+     *  entries that were added since the cache was started.
+     */
+    private class IndexLoader implements Runnable, IndexJournal.Replayer {
+	private final KeyIndex[] indexes = new KeyIndex[stripes.length];
+	private final EvictionPolicy[] policies =
+	    new EvictionPolicy[stripes.length];
+	/** The keys removed while loading, guarded by the stripe locks. */
+	private final KeyIndex[] removed = new KeyIndex[stripes.length];
+	/** The keys removed while loading when there is no fingerprinter,
+	 *  the fingerprints can not tell such keys apart. */
+	private final List<List<K>> removedKeys = new ArrayList<List<K>> ();
+	private long fileNo = 0;
+	private String fingerprinterName = getFingerprinterName ();
+	private MappedByteBuffer checkpoint = null;
+	private int checkpointEntries = 0;
+	private long[] dropped = new long[16];
+	private int droppedCount = 0;
+	private volatile Thread thread = null;
+	private volatile String phase = "reading index";
+	private volatile int loaded = 0;
+
+	public IndexLoader () {
+	    for (int i = 0; i < stripes.length; i++) {
+		indexes[i] = new KeyIndex (0);
+		policies[i] = createPolicy (evictionName);
+		removed[i] = new KeyIndex (0);
+		removedKeys.add (new ArrayList<K> ());
+	    }
+	}
+
+	/** Map the checkpoint into memory and read its header.
+	 */
+	private void open (File indexFile) throws IOException {
+	    RandomAccessFile raf = new RandomAccessFile (indexFile, "r");
+	    try {
+		FileChannel fc = raf.getChannel ();
+		MappedByteBuffer buf =
+		    fc.map (FileChannel.MapMode.READ_ONLY, 0, fc.size ());
+		if (buf.remaining () < INDEX_COUNT_POS + 6
+		    || buf.getLong () != INDEX_MAGIC)
+		    throw new IOException ("Unknown cache index format: " +
+					   indexFile);
+		long no = buf.getLong ();
+		int count = buf.getInt ();
+		byte[] name = new byte[buf.getShort () & 0xffff];
+		if (buf.remaining () <
+		    name.length + (long)count * INDEX_RECORD_SIZE)
+		    throw new IOException ("Truncated cache index: " +
+					   indexFile);
+		buf.get (name);
+		fileNo = no;
+		fingerprinterName = new String (name, "UTF-8");
+		checkpointEntries = count;
+		checkpoint = buf;
+	    } finally {
+		// the mapping stays valid after the file is closed
+		raf.close ();
+	    }
+	}
+
+	/** Read the entries of the checkpoint, they are stored stripe
+	 *  by stripe in eviction order.
+	 */
+	private void readCheckpoint () throws IOException {
+	    MappedByteBuffer buf = checkpoint;
+	    for (int i = 0; i < checkpointEntries; i++) {
+		if ((i & 0xfff) == 0) {
+		    if (!running)
+			throw new IOException ("Cache stopped");
+		    loaded = i;
+		}
+		long fp = buf.getLong ();
+		int hash = buf.getInt ();
+		long id = buf.getLong ();
+		long cacheTime = buf.getLong ();
+		long expires = buf.getLong ();
+		long size = buf.getLong ();
+		int keySize = buf.getInt ();
+		int hookSize = buf.getInt ();
+		int flags = buf.getInt ();
+		add (fp, hash, id, cacheTime, expires, size,
+		     keySize, hookSize, flags);
+	    }
+	    loaded = checkpointEntries;
+	    checkpoint = null;
+	}
+
+	public void run () {
+	    long start = System.currentTimeMillis ();
+	    IndexJournal j = journal;
+	    try {
+		if (checkpoint != null)
+		    readCheckpoint ();
+		phase = "replaying journal";
+		long replayed = j.replay (this, fingerprinterName);
+		boolean refingerprint =
+		    !fingerprinterName.equals (getFingerprinterName ());
+		if (refingerprint) {
+		    phase = "refingerprinting";
+		    refingerprint ();
+		}
+		int entries = merge ();
+		loadStatus = "loaded " + entries + " entries in " +
+		    (System.currentTimeMillis () - start) + " ms";
+		if (replayed > 0 || refingerprint)
+		    checkpoint ();
+		else
+		    j.checkpointDone ();
+	    } catch (IOException e) {
+		logWarning ("Couldnt read " + dir + File.separator + CACHEINDEX +
+			    ". This is bad (but not serius).\nTreating as empty. ",
+			    e);
+		loadStatus = "failed: " + e.getMessage ();
+	    } finally {
+		// merge has already done this unless loading failed
+		if (loader == this)
+		    loader = null;
+	    }
+	}
+
+	/** Get a description of how far the loading has come.
+	 */
+	public String getProgress () {
+	    return phase + ", " + loaded + " / " + checkpointEntries +
+		" entries read";
+	}
+
+	public void add (long fp, int hash, long id, long cacheTime,
+			 long expires, long size, int keySize, int hookSize,
+			 int flags) {
+	    int s = getStripeIndex (fp);
+	    if (findSlot (indexes[s], id, fp, hash) >= 0)
+		return;
+	    if (kfp != null)
+		// the fingerprints are good enough to tell that this
+		// entry replaces the older entries for the same key
+		drop (s, fp, hash, null);
+	    int slot = indexes[s].insert (fp, hash, id, cacheTime, expires,
+					  size, keySize, hookSize,
+					  flags & ~KeyIndex.COLLISION);
+	    policies[s].inserted (slot);
+	    fileNo = Math.max (fileNo, id + 1);
+	}
+
+	public void remove (long fp, int hash, long id) {
+	    int s = getStripeIndex (fp);
+	    int slot = findSlot (indexes[s], id, fp, hash);
+	    if (slot < 0)
+		return;
+	    policies[s].removed (slot);
+	    indexes[s].remove (slot);
+	}
+
+	/** Remember that a key was removed while loading, so that it is
+	 *  not brought back by the merge. The caller must hold the lock
+	 *  of the stripe.
+	 */
+	public void removed (K k, long fp) {
+	    int s = getStripeIndex (fp);
+	    if (kfp == null)
+		removedKeys.get (s).add (k);
+	    else
+		removed[s].insert (fp, k.hashCode (), -1, 0, 0, 0, 0, 0, 0);
+	}
+
+	/** Remove the loaded entries for the given key, the removal is
+	 *  journaled and the files are removed after the merge.
+	 * @param k the key, if not null only the entries that have this
+	 *        key stored are removed, otherwise all the entries with
+	 *        the fingerprint and hash are removed
+	 */
+	private void drop (int s, long fp, int hash, K k) {
+	    int slot;
+	    int n = 0;
+	    while ((slot = indexes[s].find (fp, hash, n)) >= 0) {
+		long id = indexes[s].getId (slot);
+		if (k != null && !hasKey (id, k)) {
+		    n++;
+		    continue;
+		}
+		journal.remove (fp, hash, id);
+		policies[s].removed (slot);
+		indexes[s].remove (slot);
+		if (droppedCount == dropped.length)
+		    dropped = Arrays.copyOf (dropped, droppedCount * 2);
+		dropped[droppedCount++] = id;
+	    }
+	}
+
+	private boolean hasKey (long id, K k) {
+	    try {
+		return k.equals (new FiledKey<K> (NCache.this, id).getData ());
+	    } catch (IOException e) {
+		logWarning ("Failed to read cache key: " + id, e);
+		return false;
+	    }
+	}
 
+	/** Read the stored key of an entry.
+	 * @return the key or null if it can not be read
+	 */
+	private K readKey (long id) {
+	    try {
+		return new FiledKey<K> (NCache.this, id).getData ();
+	    } catch (IOException e) {
+		logWarning ("Failed to read cache key: " + id, e);
+		return null;
+	    }
+	}
+
+	/** The fingerprints were made by some other fingerprinter so
+	 *  they have to be redone from the stored keys.
+	 */
+	private void refingerprint () throws IOException {
+	    KeyIndex[] oldIndexes = indexes.clone ();
+	    EvictionPolicy[] oldPolicies = policies.clone ();
+	    for (int i = 0; i < stripes.length; i++) {
+		indexes[i] = new KeyIndex (0);
+		policies[i] = createPolicy (evictionName);
+	    }
+	    for (int i = 0; i < stripes.length; i++) {
+		KeyIndex index = oldIndexes[i];
+		EvictionPolicy policy = oldPolicies[i];
+		for (int slot = policy.first (); slot >= 0;
+		     slot = policy.next (slot)) {
+		    long id = index.getId (slot);
+		    K k = new FiledKey<K> (NCache.this, id).getData ();
+		    if (k == null)
+			continue;
+		    add (fingerprint (k), k.hashCode (), id,
+			 index.getCacheTime (slot), index.getExpires (slot),
+			 index.getSize (slot), (int)index.getKeySize (slot),
+			 (int)index.getHookSize (slot), index.getFlags (slot));
+		}
+	    }
+	    fingerprinterName = getFingerprinterName ();
+	}
+
+	/** Add the entries that were added while loading to the loaded
+	 *  index and make it the index of the cache. Loaded entries that
+	 *  were removed or replaced while loading are dropped. Without a
+	 *  fingerprinter different keys may have the same fingerprint, so
+	 *  then the stored keys are compared before an entry is dropped.
+	 * @return the number of entries in the cache
+	 */
+	private int merge () {
+	    int entries = 0;
+	    lockAll ();
+	    try {
+		for (int i = 0; i < stripes.length; i++) {
+		    KeyIndex gone = removed[i];
+		    for (int slot = gone.first (); slot >= 0;
+			 slot = gone.next (slot))
+			drop (i, gone.getFingerprint (slot), gone.getHash (slot),
+			      null);
+		    for (K k : removedKeys.get (i))
+			drop (i, fingerprint (k), k.hashCode (), k);
+		    // The entries added while loading are the newest ones
+		    IndexStripe stripe = stripes[i];
+		    KeyIndex live = stripe.getIndex ();
+		    int[] slots = stripe.getEvictionOrder ();
+		    for (int slot : slots) {
+			K k = null;
+			if (kfp == null) {
+			    k = readKey (live.getId (slot));
+			    if (k == null)
+				continue;
+			}
+			drop (i, live.getFingerprint (slot), live.getHash (slot),
+			      k);
+		    }
+		    for (int slot : slots) {
+			long fp = live.getFingerprint (slot);
+			int hash = live.getHash (slot);
+			int s = indexes[i].insert (fp, hash, live.getId (slot),
+						   live.getCacheTime (slot),
+						   live.getExpires (slot),
+						   live.getSize (slot),
+						   live.getKeySize (slot),
+						   live.getHookSize (slot),
+						   live.getFlags (slot) &
+						   ~KeyIndex.COLLISION);
+			policies[i].inserted (s);
+		    }
+		    stripe.replace (indexes[i], policies[i]);
+		    entries += indexes[i].size ();
+		}
+		long f;
+		while ((f = NCache.this.fileNo.get ()) < fileNo
+		       && !NCache.this.fileNo.compareAndSet (f, fileNo))
+		    ; // retry
+		loader = null;
+	    } finally {
+		unlockAll ();
+	    }
+	    removeFiles (dropped, droppedCount);
+	    return entries;
+	}
+    }
+
+    private IndexJournal getJournal () {
+	return new IndexJournal (dir, JOURNAL, getFingerprinterName (),
+				 journalSync, logger);
+    }
+
+    /** Start a new journal for the current directory.
+     *  The old journals are kept until the index loader has read them
+     *  and a new checkpoint has been written.
+     *  The caller must hold all the locks.
+     */
+    private void openJournal () throws IOException {
+	journal = getJournal ();
+	journal.open ();
+	if (loader == null)
+	    journal.checkpointDone ();
+	for (IndexStripe stripe : stripes)
+	    stripe.setJournal (journal);
+    }
+
+    /** Close the journal, the caller must hold all the locks.
+     */
+    private void closeJournal () {
+	journal.close ();
+	for (IndexStripe stripe : stripes)
+	    stripe.setJournal (null);
+	journal = null;
+    }
+
+    /** Compact the journal by writing all of the index to disk.
+     */
+    private void checkpoint () {
+	IndexJournal j = journal;
+	// a checkpoint of a partly loaded index would lose entries
+	if (j == null || loader != null)
+	    return;
+	try {
+	    j.rotate ();
+	} catch (IOException e) {
+	    logWarning ("Failed to rotate cache journal", e);
+	    return;
+	}
+	if (writeCacheIndex ())
+	    j.checkpointDone ();
     }
 
     /** Make sure that the cache is written to the disk.
      */
     public void flush () {
-	writeCacheIndex ();
+	IndexJournal j = journal;
+	if (j != null)
+	    j.sync ();
+	else if (loader == null)
+	    writeCacheIndex ();
     }
 
-    /** Store the cache to disk so we can reuse it later.
+    private EvictionPolicy createPolicy (String name) {
+	return createPolicy (name, logger);
+    }
+
+    /** Create the eviction policy with the given name.
+     * @param name one of "fifo", "lru", "slru" or the name of 
+     *        a class that implements EvictionPolicy.
+     * @param logger the Logger to use if the policy can not be created
      */
-    private void writeCacheIndex () {
+    static EvictionPolicy createPolicy (String name, Logger logger) {
+	if (name.equalsIgnoreCase ("fifo"))
+	    return new FifoPolicy ();
+	if (name.equalsIgnoreCase ("lru"))
+	    return new LruPolicy ();
+	if (name.equalsIgnoreCase ("slru"))
+	    return new SlruPolicy ();
 	try {
-	    String name = dir + File.separator + CACHEINDEX;
+	    Class<? extends EvictionPolicy> c =
+		Class.forName (name).asSubclass (EvictionPolicy.class);
+	    return c.newInstance ();
+	} catch (Exception e) {
+	    logger.log (Level.WARNING, "Failed to create eviction policy: '" +
+			name + "', using " + DEFAULT_EVICTION, e);
+	    return new LruPolicy ();
+	}
+    }
+
+    /** Create an admission filter.
+     * @param name "none" or "tinylfu"
+     * @param maxSize the maximum size of the cache
+     * @param parts the number of parts of the filter, a power of 2
+     * @param logger the Logger to use
+     * @return the new filter or null if everything should be admitted
+     */
+    static TinyLfuAdmission createAdmission (String name, long maxSize,
+					     int parts, Logger logger) {
+	if (name.equalsIgnoreCase ("tinylfu")) {
+	    long entries = maxSize / AVERAGE_ENTRY_SIZE;
+	    int expected = (int)Math.min (1 << 24, Math.max (1 << 16, entries));
+	    return new TinyLfuAdmission (expected, parts);
+	}
+	if (!name.equalsIgnoreCase ("none"))
+	    logger.warning ("Unknown cache admission: '" + name +
+			    "', will cache everything");
+	return null;
+    }
+
+    /** Set the admission filter to use.
+     * @param name "none" to cache everything or "tinylfu" to only cache
+     *        new resources that are used more often than the entries
+     *        they would replace, when the cache is full.
+     */
+    public void setAdmission (String name) {
+	admission = createAdmission (name, configuration.getMaxSize (),
+				     stripes.length, logger);
+    }
 
-	    FileOutputStream fos = new FileOutputStream (name);
-	    ObjectOutputStream os =
-		new ObjectOutputStream (new GZIPOutputStream (fos));
+    /** Set the eviction policy to use, the current entries are moved
+     *  to the new policy in their current eviction order.
+     * @param name one of "fifo", "lru", "slru" or the name of 
+     *        a class that implements EvictionPolicy.
+     */
+    public void setEvictionPolicy (String name) {
+	if (name.equals (evictionName))
+	    return;
+	lockAll ();
+	try {
+	    for (IndexStripe stripe : stripes)
+		stripe.setPolicy (createPolicy (name));
+	    evictionName = name;
+	} finally {
+	    unlockAll ();
+	}
+    }
 
-	    r.lock ();
+    /** Store the cache to disk so we can reuse it later.
+     *  The index is written to a temporary file that replaces the
+     *  old index once it is completely written and synced.
+     * @return true if the index was written
+     */
+    private boolean writeCacheIndex () {
+	File indexFile = new File (dir, CACHEINDEX);
+	File tmpFile = new File (dir, CACHEINDEX + ".tmp");
+	try {
+	    byte[] name = getFingerprinterName ().getBytes ("UTF-8");
+	    FileOutputStream fos = new FileOutputStream (tmpFile);
 	    try {
-		os.writeLong (fileNo);
-		os.writeLong (currentSize);
-		os.writeInt (htab.size ());
-		for (Map.Entry<FiledKey<K>, NCacheData<K, V>> me :
-			 htab.entrySet ()) {
-		    os.writeObject (me.getKey ());
-		    os.writeObject (me.getValue ());
+		FileChannel fc = fos.getChannel ();
+		ByteBuffer buf = ByteBuffer.allocate (64 * 1024);
+		buf.putLong (INDEX_MAGIC);
+		buf.putLong (fileNo.get ());
+		buf.putInt (0); // the number of entries, written last
+		buf.putShort ((short)name.length);
+		buf.put (name);
+		int count = 0;
+		for (IndexStripe stripe : stripes) {
+		    // Take a copy so that the stripe is only locked for a
+		    // short while, in eviction order so that a restart keeps
+		    // the order
+		    KeyIndex index;
+		    int[] slots;
+		    stripe.r.lock ();
+		    try {
+			index = stripe.getIndex ().copy ();
+			slots = stripe.getEvictionOrder ();
+		    } finally {
+			stripe.r.unlock ();
+		    }
+		    for (int slot : slots) {
+			if (buf.remaining () < INDEX_RECORD_SIZE)
+			    write (fc, buf);
+			buf.putLong (index.getFingerprint (slot));
+			buf.putInt (index.getHash (slot));
+			buf.putLong (index.getId (slot));
+			buf.putLong (index.getCacheTime (slot));
+			buf.putLong (index.getExpires (slot));
+			buf.putLong (index.getSize (slot));
+			buf.putInt ((int)index.getKeySize (slot));
+			buf.putInt ((int)index.getHookSize (slot));
+			buf.putInt (index.getFlags (slot));
+		    }
+		    count += slots.length;
 		}
-		os.writeObject (vec);
+		write (fc, buf);
+		buf.putInt (count);
+		buf.flip ();
+		fc.write (buf, INDEX_COUNT_POS);
+		fc.force (true);
 	    } finally {
-		r.unlock ();
+		fos.close ();
+	    }
+	    if (!tmpFile.renameTo (indexFile)) {
+		// Some systems can not rename onto an existing file
+		FileHelper.delete (indexFile);
+		if (!tmpFile.renameTo (indexFile))
+		    throw new IOException ("Failed to rename: " + tmpFile);
 	    }
-	    os.close ();
+	    return true;
 	} catch (IOException e) {
 	    logWarning ("Couldnt write " + dir + File.separator + CACHEINDEX +
 			", This is serious!\n",
 			e);
+	    return false;
 	}
     }
 
+    /** Write all of the buffer to the channel and clear the buffer.
+     */
+    private void write (FileChannel fc, ByteBuffer buf) throws IOException {
+	buf.flip ();
+	while (buf.hasRemaining ())
+	    fc.write (buf);
+	buf.clear ();
+    }
+
     /** Loop in a cleaning loop.
      */
     public void run () {
@@ -579,62 +1321,85 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 	    } catch (InterruptedException e) {
 		//System.err.println ("Cache interrupted");
 	    }
-	    if (!running)
+	    // wait for the index loader, sizes are not known until it is done
+	    if (!running || loader != null)
 		continue;
 
 	    // actually for a busy cache this will lag...
 	    // but I dont care for now...
-	    long milis = System.currentTimeMillis ();
-	    Map<FiledKey<K>, NCacheData<K, V>> hc;
-	    r.lock ();
-	    try {
-		hc = new HashMap<FiledKey<K>, NCacheData<K, V>> (htab);
-	    } finally {
-		r.unlock ();
-	    }
-	    for (Map.Entry<FiledKey<K>, NCacheData<K, V>> ce : hc.entrySet ()) {
-		try {
-		    long exp = ce.getValue ().getExpires ();
-		    if (exp < milis)
-			removeKey (ce.getKey ());
-		} catch (IOException e) {
-		    logWarning ("Failed to remove expired entry", e);
-		} catch (CacheException e) {
-		    logWarning ("Failed to remove expired entry", e);
-		}
-	    }
+	    removeExpired (System.currentTimeMillis ());
+
+	    // If size is too big remove entries in eviction policy order.
+	    evict (configuration.getMaxSize ());
 
-	    // IF SIZE IS TO BIG REMOVE A RANDOM AMOUNT OF OBJECTS.
-	    // What we have to be careful about: we must not remove the same
-	    // elements two times in a row, this method remove the "oldest" in
-	    // a sense.
+	    IndexJournal j = journal;
+	    if (j != null && j.needsCheckpoint (getNumberOfEntries ()))
+		checkpoint ();
+	}
+    }
 
-	    long maxSize = configuration.getMaxSize ();
-	    if (getCurrentSize () > maxSize)
-		changed = true;
-	    while (getCurrentSize () > maxSize) {
-		w.lock ();
+    /** Evict entries, in the order the eviction policies give, until
+     *  the cache is no bigger than the given size. Every stripe is
+     *  shrunk to its share of the size.
+     *  The lock is released between every batch of evictions so that
+     *  a big cleanup does not stall the users of the cache.
+     * @param maxSize the wanted size of the cache
+     */
+    private void evict (long maxSize) {
+	if (getCurrentSize () <= maxSize)
+	    return;
+	long stripeMax = maxSize / stripes.length;
+	long[] ids = new long[EVICTION_BATCH];
+	for (IndexStripe stripe : stripes) {
+	    while (true) {
+		int count = 0;
+		stripe.w.lock ();
 		try {
-		    removeKey (vec.get (0).getKey ());
-		} catch (IOException e) {
-		    logWarning ("Failed to remove entry", e);
-		} catch (CacheException e) {
-		    logWarning ("Failed to remove entry", e);
+		    while (count < EVICTION_BATCH
+			   && stripe.getCurrentSize () > stripeMax) {
+			int slot = stripe.getVictim ();
+			if (slot < 0)
+			    break;
+			ids[count++] = stripe.detach (slot);
+		    }
 		} finally {
-		    w.unlock ();
+		    stripe.w.unlock ();
 		}
-	    }
-
-	    if (changed) {
-		writeCacheIndex ();
-		changed = false;
+		if (count == 0)
+		    break;
+		removeFiles (ids, count);
 	    }
 	}
     }
 
-    private void removeKey (FiledKey<K> fk) throws IOException, CacheException {
-	fk.setCache (this);
-	remove (fk.getData ());
+    /** Remove all the entries that have expired.
+     * @param now the current time
+     */
+    private void removeExpired (long now) {
+	for (IndexStripe stripe : stripes)
+	    removeExpired (stripe, now);
+    }
+
+    /** Remove the expired entries of a stripe. Only the entries that
+     *  are due are looked at and they are removed in batches.
+     */
+    private void removeExpired (IndexStripe stripe, long now) {
+	long[] ids = new long[EVICTION_BATCH];
+	while (true) {
+	    int count = 0;
+	    stripe.w.lock ();
+	    try {
+		int slot;
+		while (count < EVICTION_BATCH
+		       && (slot = stripe.pollExpired (now)) >= 0)
+		    ids[count++] = stripe.detach (slot);
+	    } finally {
+		stripe.w.unlock ();
+	    }
+	    if (count == 0)
+		break;
+	    removeFiles (ids, count);
+	}
     }
 
     public void stop () {
@@ -647,6 +1412,14 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 		// ignore
 	    }
 	}
+	waitForLoader ();
+	lockAll ();
+	try {
+	    if (journal != null)
+		closeJournal ();
+	} finally {
+	    unlockAll ();
+	}
     }
 
     /** Configure the cache system from the given config.
@@ -656,6 +1429,13 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
     public void setup (SProperties config) throws IOException {
 	if (config == null)
 	    config = new SProperties ();
+	setEvictionPolicy (config.getProperty ("eviction", DEFAULT_EVICTION));
+	String js = config.getProperty ("journalsync", DEFAULT_JOURNAL_SYNC);
+	try {
+	    journalSync = Long.parseLong (js); // in millis.
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache journalsync: '" + js + "'");
+	}
 	String cachedir =
 	    config.getProperty ("directory", DIR);
 	configuration.setCacheDir (cachedir);
@@ -666,71 +1446,84 @@ public class NCache<K, V> implements Cache<K, V>, Runnable {
 	} catch (NumberFormatException e) {
 	    logger.warning ("Bad number for cache cleanloop: '" + ct + "'");
 	}
+	setAdmission (config.getProperty ("admission", DEFAULT_ADMISSION));
+	String hcs = config.getProperty ("hookcachesize", DEFAULT_HOOK_CACHE_SIZE);
+	try {
+	    // size is in kB
+	    hookCache.setMaxSize (Long.parseLong (hcs) * 1024);
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache hookcachesize: '" + hcs + "'");
+	}
     }
 
-    public Logger getLogger () {
-	return logger;
+    public Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Index stripes", Integer.toString (stripes.length));
+	stats.put ("Eviction policy", evictionName);
+	IndexLoader l = loader;
+	stats.put ("Index load", l != null ? l.getProgress () : loadStatus);
+	hookCache.addStatistics (stats);
+	TinyLfuAdmission a = admission;
+	if (a != null)
+	    a.addStatistics (stats);
+	return stats;
     }
 
-    private NCacheEntry<K, V> getEntry (NCacheData<K, V> data)
-	throws CacheException {
-	if (data == null)
-	    return null;
-	try {
-	    FiledKey<K> key = data.getKey ();
-	    key.setCache (this);
-	    K keyData = key.getData ();
-	    V hook = data.getDataHook ().getData (this, data, getLogger ());
-	    return new NCacheEntry<K, V> (data.getId (), data.getCacheTime (),
-					  data.getExpires (), data.getSize (), 
-					  keyData, hook);
-	} catch (IOException e) {
-	    throw new CacheException ("Failed to get: entry: " + data, e);
-	}
+    public Logger getLogger () {
+	return logger;
     }
 
-    private NCacheData<K, V> getData (NCacheEntry<K, V> entry, 
-				      File cacheFile) 
-	throws CacheException {
-	long id = entry.getId ();
-	long size = cacheFile.length ();
-	try {
-	    FiledWithSize<FiledKey<K>> fkws = storeKey (entry.getKey (), id);
-	    FiledWithSize<FiledHook<V>> fhws =
-		storeHook (entry.getDataHook (), id);
-	    return new NCacheData<K, V> (id, entry.getCacheTime (),
-					 entry.getExpires (), size,
-					 fkws.t, fkws.size, fhws.t, fhws.size);
-	} catch (IOException e) {
-	    // TODO: do we need to clean anything up?
-	    throw new CacheException ("Failed to store data", e);
-	}
+    /** Create a cache entry for the given slot. The key and the data hook
+     *  are read from disk when they are first needed.
+     */
+    private NCacheEntry<K, V> getEntry (int slot, KeyIndex index) {
+	NCacheEntry<K, V> entry =
+	    new NCacheEntry<K, V> (index.getId (slot),
+				   index.getCacheTime (slot),
+				   index.getExpires (slot),
+				   index.getSize (slot),
+				   index.getFingerprint (slot),
+				   index.getHash (slot),
+				   null, null);
+	int flags = index.getFlags (slot);
+	entry.setLazy (this, (flags & KeyIndex.HAS_HOOK) != 0);
+	return entry;
     }
 
-    private FiledWithSize<FiledKey<K>> storeKey (K realKey, long id)
-	throws IOException {
-	FiledKey<K> fk = new FiledKey<K> ();
-	long size = fk.storeKey (this, id, realKey, logger);
-	return new FiledWithSize<FiledKey<K>> (fk, size);
+    private long storeKey (K realKey, long id) throws IOException {
+	FiledKey<K> fk = new FiledKey<K> (this, id);
+	return fk.storeKey (realKey, logger);
     }
 
-    private FiledWithSize<FiledHook<V>> storeHook (V hook, long id)
-	throws IOException {
-	if (hook == null)
-	    return null;
-	FiledHook<V> fh = new FiledHook<V> ();
-	long size = fh.storeHook (this, id, getHookFileHandler (), hook, logger);
-	return new FiledWithSize<FiledHook<V>> (fh, size);
+    private long storeHook (V hook, long id) throws IOException {
+	if (hook == null) {
+	    hookCache.remove (id);
+	    return 0;
+	}
+	ByteArrayOutputStream bos = new ByteArrayOutputStream (1024);
+	getHookFileHandler ().write (bos, hook);
+	byte[] data = bos.toByteArray ();
+	long size = filedHook.storeBytes (this, id, data, logger);
+	hookCache.put (id, data);
+	return size;
     }
-    
-    private static class FiledWithSize<T> {
-	private final T t;
-	private final long size;
 
-	public FiledWithSize (T t, long size) {
-	    this.t = t;
-	    this.size = size;
+    /** Read the data hook of the given entry. The hook is taken from
+     *  memory if possible, otherwise it is read from disk.
+     * @param id the id of the cache entry
+     * @return a new copy of the data hook or null if there is no stored hook
+     * @throws IOException if reading the hook fails
+     */
+    V readHook (long id) throws IOException {
+	byte[] data = hookCache.get (id);
+	if (data == null) {
+	    data = filedHook.getBytes (this, id, logger);
+	    if (data == null)
+		return null;
+	    // a concurrent update may already have stored a newer hook
+	    hookCache.putIfAbsent (id, data);
 	}
+	return getHookFileHandler ().read (new ByteArrayInputStream (data));
     }
 
     private void logWarning (String s, Exception e) {
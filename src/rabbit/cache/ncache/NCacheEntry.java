@@ -1,8 +1,13 @@
 package rabbit.cache.ncache;
 
+import java.io.IOException;
+import java.util.logging.Level;
 import rabbit.cache.CacheEntry;
 
 /** A cached object.
+ *
+ *  Entries that are read from the cache index only read the key and
+ *  the data hook from disk when they are first asked for.
  *
  * @param <K> the key type of this entry
  * @param <V> the value type of this entry
@@ -14,6 +19,14 @@ class NCacheEntry<K, V> extends NCacheElementBase implements CacheEntry<K, V> {
     private K key = null;
     /** @serial The hooked data of the cached object. */
     private V datahook;
+    /** The fingerprint of the key. */
+    private final long fingerprint;
+    /** The hashCode of the key. */
+    private final int keyHash;
+    /** The cache to read the key and hook from, if they are not read yet. */
+    private NCache<K, V> cache;
+    private boolean keyRead = true;
+    private boolean hookRead = true;
 
     /** Create a new CacheEntry for given key and filename
      * @param id the identity of this entry
@@ -21,20 +34,59 @@ class NCacheEntry<K, V> extends NCacheElementBase implements CacheEntry<K, V> {
      * @param expires the date this entry exipres
      * @param size the number of bytes the actual cached resource is
      * (excluding overhead)
+     * @param fingerprint the fingerprint of the key
+     * @param keyHash the hashCode of the key
      * @param key the key for the object.
      * @param datahook the additional data
      */
-    public NCacheEntry (long id, long cachetime, long expires,
-			long size, K key, V datahook) {
+    public NCacheEntry (long id, long cachetime, long expires, long size,
+			long fingerprint, int keyHash, K key, V datahook) {
 	super (id, cachetime, expires, size);
+	this.fingerprint = fingerprint;
+	this.keyHash = keyHash;
 	this.key = key;
 	this.datahook = datahook;
     }
 
+    /** Make this entry read its key and data hook from the given cache
+     *  the first time they are asked for.
+     * @param cache the cache that has the stored key and hook
+     * @param hasHook true if the entry has a stored data hook
+     */
+    void setLazy (NCache<K, V> cache, boolean hasHook) {
+	this.cache = cache;
+	keyRead = false;
+	hookRead = !hasHook;
+    }
+
+    /** Get the fingerprint of the key.
+     * @return the fingerprint
+     */
+    long getFingerprint () {
+	return fingerprint;
+    }
+
+    /** Get the hashCode of the key.
+     * @return the hash code of the key
+     */
+    int getKeyHash () {
+	return keyHash;
+    }
+
     /** Get the key were holding data for
      * @return the keyobject
      */
     public K getKey () {
+	if (!keyRead) {
+	    keyRead = true;
+	    try {
+		key = new FiledKey<K> (cache, getId ()).getData ();
+	    } catch (IOException e) {
+		cache.getLogger ().log (Level.WARNING,
+					"Failed to read key for: " + getId (),
+					e);
+	    }
+	}
 	return key;
     }
 
@@ -42,6 +94,25 @@ class NCacheEntry<K, V> extends NCacheElementBase implements CacheEntry<K, V> {
      * @return the the hooked data.
      */
     public V getDataHook () {
+	try {
+	    return readDataHook ();
+	} catch (IOException e) {
+	    cache.getLogger ().log (Level.WARNING,
+				    "Failed to read hook for: " + getId (),
+				    e);
+	    return null;
+	}
+    }
+
+    /** Read the data hook from disk, if it has not been read yet.
+     * @return the data hook, may be null if the stored hook is missing
+     * @throws IOException if reading the stored hook fails
+     */
+    V readDataHook () throws IOException {
+	if (!hookRead) {
+	    hookRead = true;
+	    datahook = cache.readHook (getId ());
+	}
 	return datahook;
     }
 
@@ -50,6 +121,7 @@ class NCacheEntry<K, V> extends NCacheElementBase implements CacheEntry<K, V> {
      * @param o the new data.
      */
     public void setDataHook (V o) {
+	hookRead = true;
 	this.datahook = o;
     }
 }
@@ -0,0 +1,1486 @@
+package rabbit.cache.ncache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.khelekore.rnio.impl.Closer;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheConfiguration;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.cache.CacheRegion;
+import rabbit.cache.utils.CacheConfigurationBase;
+import rabbit.cache.utils.CacheUtils;
+import rabbit.io.FileHelper;
+import rabbit.util.SProperties;
+
+/** A cache that keeps its entries in a few big segment files instead
+ *  of using three files for every entry.
+ *
+ *  Every change is appended as a record to the current segment. An
+ *  entry record holds the key, the data hook and the resource of a new
+ *  entry, a meta record holds a new key and data hook for a resource
+ *  that is stored earlier and a remove record tells that an entry is
+ *  gone. The entries are found through an in memory index that has the
+ *  position of the records, and the resources are served straight from
+ *  the segment files.
+ *
+ *  Removed entries leave dead space in the segments. The cleaner copies
+ *  the live entries of segments that are mostly dead to the current
+ *  segment and then removes the old segment.
+ *
+ *  The index is written to disk at regular intervals, together with the
+ *  position in the segments it was written at. At startup the index is
+ *  read and the records written after that position are replayed.
+ *
+ *  New resources are still written to a temporary file first, since the
+ *  handlers work on files, and are copied to the segment when the entry
+ *  is added. Stored resources can not be changed in place, so partial
+ *  resources are not completed in this cache.
+ *
+ * @param <K> the key type of the cache
+ * @param <V> the data resource
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SegmentCache<K, V> implements Cache<K, V>, Runnable {
+    private static final String DIR = "/tmp/rabbit/segcache";  // standard dir.
+    private static final String DEFAULT_CLEAN_LOOP = "60";  // 1 minute
+    private static final String DEFAULT_EVICTION = "lru";
+    private static final String DEFAULT_ADMISSION = "none";
+    private static final String DEFAULT_SEGMENT_SIZE = "64"; // 64 MB
+    private static final String DEFAULT_COMPACT_LIVE = "50"; // percent
+    /** The number of entries evicted for every take of the lock. */
+    private static final int EVICTION_BATCH = 128;
+    /** The least number of records before the index is written. */
+    private static final long MIN_RECORDS = 10000;
+
+    private static final String CACHEINDEX = "segment.index";
+    private static final String SEGMENT = "segment.";
+    /** The start of the index file: "RabbITS" and the format version. */
+    private static final long INDEX_MAGIC = 0x5261626249545301L;
+    /** The start of every record: "RBIT". */
+    private static final int RECORD_MAGIC = 0x52424954;
+    private static final byte ENTRY = 1;
+    private static final byte META = 2;
+    private static final byte REMOVE = 3;
+    private static final int HEADER_SIZE = 72;
+    private static final byte[] NO_DATA = new byte[0];
+    /** Positions are stored as segment number << SEGMENT_SHIFT | offset. */
+    private static final int SEGMENT_SHIFT = 40;
+    private static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final Configuration configuration = new Configuration ();
+    private Thread cleaner = null;                    // remover of old stuff.
+    private int cleanLoopTime = 60 * 1000;      // sleeptime between cleanups.
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock ();
+    private final Lock r = rwl.readLock ();
+    private final Lock w = rwl.writeLock ();
+    // The index, the positions and the live sizes are guarded by the lock
+    private KeyIndex index = new KeyIndex (0);
+    private EvictionPolicy policy = new LruPolicy ();
+    private final ExpiryWheel expiry =
+	new ExpiryWheel (System.currentTimeMillis ());
+    private long[] bodyPositions = new long[16];
+    private long[] metaPositions = new long[16];
+    private volatile long currentSize = 0;
+    private volatile int entries = 0;
+    private volatile String evictionName = DEFAULT_EVICTION;
+    private volatile TinyLfuAdmission admission = null;
+
+    /** Guards the writes to the segments and the pending records.
+     *  If the index lock is also needed it has to be taken first.
+     */
+    private final Object appendLock = new Object ();
+    private final ConcurrentSkipListMap<Integer, Segment> segments =
+	new ConcurrentSkipListMap<Integer, Segment> ();
+    private Segment current = null;
+    /** The records that are written but not yet applied to the index. */
+    private final TreeSet<Long> pending = new TreeSet<Long> ();
+    private long records = 0;
+    /** The position the stored index was written at. */
+    private volatile long mark = 0;
+
+    private long segmentSize = 64 * 1024 * 1024;
+    private int compactLive = 50;
+    private final AtomicLong compactions = new AtomicLong ();
+
+    private final AtomicLong fileNo = new AtomicLong ();
+    private volatile File dir = null;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    private final FileHandler<K> fhk;
+    private final FileHandler<V> fhv;
+    private final KeyFingerprinter<K> kfp;
+
+    private volatile boolean running = true;
+
+    /** Create a cache that uses default values.
+     *  Note that you must call start to have the cache fully up.
+     * @param props the configuration of the cache
+     * @param fhk the FileHandler for the cache keys
+     * @param fhv the FileHandler for the cache values
+     * @throws IOException if the cache file directory can not be configured
+     */
+    public SegmentCache (SProperties props, FileHandler<K> fhk,
+			 FileHandler<V> fhv)
+	throws IOException {
+	this (props, fhk, fhv, null);
+    }
+
+    /** Create a cache that uses default values.
+     *  Note that you must call start to have the cache fully up.
+     * @param props the configuration of the cache
+     * @param fhk the FileHandler for the cache keys
+     * @param fhv the FileHandler for the cache values
+     * @param kfp the KeyFingerprinter for the cache keys, may be null
+     * @throws IOException if the cache file directory can not be configured
+     */
+    public SegmentCache (SProperties props, FileHandler<K> fhk,
+			 FileHandler<V> fhv, KeyFingerprinter<K> kfp)
+	throws IOException {
+	this.fhk = fhk;
+	this.fhv = fhv;
+	this.kfp = kfp;
+	setup (props);
+    }
+
+    /** One of the files that the records are written to.
+     */
+    private static class Segment {
+	private final int number;
+	private final File file;
+	private final FileChannel fc;
+	/** The number of bytes written, only changed under the appendLock. */
+	private volatile long size;
+	/** The number of bytes used by the indexed entries. */
+	private long live = 0;
+
+	public Segment (int number, File file) throws IOException {
+	    this.number = number;
+	    this.file = file;
+	    fc = new RandomAccessFile (file, "rw").getChannel ();
+	    size = fc.size ();
+	}
+    }
+
+    private static long getPosition (int segment, long offset) {
+	return ((long)segment << SEGMENT_SHIFT) | offset;
+    }
+
+    private static int getSegmentNumber (long position) {
+	return (int)(position >>> SEGMENT_SHIFT);
+    }
+
+    private static long getOffset (long position) {
+	return position & OFFSET_MASK;
+    }
+
+    private File getSegmentFile (int number) {
+	return new File (dir, SEGMENT + number);
+    }
+
+    /** Start the thread that cleans the cache.
+     */
+    public void start () {
+	cleaner = new Thread (this, getClass ().getName () + ".cleaner");
+	cleaner.setDaemon (true);
+	cleaner.start ();
+    }
+
+    public CacheConfiguration getCacheConfiguration () {
+	return configuration;
+    }
+
+    private class Configuration extends CacheConfigurationBase {
+	public URL getCacheDir () {
+	    File d = dir;
+	    try {
+		if (d == null)
+		    return null;
+		return d.toURI ().toURL ();
+	    } catch (MalformedURLException e) {
+		return null;
+	    }
+	}
+
+	/** Sets the cachedir. This will flush the cache and make
+	 *  it try to read in the cache from the new dir.
+	 * @param newDir the name of the new directory to use.
+	 * @throws IOException if the new cache file directory can not be configured
+	 */
+	private void setCacheDir (String newDir) throws IOException {
+	    w.lock ();
+	    try {
+		synchronized (appendLock) {
+		    // save old cachedir.
+		    if (current != null) {
+			writeIndex ();
+			closeSegments ();
+		    }
+		    dir = new File (newDir);
+		    if (!dir.exists ())
+			FileHelper.mkdirs (dir);
+		    if (dir.isFile ())
+			logger.warning ("Cachedir: " + dir + " is a file");
+		    File tempdir = new File (dir, CacheUtils.TEMPDIR);
+		    if (!tempdir.exists ())
+			FileHelper.mkdirs (tempdir);
+		    load ();
+		}
+	    } finally {
+		w.unlock ();
+	    }
+	}
+    }
+
+    /** Get how long time the cleaner sleeps between cleanups.
+     * @return the number of millis between cleanups
+     */
+    public int getCleanLoopTime () {
+	return cleanLoopTime;
+    }
+
+    /** Set how long time the cleaner sleeps between cleanups.
+     * @param newCleanLoopTime the number of miliseconds to sleep.
+     */
+    public void setCleanLoopTime (int newCleanLoopTime) {
+	cleanLoopTime = newCleanLoopTime;
+    }
+
+    public long getCurrentSize () {
+	return currentSize;
+    }
+
+    public long getNumberOfEntries () {
+	return entries;
+    }
+
+    private long fingerprint (K k) {
+	if (kfp != null)
+	    return kfp.fingerprint (k);
+	return k.hashCode () * 0x9E3779B97F4A7C15L;
+    }
+
+    /** Check if a match in the index has to be verified against the
+     *  stored key.
+     */
+    private boolean mustVerify (int slot) {
+	return kfp == null || (index.getFlags (slot) & KeyIndex.COLLISION) != 0;
+    }
+
+    /** Find the index slot of the given key, the caller must hold the lock.
+     * @return the slot or -1 if the key is not in the cache
+     */
+    private int findSlot (K k, long fp, int hash) throws IOException {
+	int slot;
+	for (int n = 0; (slot = index.find (fp, hash, n)) >= 0; n++) {
+	    if (!mustVerify (slot))
+		return slot;
+	    byte[] meta = readMeta (slot);
+	    K stored = fhk.read (new ByteArrayInputStream (meta, 0, (int)index.getKeySize (slot)));
+	    if (k.equals (stored))
+		return slot;
+	}
+	return -1;
+    }
+
+    /** Find the index slot of the entry with the given id.
+     *  The caller must hold the lock.
+     * @return the slot or -1 if the entry is not in the cache
+     */
+    private int findSlot (long id, long fp, int hash) {
+	int slot;
+	for (int n = 0; (slot = index.find (fp, hash, n)) >= 0; n++) {
+	    if (index.getId (slot) == id)
+		return slot;
+	}
+	return -1;
+    }
+
+    public CacheEntry<K, V> getEntry (K k) throws CacheException {
+	return getEntry (k, true);
+    }
+
+    public CacheEntry<K, V> peekEntry (K k) throws CacheException {
+	return getEntry (k, false);
+    }
+
+    private CacheEntry<K, V> getEntry (K k, boolean access)
+	throws CacheException {
+	long fp = fingerprint (k);
+	TinyLfuAdmission a = admission;
+	if (a != null && access)
+	    a.record (fp);
+	r.lock ();
+	try {
+	    int slot = findSlot (k, fp, k.hashCode ());
+	    if (slot < 0)
+		return null;
+	    NCacheEntry<K, V> entry = getEntry (slot, readMeta (slot));
+	    if (access) {
+		synchronized (policy) {
+		    policy.accessed (slot);
+		}
+	    }
+	    return entry;
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to read entry: " + k, e);
+	} finally {
+	    r.unlock ();
+	}
+    }
+
+    /** Create a cache entry for the given slot.
+     * @param meta the stored key and data hook of the entry
+     */
+    private NCacheEntry<K, V> getEntry (int slot, byte[] meta)
+	throws IOException {
+	int keySize = (int)index.getKeySize (slot);
+	K key = fhk.read (new ByteArrayInputStream (meta, 0, keySize));
+	V hook = null;
+	if ((index.getFlags (slot) & KeyIndex.HAS_HOOK) != 0)
+	    hook = fhv.read (new ByteArrayInputStream (meta, keySize,
+						       meta.length - keySize));
+	return new NCacheEntry<K, V> (index.getId (slot),
+				      index.getCacheTime (slot),
+				      index.getExpires (slot),
+				      index.getSize (slot),
+				      index.getFingerprint (slot),
+				      index.getHash (slot),
+				      key, hook);
+    }
+
+    /** Read the stored key and data hook of an entry, the caller must
+     *  hold the lock.
+     */
+    private byte[] readMeta (int slot) throws IOException {
+	long pos = metaPositions[slot];
+	Segment s = segments.get (getSegmentNumber (pos));
+	if (s == null)
+	    throw new FileNotFoundException ("Missing cache segment: " +
+					     getSegmentNumber (pos));
+	int length = (int)(index.getKeySize (slot) + index.getHookSize (slot));
+	ByteBuffer buf = ByteBuffer.allocate (length);
+	readFully (s.fc, buf, getOffset (pos));
+	return buf.array ();
+    }
+
+    private void readFully (FileChannel fc, ByteBuffer buf, long pos)
+	throws IOException {
+	while (buf.hasRemaining ()) {
+	    int read = fc.read (buf, pos);
+	    if (read < 0)
+		throw new EOFException ("Cache segment is too short");
+	    pos += read;
+	}
+    }
+
+    /** Get the name of a temporary cache file, stored entries do not
+     *  have files of their own in this cache.
+     */
+    public File getEntryName (long id, boolean real, String extension) {
+	return CacheUtils.getEntryName (dir, id, real, extension);
+    }
+
+    public CacheRegion getRegion (CacheEntry<K, V> entry) throws IOException {
+	NCacheEntry<K, V> nent = (NCacheEntry<K, V>)entry;
+	r.lock ();
+	try {
+	    int slot = findSlot (entry.getId (), nent.getFingerprint (),
+				 nent.getKeyHash ());
+	    if (slot < 0)
+		throw new FileNotFoundException ("Cache entry: " +
+						 entry.getId () +
+						 " is not in the cache");
+	    long pos = bodyPositions[slot];
+	    Segment s = segments.get (getSegmentNumber (pos));
+	    if (s == null)
+		throw new FileNotFoundException ("Missing cache segment: " +
+						 getSegmentNumber (pos));
+	    // A channel of its own, so that it stays usable even if the
+	    // segment is compacted
+	    FileChannel fc = new RandomAccessFile (s.file, "r").getChannel ();
+	    return new CacheRegion (fc, getOffset (pos), index.getSize (slot));
+	} finally {
+	    r.unlock ();
+	}
+    }
+
+    public boolean admit (K k, long size) {
+	TinyLfuAdmission a = admission;
+	if (a == null)
+	    return true;
+	// there is room for everything while the cache is not full
+	if (currentSize + Math.max (size, 0) <= configuration.getMaxSize ())
+	    return true;
+	long victim;
+	r.lock ();
+	try {
+	    int slot;
+	    synchronized (policy) {
+		slot = policy.first ();
+	    }
+	    if (slot < 0)
+		return true;
+	    victim = index.getFingerprint (slot);
+	} finally {
+	    r.unlock ();
+	}
+	return a.admit (fingerprint (k), victim);
+    }
+
+    public CacheEntry<K, V> newEntry (K k) {
+	// allocate the id for the new entry.
+	long newId = fileNo.getAndIncrement ();
+	long now = System.currentTimeMillis ();
+	long expires = now + configuration.getCacheTime ();
+	return new NCacheEntry<K, V> (newId, now, expires, 0,
+				      fingerprint (k), k.hashCode (), k, null);
+    }
+
+    private <T> byte[] toBytes (FileHandler<T> fh, T t) throws IOException {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream (1024);
+	fh.write (bos, t);
+	return bos.toByteArray ();
+    }
+
+    /** Get the stored form of a key and a data hook.
+     */
+    private byte[] getMeta (byte[] key, V hook) throws IOException {
+	if (hook == null)
+	    return key;
+	byte[] h = toBytes (fhv, hook);
+	byte[] meta = Arrays.copyOf (key, key.length + h.length);
+	System.arraycopy (h, 0, meta, key.length, h.length);
+	return meta;
+    }
+
+    public void addEntry (CacheEntry<K, V> ent) throws CacheException {
+	if (ent == null)
+	    return;
+	NCacheEntry<K, V> nent = (NCacheEntry<K, V>)ent;
+	File cfile = getEntryName (nent.getId (), false, null);
+	if (!cfile.exists ())
+	    return;
+	long id = nent.getId ();
+	long fp = nent.getFingerprint ();
+	int hash = nent.getKeyHash ();
+	V hook = nent.getDataHook ();
+	int flags = hook != null ? KeyIndex.HAS_HOOK : 0;
+	byte[] key;
+	byte[] meta;
+	long size;
+	long p;
+	try {
+	    key = toBytes (fhk, nent.getKey ());
+	    meta = getMeta (key, hook);
+	    FileInputStream fis = new FileInputStream (cfile);
+	    try {
+		FileChannel fc = fis.getChannel ();
+		size = fc.size ();
+		p = append (ENTRY, id, fp, hash, flags, nent.getCacheTime (),
+			    nent.getExpires (), size, meta, key.length, fc, -1);
+	    } finally {
+		Closer.close (fis, logger);
+	    }
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to store entry: " + id, e);
+	}
+	w.lock ();
+	try {
+	    // the cache may have been cleared while we appended
+	    if (segments.containsKey (getSegmentNumber (p))) {
+		int slot = findSlot (nent.getKey (), fp, hash);
+		if (slot >= 0)
+		    detach (slot);
+		long metaPos = p + HEADER_SIZE;
+		insertSlot (fp, hash, id, nent.getCacheTime (), nent.getExpires (),
+			    size, key.length, meta.length - key.length, flags,
+			    metaPos + meta.length, metaPos);
+	    }
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to check old entry", e);
+	} finally {
+	    w.unlock ();
+	    done (p);
+	}
+	try {
+	    FileHelper.delete (cfile);
+	} catch (IOException e) {
+	    logWarning ("Failed to remove temporary file: " + cfile, e);
+	}
+    }
+
+    public void entryChanged (CacheEntry<K, V> ent, K newKey, V newHook)
+	throws CacheException {
+	NCacheEntry<K, V> nent = (NCacheEntry<K, V>)ent;
+	long id = ent.getId ();
+	long fp = fingerprint (newKey);
+	int hash = newKey.hashCode ();
+	int flags = newHook != null ? KeyIndex.HAS_HOOK : 0;
+	w.lock ();
+	try {
+	    int slot = findSlot (id, nent.getFingerprint (), nent.getKeyHash ());
+	    if (slot < 0) {
+		logger.warning ("Failed to find changed entry so ignoring: " +
+				id);
+		return;
+	    }
+	    byte[] key = toBytes (fhk, newKey);
+	    byte[] meta = getMeta (key, newHook);
+	    long bodyPos = bodyPositions[slot];
+	    long cacheTime = index.getCacheTime (slot);
+	    long size = index.getSize (slot);
+	    long rp = -1;
+	    if (fp != index.getFingerprint (slot) || hash != index.getHash (slot))
+		// the meta record is found by the new key when replayed
+		rp = append (REMOVE, id, index.getFingerprint (slot),
+			     index.getHash (slot), 0, 0, 0, 0, NO_DATA, 0,
+			     null, -1);
+	    long p = append (META, id, fp, hash, flags, cacheTime,
+			     ent.getExpires (), size, meta, key.length,
+			     null, bodyPos);
+	    removeSlot (slot);
+	    insertSlot (fp, hash, id, cacheTime, ent.getExpires (), size,
+			key.length, meta.length - key.length, flags,
+			bodyPos, p + HEADER_SIZE);
+	    done (rp);
+	    done (p);
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to update entry: entry: " + ent +
+				      ", newKey: " + newKey, e);
+	} finally {
+	    w.unlock ();
+	}
+    }
+
+    public void remove (K k) throws CacheException {
+	if (k == null)
+	    return;
+	long fp = fingerprint (k);
+	w.lock ();
+	try {
+	    int slot = findSlot (k, fp, k.hashCode ());
+	    if (slot >= 0)
+		detach (slot);
+	} catch (IOException e) {
+	    throw new CacheException ("Failed to read key: " + k, e);
+	} finally {
+	    w.unlock ();
+	}
+    }
+
+    /** Remove an entry and write a remove record for it, the caller
+     *  must hold the write lock.
+     */
+    private void detach (int slot) {
+	long id = index.getId (slot);
+	long p = -1;
+	try {
+	    p = append (REMOVE, id, index.getFingerprint (slot),
+			index.getHash (slot), 0, 0, 0, 0, NO_DATA, 0, null, -1);
+	} catch (IOException e) {
+	    logWarning ("Failed to write remove record for: " + id, e);
+	}
+	removeSlot (slot);
+	done (p);
+    }
+
+    /** Add an entry to the index, the caller must hold the write lock.
+     */
+    private int insertSlot (long fp, int hash, long id, long cacheTime,
+			    long expires, long size, int keySize, int hookSize,
+			    int flags, long bodyPos, long metaPos) {
+	int slot = index.insert (fp, hash, id, cacheTime, expires, size,
+				 keySize, hookSize, flags & ~KeyIndex.COLLISION);
+	if (slot >= bodyPositions.length) {
+	    int length = Math.max (slot + 1, bodyPositions.length * 2);
+	    bodyPositions = Arrays.copyOf (bodyPositions, length);
+	    metaPositions = Arrays.copyOf (metaPositions, length);
+	}
+	bodyPositions[slot] = bodyPos;
+	metaPositions[slot] = metaPos;
+	synchronized (policy) {
+	    policy.inserted (slot);
+	}
+	expiry.add (slot, expires);
+	addLive (slot, 1);
+	currentSize += index.getTotalSize (slot);
+	entries = index.size ();
+	return slot;
+    }
+
+    /** Remove an entry from the index, the caller must hold the
+     *  write lock.
+     */
+    private void removeSlot (int slot) {
+	addLive (slot, -1);
+	currentSize -= index.getTotalSize (slot);
+	synchronized (policy) {
+	    policy.removed (slot);
+	}
+	expiry.remove (slot);
+	index.remove (slot);
+	entries = index.size ();
+    }
+
+    private void addLive (int slot, int sign) {
+	Segment b = segments.get (getSegmentNumber (bodyPositions[slot]));
+	if (b != null)
+	    b.live += sign * index.getSize (slot);
+	Segment m = segments.get (getSegmentNumber (metaPositions[slot]));
+	if (m != null)
+	    m.live += sign * (HEADER_SIZE + index.getKeySize (slot) +
+			      index.getHookSize (slot));
+    }
+
+    /** Append a record to the current segment. The record is pending,
+     *  so that it is replayed if the index is written, until done is
+     *  called with the returned position.
+     * @param meta the stored key and data hook
+     * @param keySize the size of the stored key
+     * @param body the channel to read the resource from, or null
+     * @param bodyPos the position of the resource for a meta record
+     * @return the position of the record
+     */
+    private long append (byte type, long id, long fp, int hash, int flags,
+			 long cacheTime, long expires, long size,
+			 byte[] meta, int keySize, FileChannel body,
+			 long bodyPos)
+	throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate (HEADER_SIZE + meta.length);
+	buf.putInt (RECORD_MAGIC);
+	buf.put (type);
+	buf.position (8);
+	buf.putLong (id);
+	buf.putLong (fp);
+	buf.putInt (hash);
+	buf.putInt (flags);
+	buf.putLong (cacheTime);
+	buf.putLong (expires);
+	buf.putLong (size);
+	buf.putInt (keySize);
+	buf.putInt (meta.length - keySize);
+	buf.putLong (bodyPos);
+	buf.put (meta);
+	buf.flip ();
+	synchronized (appendLock) {
+	    Segment s = current;
+	    if (s.size >= segmentSize)
+		s = nextSegment ();
+	    long offset = s.size;
+	    long pos = offset;
+	    while (buf.hasRemaining ())
+		pos += s.fc.write (buf, pos);
+	    if (body != null) {
+		long end = pos + size;
+		while (pos < end) {
+		    long n = s.fc.transferFrom (body, pos, end - pos);
+		    if (n <= 0)
+			throw new EOFException ("Cache resource is too short: " +
+						id);
+		    pos += n;
+		}
+	    }
+	    s.size = pos;
+	    records++;
+	    long p = getPosition (s.number, offset);
+	    pending.add (p);
+	    return p;
+	}
+    }
+
+    /** The record at the given position has been applied to the index.
+     * @param p the position of the record, negative positions are ignored
+     */
+    private void done (long p) {
+	if (p < 0)
+	    return;
+	synchronized (appendLock) {
+	    pending.remove (p);
+	}
+    }
+
+    /** Start to write to a new segment, the caller must hold
+     *  the appendLock.
+     */
+    private Segment nextSegment () throws IOException {
+	int number = current == null ? 0 : current.number + 1;
+	if (current != null && current.fc.isOpen ())
+	    current.fc.force (false);
+	Segment s = new Segment (number, getSegmentFile (number));
+	segments.put (number, s);
+	current = s;
+	return s;
+    }
+
+    public void clear () throws CacheException {
+	w.lock ();
+	try {
+	    synchronized (appendLock) {
+		for (Segment s : segments.values ())
+		    removeSegment (s);
+		pending.clear ();
+		records = 0;
+		try {
+		    nextSegment ();
+		} catch (IOException e) {
+		    throw new CacheException ("Failed to create segment", e);
+		}
+	    }
+	    index = new KeyIndex (0);
+	    synchronized (policy) {
+		policy.clear ();
+	    }
+	    expiry.clear ();
+	    currentSize = 0;
+	    entries = 0;
+	} finally {
+	    w.unlock ();
+	}
+	writeIndex ();
+    }
+
+    /** Close and remove a segment, the caller must hold the write lock
+     *  and the appendLock.
+     */
+    private void removeSegment (Segment s) {
+	segments.remove (s.number);
+	Closer.close (s.fc, logger);
+	try {
+	    FileHelper.delete (s.file);
+	} catch (IOException e) {
+	    logWarning ("Failed to remove cache segment: " + s.file, e);
+	}
+    }
+
+    public Iterable<NCacheEntry<K, V>> getEntries () {
+	// Defensive copy so that nothing happen when the user iterates
+	r.lock ();
+	try {
+	    return new SegmentIterator (index.copy (), metaPositions.clone ());
+	} finally {
+	    r.unlock ();
+	}
+    }
+
+    private class SegmentIterator
+	implements Iterable<NCacheEntry<K, V>>, Iterator<NCacheEntry<K, V>> {
+	private final KeyIndex snapshot;
+	private final long[] positions;
+	private int slot;
+
+	public SegmentIterator (KeyIndex snapshot, long[] positions) {
+	    this.snapshot = snapshot;
+	    this.positions = positions;
+	    slot = snapshot.first ();
+	}
+
+	public Iterator<NCacheEntry<K, V>> iterator () {
+	    return this;
+	}
+
+	public NCacheEntry<K, V> next () {
+	    if (slot < 0)
+		throw new NoSuchElementException ();
+	    NCacheEntry<K, V> ret = read ();
+	    slot = snapshot.next (slot);
+	    return ret;
+	}
+
+	/** Read the entry, the segment may be gone so we may have to
+	 *  give an entry without key and data hook.
+	 */
+	private NCacheEntry<K, V> read () {
+	    long pos = positions[slot];
+	    Segment s = segments.get (getSegmentNumber (pos));
+	    K key = null;
+	    V hook = null;
+	    try {
+		if (s != null) {
+		    int keySize = (int)snapshot.getKeySize (slot);
+		    int length = keySize + (int)snapshot.getHookSize (slot);
+		    ByteBuffer buf = ByteBuffer.allocate (length);
+		    readFully (s.fc, buf, getOffset (pos));
+		    byte[] meta = buf.array ();
+		    key = fhk.read (new ByteArrayInputStream (meta, 0, keySize));
+		    if ((snapshot.getFlags (slot) & KeyIndex.HAS_HOOK) != 0)
+			hook = fhv.read (new ByteArrayInputStream (meta, keySize,
+								   length - keySize));
+		}
+	    } catch (IOException e) {
+		logger.log (Level.FINE, "Failed to read entry: " +
+			    snapshot.getId (slot), e);
+	    }
+	    return new NCacheEntry<K, V> (snapshot.getId (slot),
+					  snapshot.getCacheTime (slot),
+					  snapshot.getExpires (slot),
+					  snapshot.getSize (slot),
+					  snapshot.getFingerprint (slot),
+					  snapshot.getHash (slot),
+					  key, hook);
+	}
+
+	public boolean hasNext () {
+	    return slot >= 0;
+	}
+
+	public void remove () {
+	    throw new UnsupportedOperationException ();
+	}
+    }
+
+    /** Read the stored index and replay the records written after it.
+     *  The caller must hold the write lock and the appendLock.
+     */
+    private void load () throws IOException {
+	index = new KeyIndex (0);
+	policy = NCache.createPolicy (evictionName, logger);
+	expiry.clear ();
+	currentSize = 0;
+	entries = 0;
+	segments.clear ();
+	pending.clear ();
+	current = null;
+	fileNo.set (0);
+	String[] ls = dir.list ();
+	if (ls != null) {
+	    for (String name : ls) {
+		if (!name.startsWith (SEGMENT) || name.equals (CACHEINDEX))
+		    continue;
+		try {
+		    int number = Integer.parseInt (name.substring (SEGMENT.length ()));
+		    segments.put (number, new Segment (number, getSegmentFile (number)));
+		} catch (NumberFormatException e) {
+		    // not a segment
+		}
+	    }
+	}
+	long at = 0;
+	File indexFile = new File (dir, CACHEINDEX);
+	if (indexFile.exists ()) {
+	    try {
+		at = readIndex (indexFile);
+	    } catch (IOException e) {
+		logWarning ("Couldnt read " + indexFile +
+			    ", will rebuild it from the segments", e);
+		index = new KeyIndex (0);
+		policy = NCache.createPolicy (evictionName, logger);
+		expiry.clear ();
+		currentSize = 0;
+		for (Segment s : segments.values ())
+		    s.live = 0;
+		at = 0;
+	    }
+	}
+	replay (at);
+	dropBroken ();
+	if (!segments.isEmpty ())
+	    current = segments.lastEntry ().getValue ();
+	// empty segments have no records, so nothing refers to them
+	for (Segment s : segments.values ()) {
+	    if (s.size == 0)
+		removeSegment (s);
+	}
+	// always start on a new segment, the last one may end with garbage
+	nextSegment ();
+	records = 0;
+	mark = at;
+	logger.info ("Cache loaded with " + entries + " entries in " +
+		     segments.size () + " segments");
+    }
+
+    /** Read the stored index.
+     * @return the position the index was written at
+     */
+    private long readIndex (File indexFile) throws IOException {
+	FileInputStream fis = new FileInputStream (indexFile);
+	try {
+	    DataInputStream is =
+		new DataInputStream (new BufferedInputStream (fis, 64 * 1024));
+	    if (is.readLong () != INDEX_MAGIC)
+		throw new IOException ("Unknown cache index format: " +
+				       indexFile);
+	    fileNo.set (is.readLong ());
+	    long at = is.readLong ();
+	    int count = is.readInt ();
+	    for (int i = 0; i < count; i++) {
+		long fp = is.readLong ();
+		int hash = is.readInt ();
+		long id = is.readLong ();
+		long cacheTime = is.readLong ();
+		long expires = is.readLong ();
+		long size = is.readLong ();
+		int keySize = is.readInt ();
+		int hookSize = is.readInt ();
+		int flags = is.readInt ();
+		long bodyPos = is.readLong ();
+		long metaPos = is.readLong ();
+		insertSlot (fp, hash, id, cacheTime, expires, size, keySize,
+			    hookSize, flags, bodyPos, metaPos);
+	    }
+	    return at;
+	} finally {
+	    fis.close ();
+	}
+    }
+
+    /** Apply the records written after the given position to the index.
+     */
+    private void replay (long at) throws IOException {
+	int first = getSegmentNumber (at);
+	ByteBuffer buf = ByteBuffer.allocate (HEADER_SIZE);
+	for (Segment s : segments.tailMap (first, true).values ()) {
+	    long offset = s.number == first ? getOffset (at) : 0;
+	    while (offset + HEADER_SIZE <= s.size) {
+		buf.clear ();
+		readFully (s.fc, buf, offset);
+		buf.flip ();
+		if (buf.getInt () != RECORD_MAGIC)
+		    break;
+		byte type = buf.get ();
+		buf.position (8);
+		long id = buf.getLong ();
+		long fp = buf.getLong ();
+		int hash = buf.getInt ();
+		int flags = buf.getInt ();
+		long cacheTime = buf.getLong ();
+		long expires = buf.getLong ();
+		long size = buf.getLong ();
+		int keySize = buf.getInt ();
+		int hookSize = buf.getInt ();
+		long bodyPos = buf.getLong ();
+		long metaPos = getPosition (s.number, offset + HEADER_SIZE);
+		long end = offset + HEADER_SIZE + keySize + hookSize;
+		if (type == ENTRY) {
+		    bodyPos = getPosition (s.number, end);
+		    end += size;
+		} else if (type != META && type != REMOVE) {
+		    break;
+		}
+		if (end > s.size)
+		    // the last record was not completely written
+		    break;
+		int slot = findSlot (id, fp, hash);
+		if (slot >= 0)
+		    removeSlot (slot);
+		if (type != REMOVE)
+		    insertSlot (fp, hash, id, cacheTime, expires, size,
+				keySize, hookSize, flags, bodyPos, metaPos);
+		fileNo.set (Math.max (fileNo.get (), id + 1));
+		offset = end;
+	    }
+	}
+    }
+
+    /** Remove the entries that have records in missing or too short
+     *  segments.
+     */
+    private void dropBroken () {
+	int[] slots = new int[16];
+	int count = 0;
+	for (int slot = index.first (); slot >= 0; slot = index.next (slot)) {
+	    if (isStored (bodyPositions[slot], index.getSize (slot))
+		&& isStored (metaPositions[slot], index.getKeySize (slot) +
+			     index.getHookSize (slot)))
+		continue;
+	    if (count == slots.length)
+		slots = Arrays.copyOf (slots, count * 2);
+	    slots[count++] = slot;
+	}
+	for (int i = 0; i < count; i++)
+	    removeSlot (slots[i]);
+	if (count > 0)
+	    logger.warning ("Dropped " + count + " broken cache entries");
+    }
+
+    private boolean isStored (long pos, long length) {
+	Segment s = segments.get (getSegmentNumber (pos));
+	return s != null && getOffset (pos) + length <= s.size;
+    }
+
+    /** Make sure that everything written to the segments is on disk.
+     */
+    private void syncSegments () {
+	for (Segment s : segments.values ()) {
+	    try {
+		s.fc.force (false);
+	    } catch (IOException e) {
+		logWarning ("Failed to sync cache segment: " + s.file, e);
+	    }
+	}
+    }
+
+    private void closeSegments () {
+	for (Segment s : segments.values ())
+	    Closer.close (s.fc, logger);
+	segments.clear ();
+	current = null;
+    }
+
+    /** Write the index to disk, together with the position of the
+     *  first record that is not in it.
+     * @return true if the index was written
+     */
+    private boolean writeIndex () {
+	File indexFile = new File (dir, CACHEINDEX);
+	File tmpFile = new File (dir, CACHEINDEX + ".tmp");
+	KeyIndex copy;
+	int[] slots;
+	long[] bodies;
+	long[] metas;
+	long at;
+	r.lock ();
+	try {
+	    copy = index.copy ();
+	    bodies = bodyPositions.clone ();
+	    metas = metaPositions.clone ();
+	    slots = new int[index.size ()];
+	    int i = 0;
+	    synchronized (policy) {
+		for (int slot = policy.first (); slot >= 0;
+		     slot = policy.next (slot))
+		    slots[i++] = slot;
+	    }
+	    synchronized (appendLock) {
+		if (current == null)
+		    return false;
+		// records that are not yet in the index are replayed
+		at = pending.isEmpty () ?
+		    getPosition (current.number, current.size) :
+		    pending.first ();
+		records = 0;
+	    }
+	} finally {
+	    r.unlock ();
+	}
+	// the records the index points to have to be on disk first
+	syncSegments ();
+	try {
+	    FileOutputStream fos = new FileOutputStream (tmpFile);
+	    try {
+		DataOutputStream os =
+		    new DataOutputStream (new BufferedOutputStream (fos,
+								    64 * 1024));
+		os.writeLong (INDEX_MAGIC);
+		os.writeLong (fileNo.get ());
+		os.writeLong (at);
+		os.writeInt (slots.length);
+		for (int slot : slots) {
+		    os.writeLong (copy.getFingerprint (slot));
+		    os.writeInt (copy.getHash (slot));
+		    os.writeLong (copy.getId (slot));
+		    os.writeLong (copy.getCacheTime (slot));
+		    os.writeLong (copy.getExpires (slot));
+		    os.writeLong (copy.getSize (slot));
+		    os.writeInt ((int)copy.getKeySize (slot));
+		    os.writeInt ((int)copy.getHookSize (slot));
+		    os.writeInt (copy.getFlags (slot));
+		    os.writeLong (bodies[slot]);
+		    os.writeLong (metas[slot]);
+		}
+		os.flush ();
+		fos.getChannel ().force (true);
+	    } finally {
+		fos.close ();
+	    }
+	    if (!tmpFile.renameTo (indexFile)) {
+		// Some systems can not rename onto an existing file
+		FileHelper.delete (indexFile);
+		if (!tmpFile.renameTo (indexFile))
+		    throw new IOException ("Failed to rename: " + tmpFile);
+	    }
+	    mark = at;
+	    return true;
+	} catch (IOException e) {
+	    logWarning ("Couldnt write " + indexFile + ", This is serious!\n",
+			e);
+	    return false;
+	}
+    }
+
+    /** Check if enough has been written since the index was written
+     *  to write it again.
+     */
+    private boolean needsIndexWrite () {
+	synchronized (appendLock) {
+	    return current != null &&
+		(records > Math.max (MIN_RECORDS, entries)
+		 || getSegmentNumber (mark) < current.number);
+	}
+    }
+
+    /** Make sure that the cache is written to the disk.
+     */
+    public void flush () {
+	syncSegments ();
+    }
+
+    /** Set the eviction policy to use, the current entries are moved
+     *  to the new policy in their current eviction order.
+     * @param name one of "fifo", "lru", "slru" or the name of
+     *        a class that implements EvictionPolicy.
+     */
+    public void setEvictionPolicy (String name) {
+	if (name.equals (evictionName))
+	    return;
+	EvictionPolicy newPolicy = NCache.createPolicy (name, logger);
+	w.lock ();
+	try {
+	    for (int slot = policy.first (); slot >= 0;
+		 slot = policy.next (slot))
+		newPolicy.inserted (slot);
+	    policy = newPolicy;
+	    evictionName = name;
+	} finally {
+	    w.unlock ();
+	}
+    }
+
+    /** Loop in a cleaning loop.
+     */
+    public void run () {
+	Thread.currentThread ().setPriority (Thread. MIN_PRIORITY);
+	while (running) {
+	    try {
+		Thread.sleep (cleanLoopTime);
+	    } catch (InterruptedException e) {
+		//System.err.println ("Cache interrupted");
+	    }
+	    if (!running)
+		continue;
+
+	    removeExpired (System.currentTimeMillis ());
+
+	    // If size is too big remove entries in eviction policy order.
+	    evict (configuration.getMaxSize ());
+
+	    if (needsIndexWrite ())
+		writeIndex ();
+
+	    compact ();
+	}
+    }
+
+    /** Evict entries, in the order the eviction policy gives, until
+     *  the cache is no bigger than the given size.
+     *  The lock is released between every batch of evictions so that
+     *  a big cleanup does not stall the users of the cache.
+     * @param maxSize the wanted size of the cache
+     */
+    private void evict (long maxSize) {
+	while (currentSize > maxSize) {
+	    w.lock ();
+	    try {
+		for (int i = 0; i < EVICTION_BATCH && currentSize > maxSize; i++) {
+		    int slot;
+		    synchronized (policy) {
+			slot = policy.first ();
+		    }
+		    if (slot < 0)
+			return;
+		    detach (slot);
+		}
+	    } finally {
+		w.unlock ();
+	    }
+	}
+    }
+
+    /** Remove all the entries that have expired. Only the entries that
+     *  are due are looked at and they are removed in batches.
+     * @param now the current time
+     */
+    private void removeExpired (long now) {
+	int count;
+	do {
+	    count = 0;
+	    w.lock ();
+	    try {
+		int slot;
+		while (count < EVICTION_BATCH
+		       && (slot = expiry.poll (now)) >= 0) {
+		    detach (slot);
+		    count++;
+		}
+	    } finally {
+		w.unlock ();
+	    }
+	} while (count > 0);
+    }
+
+    /** Compact the segments that are mostly dead. Only the segments
+     *  before the position the index was written at are compacted,
+     *  the later records are needed to rebuild the index.
+     */
+    private void compact () {
+	int markSegment = getSegmentNumber (mark);
+	for (Segment s : segments.values ()) {
+	    if (!running || s.number >= markSegment)
+		return;
+	    long live;
+	    r.lock ();
+	    try {
+		live = s.live;
+	    } finally {
+		r.unlock ();
+	    }
+	    if (live * 100 < s.size * compactLive)
+		compact (s);
+	}
+    }
+
+    /** Copy the live entries of a segment to the current segment and
+     *  remove the segment. The resources are copied without holding the
+     *  write lock, so that lookups are not held up by big resources.
+     */
+    private void compact (Segment s) {
+	int[] slots = new int[16];
+	long[] ids = new long[16];
+	int count = 0;
+	r.lock ();
+	try {
+	    for (int slot = index.first (); slot >= 0;
+		 slot = index.next (slot)) {
+		if (!usesSegment (slot, s))
+		    continue;
+		if (count == slots.length) {
+		    slots = Arrays.copyOf (slots, count * 2);
+		    ids = Arrays.copyOf (ids, count * 2);
+		}
+		slots[count] = slot;
+		ids[count] = index.getId (slot);
+		count++;
+	    }
+	} finally {
+	    r.unlock ();
+	}
+	for (int i = 0; i < count && running; i++) {
+	    try {
+		move (slots[i], ids[i], s);
+	    } catch (IOException e) {
+		logWarning ("Failed to move cache entry: " + ids[i], e);
+		return;
+	    }
+	}
+	w.lock ();
+	try {
+	    for (int slot = index.first (); slot >= 0;
+		 slot = index.next (slot)) {
+		if (usesSegment (slot, s))
+		    return;
+	    }
+	    synchronized (appendLock) {
+		removeSegment (s);
+	    }
+	    compactions.incrementAndGet ();
+	} finally {
+	    w.unlock ();
+	}
+    }
+
+    private boolean usesSegment (int slot, Segment s) {
+	return getSegmentNumber (bodyPositions[slot]) == s.number
+	    || getSegmentNumber (metaPositions[slot]) == s.number;
+    }
+
+    /** Write a new entry record for the given entry and point the index
+     *  to it. The record is written without the write lock, the index
+     *  is only changed if the entry is the same once it is written.
+     * @param slot the slot of the entry
+     * @param id the id of the entry
+     * @param s the segment that is compacted
+     */
+    private void move (int slot, long id, Segment s) throws IOException {
+	byte[] meta;
+	long bodyPos, metaPos, fp, cacheTime, expires, size;
+	int hash, flags, keySize;
+	r.lock ();
+	try {
+	    if (!index.isUsed (slot) || index.getId (slot) != id
+		|| !usesSegment (slot, s))
+		return;
+	    meta = readMeta (slot);
+	    bodyPos = bodyPositions[slot];
+	    metaPos = metaPositions[slot];
+	    fp = index.getFingerprint (slot);
+	    hash = index.getHash (slot);
+	    flags = index.getFlags (slot);
+	    cacheTime = index.getCacheTime (slot);
+	    expires = index.getExpires (slot);
+	    size = index.getSize (slot);
+	    keySize = (int)index.getKeySize (slot);
+	} finally {
+	    r.unlock ();
+	}
+	Segment bs = segments.get (getSegmentNumber (bodyPos));
+	if (bs == null)
+	    throw new FileNotFoundException ("Missing cache segment: " +
+					     getSegmentNumber (bodyPos));
+	// only this thread moves the position of the segment channels
+	bs.fc.position (getOffset (bodyPos));
+	long p = append (ENTRY, id, fp, hash, flags, cacheTime, expires, size,
+			 meta, keySize, bs.fc, -1);
+	w.lock ();
+	try {
+	    // the cache may have been cleared while we appended
+	    if (!segments.containsKey (getSegmentNumber (p)))
+		return;
+	    if (index.isUsed (slot) && index.getId (slot) == id
+		&& bodyPositions[slot] == bodyPos
+		&& metaPositions[slot] == metaPos) {
+		removeSlot (slot);
+		long newMetaPos = p + HEADER_SIZE;
+		insertSlot (fp, hash, id, cacheTime, expires, size, keySize,
+			    meta.length - keySize, flags,
+			    newMetaPos + meta.length, newMetaPos);
+	    } else {
+		markDead (id, fp, hash);
+	    }
+	} finally {
+	    w.unlock ();
+	    done (p);
+	}
+    }
+
+    /** An entry changed while it was moved, write a record after the
+     *  copy so that the copy is not brought back when the records are
+     *  replayed. The caller must hold the write lock.
+     */
+    private void markDead (long id, long fp, int hash) throws IOException {
+	int slot = findSlot (id, fp, hash);
+	long p;
+	if (slot < 0) {
+	    p = append (REMOVE, id, fp, hash, 0, 0, 0, 0, NO_DATA, 0,
+			null, -1);
+	} else {
+	    // the entry got a new data hook, store it again
+	    byte[] meta = readMeta (slot);
+	    p = append (META, id, fp, hash, index.getFlags (slot),
+			index.getCacheTime (slot), index.getExpires (slot),
+			index.getSize (slot), meta,
+			(int)index.getKeySize (slot), null,
+			bodyPositions[slot]);
+	}
+	done (p);
+    }
+
+    public void stop () {
+	running = false;
+	if (cleaner != null) {
+	    try {
+		cleaner.interrupt ();
+		cleaner.join ();
+	    } catch (InterruptedException e) {
+		// ignore
+	    }
+	}
+	writeIndex ();
+	w.lock ();
+	try {
+	    synchronized (appendLock) {
+		closeSegments ();
+	    }
+	} finally {
+	    w.unlock ();
+	}
+    }
+
+    /** Configure the cache system from the given config.
+     * @param config the properties describing the cache settings.
+     * @throws IOException if the new cache can not be configured correctly
+     */
+    public void setup (SProperties config) throws IOException {
+	if (config == null)
+	    config = new SProperties ();
+	setEvictionPolicy (config.getProperty ("eviction", DEFAULT_EVICTION));
+	String ss = config.getProperty ("segmentsize", DEFAULT_SEGMENT_SIZE);
+	try {
+	    // size is in MB
+	    segmentSize = Long.parseLong (ss) * 1024 * 1024;
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache segmentsize: '" + ss + "'");
+	}
+	String cl = config.getProperty ("compactlive", DEFAULT_COMPACT_LIVE);
+	try {
+	    compactLive = Integer.parseInt (cl);
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache compactlive: '" + cl + "'");
+	}
+	String cachedir =
+	    config.getProperty ("directory", DIR);
+	configuration.setCacheDir (cachedir);
+	configuration.setup (logger, config);
+	String ct = config.getProperty ("cleanloop", DEFAULT_CLEAN_LOOP);
+	try {
+	    setCleanLoopTime (Integer.parseInt (ct) * 1000); // in seconds.
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for cache cleanloop: '" + ct + "'");
+	}
+	String an = config.getProperty ("admission", DEFAULT_ADMISSION);
+	admission = NCache.createAdmission (an, configuration.getMaxSize (), 1,
+					    logger);
+    }
+
+    public Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Eviction policy", evictionName);
+	int count = 0;
+	long disk = 0;
+	long live = 0;
+	r.lock ();
+	try {
+	    for (Segment s : segments.values ()) {
+		count++;
+		disk += s.size;
+		live += s.live;
+	    }
+	} finally {
+	    r.unlock ();
+	}
+	stats.put ("Segments", Integer.toString (count));
+	stats.put ("Segment data", live + " / " + disk + " bytes live");
+	stats.put ("Compactions", Long.toString (compactions.get ()));
+	TinyLfuAdmission a = admission;
+	if (a != null)
+	    a.addStatistics (stats);
+	return stats;
+    }
+
+    public Logger getLogger () {
+	return logger;
+    }
+
+    private void logWarning (String s, Exception e) {
+	logger.log (Level.WARNING, s, e);
+    }
+}
@@ -0,0 +1,655 @@
+package rabbit.cache.ncache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheConfiguration;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.cache.CacheRegion;
+import rabbit.cache.utils.CacheUtils;
+import rabbit.util.SProperties;
+
+/** A cache that spreads its entries over several directories, usually
+ *  on different disks, so that the cache I/O is spread over the disks.
+ *
+ *  Every directory is a shard that is a cache of its own, with its own
+ *  size limit and cleaner. The shard of a key is found by consistent
+ *  hashing of the key fingerprint, every shard has a number of points
+ *  on a ring, in proportion to its size, and a key belongs to the
+ *  shard of the first point after the key. Adding or removing a shard
+ *  only moves the keys of the points that change.
+ *
+ *  A shard whose directory can not be used is marked as failed. The
+ *  keys of a failed shard go to the next shard on the ring, so its
+ *  entries are misses until it comes back, instead of errors. The
+ *  directories are checked at regular intervals by a background
+ *  thread, and when a shard fails, and failed shards are taken back
+ *  into use when their directory works again. While a shard is reopened its entries are
+ *  also misses.
+ *
+ *  The entries given out by this cache have ids that hold the number
+ *  of their shard, so that the files of an entry can be found from
+ *  the id alone.
+ *
+ * @param <K> the key type of the cache
+ * @param <V> the data resource
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ShardedCache<K, V> implements Cache<K, V>, Runnable {
+    private static final String DEFAULT_DIRECTORIES = "/tmp/rcache";
+    private static final String DEFAULT_SHARD_CLASS = NCache.class.getName ();
+    private static final String DEFAULT_SHARD_SIZE = "10";   // 10 MB.
+    /** The number of ring points of the biggest shard. */
+    private static final int POINTS = 160;
+    /** The ids of the entries are stored as shard << SHARD_SHIFT | id. */
+    private static final int SHARD_SHIFT = 48;
+    private static final int MAX_SHARDS = 256;
+    /** The time between checks of the shard directories. */
+    private static final long CHECK_TIME = 10 * 1000;
+
+    private final Configuration configuration = new Configuration ();
+    private final List<Shard> shards;
+    private final long[] ring;
+    private final int[] owners;
+    private final KeyFingerprinter<K> kfp;
+    private Thread checker = null;
+    private volatile boolean running = true;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    /** Create a new sharded cache.
+     *  Note that you must call start to have the cache fully up.
+     * @param props the configuration of the cache
+     * @param fhk the FileHandler for the cache keys
+     * @param fhv the FileHandler for the cache values
+     * @param kfp the KeyFingerprinter for the cache keys, may be null
+     * @throws IOException if the shards can not be configured
+     */
+    public ShardedCache (SProperties props, FileHandler<K> fhk,
+			 FileHandler<V> fhv, KeyFingerprinter<K> kfp)
+	throws IOException {
+	if (props == null)
+	    props = new SProperties ();
+	this.kfp = kfp;
+	String sc = props.getProperty ("shard_class", DEFAULT_SHARD_CLASS);
+	Class<?> clz;
+	try {
+	    clz = Class.forName (sc).asSubclass (Cache.class);
+	} catch (ClassNotFoundException e) {
+	    throw new IOException ("Unknown shard class: " + sc, e);
+	}
+	List<Shard> ls = new ArrayList<Shard> ();
+	String dirs = props.getProperty ("directories", DEFAULT_DIRECTORIES);
+	for (String d : dirs.split (",")) {
+	    d = d.trim ();
+	    if (d.length () == 0)
+		continue;
+	    String size = props.getProperty ("maxsize", DEFAULT_SHARD_SIZE);
+	    int i = d.lastIndexOf (':');
+	    if (i > 0) {
+		size = d.substring (i + 1).trim ();
+		d = d.substring (0, i).trim ();
+	    }
+	    long mb;
+	    try {
+		mb = Long.parseLong (size);
+	    } catch (NumberFormatException e) {
+		logger.warning ("Bad number for cache shard size: '" +
+				size + "', using: " + DEFAULT_SHARD_SIZE);
+		mb = Long.parseLong (DEFAULT_SHARD_SIZE);
+	    }
+	    SProperties sp = new SProperties ();
+	    sp.putAll (props);
+	    sp.remove ("directories");
+	    sp.remove ("shard_class");
+	    sp.put ("directory", d);
+	    sp.put ("maxsize", Long.toString (mb));
+	    ls.add (new Shard (ls.size (), new File (d), mb * 1024 * 1024,
+			       clz, sp, fhk, fhv));
+	}
+	if (ls.isEmpty ())
+	    throw new IOException ("No cache directories given");
+	if (ls.size () > MAX_SHARDS)
+	    throw new IOException ("Too many cache directories: " + ls.size ());
+	shards = ls;
+	for (Shard s : shards)
+	    s.open ();
+
+	long max = 0;
+	for (Shard s : shards)
+	    max = Math.max (max, s.maxSize);
+	List<long[]> points = new ArrayList<long[]> ();
+	for (Shard s : shards) {
+	    int n = max == 0 ? 1 :
+		(int)Math.max (1, POINTS * (double)s.maxSize / max);
+	    long h = hash (s.dir.getPath ());
+	    for (int j = 0; j < n; j++)
+		points.add (new long[] {mix (h + j * 0x9E3779B97F4A7C15L),
+					s.number});
+	}
+	long[][] pa = points.toArray (new long[points.size ()][]);
+	Arrays.sort (pa, new Comparator<long[]> () {
+		public int compare (long[] a, long[] b) {
+		    return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+		}
+	    });
+	ring = new long[pa.length];
+	owners = new int[pa.length];
+	for (int j = 0; j < pa.length; j++) {
+	    ring[j] = pa[j][0];
+	    owners[j] = (int)pa[j][1];
+	}
+    }
+
+    /** One of the directories of this cache.
+     */
+    private class Shard {
+	private final int number;
+	private final File dir;
+	private final long maxSize;
+	private final Class<?> clz;
+	private final SProperties props;
+	private final FileHandler<K> fhk;
+	private final FileHandler<V> fhv;
+	// only changed while holding the lock of this shard
+	private volatile Cache<K, V> cache;
+	private boolean started = false;
+	private volatile boolean failed = false;
+
+	public Shard (int number, File dir, long maxSize,
+		      Class<?> clz, SProperties props,
+		      FileHandler<K> fhk, FileHandler<V> fhv) {
+	    this.number = number;
+	    this.dir = dir;
+	    this.maxSize = maxSize;
+	    this.clz = clz;
+	    this.props = props;
+	    this.fhk = fhk;
+	    this.fhv = fhv;
+	}
+
+	/** Create the cache of this shard, if it can not be created the
+	 *  shard is marked as failed. The cache is only published once
+	 *  it is set up.
+	 */
+	@SuppressWarnings ("unchecked")
+	public synchronized void open () {
+	    if (cache == null) {
+		Cache<K, V> c = null;
+		try {
+		    Constructor<?> cons =
+			clz.getConstructor (SProperties.class,
+					    FileHandler.class,
+					    FileHandler.class,
+					    KeyFingerprinter.class);
+		    c = (Cache<K, V>)cons.newInstance (props, fhk, fhv, kfp);
+		    if (started)
+			c.start ();
+		    cache = c;
+		} catch (Exception e) {
+		    logger.log (Level.WARNING,
+				"Failed to create cache shard: " + dir, e);
+		    if (c != null)
+			c.stop ();
+		}
+	    }
+	    failed = cache == null || !isUsable ();
+	    if (failed)
+		logger.warning ("Cache shard: " + dir + " can not be used");
+	}
+
+	public Cache<K, V> getCache () {
+	    return cache;
+	}
+
+	/** Get the cache of this shard if the shard is in use.
+	 * @return the cache or null if the shard has failed or is
+	 *         being reopened
+	 */
+	public Cache<K, V> getUsableCache () {
+	    Cache<K, V> c = cache;
+	    return failed ? null : c;
+	}
+
+	public synchronized void start () {
+	    started = true;
+	    if (cache != null)
+		cache.start ();
+	}
+
+	private boolean isUsable () {
+	    return dir.isDirectory () && dir.canWrite ();
+	}
+
+	/** Check if a failure in this shard is a failure of the whole
+	 *  shard, and if so stop using it.
+	 * @param e the failure, may be null
+	 */
+	public void checkFailed (Exception e) {
+	    if (failed || isUsable ())
+		return;
+	    failed = true;
+	    logger.log (Level.WARNING, "Cache shard: " + dir +
+			" failed, its entries are treated as misses", e);
+	}
+
+	/** Stop using the shard if its directory is gone, or take it
+	 *  back into use if its directory works again.
+	 */
+	public synchronized void check () {
+	    if (!failed) {
+		checkFailed (null);
+		return;
+	    }
+	    if (!isUsable ())
+		return;
+	    // The directory may have been replaced, so start over with a
+	    // new cache that reads what is in the directory now. Until
+	    // then the shard has no cache and its entries are misses.
+	    Cache<K, V> old = cache;
+	    cache = null;
+	    if (old != null)
+		old.stop ();
+	    open ();
+	    if (!failed)
+		logger.info ("Cache shard: " + dir + " is back in use");
+	}
+    }
+
+    private static long hash (String s) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = 0, l = s.length (); i < l; i++) {
+	    h ^= s.charAt (i);
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+
+    /** Spread the bits of a value, the shards use the high bits of the
+     *  fingerprint for their own index, so the ring must not.
+     */
+    private static long mix (long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    private long fingerprint (K k) {
+	if (kfp != null)
+	    return kfp.fingerprint (k);
+	return k.hashCode () * 0x9E3779B97F4A7C15L;
+    }
+
+    /** Find the shard for a key, skipping the failed shards.
+     * @return the shard or null if all shards have failed
+     */
+    private Shard getShard (K k) {
+	long pos = mix (fingerprint (k));
+	int i = Arrays.binarySearch (ring, pos);
+	if (i < 0)
+	    i = -i - 1;
+	for (int n = 0; n < ring.length; n++) {
+	    Shard s = shards.get (owners[(i + n) % ring.length]);
+	    if (!s.failed)
+		return s;
+	}
+	return null;
+    }
+
+    /** Check the shard directories at regular intervals.
+     */
+    public void run () {
+	while (running) {
+	    try {
+		Thread.sleep (CHECK_TIME);
+	    } catch (InterruptedException e) {
+		continue;
+	    }
+	    for (Shard s : shards) {
+		if (!running)
+		    break;
+		s.check ();
+	    }
+	}
+    }
+
+    private Shard getShard (CacheEntry<K, V> ent) {
+	return shards.get (((ChildEntry<K, V>)ent).getChild ());
+    }
+
+    private CacheEntry<K, V> unwrap (CacheEntry<K, V> ent) {
+	return ((ChildEntry<K, V>)ent).getEntry ();
+    }
+
+    private CacheEntry<K, V> wrap (Shard s, CacheEntry<K, V> ent) {
+	if (ent == null)
+	    return null;
+	return new ChildEntry<K, V> (s.number, SHARD_SHIFT, ent);
+    }
+
+    /** Start the shards and the thread that checks their directories.
+     */
+    public void start () {
+	for (Shard s : shards)
+	    s.start ();
+	checker = new Thread (this, getClass ().getName () + ".checker");
+	checker.setDaemon (true);
+	checker.start ();
+    }
+
+    public void stop () {
+	running = false;
+	if (checker != null) {
+	    try {
+		checker.interrupt ();
+		checker.join ();
+	    } catch (InterruptedException e) {
+		// ignore
+	    }
+	}
+	for (Shard s : shards) {
+	    Cache<K, V> c = s.getCache ();
+	    if (c != null)
+		c.stop ();
+	}
+    }
+
+    public CacheConfiguration getCacheConfiguration () {
+	return configuration;
+    }
+
+    /** The configuration of all the shards.
+     */
+    private class Configuration implements CacheConfiguration {
+	/** Get the combined size of the shards that are in use.
+	 */
+	public long getMaxSize () {
+	    long size = 0;
+	    for (Shard s : shards) {
+		Cache<K, V> c = s.getCache ();
+		if (c != null && !s.failed)
+		    size += c.getCacheConfiguration ().getMaxSize ();
+	    }
+	    return size;
+	}
+
+	/** Set the size of the shards, the new size is split in the
+	 *  same proportions as the configured sizes.
+	 */
+	public void setMaxSize (long newMaxSize) {
+	    long total = 0;
+	    for (Shard s : shards)
+		total += s.maxSize;
+	    for (Shard s : shards) {
+		Cache<K, V> c = s.getCache ();
+		if (c != null && total > 0)
+		    c.getCacheConfiguration ().setMaxSize (
+			(long)(newMaxSize * ((double)s.maxSize / total)));
+	    }
+	}
+
+	public long getCacheTime () {
+	    for (Shard s : shards) {
+		Cache<K, V> c = s.getCache ();
+		if (c != null)
+		    return c.getCacheConfiguration ().getCacheTime ();
+	    }
+	    return 0;
+	}
+
+	public void setCacheTime (long newCacheTime) {
+	    for (Shard s : shards) {
+		Cache<K, V> c = s.getCache ();
+		if (c != null)
+		    c.getCacheConfiguration ().setCacheTime (newCacheTime);
+	    }
+	}
+
+	/** Get the directory of the first shard.
+	 */
+	public URL getCacheDir () {
+	    try {
+		return shards.get (0).dir.toURI ().toURL ();
+	    } catch (MalformedURLException e) {
+		return null;
+	    }
+	}
+
+	public void setup (Logger logger, SProperties config) {
+	    for (Shard s : shards) {
+		Cache<K, V> c = s.getCache ();
+		if (c != null)
+		    c.getCacheConfiguration ().setup (logger, config);
+	    }
+	}
+    }
+
+    public long getCurrentSize () {
+	long size = 0;
+	for (Shard s : shards) {
+	    Cache<K, V> c = s.getCache ();
+	    if (c != null && !s.failed)
+		size += c.getCurrentSize ();
+	}
+	return size;
+    }
+
+    public long getNumberOfEntries () {
+	long entries = 0;
+	for (Shard s : shards) {
+	    Cache<K, V> c = s.getCache ();
+	    if (c != null && !s.failed)
+		entries += c.getNumberOfEntries ();
+	}
+	return entries;
+    }
+
+    public CacheEntry<K, V> getEntry (K k) throws CacheException {
+	Shard s = getShard (k);
+	Cache<K, V> c = s == null ? null : s.getUsableCache ();
+	if (c == null)
+	    return null;
+	try {
+	    return wrap (s, c.getEntry (k));
+	} catch (CacheException e) {
+	    s.checkFailed (e);
+	    if (s.failed)
+		return null;
+	    throw e;
+	}
+    }
+
+    public CacheEntry<K, V> peekEntry (K k) throws CacheException {
+	Shard s = getShard (k);
+	Cache<K, V> c = s == null ? null : s.getUsableCache ();
+	if (c == null)
+	    return null;
+	try {
+	    return wrap (s, c.peekEntry (k));
+	} catch (CacheException e) {
+	    s.checkFailed (e);
+	    if (s.failed)
+		return null;
+	    throw e;
+	}
+    }
+
+    public File getEntryName (long id, boolean real, String extension) {
+	Shard s = shards.get (ChildEntry.getChild (id, SHARD_SHIFT));
+	long cid = ChildEntry.getChildId (id, SHARD_SHIFT);
+	Cache<K, V> c = s.getCache ();
+	// a shard that is reopened keeps its files where they were
+	if (c == null)
+	    return CacheUtils.getEntryName (s.dir, cid, real, extension);
+	return c.getEntryName (cid, real, extension);
+    }
+
+    public CacheRegion getRegion (CacheEntry<K, V> entry) throws IOException {
+	Shard s = getShard (entry);
+	Cache<K, V> c = s.getUsableCache ();
+	if (c == null)
+	    throw new IOException ("Cache shard: " + s.dir + " is not in use");
+	try {
+	    return c.getRegion (unwrap (entry));
+	} catch (IOException e) {
+	    s.checkFailed (e);
+	    throw e;
+	}
+    }
+
+    public CacheEntry<K, V> newEntry (K k) throws CacheException {
+	Shard s = getShard (k);
+	Cache<K, V> c = s == null ? null : s.getUsableCache ();
+	if (c == null)
+	    throw new CacheException ("No cache shard is in use", null);
+	return wrap (s, c.newEntry (k));
+    }
+
+    public boolean admit (K k, long size) {
+	Shard s = getShard (k);
+	Cache<K, V> c = s == null ? null : s.getUsableCache ();
+	return c != null && c.admit (k, size);
+    }
+
+    public void addEntry (CacheEntry<K, V> ent) throws CacheException {
+	if (ent == null)
+	    return;
+	Shard s = getShard (ent);
+	Cache<K, V> c = s.getUsableCache ();
+	if (c == null)
+	    return;
+	try {
+	    c.addEntry (unwrap (ent));
+	} catch (CacheException e) {
+	    s.checkFailed (e);
+	    throw e;
+	}
+    }
+
+    public void entryChanged (CacheEntry<K, V> ent, K newKey, V newValue)
+	throws CacheException {
+	Shard s = getShard (ent);
+	Cache<K, V> c = s.getUsableCache ();
+	if (c == null)
+	    return;
+	try {
+	    c.entryChanged (unwrap (ent), newKey, newValue);
+	} catch (CacheException e) {
+	    s.checkFailed (e);
+	    throw e;
+	}
+    }
+
+    public void remove (K k) throws CacheException {
+	Shard s = getShard (k);
+	Cache<K, V> c = s == null ? null : s.getUsableCache ();
+	if (c == null)
+	    return;
+	try {
+	    c.remove (k);
+	} catch (CacheException e) {
+	    s.checkFailed (e);
+	    if (!s.failed)
+		throw e;
+	}
+    }
+
+    public void clear () throws CacheException {
+	for (Shard s : shards) {
+	    Cache<K, V> c = s.getCache ();
+	    if (c != null && !s.failed)
+		c.clear ();
+	}
+    }
+
+    public Iterable<? extends CacheEntry<K, V>> getEntries () {
+	return new Iterable<CacheEntry<K, V>> () {
+	    public Iterator<CacheEntry<K, V>> iterator () {
+		return new ShardIterator ();
+	    }
+	};
+    }
+
+    /** An iterator over the entries of the shards that are in use.
+     */
+    private class ShardIterator implements Iterator<CacheEntry<K, V>> {
+	private int shard = -1;
+	private Shard current;
+	private Iterator<? extends CacheEntry<K, V>> entries;
+
+	public boolean hasNext () {
+	    while (entries == null || !entries.hasNext ()) {
+		if (++shard >= shards.size ())
+		    return false;
+		current = shards.get (shard);
+		Cache<K, V> c = current.getCache ();
+		entries = c != null && !current.failed ?
+		    c.getEntries ().iterator () : null;
+	    }
+	    return true;
+	}
+
+	public CacheEntry<K, V> next () {
+	    if (!hasNext ())
+		throw new NoSuchElementException ();
+	    return wrap (current, entries.next ());
+	}
+
+	public void remove () {
+	    throw new UnsupportedOperationException ();
+	}
+    }
+
+    public void flush () {
+	for (Shard s : shards) {
+	    Cache<K, V> c = s.getCache ();
+	    if (c != null && !s.failed)
+		c.flush ();
+	}
+    }
+
+    public Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	int ok = 0;
+	for (Shard s : shards)
+	    if (!s.failed)
+		ok++;
+	stats.put ("Cache shards", ok + " / " + shards.size () + " in use");
+	for (Shard s : shards) {
+	    String name = "Cache shard " + s.dir;
+	    Cache<K, V> c = s.getCache ();
+	    if (c == null || s.failed) {
+		stats.put (name, "failed");
+		continue;
+	    }
+	    stats.put (name, c.getCurrentSize () + " / " +
+		       c.getCacheConfiguration ().getMaxSize () + " bytes, " +
+		       c.getNumberOfEntries () + " entries");
+	    for (Map.Entry<String, String> me : c.getStatistics ().entrySet ())
+		stats.put (name + ": " + me.getKey (), me.getValue ());
+	}
+	return stats;
+    }
+
+    public Logger getLogger () {
+	return logger;
+    }
+}
@@ -0,0 +1,114 @@
+package rabbit.cache.ncache;
+
+import java.util.Arrays;
+
+/** A number of doubly linked lists of index slots.
+ *
+ *  The links are kept in int arrays indexed by the slot numbers so the
+ *  lists need no node objects and all operations are constant time.
+ *  A slot may be in at most one of the lists at a time.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class SlotList {
+    private int[] next;
+    private int[] prev;
+    private final int[] heads;
+    private final int[] tails;
+    private final int[] sizes;
+
+    /** Create new empty lists.
+     * @param lists the number of lists to handle
+     */
+    public SlotList (int lists) {
+	next = new int[16];
+	prev = new int[16];
+	heads = new int[lists];
+	tails = new int[lists];
+	sizes = new int[lists];
+	clear ();
+    }
+
+    /** Remove all slots from all the lists.
+     */
+    public void clear () {
+	Arrays.fill (heads, -1);
+	Arrays.fill (tails, -1);
+	Arrays.fill (sizes, 0);
+    }
+
+    /** Add a slot at the end of a list.
+     * @param list the list to add the slot to
+     * @param slot the slot to add
+     */
+    public void addLast (int list, int slot) {
+	if (slot >= next.length) {
+	    int size = Math.max (next.length * 2, slot + 1);
+	    next = Arrays.copyOf (next, size);
+	    prev = Arrays.copyOf (prev, size);
+	}
+	int t = tails[list];
+	prev[slot] = t;
+	next[slot] = -1;
+	if (t >= 0)
+	    next[t] = slot;
+	else
+	    heads[list] = slot;
+	tails[list] = slot;
+	sizes[list]++;
+    }
+
+    /** Remove a slot from a list.
+     * @param list the list that the slot is in
+     * @param slot the slot to remove
+     */
+    public void remove (int list, int slot) {
+	int p = prev[slot];
+	int n = next[slot];
+	if (p >= 0)
+	    next[p] = n;
+	else
+	    heads[list] = n;
+	if (n >= 0)
+	    prev[n] = p;
+	else
+	    tails[list] = p;
+	sizes[list]--;
+    }
+
+    /** Move a slot to the end of a list.
+     * @param from the list that the slot is in
+     * @param to the list to move the slot to
+     * @param slot the slot to move
+     */
+    public void moveLast (int from, int to, int slot) {
+	if (tails[from] == slot && from == to)
+	    return;
+	remove (from, slot);
+	addLast (to, slot);
+    }
+
+    /** Get the first slot of a list.
+     * @param list the list
+     * @return the first slot or -1 if the list is empty
+     */
+    public int first (int list) {
+	return heads[list];
+    }
+
+    /** Get the slot after the given one.
+     * @param slot the current slot
+     * @return the next slot in the same list or -1
+     */
+    public int next (int slot) {
+	return next[slot];
+    }
+
+    /** Get the number of slots in a list.
+     * @param list the list
+     * @return the number of slots in the list
+     */
+    public int size (int list) {
+	return sizes[list];
+    }
+}
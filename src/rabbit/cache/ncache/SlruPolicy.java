@@ -0,0 +1,82 @@
+package rabbit.cache.ncache;
+
+import java.util.Arrays;
+
+/** A segmented LRU eviction policy.
+ *
+ *  New entries are put in a probationary segment, entries that are used
+ *  again are moved to a protected segment. Entries are evicted from the
+ *  probationary segment first, so a scan over many entries that are
+ *  only used once will not push out the popular entries.
+ *  When the protected segment grows too big its least recently used
+ *  entries are moved back to the probationary segment.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SlruPolicy implements EvictionPolicy {
+    private static final int PROBATION = 0;
+    private static final int PROTECTED = 1;
+
+    private final SlotList lists = new SlotList (2);
+    private final int protectedPercent;
+    private byte[] segments = new byte[16];
+
+    /** Create a new policy that lets the protected segment hold at
+     *  most 80% of the entries.
+     */
+    public SlruPolicy () {
+	this (80);
+    }
+
+    /** Create a new policy.
+     * @param protectedPercent the maximum percent of all entries that 
+     *        may be in the protected segment
+     */
+    public SlruPolicy (int protectedPercent) {
+	this.protectedPercent = protectedPercent;
+    }
+
+    public void inserted (int slot) {
+	if (slot >= segments.length)
+	    segments = Arrays.copyOf (segments,
+				      Math.max (segments.length * 2, slot + 1));
+	segments[slot] = PROBATION;
+	lists.addLast (PROBATION, slot);
+    }
+
+    public void accessed (int slot) {
+	int segment = segments[slot];
+	lists.moveLast (segment, PROTECTED, slot);
+	if (segment == PROTECTED)
+	    return;
+	segments[slot] = PROTECTED;
+	long total = lists.size (PROBATION) + lists.size (PROTECTED);
+	while (lists.size (PROTECTED) * 100L > total * protectedPercent) {
+	    int demoted = lists.first (PROTECTED);
+	    lists.moveLast (PROTECTED, PROBATION, demoted);
+	    segments[demoted] = PROBATION;
+	}
+    }
+
+    public void removed (int slot) {
+	lists.remove (segments[slot], slot);
+    }
+
+    public int first () {
+	int slot = lists.first (PROBATION);
+	if (slot < 0)
+	    slot = lists.first (PROTECTED);
+	return slot;
+    }
+
+    public int next (int slot) {
+	int n = lists.next (slot);
+	if (n < 0 && segments[slot] == PROBATION)
+	    n = lists.first (PROTECTED);
+	return n;
+    }
+
+    public void clear () {
+	lists.clear ();
+    }
+}
@@ -0,0 +1,199 @@
+package rabbit.cache.ncache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/** A class to test the replay of the IndexJournal.
+ *
+ *  The journal is package private, so this test lives next to it.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TestIndexJournal {
+    private static final String NAME = "test.journal";
+    private static final String FP_NAME = "test.fingerprinter";
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+    private final File dir;
+
+    /** Start the tests
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	try {
+	    TestIndexJournal tester = new TestIndexJournal ();
+	    try {
+		tester.runTests ();
+	    } finally {
+		tester.cleanUp ();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace ();
+	    System.exit (1);
+	}
+    }
+
+    private TestIndexJournal () throws IOException {
+	dir = File.createTempFile ("journal", ".test");
+	if (!dir.delete () || !dir.mkdir ())
+	    throw new IOException ("Failed to create test directory: " + dir);
+    }
+
+    private void runTests () throws IOException {
+	testReplay ();
+	testGarbageAtEnd ();
+	testTruncatedRecord ();
+	testOtherFingerprinter ();
+	testOldestFirst ();
+    }
+
+    private void testReplay () throws IOException {
+	writeJournal (10);
+	Recorder r = replay ();
+	check (r.records.size () == 10, "wrong number of records: " +
+	       r.records.size ());
+	checkRecords (r, 0, 10);
+    }
+
+    /** A journal that was not synced may end with anything, here zeros
+     *  as left by a file system that extended the file.
+     */
+    private void testGarbageAtEnd () throws IOException {
+	writeJournal (5);
+	append (new byte[100]);
+	Recorder r = replay ();
+	check (r.records.size () == 5, "garbage replayed: " +
+	       r.records.size ());
+	checkRecords (r, 0, 5);
+    }
+
+    private void testTruncatedRecord () throws IOException {
+	writeJournal (7);
+	// the start of an add record that was never completed
+	append (new byte[] { IndexJournal.ADD, 0, 0, 0, 0, 0, 0, 1, 2, 3 });
+	Recorder r = replay ();
+	check (r.records.size () == 7, "truncated record replayed: " +
+	       r.records.size ());
+	checkRecords (r, 0, 7);
+    }
+
+    private void testOtherFingerprinter () throws IOException {
+	writeJournal (3);
+	IndexJournal j = getJournal ();
+	j.open ();
+	Recorder r = new Recorder ();
+	long count = j.replay (r, "other.fingerprinter");
+	j.close ();
+	j.checkpointDone ();
+	check (count == 0 && r.records.isEmpty (),
+	       "replayed journal of other fingerprinter: " + count);
+    }
+
+    /** Two journals that are not yet in a checkpoint are replayed
+     *  oldest first, so that a later remove wins over an earlier add.
+     */
+    private void testOldestFirst () throws IOException {
+	writeJournal (4);
+	IndexJournal j = getJournal ();
+	j.open ();
+	j.remove (getFingerprint (2), 2, 2);
+	j.close ();
+	Recorder r = replay ();
+	check (r.records.size () == 5, "wrong number of records: " +
+	       r.records.size ());
+	checkRecords (r, 0, 4);
+	check (r.records.get (4).equals ("remove " + getFingerprint (2) +
+					 " 2 2"),
+	       "remove not last: " + r.records.get (4));
+    }
+
+    /** Write a journal that has the given number of add records and
+     *  that is left as the current journal.
+     */
+    private void writeJournal (int records) throws IOException {
+	IndexJournal j = getJournal ();
+	j.open ();
+	for (int i = 0; i < records; i++)
+	    j.add (getFingerprint (i), i, i, 1000 + i, 2000 + i, 10 * i,
+		   100 + i, 200 + i, i & KeyIndex.HAS_HOOK);
+	j.close ();
+    }
+
+    private void append (byte[] data) throws IOException {
+	FileOutputStream fos = new FileOutputStream (new File (dir, NAME),
+						     true);
+	try {
+	    fos.write (data);
+	} finally {
+	    fos.close ();
+	}
+    }
+
+    /** Open a new journal, which rotates the old ones, replay them and
+     *  remove them.
+     */
+    private Recorder replay () throws IOException {
+	IndexJournal j = getJournal ();
+	j.open ();
+	Recorder r = new Recorder ();
+	long count = j.replay (r, FP_NAME);
+	j.close ();
+	j.checkpointDone ();
+	check (count == r.records.size (), "wrong count: " + count);
+	// leave nothing behind for the next test
+	if (!new File (dir, NAME).delete ())
+	    throw new IOException ("Failed to remove journal");
+	return r;
+    }
+
+    private void checkRecords (Recorder r, int from, int to) {
+	for (int i = from; i < to; i++) {
+	    String expected = "add " + getFingerprint (i) + " " + i + " " + i +
+		" " + (1000 + i) + " " + (2000 + i) + " " + (10 * i) + " " +
+		(100 + i) + " " + (200 + i) + " " + (i & KeyIndex.HAS_HOOK);
+	    String got = r.records.get (i - from);
+	    check (expected.equals (got), "wrong record, expected: " +
+		   expected + ", got: " + got);
+	}
+    }
+
+    private IndexJournal getJournal () {
+	return new IndexJournal (dir, NAME, FP_NAME, 60000, logger);
+    }
+
+    private long getFingerprint (int i) {
+	return (i + 1) * 0x9e3779b97f4a7c15L;
+    }
+
+    private void cleanUp () {
+	File[] fs = dir.listFiles ();
+	if (fs != null)
+	    for (File f : fs)
+		f.delete ();
+	dir.delete ();
+    }
+
+    private void check (boolean ok, String msg) {
+	if (!ok)
+	    throw new RuntimeException (msg);
+    }
+
+    private static class Recorder implements IndexJournal.Replayer {
+	private final List<String> records = new ArrayList<String> ();
+
+	public void add (long fp, int hash, long id, long cacheTime,
+			 long expires, long size, int keySize, int hookSize,
+			 int flags) {
+	    records.add ("add " + fp + " " + hash + " " + id + " " +
+			 cacheTime + " " + expires + " " + size + " " +
+			 keySize + " " + hookSize + " " + flags);
+	}
+
+	public void remove (long fp, int hash, long id) {
+	    records.add ("remove " + fp + " " + hash + " " + id);
+	}
+    }
+}
@@ -0,0 +1,179 @@
+package rabbit.cache.ncache;
+
+/** A class to test the KeyIndex.
+ *
+ *  The index is package private, so this test lives next to it.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TestKeyIndex {
+
+    /** Start the tests
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	TestKeyIndex tester = new TestKeyIndex ();
+	tester.runTests ();
+    }
+
+    private void runTests () {
+	testInsertFind ();
+	testRemove ();
+	testProbeWrapAround ();
+	testFingerprintCollisions ();
+	testSlotReuse ();
+	testCopy ();
+    }
+
+    private void testInsertFind () {
+	KeyIndex ki = new KeyIndex (16);
+	int n = 1000;
+	for (int i = 0; i < n; i++)
+	    insert (ki, getFingerprint (i), i, i);
+	check (ki.size () == n, "wrong size: " + ki.size ());
+	for (int i = 0; i < n; i++) {
+	    int slot = ki.find (getFingerprint (i), i);
+	    check (slot >= 0, "did not find: " + i);
+	    check (ki.getId (slot) == i, "wrong id for: " + i + ", got: " +
+		   ki.getId (slot));
+	    check (ki.getSize (slot) == i * 10, "wrong size for: " + i);
+	}
+	check (ki.find (getFingerprint (n), n) == -1, "found missing entry");
+	// same fingerprint but another hash is another key
+	check (ki.find (getFingerprint (1), 2) == -1, "hash not checked");
+    }
+
+    private void testRemove () {
+	KeyIndex ki = new KeyIndex (16);
+	int n = 500;
+	for (int i = 0; i < n; i++)
+	    insert (ki, getFingerprint (i), i, i);
+	for (int i = 0; i < n; i += 2)
+	    ki.remove (ki.find (getFingerprint (i), i));
+	check (ki.size () == n / 2, "wrong size after remove: " + ki.size ());
+	for (int i = 0; i < n; i++) {
+	    int slot = ki.find (getFingerprint (i), i);
+	    if (i % 2 == 0)
+		check (slot == -1, "found removed entry: " + i);
+	    else
+		check (slot >= 0 && ki.getId (slot) == i, "lost entry: " + i);
+	}
+	// the remaining entries are still in insertion order
+	int expected = 1;
+	for (int s = ki.first (); s >= 0; s = ki.next (s)) {
+	    check (ki.getId (s) == expected, "wrong order, expected: " +
+		   expected + ", got: " + ki.getId (s));
+	    expected += 2;
+	}
+	check (expected == n + 1, "wrong number of entries in order list");
+    }
+
+    /** A small fingerprint is its own spread value, so fingerprints
+     *  that are equal modulo the table size start their probes at the
+     *  same position. Starting at the last position makes the probe
+     *  sequence wrap around to the start of the table.
+     */
+    private void testProbeWrapAround () {
+	KeyIndex ki = new KeyIndex (16);
+	int tableSize = 32;
+	long last = tableSize - 1;
+	long[] fps = { last, last + tableSize, last + 2 * tableSize,
+		       tableSize, 1 };
+	for (int i = 0; i < fps.length; i++)
+	    insert (ki, fps[i], i, i);
+	for (int i = 0; i < fps.length; i++)
+	    check (ki.find (fps[i], i) >= 0, "did not find: " + fps[i]);
+	// removing the first entry shifts the wrapped entries back
+	ki.remove (ki.find (fps[0], 0));
+	for (int i = 1; i < fps.length; i++)
+	    check (ki.find (fps[i], i) >= 0, "lost after remove: " + fps[i]);
+	check (ki.find (fps[0], 0) == -1, "found removed: " + fps[0]);
+	ki.remove (ki.find (fps[2], 2));
+	check (ki.find (fps[1], 1) >= 0, "lost: " + fps[1]);
+	check (ki.find (fps[3], 3) >= 0, "lost: " + fps[3]);
+	check (ki.find (fps[4], 4) >= 0, "lost: " + fps[4]);
+	check (ki.find (fps[2], 2) == -1, "found removed: " + fps[2]);
+	// and the freed positions can be used again
+	insert (ki, fps[0], 0, 10);
+	insert (ki, fps[2], 2, 12);
+	for (int i = 0; i < fps.length; i++)
+	    check (ki.find (fps[i], i) >= 0, "did not find again: " + fps[i]);
+	check (ki.size () == fps.length, "wrong size: " + ki.size ());
+    }
+
+    private void testFingerprintCollisions () {
+	KeyIndex ki = new KeyIndex (16);
+	long fp = 4711;
+	int a = insert (ki, fp, 17, 1);
+	check ((ki.getFlags (a) & KeyIndex.COLLISION) == 0,
+	       "collision without a second key");
+	int b = insert (ki, fp, 17, 2);
+	int c = insert (ki, fp, 18, 3);
+	insert (ki, fp + 1, 17, 4);
+	check ((ki.getFlags (a) & KeyIndex.COLLISION) != 0,
+	       "first entry not marked as collision");
+	check ((ki.getFlags (b) & KeyIndex.COLLISION) != 0,
+	       "second entry not marked as collision");
+	check ((ki.getFlags (c) & KeyIndex.COLLISION) != 0,
+	       "other hash not marked as collision");
+	// both entries with the same fingerprint and hash are found
+	int f0 = ki.find (fp, 17, 0);
+	int f1 = ki.find (fp, 17, 1);
+	check (f0 >= 0 && f1 >= 0 && f0 != f1, "did not find both: " +
+	       f0 + ", " + f1);
+	check (ki.find (fp, 17, 2) == -1, "found a third entry");
+	check (ki.getId (ki.find (fp, 18)) == 3, "wrong entry for hash 18");
+	ki.remove (a);
+	int f = ki.find (fp, 17);
+	check (f == b, "wrong entry left: " + f);
+	check (ki.find (fp, 17, 1) == -1, "removed entry still found");
+	check (ki.getId (ki.find (fp + 1, 17)) == 4, "lost other fingerprint");
+    }
+
+    private void testSlotReuse () {
+	KeyIndex ki = new KeyIndex (16);
+	for (int i = 0; i < 16; i++)
+	    insert (ki, getFingerprint (i), i, i);
+	int limit = ki.getSlotLimit ();
+	int slot = ki.find (getFingerprint (3), 3);
+	ki.remove (slot);
+	check (!ki.isUsed (slot), "removed slot still used");
+	int s = insert (ki, getFingerprint (100), 100, 100);
+	check (s == slot, "removed slot not reused: " + s + " != " + slot);
+	check (ki.getSlotLimit () == limit, "slot limit grew");
+	// the reused slot is last in insertion order
+	int last = -1;
+	for (int i = ki.first (); i >= 0; i = ki.next (i))
+	    last = i;
+	check (last == s, "reused slot not last in order");
+	ki.clear ();
+	check (ki.size () == 0 && ki.first () == -1, "clear left entries");
+	check (ki.find (getFingerprint (1), 1) == -1, "found after clear");
+    }
+
+    private void testCopy () {
+	KeyIndex ki = new KeyIndex (16);
+	for (int i = 0; i < 100; i++)
+	    insert (ki, getFingerprint (i), i, i);
+	KeyIndex c = ki.copy ();
+	ki.remove (ki.find (getFingerprint (5), 5));
+	insert (ki, getFingerprint (200), 200, 200);
+	check (c.size () == 100, "copy changed size: " + c.size ());
+	check (c.find (getFingerprint (5), 5) >= 0, "copy lost entry");
+	check (c.find (getFingerprint (200), 200) == -1, "copy got entry");
+    }
+
+    private int insert (KeyIndex ki, long fp, int hash, long id) {
+	return ki.insert (fp, hash, id, 1000 + id, 2000 + id, id * 10,
+			  100, 200, 0);
+    }
+
+    private long getFingerprint (int i) {
+	return (i + 1) * 0x9e3779b97f4a7c15L;
+    }
+
+    private void check (boolean ok, String msg) {
+	if (!ok)
+	    throw new RuntimeException (msg);
+    }
+}
@@ -0,0 +1,650 @@
+package rabbit.cache.ncache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.khelekore.rnio.impl.Closer;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheConfiguration;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.cache.CacheRegion;
+import rabbit.cache.utils.FrequencySketch;
+import rabbit.io.FileHelper;
+import rabbit.util.SProperties;
+
+/** A cache made of a small and fast tier, like a ssd or a tmpfs, and a
+ *  big and slow tier, like a hard disk.
+ *
+ *  New resources are always stored in the fast tier. A background
+ *  thread moves the coldest resources to the slow tier when the fast
+ *  tier gets full, and moves resources that are used a few times in
+ *  the slow tier back to the fast tier. How hot a resource is is
+ *  counted in a frequency sketch over the entry ids, that forgets old
+ *  uses over time. The moves are limited to a number of bytes per
+ *  second so that they do not take all the disk bandwidth.
+ *
+ *  Every tier is a cache of its own, by default a NCache. The entries
+ *  given out by this cache have ids that hold the number of their
+ *  tier, so that the files of an entry can be found from the id alone.
+ *
+ * @param <K> the key type of the cache
+ * @param <V> the data resource
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TieredCache<K, V> implements Cache<K, V>, Runnable {
+    private static final int FAST = 0;
+    private static final int SLOW = 1;
+    private static final String[] NAMES = { "fast", "slow" };
+    private static final String[] DEFAULT_DIRS = {
+	"/tmp/rcache-fast", "/tmp/rcache-slow"
+    };
+    private static final String DEFAULT_TIER_CLASS = NCache.class.getName ();
+    private static final String DEFAULT_DEMOTE_AT = "80";    // percent
+    private static final String DEFAULT_MIGRATE_RATE = "10"; // MB/s
+    private static final String DEFAULT_PROMOTE = "2";
+    /** The ids of the entries are stored as tier << TIER_SHIFT | id. */
+    private static final int TIER_SHIFT = 56;
+    /** The average entry size used to size the frequency sketch. */
+    private static final long AVERAGE_ENTRY_SIZE = 8 * 1024;
+    /** The most resources that may wait to be promoted. */
+    private static final int MAX_QUEUED = 1024;
+    /** The number of locks that the keys are spread over. */
+    private static final int KEY_LOCKS = 64;
+
+    private final Configuration configuration = new Configuration ();
+    private final List<Cache<K, V>> tiers = new ArrayList<Cache<K, V>> ();
+    private int demoteAt = 80;
+    private long migrateRate = 10 * 1024 * 1024;
+    private int promoteCount = 2;
+    private Thread migrator = null;
+    private volatile boolean running = true;
+    /** Held while the entry of a key is added, changed or removed, so
+     *  that a move does not overwrite or bring back another entry. */
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+
+    // all fields below are guarded by this
+    private final FrequencySketch sketch;
+    /** The slow tier entries to promote, by id. */
+    private final Map<Long, ChildEntry<K, V>> promotions =
+	new LinkedHashMap<Long, ChildEntry<K, V>> ();
+    private final long[] hits = new long[2];
+    private final long[] hitBytes = new long[2];
+    private long misses = 0;
+    private long promoted = 0;
+    private long promotedBytes = 0;
+    private long demoted = 0;
+    private long demotedBytes = 0;
+    private long failedMoves = 0;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    /** Create a new tiered cache.
+     *  Note that you must call start to have the cache fully up.
+     * @param props the configuration of the cache
+     * @param fhk the FileHandler for the cache keys
+     * @param fhv the FileHandler for the cache values
+     * @param kfp the KeyFingerprinter for the cache keys, may be null
+     * @throws IOException if the tiers can not be configured
+     */
+    @SuppressWarnings ("unchecked")
+    public TieredCache (SProperties props, FileHandler<K> fhk,
+			FileHandler<V> fhv, KeyFingerprinter<K> kfp)
+	throws IOException {
+	if (props == null)
+	    props = new SProperties ();
+	for (int i = 0; i < keyLocks.length; i++)
+	    keyLocks[i] = new Object ();
+	for (int t = 0; t < NAMES.length; t++) {
+	    SProperties tp = getTierProperties (props, t);
+	    String cn = tp.getProperty ("class", DEFAULT_TIER_CLASS);
+	    try {
+		Class<?> clz = Class.forName (cn).asSubclass (Cache.class);
+		Object c = clz.getConstructor (SProperties.class,
+					       FileHandler.class,
+					       FileHandler.class,
+					       KeyFingerprinter.class)
+		    .newInstance (tp, fhk, fhv, kfp);
+		tiers.add ((Cache<K, V>)c);
+	    } catch (Exception e) {
+		throw new IOException ("Failed to create the " + NAMES[t] +
+				       " cache tier: " + cn, e);
+	    }
+	}
+	demoteAt = Math.max (1, Math.min (100, getInt (props, "demote_at",
+						     DEFAULT_DEMOTE_AT)));
+	migrateRate = Math.max (0, getInt (props, "migrate_rate",
+					   DEFAULT_MIGRATE_RATE)) * 1024L * 1024;
+	promoteCount = Math.max (1, getInt (props, "promote",
+					    DEFAULT_PROMOTE));
+	long total = configuration.getMaxSize ();
+	long keys = Math.min (1 << 22, Math.max (1024, total /
+						 AVERAGE_ENTRY_SIZE));
+	sketch = new FrequencySketch ((int)keys);
+    }
+
+    /** Get the properties of a tier, these are the properties of this
+     *  cache with the properties that start with the name of the tier,
+     *  like "fast.directory", put in without the name.
+     */
+    private SProperties getTierProperties (SProperties props, int tier) {
+	SProperties tp = new SProperties ();
+	for (Map.Entry<String, String> me : props.entrySet ()) {
+	    String k = me.getKey ();
+	    if (!isTierProperty (k))
+		tp.put (k, me.getValue ());
+	}
+	String prefix = NAMES[tier] + ".";
+	for (Map.Entry<String, String> me : props.entrySet ()) {
+	    String k = me.getKey ();
+	    if (k.startsWith (prefix))
+		tp.put (k.substring (prefix.length ()), me.getValue ());
+	}
+	if (tp.getProperty ("directory") == null)
+	    tp.put ("directory", DEFAULT_DIRS[tier]);
+	return tp;
+    }
+
+    private boolean isTierProperty (String key) {
+	for (String name : NAMES)
+	    if (key.startsWith (name + "."))
+		return true;
+	return false;
+    }
+
+    private int getInt (SProperties props, String key, String def) {
+	String s = props.getProperty (key, def);
+	try {
+	    return Integer.parseInt (s.trim ());
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for tiered cache " + key + ": '" +
+			    s + "'");
+	    return Integer.parseInt (def);
+	}
+    }
+
+    private CacheEntry<K, V> wrap (int tier, CacheEntry<K, V> ent) {
+	if (ent == null)
+	    return null;
+	return new ChildEntry<K, V> (tier, TIER_SHIFT, ent);
+    }
+
+    private int getTier (CacheEntry<K, V> ent) {
+	return ((ChildEntry<K, V>)ent).getChild ();
+    }
+
+    private Object getLock (K k) {
+	int h = k.hashCode ();
+	return keyLocks[(h ^ (h >>> 16)) & (KEY_LOCKS - 1)];
+    }
+
+    private CacheEntry<K, V> unwrap (CacheEntry<K, V> ent) {
+	return ((ChildEntry<K, V>)ent).getEntry ();
+    }
+
+    /** Start the tiers and the thread that moves resources between them.
+     */
+    public void start () {
+	for (Cache<K, V> c : tiers)
+	    c.start ();
+	migrator = new Thread (this, getClass ().getName () + ".migrator");
+	migrator.setDaemon (true);
+	migrator.start ();
+    }
+
+    public void stop () {
+	running = false;
+	if (migrator != null) {
+	    try {
+		migrator.interrupt ();
+		migrator.join ();
+	    } catch (InterruptedException e) {
+		// ignore
+	    }
+	}
+	for (Cache<K, V> c : tiers)
+	    c.stop ();
+    }
+
+    public CacheConfiguration getCacheConfiguration () {
+	return configuration;
+    }
+
+    /** The configuration of both the tiers.
+     */
+    private class Configuration implements CacheConfiguration {
+	/** Get the combined size of the tiers, an entry is only stored
+	 *  in one of them.
+	 */
+	public long getMaxSize () {
+	    long size = 0;
+	    for (Cache<K, V> c : tiers)
+		size += c.getCacheConfiguration ().getMaxSize ();
+	    return size;
+	}
+
+	/** Set the size of the tiers, the new size is split in the
+	 *  same proportions as the current sizes.
+	 */
+	public void setMaxSize (long newMaxSize) {
+	    long total = getMaxSize ();
+	    for (Cache<K, V> c : tiers) {
+		CacheConfiguration cc = c.getCacheConfiguration ();
+		if (total > 0)
+		    cc.setMaxSize ((long)(newMaxSize *
+					  ((double)cc.getMaxSize () / total)));
+	    }
+	}
+
+	public long getCacheTime () {
+	    return tiers.get (FAST).getCacheConfiguration ().getCacheTime ();
+	}
+
+	public void setCacheTime (long newCacheTime) {
+	    for (Cache<K, V> c : tiers)
+		c.getCacheConfiguration ().setCacheTime (newCacheTime);
+	}
+
+	/** Get the directory of the fast tier.
+	 */
+	public URL getCacheDir () {
+	    return tiers.get (FAST).getCacheConfiguration ().getCacheDir ();
+	}
+
+	public void setup (Logger logger, SProperties config) {
+	    for (Cache<K, V> c : tiers)
+		c.getCacheConfiguration ().setup (logger, config);
+	}
+    }
+
+    public long getCurrentSize () {
+	long size = 0;
+	for (Cache<K, V> c : tiers)
+	    size += c.getCurrentSize ();
+	return size;
+    }
+
+    public long getNumberOfEntries () {
+	long entries = 0;
+	for (Cache<K, V> c : tiers)
+	    entries += c.getNumberOfEntries ();
+	return entries;
+    }
+
+    public CacheEntry<K, V> getEntry (K k) throws CacheException {
+	for (int t = 0; t < tiers.size (); t++) {
+	    CacheEntry<K, V> e = wrap (t, tiers.get (t).getEntry (k));
+	    if (e != null) {
+		used (t, (ChildEntry<K, V>)e);
+		return e;
+	    }
+	}
+	synchronized (this) {
+	    misses++;
+	}
+	return null;
+    }
+
+    public CacheEntry<K, V> peekEntry (K k) throws CacheException {
+	for (int t = 0; t < tiers.size (); t++) {
+	    CacheEntry<K, V> e = wrap (t, tiers.get (t).peekEntry (k));
+	    if (e != null)
+		return e;
+	}
+	return null;
+    }
+
+    /** Count a hit and queue the resource for promotion if it is hot.
+     */
+    private synchronized void used (int tier, ChildEntry<K, V> e) {
+	long id = e.getId ();
+	hits[tier]++;
+	hitBytes[tier] += e.getSize ();
+	sketch.increment (id);
+	if (tier == SLOW && migrateRate > 0
+	    && sketch.frequency (id) >= promoteCount
+	    && promotions.size () < MAX_QUEUED)
+	    promotions.put (id, e);
+    }
+
+    public File getEntryName (long id, boolean real, String extension) {
+	Cache<K, V> c = tiers.get (ChildEntry.getChild (id, TIER_SHIFT));
+	return c.getEntryName (ChildEntry.getChildId (id, TIER_SHIFT),
+			       real, extension);
+    }
+
+    public CacheRegion getRegion (CacheEntry<K, V> entry) throws IOException {
+	return tiers.get (getTier (entry)).getRegion (unwrap (entry));
+    }
+
+    /** Reserve space for a new entry, new entries are always stored in
+     *  the fast tier.
+     */
+    public CacheEntry<K, V> newEntry (K k) throws CacheException {
+	return wrap (FAST, tiers.get (FAST).newEntry (k));
+    }
+
+    /** Check if a resource should be cached, the slow tier holds most
+     *  of the resources so it decides.
+     */
+    public boolean admit (K k, long size) {
+	return tiers.get (SLOW).admit (k, size);
+    }
+
+    public void addEntry (CacheEntry<K, V> ent) throws CacheException {
+	if (ent == null)
+	    return;
+	int t = getTier (ent);
+	synchronized (getLock (ent.getKey ())) {
+	    tiers.get (t).addEntry (unwrap (ent));
+	    // an older version in the slow tier would come back once the
+	    // new one has left the fast tier
+	    if (t == FAST)
+		tiers.get (SLOW).remove (ent.getKey ());
+	}
+    }
+
+    public void entryChanged (CacheEntry<K, V> ent, K newKey, V newValue)
+	throws CacheException {
+	synchronized (getLock (ent.getKey ())) {
+	    tiers.get (getTier (ent)).entryChanged (unwrap (ent), newKey,
+						    newValue);
+	}
+    }
+
+    public void remove (K k) throws CacheException {
+	synchronized (getLock (k)) {
+	    for (Cache<K, V> c : tiers)
+		c.remove (k);
+	}
+    }
+
+    public void clear () throws CacheException {
+	synchronized (this) {
+	    promotions.clear ();
+	    sketch.clear ();
+	}
+	for (Cache<K, V> c : tiers)
+	    c.clear ();
+    }
+
+    public Iterable<? extends CacheEntry<K, V>> getEntries () {
+	return new Iterable<CacheEntry<K, V>> () {
+	    public Iterator<CacheEntry<K, V>> iterator () {
+		return new TierIterator ();
+	    }
+	};
+    }
+
+    /** An iterator over the entries of both tiers.
+     */
+    private class TierIterator implements Iterator<CacheEntry<K, V>> {
+	private int tier = -1;
+	private Iterator<? extends CacheEntry<K, V>> entries;
+
+	public boolean hasNext () {
+	    while (entries == null || !entries.hasNext ()) {
+		if (++tier >= tiers.size ())
+		    return false;
+		entries = tiers.get (tier).getEntries ().iterator ();
+	    }
+	    return true;
+	}
+
+	public CacheEntry<K, V> next () {
+	    if (!hasNext ())
+		throw new NoSuchElementException ();
+	    return wrap (tier, entries.next ());
+	}
+
+	public void remove () {
+	    throw new UnsupportedOperationException ();
+	}
+    }
+
+    public void flush () {
+	for (Cache<K, V> c : tiers)
+	    c.flush ();
+    }
+
+    /** Move resources between the tiers, at most migrate_rate bytes
+     *  every second, hot resources are promoted before cold ones are
+     *  demoted.
+     */
+    public void run () {
+	long credit = 0;
+	while (running) {
+	    try {
+		Thread.sleep (1000);
+	    } catch (InterruptedException e) {
+		continue;
+	    }
+	    if (migrateRate == 0)
+		continue;
+	    // a big resource may take the credit of a few seconds
+	    credit = Math.min (credit + migrateRate, migrateRate);
+	    credit = promote (credit);
+	    credit = demote (credit);
+	}
+    }
+
+    private long promote (long credit) {
+	while (running && credit > 0) {
+	    ChildEntry<K, V> e;
+	    synchronized (this) {
+		Iterator<ChildEntry<K, V>> i = promotions.values ().iterator ();
+		if (!i.hasNext ())
+		    break;
+		e = i.next ();
+		i.remove ();
+	    }
+	    int freq;
+	    synchronized (this) {
+		freq = sketch.frequency (e.getId ());
+	    }
+	    CacheEntry<K, V> moved = move (e, SLOW, FAST);
+	    if (moved != null) {
+		credit -= e.getSize ();
+		synchronized (this) {
+		    // keep it warm in the fast tier
+		    for (int i = 0; i < freq; i++)
+			sketch.increment (moved.getId ());
+		    promoted++;
+		    promotedBytes += e.getSize ();
+		}
+	    }
+	}
+	return credit;
+    }
+
+    /** An entry of the fast tier that may be demoted.
+     */
+    private static class Candidate<K, V> {
+	private final ChildEntry<K, V> entry;
+	private final int frequency;
+
+	public Candidate (ChildEntry<K, V> entry, int frequency) {
+	    this.entry = entry;
+	    this.frequency = frequency;
+	}
+    }
+
+    private long demote (long credit) {
+	Cache<K, V> fast = tiers.get (FAST);
+	long limit = fast.getCacheConfiguration ().getMaxSize () / 100 * demoteAt;
+	long over = fast.getCurrentSize () - limit;
+	if (over <= 0 || credit <= 0)
+	    return credit;
+	List<Candidate<K, V>> cs = new ArrayList<Candidate<K, V>> ();
+	for (CacheEntry<K, V> e : fast.getEntries ()) {
+	    ChildEntry<K, V> ce = new ChildEntry<K, V> (FAST, TIER_SHIFT, e);
+	    int freq;
+	    synchronized (this) {
+		freq = sketch.frequency (ce.getId ());
+	    }
+	    cs.add (new Candidate<K, V> (ce, freq));
+	}
+	// coldest first, the oldest of those that are equally cold
+	Collections.sort (cs, new Comparator<Candidate<K, V>> () {
+		public int compare (Candidate<K, V> a, Candidate<K, V> b) {
+		    if (a.frequency != b.frequency)
+			return a.frequency - b.frequency;
+		    long at = a.entry.getCacheTime ();
+		    long bt = b.entry.getCacheTime ();
+		    return at < bt ? -1 : (at == bt ? 0 : 1);
+		}
+	    });
+	for (Candidate<K, V> c : cs) {
+	    if (!running || credit <= 0 || over <= 0)
+		break;
+	    long size = c.entry.getSize ();
+	    if (move (c.entry, FAST, SLOW) != null) {
+		credit -= size;
+		over -= size;
+		synchronized (this) {
+		    demoted++;
+		    demotedBytes += size;
+		}
+	    }
+	}
+	return credit;
+    }
+
+    /** Copy an entry to another tier and remove it from its tier.
+     * @return the new entry, or null if the entry could not be moved
+     */
+    private CacheEntry<K, V> move (ChildEntry<K, V> e, int from, int to) {
+	Cache<K, V> src = tiers.get (from);
+	Cache<K, V> dst = tiers.get (to);
+	CacheEntry<K, V> se = e.getEntry ();
+	File tmp = null;
+	try {
+	    K key = se.getKey ();
+	    if (key == null)
+		return null;
+	    // The entry may have been replaced or removed since it was
+	    // picked.
+	    CacheEntry<K, V> current = src.peekEntry (key);
+	    if (current == null || current.getId () != se.getId ())
+		return null;
+	    CacheEntry<K, V> de = dst.newEntry (key);
+	    tmp = dst.getEntryName (de.getId (), false, null);
+	    copy (src.getRegion (current), tmp);
+	    synchronized (getLock (key)) {
+		// Check again, a request may have stored or removed the
+		// key during the copy, and the hook of an entry that was
+		// handed out to a request may have been changed by it.
+		current = src.peekEntry (key);
+		if (current == null || current.getId () != se.getId ())
+		    return null;
+		de.setDataHook (current.getDataHook ());
+		de.setExpires (current.getExpires ());
+		dst.addEntry (de);
+		tmp = null;
+		src.remove (key);
+	    }
+	    return wrap (to, de);
+	} catch (IOException ex) {
+	    failedMove (e, ex);
+	} catch (CacheException ex) {
+	    failedMove (e, ex);
+	} finally {
+	    if (tmp != null && tmp.exists ()) {
+		try {
+		    FileHelper.delete (tmp);
+		} catch (IOException ex) {
+		    logger.log (Level.WARNING, "Failed to remove: " + tmp, ex);
+		}
+	    }
+	}
+	return null;
+    }
+
+    private void failedMove (ChildEntry<K, V> e, Exception ex) {
+	logger.log (Level.FINE, "Failed to move cache entry: " + e, ex);
+	synchronized (this) {
+	    failedMoves++;
+	}
+    }
+
+    private void copy (CacheRegion r, File f) throws IOException {
+	FileChannel in = r.getChannel ();
+	FileOutputStream fos = null;
+	try {
+	    fos = new FileOutputStream (f);
+	    FileChannel out = fos.getChannel ();
+	    long pos = r.getOffset ();
+	    long end = pos + r.getLength ();
+	    while (pos < end) {
+		long n = in.transferTo (pos, end - pos, out);
+		if (n <= 0)
+		    throw new EOFException ("Cached resource is too short: " + f);
+		pos += n;
+	    }
+	} finally {
+	    Closer.close (in, logger);
+	    if (fos != null)
+		Closer.close (fos, logger);
+	}
+    }
+
+    public Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	synchronized (this) {
+	    long total = hits[FAST] + hits[SLOW] + misses;
+	    for (int t = 0; t < NAMES.length; t++) {
+		Cache<K, V> c = tiers.get (t);
+		String name = getName (t);
+		stats.put (name, c.getCurrentSize () + " / " +
+			   c.getCacheConfiguration ().getMaxSize () +
+			   " bytes, " + c.getNumberOfEntries () + " entries");
+		stats.put (name + " hits", Long.toString (hits[t]));
+		stats.put (name + " hit ratio", getRatio (hits[t], total));
+		stats.put (name + " hit bytes", Long.toString (hitBytes[t]));
+	    }
+	    stats.put ("Tier misses", Long.toString (misses));
+	    stats.put ("Tier promotions", promoted + " (" +
+		       promotedBytes + " bytes)");
+	    stats.put ("Tier promotions queued",
+		       Integer.toString (promotions.size ()));
+	    stats.put ("Tier demotions", demoted + " (" +
+		       demotedBytes + " bytes)");
+	    stats.put ("Tier failed moves", Long.toString (failedMoves));
+	}
+	for (int t = 0; t < NAMES.length; t++) {
+	    Map<String, String> ts = tiers.get (t).getStatistics ();
+	    for (Map.Entry<String, String> me : ts.entrySet ())
+		stats.put (getName (t) + ": " + me.getKey (), me.getValue ());
+	}
+	return stats;
+    }
+
+    private String getName (int tier) {
+	String n = NAMES[tier];
+	return Character.toUpperCase (n.charAt (0)) + n.substring (1) + " tier";
+    }
+
+    private String getRatio (long part, long total) {
+	if (total == 0)
+	    return "-";
+	return String.format ("%.1f%%", part * 100.0 / total);
+    }
+
+    public Logger getLogger () {
+	return logger;
+    }
+}
@@ -0,0 +1,86 @@
+package rabbit.cache.ncache;
+
+import java.util.Map;
+import rabbit.cache.utils.FrequencySketch;
+
+/** A TinyLFU admission filter.
+ *
+ *  Every lookup in the cache is counted in a frequency sketch. When
+ *  the cache is full a new resource is only admitted if it has been
+ *  asked for more often than the entry that would be evicted to make
+ *  room for it, so resources that are only used once do not push out
+ *  the popular ones.
+ *
+ *  The keys are spread over a number of sketches, each with its own
+ *  lock.
+ *
+ *  This class is thread safe.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TinyLfuAdmission {
+    private final FrequencySketch[] sketches;
+    private final int mask;
+    private long admitted = 0;
+    private long rejected = 0;
+
+    /** Create a new admission filter.
+     * @param expectedEntries the number of entries the cache may hold
+     * @param parts the number of sketches to use, must be a power of 2
+     */
+    public TinyLfuAdmission (int expectedEntries, int parts) {
+	sketches = new FrequencySketch[parts];
+	for (int i = 0; i < parts; i++)
+	    sketches[i] = new FrequencySketch (expectedEntries / parts * 4);
+	mask = parts - 1;
+    }
+
+    private FrequencySketch getSketch (long fp) {
+	return sketches[(int)(fp >>> 40) & mask];
+    }
+
+    /** Count a lookup of the given key.
+     * @param fp the fingerprint of the key
+     */
+    public void record (long fp) {
+	FrequencySketch s = getSketch (fp);
+	synchronized (s) {
+	    s.increment (fp);
+	}
+    }
+
+    /** Get the estimated number of lookups of the given key.
+     * @param fp the fingerprint of the key
+     * @return the estimated frequency
+     */
+    public int frequency (long fp) {
+	FrequencySketch s = getSketch (fp);
+	synchronized (s) {
+	    return s.frequency (fp);
+	}
+    }
+
+    /** Check if a new resource should replace the eviction victim.
+     * @param candidate the fingerprint of the new resource
+     * @param victim the fingerprint of the entry that would be evicted
+     * @return true if the new resource should be cached
+     */
+    public boolean admit (long candidate, long victim) {
+	boolean ok = frequency (candidate) > frequency (victim);
+	synchronized (this) {
+	    if (ok)
+		admitted++;
+	    else
+		rejected++;
+	}
+	return ok;
+    }
+
+    /** Add the statistics of this filter to the given map.
+     * @param stats the Map to add the statistics to
+     */
+    public synchronized void addStatistics (Map<String, String> stats) {
+	stats.put ("Admission accepted", Long.toString (admitted));
+	stats.put ("Admission rejected", Long.toString (rejected));
+    }
+}
@@ -0,0 +1,87 @@
+package rabbit.cache.utils;
+
+/** An approximate counter of how often keys are seen.
+ *
+ *  This is a count-min sketch, every key is counted in four small
+ *  counters and the smallest of them is the frequency of the key.
+ *  Counters stop at 15 and all counters are halved at regular
+ *  intervals so that keys that were popular long ago are forgotten.
+ *
+ *  This class is not thread safe, the user has to synchronize.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class FrequencySketch {
+    /** The highest frequency that is counted. */
+    public static final int MAX_FREQUENCY = 15;
+    private static final long[] SEEDS = {
+	0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+	0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /** Create a new sketch.
+     * @param expectedKeys the number of keys that is expected to be
+     *        counted at the same time
+     */
+    public FrequencySketch (int expectedKeys) {
+	int size = 16;
+	while (size < expectedKeys && size < (1 << 30))
+	    size <<= 1;
+	table = new byte[size];
+	mask = size - 1;
+	sampleSize = 10 * size;
+    }
+
+    private int indexOf (long key, int i) {
+	long h = (key + i) * SEEDS[i];
+	h ^= h >>> 32;
+	return (int)h & mask;
+    }
+
+    /** Count one more use of the given key.
+     * @param key the key that was used
+     */
+    public void increment (long key) {
+	int min = frequency (key);
+	if (min == MAX_FREQUENCY)
+	    return;
+	// only increase the smallest counters, that gives less overcounting
+	for (int i = 0; i < SEEDS.length; i++) {
+	    int idx = indexOf (key, i);
+	    if (table[idx] == min)
+		table[idx]++;
+	}
+	if (++additions >= sampleSize)
+	    reset ();
+    }
+
+    /** Get the approximate number of times the key has been used.
+     * @param key the key to check
+     * @return the frequency of the key, at most MAX_FREQUENCY
+     */
+    public int frequency (long key) {
+	int min = MAX_FREQUENCY;
+	for (int i = 0; i < SEEDS.length; i++)
+	    min = Math.min (min, table[indexOf (key, i)]);
+	return min;
+    }
+
+    /** Halve all counters. */
+    private void reset () {
+	for (int i = 0; i < table.length; i++)
+	    table[i] >>= 1;
+	additions /= 2;
+    }
+
+    /** Forget all keys. */
+    public void clear () {
+	for (int i = 0; i < table.length; i++)
+	    table[i] = 0;
+	additions = 0;
+    }
+}
@@ -5,7 +5,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 import rabbit.http.HttpDateParser;
@@ -464,8 +463,7 @@ public class HttpBaseFilter implements HttpFilter {
 	if (d == null) {
 	    // ok, maybe we should check if there is an Age set
 	    // otherwise we can do like this.
-	    header.setHeader ("Date",
-			      HttpDateParser.getDateString (new Date ()));
+	    header.setHeader ("Date", HttpDateParser.getCurrentDateString ());
 	}
 
 	String cl = header.getHeader ("Content-Length");
@@ -7,13 +7,13 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
-import java.util.Date;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rabbit.cache.Cache;
 import rabbit.cache.CacheEntry;
 import rabbit.cache.CacheException;
+import rabbit.cache.CacheWriter;
 import rabbit.http.ContentRangeParser;
 import rabbit.http.HttpDateParser;
 import rabbit.http.HttpHeader;
@@ -30,7 +30,9 @@ import rabbit.io.BufferHandle;
 import rabbit.io.FileHelper;
 import rabbit.proxy.Connection;
 import rabbit.proxy.HttpProxy;
+import rabbit.proxy.MissCollapser;
 import rabbit.proxy.PartialCacher;
+import rabbit.proxy.Revalidator;
 import rabbit.proxy.TrafficLoggerHandler;
 import rabbit.util.SProperties;
 
@@ -58,6 +60,9 @@ public class BaseHandler
     protected CacheEntry<HttpHeader, HttpHeader> entry = null;
     /** The cache channel. */
     protected WritableByteChannel cacheChannel;
+    /** The queue that writes the cache channel in the background,
+     *  null if the cache channel is written directly. */
+    protected CacheWriter.Stream cacheQueue;
 
     /** May we cache this request. */
     protected boolean mayCache;
@@ -68,6 +73,9 @@ public class BaseHandler
     /** The total amount of data that we read. */
     protected long totalRead = 0;
 
+    /** The miss that other requests for this resource are waiting on. */
+    private MissCollapser.Miss miss;
+
     /** The flag for the last empty chunk */
     private boolean emptyChunkSent = false;
 
@@ -149,7 +157,9 @@ public class BaseHandler
 	try {
 	    HttpHeaderSender hhs =
 		new HttpHeaderSender (con.getChannel (), con.getNioHandler (),
-				      tlh.getClient (), response, false, this);
+				      tlh.getClient (),
+				      con.getProxy ().getBufferHandler (),
+				      response, false, this);
 	    hhs.sendHeader ();
 	} catch (IOException e) {
 	    failed (e);
@@ -219,7 +229,8 @@ public class BaseHandler
 	try {
 	    if (content != null)
 		content.release ();
-	    if (cacheChannel != null) {
+	    // the cache queue closes the channel when it has been written
+	    if (cacheChannel != null && cacheQueue == null) {
 		try {
 		    cacheChannel.close ();
 		} catch (IOException e) {
@@ -240,6 +251,8 @@ public class BaseHandler
 	    content = null;
 	    entry = null;
 	    cacheChannel = null;
+	    cacheQueue = null;
+	    miss = null;
 	}
 	// Not sure why we need this, seems to call finish multiple times.
 	if (con != null) {
@@ -253,23 +266,90 @@ public class BaseHandler
     }
 
     private void finishCache () {
-	if (entry == null || !mayCache)
+	if (entry == null || !mayCache) {
+	    if (cacheQueue != null)
+		cacheQueue.abort ();
+	    finishMiss (false);
 	    return;
-	Cache<HttpHeader, HttpHeader> cache = con.getProxy ().getCache ();
-	File entryName = cache.getEntryName (entry.getId (), false, null);
-	long filesize = entryName.length ();
+	}
+	final Cache<HttpHeader, HttpHeader> cache = con.getProxy ().getCache ();
+	long filesize;
+	if (cacheQueue != null) {
+	    filesize = cacheQueue.getSize ();
+	} else {
+	    File entryName = cache.getEntryName (entry.getId (), false, null);
+	    filesize = entryName.length ();
+	}
 	String cl = response.getHeader ("Content-Length");
 	if (cl == null) {
 	    response.removeHeader ("Transfer-Encoding");
 	    response.setHeader ("Content-Length", "" + filesize);
 	}
 	removePrivateParts (response);
+	if (cacheQueue != null) {
+	    // only add the entry once the file has been written.
+	    final CacheEntry<HttpHeader, HttpHeader> e = entry;
+	    final String uri = request.getRequestURI ();
+	    final MissCollapser.Miss m = miss;
+	    miss = null;
+	    cacheQueue.close (new CacheWriter.CloseListener () {
+		    public void committed () {
+			addEntry (cache, e, uri);
+			if (m != null)
+			    m.finished (true);
+		    }
+
+		    public void dropped () {
+			if (m != null)
+			    m.finished (false);
+		    }
+		});
+	} else {
+	    addEntry (cache, entry, request.getRequestURI ());
+	    finishMiss (true);
+	}
+    }
+
+    private void finishMiss (boolean ok) {
+	if (miss != null) {
+	    miss.finished (ok);
+	    miss = null;
+	}
+    }
+
+    /** Let the requests that wait for this resource read the cache
+     *  file as it is written, or tell them to get the resource
+     *  themselves if the cache file will not hold the resource as it
+     *  was received.
+     * @param entryName the cache file, null if no cache file is written
+     */
+    private void startMiss (File entryName) {
+	MissCollapser.Miss m = con.takeCollapsedMiss ();
+	if (m == null)
+	    return;
+	// the waiting requests may want other variants
+	if (entryName == null || cacheChannel == null || size <= 0
+	    || changesContentSize () || response.getHeader ("Vary") != null
+	    || !"200".equals (response.getStatusCode ())) {
+	    m.finished (false);
+	    return;
+	}
+	HttpHeader h = new HttpHeader ();
+	h.setStatusLine (response.getStatusLine ());
+	response.copyHeader (h);
+	removePrivateParts (h);
+	miss = m;
+	m.start (h, entryName, size);
+    }
+
+    private void addEntry (Cache<HttpHeader, HttpHeader> cache,
+			   CacheEntry<HttpHeader, HttpHeader> entry,
+			   String uri) {
 	try {
 	    cache.addEntry (entry);
 	} catch (CacheException e) {
 	    getLogger ().log (Level.WARNING, 
-			      "Failed to add cache entry: "  + 
-			      request.getRequestURI (),
+			      "Failed to add cache entry: "  + uri,
 			      e);
 	}
     }
@@ -285,6 +365,29 @@ public class BaseHandler
         return !(maxSize == 0 || (size > 0 && size > maxSize));
     }
 
+    /** Ask the cache if it wants the resource. Resources that are no
+     *  bigger than the admission threshold of their content type are
+     *  always cached.
+     * @return true if the current resource should be cached
+     */
+    protected boolean mayCacheFromAdmission () {
+	HttpProxy proxy = con.getProxy ();
+	String ct = response.getHeader ("Content-Type");
+	if (size >= 0
+	    && size <= proxy.getAdmissionThresholds ().getThreshold (ct))
+	    return true;
+	return proxy.getCache ().admit (request, size);
+    }
+
+    /** Check if the cache file may be written in the background.
+     *  Handlers that read the cache file themselves, once it has been
+     *  written, should return false.
+     * @return true
+     */
+    protected boolean mayWriteCacheAsync () {
+	return true;
+    }
+
     /** Check if this handler may force the cached resource to be
      *  less than the cache max size.
      * @return true
@@ -299,19 +402,21 @@ public class BaseHandler
     private void setCacheExpiry () {
 	String expires = response.getHeader ("Expires");
 	if (expires != null) {
-	    Date exp = HttpDateParser.getDate (expires);
+	    long exp = HttpDateParser.getTime (expires);
 	    // common case, handle it...
-	    if (exp == null && expires.equals ("0"))
-		exp = new Date (0);
-	    if (exp != null) {
+	    if (exp == -1 && expires.equals ("0"))
+		exp = 0;
+	    if (exp != -1) {
 		long now = System.currentTimeMillis ();
-		if (now > exp.getTime ()) {
+		if (now > exp) {
 		    getLogger ().config ("expire date in the past: '" +
 					 expires + "'");
 		    entry = null;
 		    return;
 		}
-		entry.setExpires (exp.getTime ());
+		// keep the entry while it may be used stale
+		Revalidator r = con.getProxy ().getRevalidator ();
+		entry.setExpires (exp + r.getStaleWhileRevalidate (response));
 	    } else {
 		getLogger ().config ("unable to parse expire date: '" +
 				     expires + "' for URI: '" +
@@ -385,10 +490,19 @@ public class BaseHandler
     /** Set up the cache stream if available.
      */
     protected void addCache () {
-	if (mayCache && mayCacheFromSize ()) {
+	File collapsed = null;
+	if (mayCache && mayCacheFromSize () && mayCacheFromAdmission ()) {
 	    Cache<HttpHeader, HttpHeader> cache = con.getProxy ().getCache ();
+	    HttpHeader key = con.getProxy ().getVaryIndex ().
+		getStoreKey (cache, request, response);
+	    if (key == null) {
+		getLogger ().config ("Response varies on everything, " +
+				     "will not cache");
+		startMiss (null);
+		return;
+	    }
 	    try {
-		entry = cache.newEntry (request);
+		entry = cache.newEntry (key);
 	    } catch (CacheException e) {
 		getLogger ().log (Level.WARNING,
 				  "Failed to create new entry for: " +
@@ -398,13 +512,14 @@ public class BaseHandler
 	    setCacheExpiry ();
 	    if (entry == null) {
 		getLogger ().config ("Expiry =< 0 set on entry, will not cache");
+		startMiss (null);
 		return;
 	    }
 	    File entryName = cache.getEntryName (entry.getId (), false, null);
 	    if (response.getStatusCode ().equals ("206")) {
 		CacheEntry<HttpHeader, HttpHeader> oldEntry = null;
 		try {
-		    oldEntry = cache.getEntry (request);
+		    oldEntry = cache.getEntry (key);
 		} catch (CacheException e) {
 		    getLogger ().log (Level.WARNING,
 				      "Failed to get old entry: " +
@@ -431,6 +546,10 @@ public class BaseHandler
 		       cache.getMaxSize ());
 		    */
 		    cacheChannel = cacheStream.getChannel ();
+		    if (mayWriteCacheAsync ())
+			cacheQueue = con.getProxy ().getCacheWriter ().
+			    open (cacheChannel, entryName);
+		    collapsed = entryName;
 		} catch (IOException e) {
 		    getLogger ().log (Level.WARNING,
 				      "Got IOException, not caching",
@@ -440,6 +559,7 @@ public class BaseHandler
 		}
 	    }
 	}
+	startMiss (collapsed);
     }
 
     /** Check if this handler supports direct transfers.
@@ -475,7 +595,6 @@ public class BaseHandler
     }
 
     protected void writeCache (ByteBuffer buf) throws IOException {
-	// TODO: another thread?
 	int currentPosition = buf.position ();
 	while (buf.hasRemaining ())
 	    cacheChannel.write (buf);
@@ -483,16 +602,38 @@ public class BaseHandler
 	tlh.getCache ().write (buf.remaining ());
     }
 
+    /** Queue the data of the given handle on the cache stream.
+     * @param bufHandle the data to cache
+     * @return the handle to send the data to the client from
+     */
+    protected BufferHandle queueCache (BufferHandle bufHandle) {
+	int len = bufHandle.getBuffer ().remaining ();
+	try {
+	    BufferHandle ret = cacheQueue.write (bufHandle);
+	    if (!cacheQueue.isDropped ())
+		tlh.getCache ().write (len);
+	    return ret;
+	} catch (RuntimeException e) {
+	    getLogger ().log (Level.WARNING,
+			      "Failed to queue cache data, not caching", e);
+	    removeCache ();
+	    return bufHandle;
+	}
+    }
+
     public void bufferRead (BufferHandle bufHandle) {
 	if (con == null) {
 	    // not sure why this can happen, client has closed connection.
 	    return;
 	}
 	try {
-	    // TODO: do this in another thread?
 	    ByteBuffer buffer = bufHandle.getBuffer ();
-	    if (cacheChannel != null)
+	    if (cacheQueue != null)
+		bufHandle = queueCache (bufHandle);
+	    else if (cacheChannel != null)
 		writeCache (buffer);
+	    if (miss != null)
+		miss.dataWritten ();
 	    totalRead += buffer.remaining ();
 	    BlockSender bs =
 		new BlockSender (con.getChannel (), con.getNioHandler (),
@@ -544,6 +685,15 @@ public class BaseHandler
     }
 
     protected void removeCache () {
+	finishMiss (false);
+	if (cacheQueue != null) {
+	    // the queue closes the channel and removes the file
+	    cacheQueue.abort ();
+	    cacheQueue = null;
+	    cacheChannel = null;
+	    entry = null;
+	    return;
+	}
 	if (cacheChannel != null) {
 	    try {
 		cacheChannel.close ();
@@ -139,6 +139,14 @@ public class ImageHandler extends BaseHandler {
 	}
     }
 
+    /** The image is converted from the cache file, so it has to be
+     *  written before the conversion starts.
+     * @return false
+     */
+    @Override protected boolean mayWriteCacheAsync () {
+	return false;
+    }
+
     /** Remove the cachestream and the cache entry.
      */
     @Override protected void removeCache () {
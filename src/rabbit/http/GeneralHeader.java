@@ -3,13 +3,21 @@ package rabbit.http;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import rabbit.io.Storable;
 
 /** A class to handle general headers.
+ *
+ *  The headers are kept in the order they were added. The first header
+ *  of each type is also kept in an index, a slot for each of the
+ *  known headers and a case insensitive map for the others, so that
+ *  finding a header does not need to look at all the headers.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
@@ -19,6 +27,12 @@ public class GeneralHeader implements Storable, Iterable<Header> {
      */
     protected final ArrayList<Header> headers = new ArrayList<Header> ();
 
+    /** The first header of each known type, indexed by its id. */
+    private Header[] known;
+
+    /** The first header of each type that is not known. */
+    private Map<String, Header> others;
+
     /** Create a new HTTPHeader from scratch
      */
     public GeneralHeader () {
@@ -26,7 +40,77 @@ public class GeneralHeader implements Storable, Iterable<Header> {
     }
 
     public Iterator<Header> iterator () {
-	return headers.iterator ();
+	final Iterator<Header> i = headers.iterator ();
+	return new Iterator<Header> () {
+	    private Header current;
+
+	    public boolean hasNext () {
+		return i.hasNext ();
+	    }
+
+	    public Header next () {
+		current = i.next ();
+		return current;
+	    }
+
+	    public void remove () {
+		i.remove ();
+		removed (current);
+	    }
+	};
+    }
+
+    /** Find the first header of a type.
+     * @param type the type of the header
+     * @param id the id of the type in KnownHeaders or -1
+     * @return the first header of the type or null
+     */
+    private Header getFirst (String type, int id) {
+	if (id >= 0)
+	    return known == null ? null : known[id];
+	return others == null ? null : others.get (type);
+    }
+
+    private void setFirst (String type, int id, Header h) {
+	if (id >= 0) {
+	    if (known == null) {
+		if (h == null)
+		    return;
+		known = new Header[KnownHeaders.COUNT];
+	    }
+	    known[id] = h;
+	} else if (h != null) {
+	    if (others == null)
+		others =
+		    new TreeMap<String, Header> (String.CASE_INSENSITIVE_ORDER);
+	    others.put (type, h);
+	} else if (others != null) {
+	    others.remove (type);
+	}
+    }
+
+    private static boolean isType (Header h, String type, int id) {
+	if (id >= 0)
+	    return h.getId () == id;
+	return h.getId () < 0 && h.getType ().equalsIgnoreCase (type);
+    }
+
+    /** Update the index after a header has been removed from the list.
+     */
+    private void removed (Header h) {
+	String type = h.getType ();
+	int id = h.getId ();
+	if (getFirst (type, id) != h)
+	    return;
+	int s = headers.size ();
+	for (int i = 0; i < s; i++) {
+	    Header n = headers.get (i);
+	    if (isType (n, type, id)) {
+		setFirst (type, id, n);
+		return;
+	    }
+	}
+	setFirst (type, id, null);
     }
 
     /** Get the number of headers set in this header.
@@ -60,34 +144,47 @@ public class GeneralHeader implements Storable, Iterable<Header> {
 	sb.append (Header.CRLF);
     }
 
+    /** Get the number of bytes that encode writes.
+     * @return the length of the header lines and the empty line
+     */
+    protected int getEncodedLength () {
+	int len = 2;
+	int hsize = headers.size ();
+	for (int i = 0; i < hsize; i++)
+	    len += headers.get (i).getEncodedLength ();
+	return len;
+    }
+
+    /** Write the header lines and the empty line that ends them to the
+     *  buffer. The buffer must have room for getEncodedLength bytes.
+     * @param buffer the ByteBuffer to write to
+     */
+    protected void encode (ByteBuffer buffer) {
+	int hsize = headers.size ();
+	for (int i = 0; i < hsize; i++)
+	    headers.get (i).encode (buffer);
+	buffer.put ((byte)'\r').put ((byte)'\n');
+    }
+
     /** get the value of header type
      * @param type the Header were intrested in.
      * @return the value of type or null if no value is set.
      */
     public String getHeader (String type) {
-	int s = headers.size ();
-	for (int i = 0; i < s; i++) {
-	    Header h = headers.get (i);
-	    if (h.getType ().equalsIgnoreCase (type))
-		return h.getValue ();
-	}
-	return null;
+	Header h = getFirst (type, KnownHeaders.getId (type));
+	return h == null ? null : h.getValue ();
     }
+
     /** Set or replaces a value for given type.
      * @param type the type or category that we want to set.
      * @param value the value we want to set
      */
     public void setHeader (String type, String value) {
-	int s = headers.size ();
-	for (int i = 0; i < s; i++) {
-	    Header h = headers.get (i);
-	    if (h.getType ().equalsIgnoreCase (type)) {
-		h.setValue (value);
-		return;
-	    }
-	}
-	Header h = new Header (type, value);
-	headers.add (h);
+	Header h = getFirst (type, KnownHeaders.getId (type));
+	if (h != null)
+	    h.setValue (value);
+	else
+	    addHeader (new Header (type, value));
     }
 
     /** Set a specified header
@@ -121,21 +218,52 @@ public class GeneralHeader implements Storable, Iterable<Header> {
      */
     public void addHeader (Header h) {
 	headers.add (h);
+	String type = h.getType ();
+	int id = h.getId ();
+	if (getFirst (type, id) == null)
+	    setFirst (type, id, h);
     }
 
     /** removes a headerline from this header
      * @param type the type we want to remove
      */
     public void removeHeader (String type) {
+	int id = KnownHeaders.getId (type);
+	if (getFirst (type, id) == null)
+	    return;
 	int s = headers.size ();
 	for (int i = 0; i < s; i++) {
 	    Header h = headers.get (i);
-	    if (h.getType ().equalsIgnoreCase (type)) {
+	    if (isType (h, type, id)) {
 		headers.remove (i);
 		i--;
 		s--;
 	    }
 	}
+	setFirst (type, id, null);
+    }
+
+    /** Remove all headers of the types in the given set and add the
+     *  headers of the set last, in one pass over the headers.
+     * @param set the HeaderSet to apply
+     */
+    void replaceHeaders (HeaderSet set) {
+	int s = headers.size ();
+	int j = 0;
+	for (int i = 0; i < s; i++) {
+	    Header h = headers.get (i);
+	    if (!set.replaces (h))
+		headers.set (j++, h);
+	}
+	if (j < s) {
+	    headers.subList (j, s).clear ();
+	    int n = set.getNumberOfTypes ();
+	    for (int i = 0; i < n; i++)
+		setFirst (set.getType (i), set.getId (i), null);
+	}
+	int n = set.getNumberOfHeaders ();
+	for (int i = 0; i < n; i++)
+	    addHeader (set.getHeader (i));
     }
 
     /** removes a header with the specified value
@@ -147,6 +275,7 @@ public class GeneralHeader implements Storable, Iterable<Header> {
 	    Header h = headers.get (i);
 	    if (h.getValue ().equals (value)) {
 		headers.remove (i);
+		removed (h);
 		return;
 	    }
 	}
@@ -157,11 +286,14 @@ public class GeneralHeader implements Storable, Iterable<Header> {
      * @return all the headers lines of this header
      */
     public List<String> getHeaders (String type) {
+	int id = KnownHeaders.getId (type);
+	if (getFirst (type, id) == null)
+	    return Collections.emptyList ();
 	List<String> ret = null;
 	int s = headers.size ();
 	for (int i = 0; i < s; i++) {
 	    Header h = headers.get (i);
-	    if (h.getType ().equalsIgnoreCase (type)) {
+	    if (isType (h, type, id)) {
 		if (ret == null)
 		    ret = new ArrayList<String> ();
 		ret.add (h.getValue ());
@@ -187,7 +319,7 @@ public class GeneralHeader implements Storable, Iterable<Header> {
 	for (int i = 0; i < s; i++) {
 	    Header h = new Header ();
 	    h.read (in);
-	    headers.add (h);
+	    addHeader (h);
 	}
     }
 
@@ -3,6 +3,8 @@ package rabbit.http;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import rabbit.io.Storable;
 import rabbit.util.StringCache;
 
@@ -13,7 +15,15 @@ import rabbit.util.StringCache;
  */
 public class Header implements Storable {
     private String type;
+    // the id of the type in KnownHeaders or -1
+    private int id = -1;
     private String value;
+    // the bytes of a value that has not been converted to a String yet
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    private static final Charset LATIN1 = Charset.forName ("ISO-8859-1");
 
     /** The String consisting of \r and \n */
     public static final String CRLF = "\r\n";
@@ -22,10 +32,57 @@ public class Header implements Storable {
     private static final StringCache stringCache =
 	StringCache.getSharedInstance ();
 
+    /** The headers whose values are seldom the same. */
+    public static final String DEFAULT_UNCACHED =
+	"Content-Length,Cookie,Set-Cookie,Set-Cookie2,ETag,If-None-Match," +
+	"If-Match,Authorization,Proxy-Authorization,Referer,Location," +
+	"Content-Location,Content-MD5,Content-Range,Range,Last-Modified," +
+	"Expires,Date,If-Modified-Since,If-Unmodified-Since," +
+	"X-Forwarded-For";
+
+    // the known headers whose values are not cached, by id
+    private static volatile boolean[] uncached =
+	getUncached (DEFAULT_UNCACHED);
+
     private static String getCachedString (String s) {
 	return stringCache.getCachedString (s);
     }
 
+    private static boolean[] getUncached (String types) {
+	boolean[] b = new boolean[KnownHeaders.COUNT];
+	for (String t : types.split (",")) {
+	    int id = KnownHeaders.getId (t.trim ());
+	    if (id >= 0)
+		b[id] = true;
+	}
+	return b;
+    }
+
+    /** Set the headers whose values should not be cached. Values that
+     *  are seldom the same, like cookies, only fill the string cache.
+     *  Only known headers can be given, values of other headers are
+     *  cached if they are short.
+     * @param types a comma separated list of header names
+     */
+    public static void setUncachedTypes (String types) {
+	uncached = getUncached (types);
+    }
+
+    private String getCachedType (String type) {
+	if (id >= 0) {
+	    String name = KnownHeaders.getName (id);
+	    if (name.equals (type))
+		return name;
+	}
+	return getCachedString (type);
+    }
+
+    private String getCachedValue (String value) {
+	if (id >= 0 && uncached[id])
+	    return value;
+	return getCachedString (value);
+    }
+
     /** Used for externalization. */
     public Header () {
 	// empty
@@ -36,8 +93,33 @@ public class Header implements Storable {
      * @param value the actual value
      */
     public Header (String type, String value) {
-	this.type = getCachedString (type);
-	this.value = getCachedString (value);
+	this.id = KnownHeaders.getId (type);
+	this.type = getCachedType (type);
+	this.value = getCachedValue (value);
+    }
+
+    /** Create a copy of a header.
+     * @param h the header to copy
+     */
+    Header (Header h) {
+	this.type = h.type;
+	this.id = h.id;
+	this.value = h.getValue ();
+    }
+
+    /** Create a new header with a value that is converted to a String
+     *  the first time it is used.
+     * @param type the type of this header, it is used as is
+     * @param data the bytes holding the value, they must not be changed
+     * @param offset the start of the value
+     * @param length the length of the value
+     */
+    public Header (String type, byte[] data, int offset, int length) {
+	this.type = type;
+	this.id = KnownHeaders.getId (type);
+	this.data = data;
+	this.offset = offset;
+	this.length = length;
     }
 
     /** Get the type of this header.
@@ -47,11 +129,24 @@ public class Header implements Storable {
 	return type;
     }
 
+    /** Get the id of the type of this header.
+     * @return the id from KnownHeaders or -1 if the type is not known
+     */
+    int getId () {
+	return id;
+    }
+
     /** Get the value of this header.
      * @return the value of this header
      */
     public String getValue () {
-	return value;
+	String v = value;
+	if (v == null && data != null) {
+	    // the data is never changed so many threads may do this
+	    v = new String (data, offset, length, LATIN1);
+	    value = v;
+	}
+	return v;
     }
 
     /** Set the value of this header to the new value given.
@@ -59,6 +154,47 @@ public class Header implements Storable {
      */
     public void setValue (String newValue) {
 	value = newValue;
+	data = null;
+    }
+
+    /** Get the number of bytes that encode writes.
+     * @return the length of the header line
+     */
+    int getEncodedLength () {
+	int l = type.length () + 4;
+	if (value == null && data != null)
+	    return l + length;
+	return l + String.valueOf (value).length ();
+    }
+
+    /** Write this header line to the buffer.
+     *  The buffer must have room for getEncodedLength bytes.
+     * @param buffer the ByteBuffer to write to
+     */
+    void encode (ByteBuffer buffer) {
+	if (id >= 0 && type == KnownHeaders.getName (id))
+	    buffer.put (KnownHeaders.getNameBytes (id));
+	else
+	    put (buffer, type);
+	buffer.put ((byte)':').put ((byte)' ');
+	String v = value;
+	if (v == null && data != null)
+	    buffer.put (data, offset, length);
+	else
+	    put (buffer, String.valueOf (v));
+	buffer.put ((byte)'\r').put ((byte)'\n');
+    }
+
+    /** Write a String to a buffer, one byte for each char.
+     *  Chars that do not fit in a byte are written as '?'.
+     * @param buffer the ByteBuffer to write to
+     * @param s the String to write
+     */
+    static void put (ByteBuffer buffer, String s) {
+	for (int i = 0, l = s.length (); i < l; i++) {
+	    char c = s.charAt (i);
+	    buffer.put (c < 256 ? (byte)c : (byte)'?');
+	}
     }
 
     @Override public boolean equals (Object o) {
@@ -76,17 +212,19 @@ public class Header implements Storable {
      * @param s the String to append to the current value
      */
     public void append (String s) {
-	value += CRLF + s;
-	value = getCachedString (value);
+	setValue (getValue () + CRLF + s);
     }
 
     public void write (DataOutput out) throws IOException {
 	out.writeUTF (type);
-	out.writeUTF (value);
+	out.writeUTF (getValue ());
     }
 
     public void read (DataInput in) throws IOException {
-	type = getCachedString (in.readUTF ());
-	value = getCachedString (in.readUTF ());
+	type = in.readUTF ();
+	id = KnownHeaders.getId (type);
+	type = getCachedType (type);
+	value = getCachedValue (in.readUTF ());
+	data = null;
     }
 }
@@ -0,0 +1,102 @@
+package rabbit.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** A fixed set of headers that replace all the headers of the same
+ *  types in a header.
+ *
+ *  The types and values are looked up once, when the set is created,
+ *  so applying the set is one pass over the headers followed by
+ *  copying the prepared headers.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HeaderSet {
+    // the headers to add
+    private final Header[] headers;
+    // all the types that are replaced or removed
+    private final String[] types;
+    private final int[] ids;
+    // the replaced known types, by id
+    private final boolean[] known = new boolean[KnownHeaders.COUNT];
+    // the replaced types that are not known
+    private final String[] others;
+
+    /** Create a new HeaderSet.
+     * @param values the header values, by type, an empty value means
+     *        that headers of the type are only removed
+     */
+    public HeaderSet (Map<String, String> values) {
+	List<Header> hs = new ArrayList<Header> ();
+	List<String> os = new ArrayList<String> ();
+	types = new String[values.size ()];
+	ids = new int[types.length];
+	int i = 0;
+	for (Map.Entry<String, String> me : values.entrySet ()) {
+	    String type = me.getKey ().trim ();
+	    String value = me.getValue ().trim ();
+	    Header h = new Header (type, value);
+	    types[i] = h.getType ();
+	    ids[i] = h.getId ();
+	    if (ids[i] >= 0)
+		known[ids[i]] = true;
+	    else
+		os.add (types[i]);
+	    if (!value.isEmpty ())
+		hs.add (h);
+	    i++;
+	}
+	headers = hs.toArray (new Header[hs.size ()]);
+	others = os.toArray (new String[os.size ()]);
+    }
+
+    /** Replace the headers of the types in this set.
+     * @param header the header to update
+     */
+    public void apply (GeneralHeader header) {
+	header.replaceHeaders (this);
+    }
+
+    /** Check if the given header is replaced by this set.
+     */
+    boolean replaces (Header h) {
+	int id = h.getId ();
+	if (id >= 0)
+	    return known[id];
+	for (String t : others)
+	    if (t.equalsIgnoreCase (h.getType ()))
+		return true;
+	return false;
+    }
+
+    int getNumberOfTypes () {
+	return types.length;
+    }
+
+    String getType (int i) {
+	return types[i];
+    }
+
+    int getId (int i) {
+	return ids[i];
+    }
+
+    int getNumberOfHeaders () {
+	return headers.length;
+    }
+
+    /** Get a new copy of one of the headers to add. */
+    Header getHeader (int i) {
+	return new Header (headers[i]);
+    }
+
+    @Override public String toString () {
+	StringBuilder sb = new StringBuilder ();
+	for (Header h : headers)
+	    sb.append (h.getType ()).append (": ").append (h.getValue ())
+		.append (Header.CRLF);
+	return sb.toString ();
+    }
+}
@@ -1,28 +1,44 @@
 package rabbit.http;
 
-import java.text.DateFormat;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
 /** A utility class that parses date in the http headers.
- *  A date in http may be written in many different formats so try 
+ *  A date in http may be written in many different formats so try
  *  them all.
  *
+ *  The dates are parsed and formatted by hand, in GMT, so no
+ *  DateFormat and no locking is needed. The date strings for the
+ *  current second are formatted once and shared.
+ *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 public class HttpDateParser {
-    private static final SimpleDateFormat sdf1 =
-    new SimpleDateFormat ("EE',' dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-    private static final SimpleDateFormat sdf2 =
-    new SimpleDateFormat ("EEEE, dd-MMM-yy HH:mm:ss 'GMT'", Locale.US);
-    private static final SimpleDateFormat sdf3 =
-    new SimpleDateFormat ("EE MMM d HH:mm:ss yyyy", Locale.US);
-    private static final SimpleDateFormat sdf4 = 
-    new SimpleDateFormat ("EE MMM  d HH:mm:ss yyyy", Locale.US);
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final String[] DAYS = {
+	"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"
+    };
+
+    private static final String[] MONTHS = {
+	"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+	"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    /** The date strings of one second. */
+    private static class Second {
+	private final long second;
+	private final String httpDate;
+	private final String logDate;
+
+	public Second (long second) {
+	    this.second = second;
+	    long time = second * 1000;
+	    httpDate = getDateString (time);
+	    logDate = getLogDateString (time);
+	}
+    }
 
-    private static long offset;
+    private static volatile Second current = new Second (0);
 
     /** The default constructor.
      */
@@ -32,48 +48,194 @@ public class HttpDateParser {
 
     /** Set the time offset relative GMT.
      * @param offset the time difference in millis
+     * @deprecated dates are parsed as GMT, so the offset is not used
      */
-    public static void setOffset (long offset) {
-	HttpDateParser.offset = offset;
+    @Deprecated public static void setOffset (long offset) {
+	// not needed
     }
 
-    /** Try to get a date from the given string. According to RFC 2068 
+    /** Try to get a date from the given string. According to RFC 2068
      *  We have to read 3 formats.
      * @param date the String we are trying to parse.
      * @return a Date or null if parsing was not possible.
      */
-    public static Date getDate (String date) {	
+    public static Date getDate (String date) {
+	long t = getTime (date);
+	return t == -1 ? null : new Date (t);
+    }
+
+    /** Try to get the time of the given date string. The date may be
+     *  in any of the three http formats:
+     *  <pre>
+     *  Sun, 06 Nov 1994 08:49:37 GMT
+     *  Sunday, 06-Nov-94 08:49:37 GMT
+     *  Sun Nov  6 08:49:37 1994
+     *  </pre>
+     * @param date the String we are trying to parse.
+     * @return the time in millis since the epoch or -1 if parsing
+     *         was not possible.
+     */
+    public static long getTime (String date) {
 	if (date == null)
-	    return null;
-
-	Date d = getDate (date, sdf1, offset);
-	if (d == null) {
-	    d = getDate (date, sdf2, offset);
-	    if (d == null) {
-		d = getDate (date, sdf3, offset);
-		if (d == null) {
-		    d = getDate (date, sdf4, offset);
-		}
-	    }
+	    return -1;
+	int l = date.length ();
+	int p = 0;
+	// the name of the day is not checked
+	while (p < l && isLetter (date.charAt (p)))
+	    p++;
+	if (p == 0 || p == l)
+	    return -1;
+	if (date.charAt (p) == ',')
+	    p++;
+	if (p == l || date.charAt (p) != ' ')
+	    return -1;
+	p++;
+	if (p == l)
+	    return -1;
+	int day, month, year, years, time;
+	if (isDigit (date.charAt (p))) {
+	    // "06 Nov 1994 08:49:37 GMT" or "06-Nov-94 08:49:37 GMT"
+	    day = getNumber (date, p, 2);
+	    if (day < 0)
+		return -1;
+	    p = day >>> 16;
+	    day &= 0xffff;
+	    if (p + 5 > l)
+		return -1;
+	    char sep = date.charAt (p);
+	    if ((sep != ' ' && sep != '-') || date.charAt (p + 4) != sep)
+		return -1;
+	    month = getMonth (date, p + 1);
+	    p += 5;
+	    year = getNumber (date, p, 4);
+	    if (month < 0 || year < 0)
+		return -1;
+	    years = (year >>> 16) - p;
+	    p = year >>> 16;
+	    year &= 0xffff;
+	    if (p == l || date.charAt (p) != ' ')
+		return -1;
+	    time = getTimeOfDay (date, p + 1);
+	    if (time < 0)
+		return -1;
+	    p = time >>> 17;
+	    if (!date.startsWith (" GMT", p) || p + 4 != l)
+		return -1;
+	} else {
+	    // "Nov  6 08:49:37 1994"
+	    month = getMonth (date, p);
+	    p += 3;
+	    if (month < 0 || p >= l || date.charAt (p) != ' ')
+		return -1;
+	    p++;
+	    if (p < l && date.charAt (p) == ' ')
+		p++;
+	    day = getNumber (date, p, 2);
+	    if (day < 0)
+		return -1;
+	    p = day >>> 16;
+	    day &= 0xffff;
+	    if (p == l || date.charAt (p) != ' ')
+		return -1;
+	    time = getTimeOfDay (date, p + 1);
+	    if (time < 0)
+		return -1;
+	    p = time >>> 17;
+	    if (p == l || date.charAt (p) != ' ')
+		return -1;
+	    p++;
+	    year = getNumber (date, p, 4);
+	    if (year < 0 || (year >>> 16) != l)
+		return -1;
+	    years = l - p;
+	    year &= 0xffff;
 	}
-	return d;
+	if (years == 2)
+	    year = getFullYear (year);
+	else if (years == 3)   // some servers send the years since 1900
+	    year += 1900;
+	int seconds = time & 0x1ffff;
+	return getDays (year, month + 1, day) * DAY + seconds * 1000L;
     }
 
-    private static Date getDate (String date, DateFormat sdf, long offsetUsed) {
-	try {
-	    ParsePosition pos = new ParsePosition (0);
-	    Date d;
-	    synchronized (sdf) {
-		d = sdf.parse (date, pos);
+    /** Parse "08:49:37" at the given position.
+     * @return the seconds of the day in the low 17 bits and the
+     *         position after the time in the high bits, or -1 if
+     *         there is no time
+     */
+    private static int getTimeOfDay (String s, int p) {
+	int seconds = 0;
+	for (int i = 0; i < 3; i++) {
+	    if (i > 0) {
+		if (p == s.length () || s.charAt (p) != ':')
+		    return -1;
+		p++;
 	    }
-	    if (pos.getIndex () == 0 || pos.getIndex () != date.length ())
-		return null;
-	    d.setTime (d.getTime () + offsetUsed);
-	    return d;
-	} catch (NumberFormatException e) {
-	    // ignore...
+	    int n = getNumber (s, p, 2);
+	    if (n < 0)
+		return -1;
+	    p = n >>> 16;
+	    seconds = seconds * 60 + (n & 0xffff);
 	}
-	return null;
+	if (seconds > 24 * 60 * 60)
+	    return -1;
+	return (p << 17) | seconds;
+    }
+
+    /** Parse a number of at most max digits.
+     * @return the number in the low 16 bits and the position after the
+     *         number in the high bits, or -1 if there is no number
+     */
+    private static int getNumber (String s, int p, int max) {
+	int l = Math.min (s.length (), p + max);
+	int n = 0;
+	int i = p;
+	for (; i < l && isDigit (s.charAt (i)); i++)
+	    n = n * 10 + s.charAt (i) - '0';
+	if (i == p)
+	    return -1;
+	return (i << 16) | n;
+    }
+
+    private static int getMonth (String s, int p) {
+	if (p + 3 > s.length ())
+	    return -1;
+	for (int i = 0; i < MONTHS.length; i++)
+	    if (s.regionMatches (true, p, MONTHS[i], 0, 3))
+		return i;
+	return -1;
+    }
+
+    private static boolean isLetter (char c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit (char c) {
+	return c >= '0' && c <= '9';
+    }
+
+    /** Get the year of a two digit year, a year that seems to be more
+     *  than 50 years in the future is in the past (RFC 7231).
+     */
+    private static int getFullYear (int year) {
+	long now = System.currentTimeMillis () / DAY;
+	int thisYear = (int)(1970 + now / 365.2425);
+	int y = thisYear - thisYear % 100 + year;
+	if (y > thisYear + 50)
+	    y -= 100;
+	return y;
+    }
+
+    /** Get the number of days since the epoch of a date, days past the
+     *  end of the month go on in the next month.
+     */
+    private static long getDays (long year, int month, int day) {
+	year -= month <= 2 ? 1 : 0;
+	long era = (year >= 0 ? year : year - 399) / 400;
+	long yoe = year - era * 400;
+	long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+	long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+	return era * 146097 + doe - 719468;
     }
 
     /** Get a String from the date.
@@ -81,9 +243,93 @@ public class HttpDateParser {
      * @return a String describing the date in the right way.
      */
     public static String getDateString (Date d) {
-	synchronized (sdf1) {
-	    return sdf1.format (d);
+	return getDateString (d.getTime ());
+    }
+
+    /** Get the http date string of the current time.
+     * @return the date string, like "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String getCurrentDateString () {
+	return getCurrentSecond ().httpDate;
+    }
+
+    /** Get the date string of the current time for access logs.
+     * @return the date string, like "06/Nov/1994:08:49:37 GMT"
+     */
+    public static String getCurrentLogDateString () {
+	return getCurrentSecond ().logDate;
+    }
+
+    private static Second getCurrentSecond () {
+	long now = System.currentTimeMillis () / 1000;
+	Second s = current;
+	if (s.second != now) {
+	    s = new Second (now);
+	    current = s;
 	}
+	return s;
+    }
+
+    /** Get the http date string of a time.
+     * @param time the time in millis since the epoch
+     * @return the date string, like "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String getDateString (long time) {
+	long days = floorDiv (time, DAY);
+	int[] ymd = getYearMonthDay (days);
+	StringBuilder sb = new StringBuilder (29);
+	sb.append (DAYS[(int)floorMod (days, 7)]).append (", ");
+	append2 (sb, ymd[2]).append (' ');
+	sb.append (MONTHS[ymd[1] - 1]).append (' ');
+	sb.append (ymd[0]).append (' ');
+	appendTime (sb, floorMod (time, DAY) / 1000);
+	return sb.append (" GMT").toString ();
+    }
+
+    private static String getLogDateString (long time) {
+	long days = floorDiv (time, DAY);
+	int[] ymd = getYearMonthDay (days);
+	StringBuilder sb = new StringBuilder (24);
+	append2 (sb, ymd[2]).append ('/');
+	sb.append (MONTHS[ymd[1] - 1]).append ('/');
+	sb.append (ymd[0]).append (':');
+	appendTime (sb, floorMod (time, DAY) / 1000);
+	return sb.append (" GMT").toString ();
+    }
+
+    private static void appendTime (StringBuilder sb, long seconds) {
+	int s = (int)seconds;
+	append2 (sb, s / 3600).append (':');
+	append2 (sb, s / 60 % 60).append (':');
+	append2 (sb, s % 60);
+    }
+
+    private static StringBuilder append2 (StringBuilder sb, int n) {
+	return sb.append ((char)('0' + n / 10)).append ((char)('0' + n % 10));
+    }
+
+    private static long floorDiv (long a, long b) {
+	long q = a / b;
+	return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod (long a, long b) {
+	return a - floorDiv (a, b) * b;
+    }
+
+    /** Get the year, month and day of the month of a day since the epoch.
+     */
+    private static int[] getYearMonthDay (long days) {
+	days += 719468;
+	long era = (days >= 0 ? days : days - 146096) / 146097;
+	long doe = days - era * 146097;
+	long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+	long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+	long mp = (5 * doy + 2) / 153;
+	int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+	int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+	int year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+	return new int[] { year, month, day };
     }
 
     private static void compare (String d1, String d2) {
@@ -112,7 +358,7 @@ public class HttpDateParser {
 
 	String d9 = "Sun, 09 Mar 2003 10:54:34 GMT";
 	String d10 = "Sun Mar  9 10:54:34 2003";
-	
+
 	Date date1 = getDate (d1);
 	System.out.println ("date1: " + date1);
 	Date date2 = getDate (d2);
@@ -125,8 +371,10 @@ public class HttpDateParser {
 	System.out.println ("date5: " + date5);
 	Date date6 = getDate (d6);
 	System.out.println ("date6: " + date6);
-	
+
 	compare (d7, d8);
 	compare (d9, d10);
+	System.out.println ("now: " + getCurrentDateString () + ", " +
+			    getCurrentLogDateString ());
     }
 }
@@ -3,7 +3,7 @@ package rabbit.http;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import rabbit.util.StringCache;
 
 /** A class to handle http headers.
@@ -38,20 +38,50 @@ public class HttpHeader extends GeneralHeader {
     }
 
     /** Convert this header to a byte[].
-     *  The header lines are converted to US-ASCII and any content is
+     *  The header lines are converted to bytes and any content is
      *  appended.
      * @return the content of this header
      */
     public byte[] getBytes () {
-	StringBuilder sb = new StringBuilder ();
-	sb.append (getRequestLine ());
-	sb.append (Header.CRLF);
-	super.fillBuffer (sb);
-	try {
-	    return sb.toString ().getBytes ("US-ASCII");
-	} catch (UnsupportedEncodingException e) {
-	    throw new RuntimeException ("Failed to find ascii", e);
+	byte[] b = new byte[getEncodedLength (requestURI)];
+	encode (ByteBuffer.wrap (b), requestURI);
+	return b;
+    }
+
+    /** Get the number of bytes that encode writes.
+     * @param uri the request uri to use in the request line
+     * @return the length of this header and its content
+     */
+    public int getEncodedLength (String uri) {
+	int len = method.length () + 1 + uri.length () + 2;
+	if (httpVersion != null)
+	    len += 1 + httpVersion.length ();
+	byte[] content = getContent ();
+	if (content != null)
+	    len += content.length;
+	return len + getEncodedLength ();
+    }
+
+    /** Write this header and any content to the buffer, each char is
+     *  written as one byte. The buffer must have room for
+     *  getEncodedLength bytes.
+     * @param buffer the ByteBuffer to write to
+     * @param uri the request uri to use in the request line, so that
+     *        the request uri of this header need not be changed
+     */
+    public void encode (ByteBuffer buffer, String uri) {
+	Header.put (buffer, method);
+	buffer.put ((byte)' ');
+	Header.put (buffer, uri);
+	if (httpVersion != null) {
+	    buffer.put ((byte)' ');
+	    Header.put (buffer, httpVersion);
 	}
+	buffer.put ((byte)'\r').put ((byte)'\n');
+	encode (buffer);
+	byte[] content = getContent ();
+	if (content != null)
+	    buffer.put (content);
     }
 
     /** Get the statusline of this header (only valid for responses).
@@ -92,15 +122,24 @@ public class HttpHeader extends GeneralHeader {
 	int s2 = line.indexOf (' ', s1+1);
 	method = getCachedString (line.substring(0,s1));
 	if (s2 > 0) {
-	    requestURI = getCachedString (line.substring (s1+1,s2));
+	    requestURI = getCachedURI (line.substring (s1+1,s2));
 	    httpVersion = getCachedString (line.substring (s2+1).trim ());
 	} else {
-	    requestURI = getCachedString (line.substring (s1+1));
+	    requestURI = getCachedURI (line.substring (s1+1));
 	    httpVersion = null;
 	}
 	hashCodeValue = getRequestURI ().toLowerCase ().hashCode ();
     }
 
+    /** Only cache the status code of responses, request uris are
+     *  seldom the same.
+     */
+    private String getCachedURI (String uri) {
+	if (method.startsWith ("HTTP/"))
+	    return getCachedString (uri);
+	return uri;
+    }
+
     /** Is this request for the head only?
      * @return true if this request is for HEAD, false otherwise
      */
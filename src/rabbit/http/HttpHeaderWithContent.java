@@ -21,16 +21,6 @@ public class HttpHeaderWithContent extends HttpHeader {
 	    sb.append (content);
     }
 
-    @Override public byte[] getBytes () {
-	byte[] header = super.getBytes ();
-	if (content == null)
-	    return header;
-	byte[] res = new byte[header.length + content.length];
-	System.arraycopy (header, 0, res, 0, header.length);
-	System.arraycopy (content, 0, res, header.length, content.length);
-	return res;
-    }
-
     /** Set the Content for the request/response
      *  Mostly not used for responses.
      *  As a side effect the &quot;Content-Length&quot; header is also set.
@@ -0,0 +1,151 @@
+package rabbit.http;
+
+import java.util.Arrays;
+
+/** The names of the common http headers.
+ *
+ *  Each known header name has a small number as its id. The names are
+ *  found, ignoring case, through a perfect hash table, so that a
+ *  lookup is one hash of the name and one compare. The table is built
+ *  when the class is loaded.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class KnownHeaders {
+    private static final String[] NAMES = {
+	"Host", "Connection", "Proxy-Connection", "Keep-Alive",
+	"Content-Length", "Content-Type", "Content-Encoding",
+	"Content-Range", "Content-Location", "Content-Language",
+	"Content-MD5", "Content-Disposition", "Transfer-Encoding", "TE",
+	"Trailer", "Upgrade", "Cache-Control", "Pragma", "Expires", "Date",
+	"Age", "ETag", "Last-Modified", "If-Modified-Since",
+	"If-Unmodified-Since", "If-None-Match", "If-Match", "If-Range",
+	"Range", "Accept", "Accept-Charset", "Accept-Encoding",
+	"Accept-Language", "Accept-Ranges", "Authorization",
+	"Proxy-Authorization", "Proxy-Authenticate", "WWW-Authenticate",
+	"Cookie", "Set-Cookie", "Set-Cookie2", "User-Agent", "Referer",
+	"Via", "Warning", "Vary", "Server", "Location", "Allow", "Expect",
+	"From", "Max-Forwards", "Retry-After", "Origin", "Link", "Public",
+	"Refresh", "X-Forwarded-For", "X-Requested-With", "DNT",
+	"Upgrade-Insecure-Requests", "Strict-Transport-Security",
+	"Access-Control-Allow-Origin", "Content-Security-Policy",
+	"X-Content-Type-Options", "X-Frame-Options", "X-XSS-Protection",
+	"P3P", "Alt-Svc", "RabbIT-Partial"
+    };
+
+    /** The number of known header names, the ids go from 0 to this. */
+    public static final int COUNT = NAMES.length;
+
+    private static final byte[][] BYTES = new byte[COUNT][];
+
+    private static final int[] table;
+    private static final int multiplier;
+    private static final int shift;
+
+    static {
+	int bits = 32 - Integer.numberOfLeadingZeros (COUNT) + 4;
+	int m = 0;
+	int[] t = null;
+	while (t == null) {
+	    for (int k = 0; k < 1 << 16 && t == null; k++) {
+		m = 0x9e3779b9 + 2 * k;
+		t = buildTable (m, bits);
+	    }
+	    if (t == null)
+		bits++;
+	}
+	table = t;
+	multiplier = m;
+	shift = 32 - bits;
+	for (int i = 0; i < COUNT; i++) {
+	    String n = NAMES[i];
+	    byte[] b = new byte[n.length ()];
+	    for (int j = 0; j < b.length; j++)
+		b[j] = (byte)n.charAt (j);
+	    BYTES[i] = b;
+	}
+    }
+
+    private KnownHeaders () {
+	// only static methods
+    }
+
+    private static int[] buildTable (int m, int bits) {
+	int[] t = new int[1 << bits];
+	Arrays.fill (t, -1);
+	for (int i = 0; i < COUNT; i++) {
+	    int slot = (hash (NAMES[i]) * m) >>> (32 - bits);
+	    if (t[slot] >= 0)
+		return null;
+	    t[slot] = i;
+	}
+	return t;
+    }
+
+    private static int lower (int c) {
+	return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int hash (String s) {
+	int h = 0;
+	for (int i = 0, l = s.length (); i < l; i++)
+	    h = 31 * h + lower (s.charAt (i));
+	return h;
+    }
+
+    /** Get the id of a header name.
+     * @param name the header name, in any case
+     * @return the id of the name or -1 if the name is not known
+     */
+    public static int getId (String name) {
+	int id = table[(hash (name) * multiplier) >>> shift];
+	if (id < 0)
+	    return -1;
+	String n = NAMES[id];
+	int l = n.length ();
+	if (name.length () != l)
+	    return -1;
+	for (int i = 0; i < l; i++)
+	    if (lower (name.charAt (i)) != lower (n.charAt (i)))
+		return -1;
+	return id;
+    }
+
+    /** Get the id of a header name.
+     * @param buf the bytes holding the header name, in any case
+     * @param off the start of the name
+     * @param len the length of the name
+     * @return the id of the name or -1 if the name is not known
+     */
+    public static int getId (byte[] buf, int off, int len) {
+	int h = 0;
+	for (int i = off, e = off + len; i < e; i++)
+	    h = 31 * h + lower (buf[i] & 0xff);
+	int id = table[(h * multiplier) >>> shift];
+	if (id < 0)
+	    return -1;
+	String n = NAMES[id];
+	if (n.length () != len)
+	    return -1;
+	for (int i = 0; i < len; i++)
+	    if (lower (buf[off + i] & 0xff) != lower (n.charAt (i)))
+		return -1;
+	return id;
+    }
+
+    /** Get the header name of an id.
+     * @param id the id of a known header
+     * @return the name of the header, in its common case
+     */
+    public static String getName (int id) {
+	return NAMES[id];
+    }
+
+    /** Get the bytes of the header name of an id.
+     * @param id the id of a known header
+     * @return the name in US-ASCII, the array must not be changed
+     */
+    static byte[] getNameBytes (int id) {
+	return BYTES[id];
+    }
+}
@@ -22,6 +22,11 @@ import rabbit.io.CacheBufferHandle;
  */
 public class FileResourceSource implements ResourceSource {    
     protected FileChannel fc;
+    /** The position of the resource in the channel. */
+    protected final long offset;
+    /** The size of the resource or -1 if it is all of the file. */
+    private final long size;
+    private long read = 0;
     
     // used for block handling.
     private BlockListener listener;
@@ -60,10 +65,32 @@ public class FileResourceSource implements ResourceSource {
 					     " is not a regular file");
 	FileInputStream fis = new FileInputStream (f);
 	fc = fis.getChannel ();
+	offset = 0;
+	size = -1;
 	this.nioHandler = nioHandler;
 	this.bufHandle = new CacheBufferHandle (bufHandler);
     }    
 
+    /** Create a new FileResourceSource for a part of a file.
+     * @param fc the channel to read from, will be closed on release
+     * @param offset the position of the resource in the channel
+     * @param size the size of the resource
+     * @param nioHandler the NioHandler to use for background tasks
+     * @param bufHandler the BufferHandler to use when reading and writing
+     * @throws IOException if the channel can not be positioned
+     */
+    public FileResourceSource (FileChannel fc, long offset, long size,
+			       NioHandler nioHandler, 
+			       BufferHandler bufHandler) 
+	throws IOException {
+	this.fc = fc;
+	this.offset = offset;
+	this.size = size;
+	fc.position (offset);
+	this.nioHandler = nioHandler;
+	this.bufHandle = new CacheBufferHandle (bufHandler);
+    }
+
     /** FileChannels can be used, will always return true.
      * @return true
      */
@@ -72,6 +99,8 @@ public class FileResourceSource implements ResourceSource {
     }
 
     public long length () {
+	if (size >= 0)
+	    return size;
 	try {
 	    return fc.size ();
 	} catch (IOException e) {
@@ -83,8 +112,10 @@ public class FileResourceSource implements ResourceSource {
     public long transferTo (long position, long count, 
 			    WritableByteChannel target)
 	throws IOException {
+	if (size >= 0)
+	    count = Math.min (count, size - position);
 	try {
-	    return fc.transferTo (position, count, target);
+	    return fc.transferTo (offset + position, count, target);
 	} catch (IOException e) {
 	    if ("Resource temporarily unavailable".equals (e.getMessage ())) {
 		// http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5103988
@@ -111,10 +142,20 @@ public class FileResourceSource implements ResourceSource {
 	public void run () {
 	    try {
 		ByteBuffer buffer = bufHandle.getBuffer ();
-		int read = fc.read (buffer);
-		if (read == -1) {
+		if (size >= 0) {
+		    if (read >= size) {
+			returnFinished ();
+			return;
+		    }
+		    long left = size - read;
+		    if (left < buffer.remaining ())
+			buffer.limit (buffer.position () + (int)left);
+		}
+		int got = fc.read (buffer);
+		if (got == -1) {
 		    returnFinished ();
 		} else {
+		    read += got;
 		    buffer.flip ();
 		    returnBlockRead ();
 		}
@@ -19,7 +19,7 @@ public class HttpHeaderReader extends BaseSocketHandler
     implements ReadHandler {
     
     private final HttpHeaderListener reader;
-    private final HttpHeaderParser headerParser;
+    private final HttpHeaderScanner headerParser;
 
     // State variables.
     private boolean keepalive = true;
@@ -47,7 +47,7 @@ public class HttpHeaderReader extends BaseSocketHandler
 			     HttpHeaderListener reader) {
 	super (channel, bh, nioHandler);
 	this.tl = tl;
-	headerParser = new HttpHeaderParser (request, strictHttp);
+	headerParser = new HttpHeaderScanner (request, strictHttp);
 	this.reader = reader;
     }
 
@@ -66,6 +66,36 @@ public class HttpHeaderReader extends BaseSocketHandler
 	}
     }
 
+    /** Try to read a http header from the data that is already in the
+     *  buffer, without waiting for more data from the channel.
+     * @return true if a full header was read and given to the listener,
+     *         false if the buffer does not hold a full and valid header,
+     *         the buffer is then left as it was
+     */
+    public boolean readBufferedHeader () {
+	headerParser.reset ();
+	if (getBufferHandle ().isEmpty ())
+	    return false;
+	ByteBuffer buffer = getBuffer ();
+	int pos = buffer.position ();
+	boolean done;
+	try {
+	    done = headerParser.handleBuffer (buffer);
+	} catch (BadHttpHeaderException e) {
+	    done = false;
+	}
+	if (!done) {
+	    buffer.position (pos);
+	    return false;
+	}
+	HttpHeader header = headerParser.getHeader ();
+	setState (header);
+	releaseBuffer ();
+	reader.httpHeaderRead (header, getBufferHandle (),
+			       keepalive, ischunked, dataSize);
+	return true;
+    }
+
     @Override public String getDescription () {
 	HttpHeader header = headerParser.getHeader ();
 	return "HttpHeaderReader: channel: " + getChannel () + 
@@ -0,0 +1,291 @@
+package rabbit.httpio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+import rabbit.http.Header;
+import rabbit.http.HttpHeader;
+import rabbit.http.KnownHeaders;
+import rabbit.util.StringCache;
+
+/** A parser of http headers that works on the bytes of the buffer.
+ *
+ *  This parser gives the same headers as the HttpHeaderParser, but
+ *  it finds the lines and the header names and values in the bytes
+ *  of the buffer instead of building a String for each line. Known
+ *  header names are replaced by their common name, and the values are
+ *  copied to a shared byte array and only made into Strings when they
+ *  are used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HttpHeaderScanner {
+    private static final int BLOCK_SIZE = 1024;
+    private static final Charset LATIN1 = Charset.forName ("ISO-8859-1");
+
+    private final boolean request;
+    private final boolean strictHttp;
+    private HttpHeader header;
+    private Header head = null;
+    private boolean append = false;
+    private boolean headerRead = false;
+    // the current line
+    private byte[] line = new byte[256];
+    // the values of the current header are copied here
+    private byte[] block;
+    private int blockPos;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    private static final StringCache stringCache =
+	StringCache.getSharedInstance ();
+
+    private static final byte[] HTTP_IDENTIFIER =
+    {(byte)'H', (byte)'T', (byte)'T', (byte)'P', (byte)'/'};
+
+    private static final byte[] EXTRA_LAST_CHUNK =
+    {(byte)'0', (byte)'\r', (byte)'\n', (byte)'\r', (byte)'\n'};
+
+    /** Create a new HttpHeaderScanner
+     * @param request if true try to read a request, if false try to
+     *        read a response
+     * @param strictHttp if true http headers will be strictly parsed,
+     *        if false http newlines may be single \n
+     */
+    public HttpHeaderScanner (boolean request, boolean strictHttp) {
+	this.request = request;
+	this.strictHttp = strictHttp;
+    }
+
+    /** Restore the parser to its initial state
+     */
+    public void reset () {
+	header = null;
+	head = null;
+	append = false;
+	headerRead = false;
+	block = null;
+	blockPos = 0;
+    }
+
+    /** Get the current header
+     * @return the header as it looks at this moment
+     */
+    public HttpHeader getHeader () {
+	return header;
+    }
+
+    /** Read the data from the buffer and try to build a http header.
+     *  The mark of the buffer is set after each line that is read.
+     * @param buffer the ByteBuffer to parse
+     * @return true if a full header was read, false if more data is needed.
+     */
+    public boolean handleBuffer (ByteBuffer buffer) {
+	if (!request && header == null && !verifyResponse (buffer))
+	    return true;
+	while (!headerRead && buffer.hasRemaining ()) {
+	    int start = buffer.position ();
+	    int limit = buffer.limit ();
+	    int eol = findLineEnd (buffer, start, limit);
+	    if (eol < 0) {
+		buffer.position (limit);
+		return false;
+	    }
+	    int end = eol;
+	    if (end > start && buffer.get (end - 1) == '\r')
+		end--;
+	    int len = end - start;
+	    if (line.length < len)
+		line = new byte[Math.max (len, line.length * 2)];
+	    buffer.get (line, 0, len);
+	    buffer.position (eol + 1);
+	    buffer.mark ();
+	    lineRead (len);
+	}
+	return headerRead;
+    }
+
+    /** Find the newline that ends the line that starts at the given
+     *  position.
+     * @return the position of the '\n' or -1 if the line is not complete
+     */
+    private int findLineEnd (ByteBuffer buffer, int start, int limit) {
+	for (int i = start; i < limit; i++) {
+	    if (buffer.get (i) == '\n'
+		&& (!strictHttp || (i > start && buffer.get (i - 1) == '\r')))
+		return i;
+	}
+	return -1;
+    }
+
+    /** Verify that the response starts with "HTTP/"
+     *  Failure to verify response means that we should treat all of data
+     *  as content, that is like HTTP/0.9.
+     *
+     * @param buffer the ByteBuffer to parse
+     * @return true if the response starts correctly
+     */
+    private boolean verifyResponse (ByteBuffer buffer) {
+	// some broken web servers (apache/2.0.4x) send multiple last-chunks
+	if (buffer.remaining () > 4 && matchBuffer (buffer, EXTRA_LAST_CHUNK)) {
+	    logger.warning ("Found a last-chunk, trying to ignore it.");
+	    buffer.position (buffer.position () + EXTRA_LAST_CHUNK.length);
+	    return verifyResponse (buffer);
+	}
+
+	if (buffer.remaining () > 4 && !matchBuffer (buffer, HTTP_IDENTIFIER)) {
+	    logger.warning ("http response header with odd start:" +
+			    getBufferStartString (buffer, 5));
+	    // Create a http/0.9 response...
+	    header = new HttpHeader ();
+	    return true;
+	}
+
+	return true;
+    }
+
+    private boolean matchBuffer (ByteBuffer buffer, byte[] test) {
+	int len = test.length;
+	if (buffer.remaining () < len)
+	    return false;
+	int pos = buffer.position ();
+	for (int i = 0; i < len; i++)
+	    if (buffer.get (pos + i) != test[i])
+		return false;
+	return true;
+    }
+
+    private String getBufferStartString (ByteBuffer buffer, int size) {
+	int pos = buffer.position ();
+	byte[] arr = new byte[size];
+	buffer.get (arr);
+	buffer.position (pos);
+	return new String (arr, LATIN1);
+    }
+
+    private String getString (int start, int end) {
+	return new String (line, start, end - start, LATIN1);
+    }
+
+    /** Handle a newly read line, the line is in the line array. */
+    private void lineRead (int len) {
+	if (len == 0) {
+	    headerRead = header != null;
+	    return;
+	}
+
+	if (header == null) {
+	    header = new HttpHeader ();
+	    header.setRequestLine (getString (0, len));
+	    headerRead = false;
+	    return;
+	}
+
+	if (header.isDot9Request ()) {
+	    headerRead = true;
+	    return;
+	}
+
+	byte c = line[0];
+	if (header.size () == 0 && (c == ' ' || c == '\t')) {
+	    header.setReasonPhrase (header.getReasonPhrase () +
+				    getString (0, len));
+	    headerRead = false;
+	    return;
+	}
+
+	readHeader (len);
+	headerRead = false;
+    }
+
+    private void readHeader (int len) {
+	byte c = line[0];
+	if (c == ' ' || c == '\t' || append) {
+	    if (head != null) {
+		head.append (getString (0, len));
+		append = checkQuotes (head.getValue ());
+	    } else {
+		String ex = "Malformed header: msg: " + getString (0, len);
+		throw (new BadHttpHeaderException (ex));
+	    }
+	    return;
+	}
+	int i = 0;
+	while (i < len && line[i] != ':')
+	    i++;
+	if (i == len) {
+	    String msg = getString (0, len);
+	    if ((c == 'h' || c == 'H')
+		&& msg.toLowerCase ().startsWith ("http/")) {
+		/* ignoring header since it looks
+		 * like a duplicate responseline
+		 */
+		return;
+	    }
+	    throw (new BadHttpHeaderException ("Malformed header:" + msg));
+	}
+	int j = i;
+	while (j > 0 && ((c = line[j - 1]) == ' ' || c == '\t'))
+	    j--;
+	String type;
+	int id = KnownHeaders.getId (line, 0, j);
+	if (id >= 0)
+	    type = KnownHeaders.getName (id);
+	else
+	    type = stringCache.getCachedString (getString (0, j));
+
+	int vs = i + 1;
+	int ve = len;
+	// Only check for quoted newlines in strict mode, since some sites
+	// send broken headers like: 'Cache-control: must-revalidate"'
+	if (strictHttp)
+	    append = checkQuotes (vs, ve);
+	if (!append) {
+	    // trim away whites, like String.trim does
+	    while (vs < ve && (line[vs] & 0xff) <= ' ')
+		vs++;
+	    while (ve > vs && (line[ve - 1] & 0xff) <= ' ')
+		ve--;
+	}
+	int vlen = ve - vs;
+	if (block == null || blockPos + vlen > block.length) {
+	    block = new byte[Math.max (BLOCK_SIZE, vlen)];
+	    blockPos = 0;
+	}
+	System.arraycopy (line, vs, block, blockPos, vlen);
+	head = new Header (type, block, blockPos, vlen);
+	blockPos += vlen;
+	header.addHeader (head);
+    }
+
+    private boolean checkQuotes (int start, int end) {
+	int q = start;
+	while (q < end && line[q] != '"')
+	    q++;
+	boolean halfquote = false;
+	for (; q < end; q++) {
+	    byte c = line[q];
+	    if (c == '\\')
+		q++;    // skip one...
+	    else if (c == '"')
+		halfquote = !halfquote;
+	}
+	return halfquote;
+    }
+
+    private boolean checkQuotes (String v) {
+	int q = v.indexOf ('"');
+	if (q == -1)
+	    return false;
+	boolean halfquote = false;
+	int l = v.length ();
+	for (; q < l; q++) {
+	    char c = v.charAt (q);
+	    if (c == '\\')
+		q++;    // skip one...
+	    else if (c == '"')
+		halfquote = !halfquote;
+	}
+	return halfquote;
+    }
+}
@@ -1,12 +1,13 @@
 package rabbit.httpio;
 
 import java.io.IOException;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import org.khelekore.rnio.BufferHandler;
 import org.khelekore.rnio.NioHandler;
 import rabbit.http.HttpHeader;
 import rabbit.io.BufferHandle;
+import rabbit.io.CacheBufferHandle;
 import rabbit.io.SimpleBufferHandle;
 import rabbit.util.TrafficLogger;
 
@@ -33,9 +34,29 @@ public class HttpHeaderSender implements BlockSentListener {
 			     TrafficLogger tl, HttpHeader header,
 			     boolean fullURI, HttpHeaderSentListener sender)
 	throws IOException {
+	this (channel, nioHandler, tl, null, header, fullURI, sender);
+    }
+
+    /**
+     * @param channel the SocketChannel to write the header to
+     * @param nioHandler the NioHandler to use to wait for write ready
+     * @param tl the statics gatherer to use
+     * @param bufHandler the BufferHandler to get the buffer to write the
+     *        header into from, may be null
+     * @param header the HttpHeader to send
+     * @param fullURI if false then try to change header.uri into just the file
+     * @param sender the listener that will be notified when the header has
+     *        been sent (or sending has failed
+     * @throws IOException if the header can not be converted to network data
+     */
+    public HttpHeaderSender (SocketChannel channel, NioHandler nioHandler,
+			     TrafficLogger tl, BufferHandler bufHandler,
+			     HttpHeader header, boolean fullURI,
+			     HttpHeaderSentListener sender)
+	throws IOException {
 	this.fullURI = fullURI;
 	this.sender = sender;
-	BufferHandle bh = new SimpleBufferHandle (getBuffer (header));
+	BufferHandle bh = getBuffer (bufHandler, header);
 	bs = new BlockSender (channel, nioHandler, tl, bh, false, this);
     }
 
@@ -45,22 +66,64 @@ public class HttpHeaderSender implements BlockSentListener {
 	bs.write ();
     }
 
-    private ByteBuffer getBuffer (HttpHeader header) throws IOException {
+    /** Write the header into a buffer from the buffer handler, or into
+     *  a new buffer if it does not fit in a large buffer.
+     */
+    private BufferHandle getBuffer (BufferHandler bufHandler,
+				    HttpHeader header) {
 	String uri = header.getRequestURI ();
-	try {
-	    if (header.isRequest () && !header.isSecure () &&
-		!fullURI && uri.charAt (0) != '/') {
-		URL url = new URL (uri);
-		String file = url.getFile ();
-		if (file.equals (""))
-		    file = "/";
-		header.setRequestURI (file);
+	if (header.isRequest () && !header.isSecure () &&
+	    !fullURI && uri.length () > 0 && uri.charAt (0) != '/')
+	    uri = getFile (uri);
+	int len = header.getEncodedLength (uri);
+	BufferHandle bh = null;
+	ByteBuffer buf = null;
+	if (bufHandler != null) {
+	    bh = new CacheBufferHandle (bufHandler);
+	    buf = bh.getBuffer ();
+	    if (buf.capacity () < len)
+		buf = bh.getLargeBuffer ();
+	    if (buf.capacity () < len) {
+		bufHandler.putBuffer (bh.detachBuffer ());
+		bh = null;
 	    }
-	    byte[] bytes = header.getBytes ();
- 	    return ByteBuffer.wrap (bytes);	    
-	} finally {
-	    header.setRequestURI (uri);
 	}
+	if (bh == null) {
+	    buf = ByteBuffer.allocate (len);
+	    bh = new SimpleBufferHandle (buf);
+	}
+	buf.clear ();
+	header.encode (buf, uri);
+	buf.flip ();
+	return bh;
+    }
+
+    /** Get the path and query of an absolute uri, like URL.getFile,
+     *  but without parsing the whole uri.
+     * @param uri the absolute uri
+     * @return the path and query of the uri or the uri itself if it is
+     *         not absolute
+     */
+    static String getFile (String uri) {
+	int i = uri.indexOf ("://");
+	if (i < 0)
+	    return uri;
+	int l = uri.length ();
+	int start = i + 3;
+	while (start < l) {
+	    char c = uri.charAt (start);
+	    if (c == '/' || c == '?' || c == '#')
+		break;
+	    start++;
+	}
+	int end = uri.indexOf ('#', start);
+	if (end < 0)
+	    end = l;
+	if (start == end)
+	    return "/";
+	if (uri.charAt (start) != '/')
+	    return "/" + uri.substring (start, end);
+	return uri.substring (start, end);
     }
 
     public void timeout () {
@@ -49,7 +49,7 @@ public class HttpResponseReader
 	this.bufHandler = bufHandler;
 	this.strictHttp = strictHttp;
 	this.listener = listener;
-	sender = new HttpHeaderSender (channel, nioHandler, tl, 
+	sender = new HttpHeaderSender (channel, nioHandler, tl, bufHandler,
 				       header, fullURI, this);
     }
 
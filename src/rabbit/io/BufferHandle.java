@@ -37,4 +37,13 @@ public interface BufferHandle {
      *                     if false the putBuffer call will throw an exception
      */
     void setMayBeFlushed (boolean mayBeFlushed);
+
+    /** Take the buffer out of this handle. The caller owns the buffer
+     *  and has to give it back to the BufferHandler it came from when
+     *  it is no longer used, this handle gets a new buffer the next
+     *  time one is asked for.
+     * @return the current buffer or null if this handle can not give
+     *         away its buffer
+     */
+    ByteBuffer detachBuffer ();
 }
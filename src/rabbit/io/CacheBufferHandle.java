@@ -57,6 +57,14 @@ public class CacheBufferHandle implements BufferHandle {
 	this.mayBeFlushed = mayBeFlushed;
     }
 
+    public synchronized ByteBuffer detachBuffer () {
+	if (!mayBeFlushed)
+	    return null;
+	ByteBuffer ret = buffer;
+	buffer = null;
+	return ret;
+    }
+
     @Override public String toString () {
 	return getClass ().getName () + "[buffer: " + buffer + 
 	    ", bh: " + bh + "}";
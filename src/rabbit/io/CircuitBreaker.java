@@ -0,0 +1,194 @@
+package rabbit.io;
+
+/** A circuit breaker for the connections to one host.
+ *
+ *  The breaker counts the connection attempts and the failed attempts
+ *  within a time window. When enough of the attempts fail the breaker
+ *  opens and no connections are tried for a while. After that one
+ *  attempt is let through as a probe, if it succeeds the breaker is
+ *  closed again, if it fails the breaker opens again.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CircuitBreaker {
+    /** The states of a circuit breaker. */
+    public enum State {
+	/** Connections are tried as usual. */
+	CLOSED,
+	/** Connections fail without being tried. */
+	OPEN,
+	/** One probe connection is being tried. */
+	HALF_OPEN
+    }
+
+    private final long window;
+    private final int minFailures;
+    private final int failureRate;
+    private final long openTime;
+
+    // all fields below are guarded by this
+    private State state = State.CLOSED;
+    private long windowStart;
+    private int attempts = 0;
+    private int failures = 0;
+    private long openedAt = 0;
+    private long probeStarted = 0;
+    private int timesOpened = 0;
+
+    /** Create a new closed CircuitBreaker.
+     * @param window the length of the window to count failures in,
+     *        in millis
+     * @param minFailures the number of failures in one window that is
+     *        needed to open the breaker
+     * @param failureRate the part, in percent, of the attempts that
+     *        has to fail for the breaker to open
+     * @param openTime the time to keep the breaker open, in millis
+     * @param now the current time
+     */
+    public CircuitBreaker (long window, int minFailures, int failureRate,
+			   long openTime, long now) {
+	this.window = window;
+	this.minFailures = minFailures;
+	this.failureRate = failureRate;
+	this.openTime = openTime;
+	windowStart = now;
+    }
+
+    /** Check if a connection may be tried.
+     *  An open breaker lets one probe through once it has been open
+     *  for the open time, and then lets no other connection through
+     *  until the probe is done.
+     * @param now the current time
+     * @return true if the connection may be tried
+     */
+    public synchronized boolean allowRequest (long now) {
+	switch (state) {
+	case OPEN:
+	    if (now - openedAt < openTime)
+		return false;
+	    state = State.HALF_OPEN;
+	    probeStarted = now;
+	    return true;
+	case HALF_OPEN:
+	    // a lost probe must not keep the breaker half open for ever
+	    if (now - probeStarted < openTime)
+		return false;
+	    probeStarted = now;
+	    return true;
+	default:
+	    return true;
+	}
+    }
+
+    /** Tell this breaker that a connection was made.
+     * @param now the current time
+     * @return true if this breaker is closed and has seen no failures
+     *         in the current window, so that it may be dropped
+     */
+    public synchronized boolean succeeded (long now) {
+	if (state != State.CLOSED) {
+	    state = State.CLOSED;
+	    attempts = 0;
+	    failures = 0;
+	    windowStart = now;
+	    return true;
+	}
+	roll (now);
+	attempts++;
+	return failures == 0;
+    }
+
+    /** Tell this breaker that a connection could not be made.
+     * @param now the current time
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean failed (long now) {
+	switch (state) {
+	case HALF_OPEN:
+	    open (now);
+	    return true;
+	case CLOSED:
+	    roll (now);
+	    attempts++;
+	    failures++;
+	    if (failures >= minFailures
+		&& failures * 100L >= attempts * (long)failureRate) {
+		open (now);
+		return true;
+	    }
+	    return false;
+	default:
+	    // already open
+	    return false;
+	}
+    }
+
+    /** Check if this breaker no longer knows anything useful about
+     *  its host, that is it is closed and its window has passed, or
+     *  it has been open, or waited for a probe, for a whole window
+     *  after its open time.
+     * @param now the current time
+     * @return true if this breaker may be dropped
+     */
+    public synchronized boolean isStale (long now) {
+	switch (state) {
+	case OPEN:
+	    return now - openedAt >= openTime + window;
+	case HALF_OPEN:
+	    return now - probeStarted >= openTime + window;
+	default:
+	    return now - windowStart >= window;
+	}
+    }
+
+    private void roll (long now) {
+	if (now - windowStart >= window) {
+	    windowStart = now;
+	    attempts = 0;
+	    failures = 0;
+	}
+    }
+
+    private void open (long now) {
+	state = State.OPEN;
+	openedAt = now;
+	attempts = 0;
+	failures = 0;
+	timesOpened++;
+    }
+
+    /** Get the current state of this breaker.
+     * @return the state
+     */
+    public synchronized State getState () {
+	return state;
+    }
+
+    /** Get the number of connection attempts in the current window.
+     * @return the number of attempts
+     */
+    public synchronized int getAttempts () {
+	return attempts;
+    }
+
+    /** Get the number of failed attempts in the current window.
+     * @return the number of failures
+     */
+    public synchronized int getFailures () {
+	return failures;
+    }
+
+    /** Get the time this breaker was last opened.
+     * @return the time in millis, 0 if it has never been opened
+     */
+    public synchronized long getOpenedAt () {
+	return openedAt;
+    }
+
+    /** Get the number of times this breaker has been opened.
+     * @return the number of times
+     */
+    public synchronized int getTimesOpened () {
+	return timesOpened;
+    }
+}
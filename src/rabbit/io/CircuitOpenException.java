@@ -0,0 +1,21 @@
+package rabbit.io;
+
+import java.net.ConnectException;
+
+/** Exception signaling that no connection was tried since connections
+ *  to the host have failed too often lately.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CircuitOpenException extends ConnectException {
+    /** Serial version.
+     */
+    public static final long serialVersionUID  = 1L;
+
+    /** Create a new CircuitOpenException.
+     * @param msg a descriptive error message
+     */
+    public CircuitOpenException (String msg) {
+	super (msg);
+    }
+}
@@ -51,6 +51,18 @@ public class ConnectionHandler {
     // the socket binder
     private SocketBinder socketBinder = new DefaultBinder ();
 
+    // The circuit breakers of the hosts that connections have failed to.
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers =
+	new ConcurrentHashMap<String, CircuitBreaker> ();
+
+    // the circuit breaker settings, times in miliseconds.
+    private long breakerWindow = 30000;
+    private int breakerMinFailures = 5;
+    private int breakerFailureRate = 50;
+    private long breakerOpenTime = 10000;
+    // the next time to drop the circuit breakers that are stale.
+    private volatile long nextBreakerSweep = 0;
+
     /** Create a new ConnectionHandler.
      * @param counter the Counter to update with statistics
      * @param proxyChain the ProxyChain to use when doing dns lookups
@@ -96,6 +108,13 @@ public class ConnectionHandler {
 	return ret;
     }
 
+    /** Get a copy of the current circuit breakers.
+     * @return the circuit breakers for each host and port
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers () {
+	return new HashMap<String, CircuitBreaker> (breakers);
+    }
+
     /** Get a WebConnection for the given header.
      * @param header the HttpHeader containing the URL to connect to.
      * @param wcl the Listener that wants the connection.
@@ -115,18 +134,89 @@ public class ConnectionHandler {
 	int port = url.getPort () > 0 ? url.getPort () : 80;
 	final int rport = resolver.getConnectPort (port);
 
+	String host = url.getHost ().toLowerCase () + ":" + port;
+	CircuitBreaker cb = breakers.get (host);
+	if (cb != null && !cb.allowRequest (System.currentTimeMillis ())) {
+	    counter.inc ("WebConnections refused by circuit breaker");
+	    wcl.failed (new CircuitOpenException ("Connections to " + host +
+						  " fail, not trying"));
+	    return;
+	}
+	final WebConnectionListener bl = new BreakerListener (host, wcl);
 	resolver.getInetAddress (url, new InetAddressListener () {
 		public void lookupDone (InetAddress ia) {
 		    Address a = new Address (ia, rport);
-		    getConnection (header, wcl, a);
+		    getConnection (header, bl, a);
 		}
 
 		public void unknownHost (Exception e) {
-		    wcl.failed (e);
+		    bl.failed (e);
 		}
 	    });
     }
 
+    /** A listener that updates the circuit breaker of the host. */
+    private class BreakerListener implements WebConnectionListener {
+	private final String host;
+	private final WebConnectionListener wcl;
+
+	public BreakerListener (String host, WebConnectionListener wcl) {
+	    this.host = host;
+	    this.wcl = wcl;
+	}
+
+	public void connectionEstablished (WebConnection wc) {
+	    CircuitBreaker cb = breakers.get (host);
+	    if (cb != null && cb.succeeded (System.currentTimeMillis ()))
+		breakers.remove (host, cb);
+	    wcl.connectionEstablished (wc);
+	}
+
+	public void timeout () {
+	    connectionFailed ();
+	    wcl.timeout ();
+	}
+
+	public void failed (Exception e) {
+	    connectionFailed ();
+	    wcl.failed (e);
+	}
+
+	private void connectionFailed () {
+	    long now = System.currentTimeMillis ();
+	    sweepBreakers (now);
+	    CircuitBreaker cb = breakers.get (host);
+	    if (cb == null) {
+		CircuitBreaker n =
+		    new CircuitBreaker (breakerWindow, breakerMinFailures,
+					breakerFailureRate, breakerOpenTime,
+					now);
+		cb = breakers.putIfAbsent (host, n);
+		if (cb == null)
+		    cb = n;
+	    }
+	    if (cb.failed (now))
+		logger.info ("Connections to " + host + " fail, opening " +
+			     "circuit breaker for " + breakerOpenTime / 1000 +
+			     " s");
+	}
+    }
+
+    /** Drop the circuit breakers of the hosts that have not failed for
+     *  a while, so that hosts that fail once and are never tried again
+     *  are not remembered for ever.
+     */
+    private void sweepBreakers (long now) {
+	if (now < nextBreakerSweep)
+	    return;
+	nextBreakerSweep = now + breakerWindow;
+	for (Map.Entry<String, CircuitBreaker> me : breakers.entrySet ()) {
+	    CircuitBreaker cb = me.getValue ();
+	    if (cb.isStale (now))
+		breakers.remove (me.getKey (), cb);
+	}
+    }
+
     private SocketBinder getSocketBinder () {
 	return socketBinder;
     }
@@ -313,6 +403,17 @@ public class ConnectionHandler {
 	}
     }
     
+    private int getInt (SProperties config, String key, int def) {
+	String s = config.getProperty (key, Integer.toString (def));
+	try {
+	    return Math.max (1, Integer.parseInt (s.trim ()));
+	} catch (NumberFormatException e) {
+	    logger.warning ("Bad number for ConnectionHandler " + key +
+			    ": '" + s + "'");
+	    return def;
+	}
+    }
+
     /** Configure this ConnectionHandler using the given properties.
      * @param config the properties to read the configuration from
      */
@@ -332,6 +433,11 @@ public class ConnectionHandler {
 	    up = "true";
 	usePipelining = up.equalsIgnoreCase ("true");
 
+	breakerWindow = getInt (config, "circuit_window", 30) * 1000L;
+	breakerMinFailures = getInt (config, "circuit_min_failures", 5);
+	breakerFailureRate = getInt (config, "circuit_failure_rate", 50);
+	breakerOpenTime = getInt (config, "circuit_open_time", 10) * 1000L;
+
 	String bindIP = config.getProperty ("bind_ip");
 	if (bindIP != null) {
 	    try {
@@ -40,4 +40,11 @@ public class SimpleBufferHandle implements BufferHandle {
     public void setMayBeFlushed (boolean mayBeFlushed) {
 	// ignore
     }
+
+    /** The wrapped buffer belongs to someone else.
+     * @return null
+     */
+    public ByteBuffer detachBuffer () {
+	return null;
+    }
 }
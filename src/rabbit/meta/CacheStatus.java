@@ -3,6 +3,7 @@ package rabbit.meta;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.logging.Level;
 import rabbit.cache.Cache;
 import rabbit.cache.CacheConfiguration;
@@ -44,6 +45,14 @@ public class CacheStatus extends BaseMetaHandler {
 	sb.append (" bytes).<br>\nMax Size: ").append (maxsizemb);
 	sb.append (" MB.<br>\nCachetime: ").append (cachetimeh);
 	sb.append (" hours.<br>\n");
+	addStatistics (sb, cache.getStatistics ());
+	addStatistics (sb, con.getProxy ().getMemoryTier ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getCacheWriter ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getMissCollapser ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getRevalidator ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getVaryIndex ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getNegativeCache ().getStatistics ());
+	addStatistics (sb, con.getProxy ().getHeaderProfiles ().getStatistics ());
 	sb.append ("<br>Partial listing of contents in cache, " + 
 		   "select entryset:<br>\n");	
 
@@ -51,6 +60,20 @@ public class CacheStatus extends BaseMetaHandler {
 	addEntries (sb, cache);
     }
 
+    private void addStatistics (StringBuilder sb, Map<String, String> stats) {
+	if (stats.isEmpty ())
+	    return;
+	sb.append (HtmlPage.getTableHeader (50, 1));
+	sb.append (HtmlPage.getTableTopicRow ());
+	sb.append ("<th>Statistic</th><th>Value</th></tr>\n");
+	for (Map.Entry<String, String> me : stats.entrySet ()) {
+	    sb.append ("<tr><td>").append (me.getKey ());
+	    sb.append ("</td><td align=\"right\">").append (me.getValue ());
+	    sb.append ("</td></tr>\n");
+	}
+	sb.append ("</table>\n");
+    }
+
     private void addPartSelection (StringBuilder sb, 
 				   Cache<HttpHeader, HttpHeader> cache) {
 	long entries = cache.getNumberOfEntries ();
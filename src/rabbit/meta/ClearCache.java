@@ -27,6 +27,7 @@ public class ClearCache extends BaseMetaHandler {
 	Cache<HttpHeader, HttpHeader> cache = con.getProxy ().getCache ();
 	try {
 	    cache.clear ();
+	    con.getProxy ().getMemoryTier ().clear ();
 	    sb.append ("<font color=\"blue\">done!</font>\n");
 	} catch (CacheException e) {
 	    failed (e);
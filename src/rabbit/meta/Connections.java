@@ -3,12 +3,14 @@ package rabbit.meta;
 import java.util.List;
 import java.util.Map;
 import rabbit.io.Address;
+import rabbit.io.CircuitBreaker;
 import rabbit.io.ConnectionHandler;
 import rabbit.io.WebConnection;
 import rabbit.proxy.HtmlPage;
 import rabbit.proxy.HttpProxy;
 
-/** A page that shows the currently open web connections.
+/** A page that shows the currently open web connections and the
+ *  circuit breakers of the hosts that connections have failed to.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
@@ -59,5 +61,35 @@ public class Connections extends BaseMetaHandler {
 	// TODO: not implemented yet
 
 	sb.append ("</table>\n");
+	addCircuitBreakers (sb, ch);
+    }
+
+    private void addCircuitBreakers (StringBuilder sb, ConnectionHandler ch) {
+	long now = System.currentTimeMillis ();
+	sb.append ("<P><H1>Circuit breakers</H1></P>\n");
+	sb.append (HtmlPage.getTableHeader (100, 1));
+	sb.append (HtmlPage.getTableTopicRow ());
+	sb.append ("<th width=\"30%\">Host</th>");
+	sb.append ("<th width=\"15%\">State</th>");
+	sb.append ("<th width=\"15%\">Failures</th>");
+	sb.append ("<th width=\"15%\">Attempts</th>");
+	sb.append ("<th width=\"10%\">Times opened</th>");
+	sb.append ("<th width=\"15%\">Opened</th>\n");
+
+	Map<String, CircuitBreaker> m = ch.getCircuitBreakers ();
+	for (Map.Entry<String, CircuitBreaker> me : m.entrySet ()) {
+	    CircuitBreaker cb = me.getValue ();
+	    long opened = cb.getOpenedAt ();
+	    sb.append ("<tr><td>").append (me.getKey ());
+	    sb.append ("</td><td>").append (cb.getState ());
+	    sb.append ("</td><td>").append (cb.getFailures ());
+	    sb.append ("</td><td>").append (cb.getAttempts ());
+	    sb.append ("</td><td>").append (cb.getTimesOpened ());
+	    sb.append ("</td><td>");
+	    if (opened > 0)
+		sb.append ((now - opened) / 1000).append (" s ago");
+	    sb.append ("</td></tr>\n");
+	}
+	sb.append ("</table>\n");
     }
 }
@@ -5,7 +5,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.khelekore.rnio.impl.Closer;
@@ -68,10 +67,8 @@ public class FileSender implements MetaHandler, HttpHeaderSentListener {
 	length = fle.length ();
 	response.setHeader ("Content-Length", Long.toString (length));
 	con.setContentLength (response.getHeader ("Content-Length"));
-	Date lm = new Date (fle.lastModified () -
-			    con.getProxy ().getOffset ());
 	response.setHeader ("Last-Modified",
-			    HttpDateParser.getDateString (lm));
+			    HttpDateParser.getDateString (fle.lastModified ()));
 	try {
 	    fis = new FileInputStream (filename);
 	} catch (IOException e) {
@@ -98,7 +95,8 @@ public class FileSender implements MetaHandler, HttpHeaderSentListener {
 	throws IOException {
 	HttpHeaderSender hhs =
 	    new HttpHeaderSender (con.getChannel (), con.getNioHandler (),
-				  tlClient, header, true, this);
+				  tlClient, con.getProxy ().getBufferHandler (),
+				  header, true, this);
 	hhs.sendHeader ();
     }
 
@@ -0,0 +1,72 @@
+package rabbit.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/** The sizes, per content type, up to which resources are always
+ *  cached without asking the admission filter of the cache.
+ *
+ *  The thresholds are given as a comma separated list of
+ *  "content type:size in kB", where the content type may be a full
+ *  type like "text/css", a type like "image/*" or "*" for everything.
+ *  The most specific match is used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class AdmissionThresholds {
+    private final Map<String, Long> thresholds = new HashMap<String, Long> ();
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    /** Create new thresholds.
+     * @param config the list of thresholds, may be null
+     */
+    public AdmissionThresholds (String config) {
+	if (config == null)
+	    return;
+	for (String part : config.split (",")) {
+	    part = part.trim ();
+	    if (part.length () == 0)
+		continue;
+	    int i = part.lastIndexOf (':');
+	    if (i < 0) {
+		logger.warning ("Bad admission threshold: '" + part + "'");
+		continue;
+	    }
+	    String type = part.substring (0, i).trim ().toLowerCase ();
+	    try {
+		long size = Long.parseLong (part.substring (i + 1).trim ());
+		thresholds.put (type, size * 1024);
+	    } catch (NumberFormatException e) {
+		logger.warning ("Bad admission threshold: '" + part + "'");
+	    }
+	}
+    }
+
+    /** Get the size up to which resources are always cached.
+     * @param contentType the Content-Type of the resource, may be null
+     * @return the threshold in bytes, 0 if there is none
+     */
+    public long getThreshold (String contentType) {
+	if (thresholds.isEmpty ())
+	    return 0;
+	if (contentType != null) {
+	    String type = contentType.toLowerCase ();
+	    int i = type.indexOf (';');
+	    if (i >= 0)
+		type = type.substring (0, i);
+	    type = type.trim ();
+	    Long l = thresholds.get (type);
+	    if (l != null)
+		return l;
+	    i = type.indexOf ('/');
+	    if (i >= 0) {
+		l = thresholds.get (type.substring (0, i) + "/*");
+		if (l != null)
+		    return l;
+	    }
+	}
+	Long l = thresholds.get ("*");
+	return l != null ? l : 0;
+    }
+}
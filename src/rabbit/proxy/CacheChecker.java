@@ -4,7 +4,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rabbit.cache.Cache;
@@ -80,6 +79,9 @@ class CacheChecker {
 				     HttpHeader header,
 				     RequestHandler rh) {
 	con.getCounter ().inc ("Cache hits");
+	HeaderProfile hp = con.getHeaderProfile ();
+	if (hp != null)
+	    hp.cacheHit ();
 	con.setKeepalive (true);
 	HttpHeader resp = checkIfMatch (con, header, rh);
 	if (resp == null) {
@@ -127,31 +129,22 @@ class CacheChecker {
 	    if (!ETagUtils.checkWeakEtag (inm, etag))
 		return false;
 	}
-	Date dm = null;
+	// a date that can not be parsed means that its condition is ignored
+	long dm = -1;
+	String lm = webheader.getHeader ("Last-Modified");
+	if (lm != null)
+	    dm = HttpDateParser.getTime (lm);
 	String sims = header.getHeader ("If-Modified-Since");
-	if (sims != null) {
-	    Date ims = HttpDateParser.getDate (sims);
-	    String lm = webheader.getHeader ("Last-Modified");
-	    if (lm != null) {
-		dm = HttpDateParser.getDate (lm);
-		if (dm.getTime () - ims.getTime () < 60000) //dm.after (ims))
-		    return false;
-	    }
+	if (sims != null && dm != -1) {
+	    long ims = HttpDateParser.getTime (sims);
+	    if (ims != -1 && dm - ims < 60000) //dm.after (ims))
+		return false;
 	}
 	String sums = header.getHeader ("If-Unmodified-Since");
-	if (sums != null) {
-	    Date ums = HttpDateParser.getDate (sums);
-	    if (dm != null) {
-		if (dm.after (ums))
-		    return false;
-	    } else {
-		String lm = webheader.getHeader ("Last-Modified");
-		if (lm != null) {
-		    dm = HttpDateParser.getDate (lm);
-		    if (dm.after (ums))
-			return false;
-		}
-	    }
+	if (sums != null && dm != -1) {
+	    long ums = HttpDateParser.getTime (sums);
+	    if (ums != -1 && dm > ums)
+		return false;
 	}
 	return true;
     }
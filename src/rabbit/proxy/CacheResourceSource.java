@@ -5,6 +5,7 @@ import org.khelekore.rnio.BufferHandler;
 import org.khelekore.rnio.NioHandler;
 import rabbit.cache.Cache;
 import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheRegion;
 import rabbit.http.HttpHeader;
 import rabbit.httpio.FileResourceSource;
 
@@ -26,6 +27,13 @@ public class CacheResourceSource extends FileResourceSource {
 				CacheEntry<HttpHeader, HttpHeader> entry, 
 				NioHandler tr, BufferHandler bufHandler) 
 	throws IOException {
-	super (cache.getEntryName (entry.getId (), true, null), tr, bufHandler);
+	this (cache.getRegion (entry), tr, bufHandler);
+    }
+
+    private CacheResourceSource (CacheRegion region, NioHandler tr,
+				 BufferHandler bufHandler) 
+	throws IOException {
+	super (region.getChannel (), region.getOffset (), region.getLength (),
+	       tr, bufHandler);
     }
 }
@@ -0,0 +1,152 @@
+package rabbit.proxy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Logger;
+import org.khelekore.rnio.BufferHandler;
+import org.khelekore.rnio.NioHandler;
+import org.khelekore.rnio.TaskIdentifier;
+import org.khelekore.rnio.impl.Closer;
+import org.khelekore.rnio.impl.DefaultTaskIdentifier;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.io.BufferHandle;
+import rabbit.io.CacheBufferHandle;
+
+/** A resource that is read from a cache file while another request
+ *  is writing it.
+ *
+ *  When all written data has been read the source waits for the
+ *  writer to hand over more data or to finish. If the writer fails or
+ *  writes nothing for the collapse timeout the read fails, so that the
+ *  client connection is closed rather than left waiting.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CollapsedResourceSource implements ResourceSource {
+    private final MissCollapser.Miss miss;
+    private final FileChannel fc;
+    private final long size;
+    private NioHandler nioHandler;
+    private BufferHandle bufHandle;
+    private BlockListener listener;
+    private long read = 0;
+    private final Runnable reader = new Runnable () {
+	    public void run () {
+		readBlock ();
+	    }
+	};
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    /** Create a new CollapsedResourceSource.
+     * @param miss the miss that is being written
+     * @param nioHandler the NioHandler to use for background tasks
+     * @param bufHandler the BufferHandler to get buffers from
+     * @throws IOException if the cache file can not be opened
+     */
+    public CollapsedResourceSource (MissCollapser.Miss miss,
+				    NioHandler nioHandler,
+				    BufferHandler bufHandler)
+	throws IOException {
+	this.miss = miss;
+	this.nioHandler = nioHandler;
+	this.bufHandle = new CacheBufferHandle (bufHandler);
+	FileInputStream fis = new FileInputStream (miss.getFile ());
+	fc = fis.getChannel ();
+	size = miss.getSize ();
+    }
+
+    /** The file is still growing so it can not be transferred.
+     * @return false
+     */
+    public boolean supportsTransfer () {
+	return false;
+    }
+
+    public long length () {
+	return size;
+    }
+
+    public long transferTo (long position, long count,
+			    WritableByteChannel target)
+	throws IOException {
+	throw new IllegalStateException ("transferTo can not be used");
+    }
+
+    public void addBlockListener (BlockListener listener) {
+	this.listener = listener;
+	// Get buffer on selector thread.
+	bufHandle.getBuffer ();
+	readBlock ();
+    }
+
+    private synchronized void readBlock () {
+	if (nioHandler == null)
+	    return;
+	TaskIdentifier ti =
+	    new DefaultTaskIdentifier (getClass ().getSimpleName (),
+				       "readBlock: " + miss.getFile ());
+	nioHandler.runThreadTask (new ReadBlock (), ti);
+    }
+
+    private class ReadBlock implements Runnable {
+	public void run () {
+	    BlockListener bl;
+	    synchronized (CollapsedResourceSource.this) {
+		bl = listener;
+	    }
+	    if (bl == null)
+		return;
+	    try {
+		if (read >= size) {
+		    bufHandle.possiblyFlush ();
+		    bl.finishedRead ();
+		    return;
+		}
+		long version = miss.getVersion ();
+		ByteBuffer buffer = bufHandle.getBuffer ();
+		long left = size - read;
+		if (left < buffer.remaining ())
+		    buffer.limit (buffer.position () + (int)left);
+		int got = fc.read (buffer, read);
+		if (got > 0) {
+		    read += got;
+		    buffer.flip ();
+		    bl.bufferRead (bufHandle);
+		} else if (miss.isFailed ()) {
+		    fail (bl, new IOException ("Collapsed miss failed"));
+		} else if (miss.isDone ()) {
+		    fail (bl, new IOException ("Cache file ended at: " + read +
+					       ", expected: " + size));
+		} else if (miss.isStalled ()) {
+		    fail (bl, new IOException ("Collapsed miss stalled at: " +
+					       read + ", expected: " + size));
+		} else {
+		    buffer.clear ();
+		    miss.await (version, reader);
+		}
+	    } catch (IOException e) {
+		fail (bl, e);
+	    }
+	}
+    }
+
+    private void fail (BlockListener bl, Exception e) {
+	bufHandle.possiblyFlush ();
+	bl.failed (e);
+    }
+
+    public void release () {
+	miss.removeWaiter (reader);
+	Closer.close (fc, logger);
+	synchronized (this) {
+	    listener = null;
+	    nioHandler = null;
+	}
+	bufHandle.possiblyFlush ();
+    }
+}
@@ -66,11 +66,9 @@ class ConditionalChecker {
 		return setupRevalidation (con, req, rh);
 	    }
 	    Date now = new Date ();
-	    CacheEntry<HttpHeader, HttpHeader> entry = rh.getEntry ();
-	    if (checkMaxAge (cached, "max-age=",
-			     entry.getCacheTime (), now)
-		|| checkMaxAge (cached, "s-maxage=",
-				entry.getCacheTime (), now)) {
+	    long responseTime = getResponseTime (rh);
+	    if (checkMaxAge (cached, "max-age=", responseTime, now)
+		|| checkMaxAge (cached, "s-maxage=", responseTime, now)) {
 		con.setMayUseCache (false);
 		return false;
 	    }
@@ -161,6 +159,106 @@ class ConditionalChecker {
 	return -1;
     }
 
+    private long getCacheControlSeconds (HttpHeader header, String cc) {
+	try {
+	    return getCacheControlValue (header, cc);
+	} catch (NumberFormatException e) {
+	    Logger log = Logger.getLogger (getClass ().getName ());
+	    log.warning ("Bad number for " + cc + " in: " +
+			 header.getHeaders ("Cache-Control"));
+	    return -1;
+	}
+    }
+
+    /** Get the time the cached resource was last known to be fresh.
+     *  This is the later of the time it was cached and the time in its
+     *  Date header, so that a resource that has been revalidated starts
+     *  to age from the revalidation.
+     * @param rh the RequestHandler holding the cache entry
+     * @return the time in millis since the epoch
+     */
+    long getResponseTime (RequestHandler rh) {
+	long t = rh.getEntry ().getCacheTime ();
+	HttpHeader resp = rh.getDataHook ();
+	String d = resp != null ? resp.getHeader ("Date") : null;
+	if (d != null) {
+	    long date = HttpDateParser.getTime (d);
+	    if (date > t)
+		t = Math.min (date, System.currentTimeMillis ());
+	}
+	return t;
+    }
+
+    /** Get the age of the cached resource.
+     * @param rh the RequestHandler holding the cache entry
+     * @return the age in millis
+     */
+    long getCurrentAge (RequestHandler rh) {
+	return System.currentTimeMillis () - getResponseTime (rh);
+    }
+
+    /** Get the freshness lifetime that the cached response gives.
+     * @param rh the RequestHandler holding the cache entry
+     * @return the lifetime in millis or -1 if the response has none
+     */
+    long getFreshnessLifetime (RequestHandler rh) {
+	HttpHeader resp = rh.getDataHook ();
+	long maxAge = getCacheControlSeconds (resp, "s-maxage=");
+	if (maxAge < 0)
+	    maxAge = getCacheControlSeconds (resp, "max-age=");
+	if (maxAge >= 0)
+	    return maxAge * 1000;
+	String exp = resp.getHeader ("Expires");
+	String d = resp.getHeader ("Date");
+	if (exp == null || d == null)
+	    return -1;
+	long expires = HttpDateParser.getTime (exp);
+	long date = HttpDateParser.getTime (d);
+	if (expires == -1 || date == -1)
+	    return -1;
+	return Math.max (0, expires - date);
+    }
+
+    /** Check if the cached resource may be revalidated in the background
+     *  instead of making the client wait for the revalidation.
+     *  Only plain GET requests, without any Cache-Control of their own,
+     *  for resources that have a validator and that do not have to be
+     *  revalidated before they are used may be. Resources that vary
+     *  may only be revalidated if the entry is the variant for the
+     *  request.
+     * @param req the request
+     * @param rh the RequestHandler holding the cache entry
+     * @return true if a background revalidation may be used
+     */
+    boolean mayRevalidateInBackground (HttpHeader req, RequestHandler rh) {
+	if (rh.getEntry () == null || rh.getDataHook () == null)
+	    return false;
+	if (!req.getMethod ().equals ("GET")
+	    || req.getRequestURI ().indexOf ('?') >= 0
+	    || req.getHeader ("Cache-Control") != null
+	    || req.getHeader ("Pragma") != null)
+	    return false;
+	HttpHeader resp = rh.getDataHook ();
+	// a variant was selected by the Vary headers, a plain entry was not
+	if (resp.getHeader ("Vary") != null
+	    && !VaryIndex.isVariant (rh.getCacheKey ()))
+	    return false;
+	if (resp.getHeader ("ETag") == null
+	    && resp.getHeader ("Last-Modified") == null)
+	    return false;
+	for (String ncc : resp.getHeaders ("Cache-Control")) {
+	    for (String nc : ncc.split (",")) {
+		nc = nc.trim ();
+		// s-maxage implies proxy-revalidate
+		if (nc.startsWith ("no-cache") || nc.equals ("must-revalidate")
+		    || nc.equals ("proxy-revalidate")
+		    || nc.startsWith ("s-maxage="))
+		    return false;
+	    }
+	}
+	return true;
+    }
+
     private boolean checkMinFresh (Connection con, HttpHeader header,
 				   RequestHandler rh) {
 	CacheEntry<HttpHeader, HttpHeader> entry = rh.getEntry ();
@@ -172,8 +270,7 @@ class ConditionalChecker {
 	long maxAge = getCacheControlValue (rh.getDataHook (), "max-age=");
 	if (maxAge == -1)
 	    return false;
-	long currentAge = (System.currentTimeMillis () -
-			   entry.getCacheTime ()) / 1000;
+	long currentAge = getCurrentAge (rh) / 1000;
 	if ((maxAge - currentAge) < minFresh)
 	    return setupRevalidation (con, header, rh);
 	return false;
@@ -196,8 +293,7 @@ class ConditionalChecker {
 		    long maxAge =
 			getCacheControlValue (rh.getDataHook (), "max-age=");
 		    if (maxAge >= 0) {
-			long currentAge = (System.currentTimeMillis () -
-					   entry.getCacheTime ()) / 1000;
+			long currentAge = getCurrentAge (rh) / 1000;
 			if (maxAge == 0 || currentAge > maxAge) {
 			    return setupRevalidation (con, header, rh);
 			}
@@ -207,8 +303,7 @@ class ConditionalChecker {
 		    long sm =
 			Long.parseLong (nc.substring ("s-maxage=".length ()));
 		    if (sm >= 0) {
-			long currentAge = (System.currentTimeMillis () -
-					   entry.getCacheTime ()) / 1000;
+			long currentAge = getCurrentAge (rh) / 1000;
 			if (sm == 0 || currentAge > sm) {
 			    return setupRevalidation (con, header, rh);
 			}
@@ -261,9 +356,7 @@ class ConditionalChecker {
 		    long maxAge =
 			rh.getCond ().getCacheControlValue (resp, "max-age=");
 		    if (maxAge >= 0) {
-			long now = System.currentTimeMillis ();
-			long currentAge =
-			    (now - rh.getEntry ().getCacheTime ()) / 1000;
+			long currentAge = getCurrentAge (rh) / 1000;
 			String age = resp.getHeader ("Age");
 			if (age != null)
 			    currentAge += Long.parseLong (age);
@@ -312,23 +405,26 @@ class ConditionalChecker {
 	String sd = rh.getWebHeader ().getHeader ("Date");
 	String cd = cachedWebHeader.getHeader ("Date");
 	if (sd != null && cd != null) {
-	    Date d1 = HttpDateParser.getDate (sd);
-	    Date d2 = HttpDateParser.getDate (cd);
+	    long d1 = HttpDateParser.getTime (sd);
+	    long d2 = HttpDateParser.getTime (cd);
 	    // if we get a response with a date older than we have,
 	    // we keep our cache.
-	    if (d1 != null && d1.before (d2))
+	    if (d1 != -1 && d1 < d2)
 		return false;
 	}
 	Cache<HttpHeader, HttpHeader> cache = con.getProxy ().getCache ();
+	// the entry may be a variant
+	HttpHeader key = rh.getCacheKey () != null ? rh.getCacheKey () :
+	    requestHeader;
 	// check that some headers are equal
 	if (rh.getWebHeader ().getStatusCode ().equals ("200"))
-	    checkStaleHeader (requestHeader, rh.getWebHeader (),
+	    checkStaleHeader (key, rh.getWebHeader (),
 			      cachedWebHeader, "Content-Length", cache);
-	checkStaleHeader (requestHeader, rh.getWebHeader (),
+	checkStaleHeader (key, rh.getWebHeader (),
 			  cachedWebHeader, "Content-MD5", cache);
-	checkStaleHeader (requestHeader, rh.getWebHeader (),
+	checkStaleHeader (key, rh.getWebHeader (),
 			  cachedWebHeader, "ETag", cache);
-	checkStaleHeader (requestHeader, rh.getWebHeader (),
+	checkStaleHeader (key, rh.getWebHeader (),
 			  cachedWebHeader, "Last-Modified", cache);
 	return true;
     }
@@ -27,8 +27,10 @@ import rabbit.httpio.HttpHeaderSentListener;
 import rabbit.httpio.RequestLineTooLongException;
 import rabbit.io.BufferHandle;
 import rabbit.io.CacheBufferHandle;
+import rabbit.io.CircuitOpenException;
 import rabbit.io.ProxyChain;
 import rabbit.io.Resolver;
+import rabbit.io.WebConnection;
 import rabbit.util.Counter;
 
 /** The base connection class for rabbit.
@@ -76,6 +78,9 @@ public class Connection {
     private String userName = null;
     private String password = null;
 
+    /** The header profile used for the current request */
+    private HeaderProfile headerProfile = null;
+
     /* Current status information */
     private String requestVersion = null;
     private String requestLine   = null;
@@ -85,6 +90,15 @@ public class Connection {
 
     private ClientResourceHandler clientResourceHandler;
 
+    /** The cache miss that this connection leads, if any. */
+    private MissCollapser.Miss collapsedMiss;
+
+    /** The pipelined requests of the client, if any. */
+    private Pipeline pipeline;
+
+    /** The resource that waits for its turn in the pipeline. */
+    private RequestHandler waitingHandler;
+
     private final HttpGenerator responseHandler;
 
     private final TrafficLoggerHandler tlh = new TrafficLoggerHandler ();
@@ -97,10 +111,20 @@ public class Connection {
      * @param proxy the HttpProxy that this connection belongs to.
      */
     public Connection (ConnectionId id, SocketChannel channel, HttpProxy proxy) {
+	this (id, channel, proxy,
+	      new CacheBufferHandle (proxy.getBufferHandler ()), null);
+    }
+
+    /** Create a new Connection for a pipelined request.
+     */
+    private Connection (ConnectionId id, SocketChannel channel,
+			HttpProxy proxy, BufferHandle requestHandle,
+			Pipeline pipeline) {
 	this.id = id;
 	this.channel = channel;
 	this.proxy = proxy;
-	this.requestHandle = new CacheBufferHandle (proxy.getBufferHandler ());
+	this.requestHandle = requestHandle;
+	this.pipeline = pipeline;
 	proxy.addCurrentConnection (this);
 	HttpGeneratorFactory hgf = proxy.getHttpGeneratorFactory ();
 	responseHandler = hgf.create (proxy.getServerIdentity (), this);
@@ -195,18 +219,43 @@ public class Connection {
 	    requestVersion = "HTTP/0.9";
 	requestVersion = requestVersion.toUpperCase ();
 	request.addHeader ("Via", requestVersion + " RabbIT");
-	request.removeHeader("User-Agent");
-	request.addHeader("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.5; rv:11.0) Gecko/20100101 Firefox/11.0");
-	request.removeHeader("Accept");
-	request.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
-	request.removeHeader("Accept-Encoding");
-	request.addHeader("Accept-Encoding", "gzip, deflate");
-	request.removeHeader("Accept-Language");
-	request.addHeader("Accept-Language", "en-us,en;q=0.5");
+	headerProfile =
+	    proxy.getHeaderProfiles ().apply (request,
+					      channel.socket ().getInetAddress ());
 
 	requestLine = request.getRequestLine ();
 	getCounter ().inc ("Requests");
 
+	if (!mayRunAhead (isChunked, dataSize)) {
+	    // wait for the requests before this one to be done
+	    final BufferHandle fbh = bh;
+	    final boolean fchunked = isChunked;
+	    final long fsize = dataSize;
+	    Runnable r = new Runnable () {
+		    public void run () {
+			handleRequestRead (fbh, fchunked, fsize);
+		    }
+		};
+	    if (!takeTurn (r))
+		return;
+	}
+	handleRequestRead (bh, isChunked, dataSize);
+    }
+
+    /** Check if a request may be handled before the requests that the
+     *  client sent before it are done.
+     */
+    private boolean mayRunAhead (boolean isChunked, long dataSize) {
+	if (pipeline == null)
+	    return true;
+	String method = request.getMethod ();
+	return (method.equals ("GET") || method.equals ("HEAD"))
+	    && !isChunked && dataSize <= 0 && request.getContent () == null
+	    && !request.isSSLRequest ();
+    }
+
+    private void handleRequestRead (BufferHandle bh, boolean isChunked,
+				    long dataSize) {
 	try {
 	    // SSL requests are special in a way...
 	    // Don't depend upon being able to build URLs from the header...
@@ -230,6 +279,9 @@ public class Connection {
 			readMultiPart (ct);
 	    }
 
+	    if (clientResourceHandler == null && mayPipeline ())
+		readPipelinedRequests ();
+
 	    TaskIdentifier ti =
 		new DefaultTaskIdentifier (getClass ().getSimpleName () +
 					   ".filterAndHandleRequest: ",
@@ -244,6 +296,87 @@ public class Connection {
 	}
     }
 
+    /** Check if the client may have sent more requests after this one
+     *  that can be handled at the same time as this one.
+     */
+    private boolean mayPipeline () {
+	return keepalive && requestVersion.equals ("HTTP/1.1")
+	    && !requestHandle.isEmpty ()
+	    && !request.isDot9Request () && !mustTunnel ()
+	    && proxy.getPipelineDepth () > 1;
+    }
+
+    /** Start to handle the requests that the client has sent after the
+     *  current one and that are already read. Each request is handled
+     *  by a new Connection, that in turn starts the next request.
+     */
+    private void readPipelinedRequests () {
+	if (pipeline == null)
+	    pipeline = new Pipeline (this);
+	if (!pipeline.mayGrow (proxy.getPipelineDepth ()))
+	    return;
+	Connection c =
+	    new Connection (id, channel, proxy, requestHandle, pipeline);
+	pipeline.add (c);
+	if (c.readBufferedRequest ()) {
+	    getCounter ().inc ("Pipelined requests");
+	} else {
+	    pipeline.remove (c);
+	    proxy.removeCurrentConnection (c);
+	}
+    }
+
+    /** Read a request that is already in the request buffer.
+     * @return true if a full request was read
+     */
+    private boolean readBufferedRequest () {
+	clearStatuses ();
+	HttpHeaderListener clientListener = new RequestListener ();
+	HttpHeaderReader hr =
+	    new HttpHeaderReader (channel, requestHandle, getNioHandler (),
+				  tlh.getClient (), true,
+				  proxy.getStrictHttp (), clientListener);
+	return hr.readBufferedHeader ();
+    }
+
+    /** Check if this connection may write to the client now. A request
+     *  that the client has pipelined has to wait for the requests before
+     *  it to be done, the task is then run when it is its turn.
+     * @param task what to do when it is the turn of this connection
+     * @return true if the response may be written now
+     */
+    private boolean takeTurn (Runnable task) {
+	return pipeline == null || pipeline.takeTurn (this, task, 0);
+    }
+
+    /** Check if this connection may write to the client.
+     * @return false if the connection waits for pipelined requests
+     *         before it to be done
+     */
+    boolean mayWriteToClient () {
+	return pipeline == null || pipeline.isFirst (this);
+    }
+
+    /** The client connection was closed before it was the turn of this
+     *  pipelined request, release what it holds.
+     */
+    void pipelineAborted () {
+	status = "Pipelined request aborted";
+	RequestHandler rh = waitingHandler;
+	waitingHandler = null;
+	if (rh != null) {
+	    WebConnection wc = rh.getWebConnection ();
+	    if (wc != null)
+		wc.setKeepalive (false);
+	    if (rh.getContent () != null)
+		rh.getContent ().release ();
+	    else if (wc != null)
+		proxy.releaseWebConnection (wc);
+	}
+	releaseCollapsedMiss ();
+	proxy.removeCurrentConnection (this);
+    }
+
     private boolean hasRegularContent (HttpHeader request, String ct,
 				       long dataSize) {
 	if (request.getContent () != null)
@@ -276,6 +409,13 @@ public class Connection {
     /** Handle a meta page.
      */
     private void handleMeta () {
+	Runnable r = new Runnable () {
+		public void run () {
+		    handleMeta ();
+		}
+	    };
+	if (!takeTurn (r))
+	    return;
 	status = "Handling meta page";
 	MetaHandlerHandler mhh = new MetaHandlerHandler ();
 	try {
@@ -311,6 +451,8 @@ public class Connection {
     private void handleRequest () {
 	status = "Handling request";
 	final RequestHandler rh = new RequestHandler (this);
+	if (checkNegativeCache (rh))
+	    return;
 	if (proxy.getCache ().getCacheConfiguration ().getMaxSize () > 0) {
 	    fillInCacheEntries (rh);
 	} else {
@@ -318,26 +460,53 @@ public class Connection {
 	}
     }
 
+    /** Check if an error or redirect response for the resource is
+     *  cached and if so use it.
+     * @return true if a cached response is used
+     */
+    private boolean checkNegativeCache (RequestHandler rh) {
+	NegativeCache nc = proxy.getNegativeCache ();
+	String method = request.getMethod ();
+	if (!method.equals ("GET") && !method.equals ("HEAD")) {
+	    nc.remove (request);
+	    return false;
+	}
+	if (!getMayUseCache () || clientResourceHandler != null
+	    || !nc.getResponse (request, rh, proxy.getBufferHandler ()))
+	    return false;
+	getCounter ().inc ("Negative cache hits");
+	setMayCache (false);
+	resourceEstablished (rh);
+	return true;
+    }
+
     private void fillInCacheEntries (final RequestHandler rh) {
 	status = "Handling request - checking cache";
 	Cache<HttpHeader, HttpHeader> cache = proxy.getCache ();
 	String method = request.getMethod ();
 	try {
-	    if (!method.equals ("GET") && !method.equals ("HEAD"))
+	    VaryIndex vi = proxy.getVaryIndex ();
+	    if (!method.equals ("GET") && !method.equals ("HEAD")) {
 		cache.remove (request);
+		vi.removeVariants (cache, request);
+	    }
 
-	    rh.setEntry (cache.getEntry (request));
+	    rh.setCacheKey (vi.getLookupKey (request));
+	    rh.setEntry (cache.getEntry (rh.getCacheKey ()));
 	    if (rh.getEntry () != null)
 		rh.setDataHook (rh.getEntry ().getDataHook ());
 	    checkNoStore (rh.getEntry ());
-	    // Check if cached item is too old
-	    if (!rh.getCond ().checkMaxStale (request, rh) && checkMaxAge (rh))
-		setMayUseCache (false);
-
-	    // Add headers to send If-None-Match, or If-Modified-Since
-	    rh.setConditional (rh.getCond ().checkConditional (this, request,
-							       rh,
-							       mustRevalidate));
+	    if (!checkBackgroundRevalidation (rh)) {
+		// Check if cached item is too old
+		if (!rh.getCond ().checkMaxStale (request, rh)
+		    && checkMaxAge (rh))
+		    setMayUseCache (false);
+
+		// Add headers to send If-None-Match, or If-Modified-Since
+		rh.setConditional (rh.getCond ().checkConditional (this, request,
+								   rh,
+								   mustRevalidate));
+	    }
 	    if (partialContent (rh))
 		fillupContent ();
 	    checkIfRange (rh);
@@ -361,20 +530,179 @@ public class Connection {
 	handleRequestBottom (rh);
     }
 
+    /** Check if the cached resource may be used while it is revalidated
+     *  in the background.
+     *  A popular resource that is about to go stale is refreshed ahead of
+     *  time and a stale resource within its stale-while-revalidate time
+     *  is used as is.
+     * @return true if the stale cached resource should be used
+     */
+    private boolean checkBackgroundRevalidation (RequestHandler rh) {
+	if (rh.getEntry () == null || rh.getDataHook () == null)
+	    return false;
+	ConditionalChecker cond = rh.getCond ();
+	long lifetime = cond.getFreshnessLifetime (rh);
+	if (lifetime < 0)
+	    return false;
+	long age = cond.getCurrentAge (rh);
+	Revalidator r = proxy.getRevalidator ();
+	boolean background = !mustRevalidate && getMayFilter ()
+	    && getMayUseCache () && cond.mayRevalidateInBackground (request, rh);
+	if (age <= lifetime) {
+	    if (background &&
+		r.shouldRefreshAhead (rh.getCacheKey ().getRequestURI (),
+				      age, lifetime))
+		r.revalidate (request, rh.getCacheKey (), rh.getEntry ());
+	    return false;
+	}
+	long swr = r.getStaleWhileRevalidate (rh.getDataHook ());
+	if (background && age - lifetime <= swr) {
+	    r.revalidate (request, rh.getCacheKey (), rh.getEntry ());
+	    rh.getDataHook ().addHeader ("Warning",
+					 "110 RabbIT \"Response is stale\"");
+	    getCounter ().inc ("Stale cache hits");
+	    return true;
+	}
+	// The entry is only kept in the cache for its
+	// stale-while-revalidate time, so refetch it.
+	if (swr > 0)
+	    setMayUseCache (false);
+	return false;
+    }
+
     private void handleRequestBottom (final RequestHandler rh) {
 	if (rh.getContent () == null) {
-	    status = "Handling request - setting up web connection";
-	    // no usable cache entry so get the resource from the net.
-	    ProxyChain pc = proxy.getProxyChain ();
-	    Resolver r = pc.getResolver (request.getRequestURI ());
-	    SWC swc =
-		new SWC (this, r, request, tlh, clientResourceHandler, rh);
-	    swc.establish ();
+	    if (!collapseMiss (rh))
+		fetchFromWeb (rh);
 	} else {
 	    resourceEstablished (rh);
 	}
     }
 
+    private void fetchFromWeb (final RequestHandler rh) {
+	if (pipeline != null && !pipeline.isFirst (this)
+	    && pipeline.isFull (proxy.getPipelineMaxBuffered ())) {
+	    Runnable r = new Runnable () {
+		    public void run () {
+			fetchFromWeb (rh);
+		    }
+		};
+	    if (!takeTurn (r)) {
+		status = "Handling request - waiting for pipelined requests";
+		return;
+	    }
+	}
+	status = "Handling request - setting up web connection";
+	// no usable cache entry so get the resource from the net.
+	ProxyChain pc = proxy.getProxyChain ();
+	Resolver r = pc.getResolver (request.getRequestURI ());
+	SWC swc =
+	    new SWC (this, r, request, tlh, clientResourceHandler, rh);
+	swc.establish ();
+    }
+
+    /** Check if another request is fetching the same resource and if so
+     *  wait for it instead of fetching the resource again.
+     * @return true if this request waits for another request
+     */
+    private boolean collapseMiss (RequestHandler rh) {
+	// a pipelined request can not lead a miss that others wait for
+	// while it waits for its turn, and it need not wait for one
+	if (!mayWriteToClient ())
+	    return false;
+	if (!getMayCache () || rh.isConditional ()
+	    || clientResourceHandler != null
+	    || proxy.getCache ().getCacheConfiguration ().getMaxSize () <= 0)
+	    return false;
+	MissCollapser mc = proxy.getMissCollapser ();
+	// requests for different variants of a resource must not collapse
+	HttpHeader cacheKey = rh.getCacheKey ();
+	String key = mc.getKey (cacheKey != null ? cacheKey : request);
+	if (key == null)
+	    return false;
+	MissCollapser.Miss m = mc.join (key, new CollapsedMissListener (rh));
+	if (m != null) {
+	    collapsedMiss = m;
+	    return false;
+	}
+	status = "Handling request - waiting for collapsed miss";
+	return true;
+    }
+
+    /** Take over the cache miss that this connection leads.
+     *  The caller has to tell the miss when it is finished.
+     * @return the miss or null if this connection does not lead one
+     */
+    public MissCollapser.Miss takeCollapsedMiss () {
+	MissCollapser.Miss m = collapsedMiss;
+	collapsedMiss = null;
+	return m;
+    }
+
+    private void releaseCollapsedMiss () {
+	MissCollapser.Miss m = takeCollapsedMiss ();
+	if (m != null)
+	    m.leaderDone ();
+    }
+
+    private class CollapsedMissListener implements MissCollapser.Listener {
+	private final RequestHandler rh;
+
+	public CollapsedMissListener (RequestHandler rh) {
+	    this.rh = rh;
+	}
+
+	public void missStarted (final MissCollapser.Miss miss) {
+	    TaskIdentifier ti =
+		new DefaultTaskIdentifier (getClass ().getSimpleName () +
+					   ".missStarted: ",
+					   request.getRequestURI ());
+	    getNioHandler ().runThreadTask (new Runnable () {
+		    public void run () {
+			setupCollapsedMiss (rh, miss);
+		    }
+		}, ti);
+	}
+
+	public void missAbandoned () {
+	    TaskIdentifier ti =
+		new DefaultTaskIdentifier (getClass ().getSimpleName () +
+					   ".missAbandoned: ",
+					   request.getRequestURI ());
+	    getNioHandler ().runThreadTask (new Runnable () {
+		    public void run () {
+			fetchFromWeb (rh);
+		    }
+		}, ti);
+	}
+    }
+
+    private void setupCollapsedMiss (RequestHandler rh,
+				     MissCollapser.Miss miss) {
+	// nothing has been sent to the client yet, so get it ourself.
+	if (miss.isFailed ()) {
+	    fetchFromWeb (rh);
+	    return;
+	}
+	try {
+	    rh.setContent (new CollapsedResourceSource (miss, getNioHandler (),
+							proxy.getBufferHandler ()));
+	} catch (IOException e) {
+	    // the leader is already done with the file, get it ourself.
+	    fetchFromWeb (rh);
+	    return;
+	}
+	getCounter ().inc ("Collapsed cache misses");
+	setMayCache (false);
+	// any old entry is replaced by the leader.
+	rh.setEntry (null);
+	rh.setWebHeader (miss.getHeader ());
+	rh.setSize (miss.getSize ());
+	// Simply send, the leader has already handled it.
+	rh.setHandlerFactory (new BaseHandler ());
+	resourceEstablished (rh);
+    }
+
     /** Fired when setting up a web connection failed.
      * @param rh the RequestHandler
      * @param cause the Exception that signaled the problem
@@ -384,6 +712,9 @@ public class Connection {
 	    // do we really want this in the log?
 	    logger.warning (cause.toString () + ": " +
 			    request.getRequestURI ());
+	else if (cause instanceof CircuitOpenException)
+	    // the breaker logs when it opens
+	    logger.fine (cause.getMessage () + ": " + request.getRequestURI ());
 	else
 	    logger.warning ("Failed to set up web connection to: " +
 			    request.getRequestURI () + ", cause: " + cause);
@@ -438,7 +769,21 @@ public class Connection {
 	tunnel.start ();
     }
 
-    private void resourceEstablished (RequestHandler rh) {
+    private void resourceEstablished (final RequestHandler rh) {
+	if (pipeline != null) {
+	    Runnable r = new Runnable () {
+		    public void run () {
+			waitingHandler = null;
+			resourceEstablished (rh);
+		    }
+		};
+	    waitingHandler = rh;
+	    if (!pipeline.takeTurn (this, r, getBufferedBytes (rh))) {
+		status = "Handling request - waiting for pipelined requests";
+		return;
+	    }
+	    waitingHandler = null;
+	}
 	status = "Handling request - got resource";
 	try {
 	    // and now we filter the response header if any.
@@ -449,6 +794,10 @@ public class Connection {
 		}
 
 		String status = rh.getWebHeader ().getStatusCode ().trim ();
+		if (rh.getWebConnection () != null)
+		    rh.setContent (proxy.getNegativeCache ().
+				   capture (request, rh.getWebHeader (),
+					    rh.getContent ()));
 
 		// Check if the cached Date header is newer,
 		// indicating that we should not cache.
@@ -463,7 +812,8 @@ public class Connection {
 		    nmh.updateHeader (rh);
 		    if (rh.getEntry () != null) {
 			proxy.getCache ().entryChanged (rh.getEntry (),
-							request, rh.getDataHook ());
+							rh.getCacheKey (),
+							rh.getDataHook ());
 		    }
 		}
 
@@ -530,6 +880,15 @@ public class Connection {
 	}
     }
 
+    /** Get the number of response bytes that are read but not sent.
+     */
+    private int getBufferedBytes (RequestHandler rh) {
+	BufferHandle bh = rh.getWebHandle ();
+	if (bh == null || bh.isEmpty ())
+	    return 0;
+	return bh.getBuffer ().remaining ();
+    }
+
     private void finalFixesOnWebHeader (RequestHandler rh, Handler handler) {
 	if (rh.getWebHeader () == null)
 	    return;
@@ -608,7 +967,7 @@ public class Connection {
 	    // retry...
 	    request.removeHeader ("If-None-Match");
 	    try {
-		proxy.getCache ().remove (request);
+		proxy.getCache ().remove (rh.getCacheKey ());
 	    } catch (CacheException e) {
 		logger.log (Level.WARNING, "Failed to remove entry", e);
 	    }
@@ -715,9 +1074,9 @@ public class Connection {
 	String range = request.getHeader ("Range");
 	if (range == null)
 	    return;
-	Date d = HttpDateParser.getDate (ifRange);
+	long d = HttpDateParser.getTime (ifRange);
 	HttpHeader oldresp = rh.getDataHook ();
-	if (d == null) {
+	if (d == -1) {
 	    // we have an etag...
 	    String etag = oldresp.getHeader ("Etag");
 	    if (etag == null || !ETagUtils.checkWeakEtag (etag, ifRange))
@@ -798,6 +1157,8 @@ public class Connection {
 	}
 	requestHandle.possiblyFlush ();
 	proxy.removeCurrentConnection (this);
+	if (pipeline != null)
+	    pipeline.close ();
     }
 
     private ConnectionLogger getConnectionLogger () {
@@ -827,6 +1188,7 @@ public class Connection {
 	addedINM       = false;
 	addedIMS       = false;
 	userName       = null;
+	headerProfile  = null;
 	password       = null;
 	requestLine    = "?";
 	statusCode     = "200";
@@ -857,6 +1219,13 @@ public class Connection {
 	return userName;
     }
 
+    /** Get the header profile that was used for the current request.
+     * @return the HeaderProfile or null if no request has been read
+     */
+    HeaderProfile getHeaderProfile () {
+	return headerProfile;
+    }
+
     /** Set the name of the currently authenticated user (for basic proxy auth)
      * @param userName the name of the current user
      */
@@ -1076,7 +1445,14 @@ public class Connection {
 	    contentLength  = cl;
     }
 
-    void sendAndTryRestart (HttpHeader header) {
+    void sendAndTryRestart (final HttpHeader header) {
+	Runnable r = new Runnable () {
+		public void run () {
+		    sendAndTryRestart (header);
+		}
+	    };
+	if (!takeTurn (r))
+	    return;
 	status = keepalive ?
 	    "Sending response and restarting" :
 	    "Sending response and closing" ;
@@ -1086,7 +1462,9 @@ public class Connection {
 	try {
 	    HttpHeaderSender hhs =
 		new HttpHeaderSender (channel, getNioHandler (),
-				      tlh.getClient (), header, false, sar);
+				      tlh.getClient (),
+				      proxy.getBufferHandler (), header,
+				      false, sar);
 	    hhs.sendHeader ();
 	} catch (IOException e) {
 	    logger.log (Level.WARNING,
@@ -1147,11 +1525,29 @@ public class Connection {
     }
 
     private void internalLogAndTryRestart () {
+	releaseCollapsedMiss ();
 	logConnection ();
-	if (getKeepalive ())
-	    readRequest ();
-	else
+	if (!getKeepalive ())
 	    closeDown ();
+	else if (pipeline != null && pipeline.hasNext (this))
+	    handOver ();
+	else
+	    readRequest ();
+    }
+
+    /** Let the next pipelined request write its response, this
+     *  connection is done.
+     */
+    private void handOver () {
+	proxy.removeCurrentConnection (this);
+	Runnable r = pipeline.handOver (this);
+	if (r != null) {
+	    TaskIdentifier ti =
+		new DefaultTaskIdentifier (getClass ().getSimpleName () +
+					   ".handOver: ",
+					   request.getRequestURI ());
+	    getNioHandler ().runThreadTask (r, ti);
+	}
     }
 
     /** Get the HttpGenerator that this connection uses when it needs to
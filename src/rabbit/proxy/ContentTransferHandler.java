@@ -48,6 +48,8 @@ class ContentTransferHandler extends ResourceHandlerBase
 	    buffer.limit (buffer.position () + (int)toTransfer);
 	    ByteBuffer sendBuffer = buffer.slice ();
 	    buffer.limit (limit);
+	    // the rest of the buffer is the next pipelined request
+	    buffer.position (buffer.position () + (int)toTransfer);
 	    sbufHandle = new SimpleBufferHandle (sendBuffer);
 	}
 	fireResouceDataRead (sbufHandle);
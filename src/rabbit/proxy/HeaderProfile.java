@@ -0,0 +1,107 @@
+package rabbit.proxy;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import rabbit.http.HeaderSet;
+import rabbit.http.HttpHeader;
+import rabbit.util.IPAccess;
+
+/** A named set of request headers that is used for some clients.
+ *
+ *  A profile is selected by client ip, user and url, a selector that
+ *  is not given matches all requests.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+final class HeaderProfile {
+    private final String name;
+    private final List<IPAccess> ranges;
+    private final Set<String> users;
+    private final Pattern url;
+    private final HeaderSet headers;
+    private final AtomicLong requests = new AtomicLong ();
+    private final AtomicLong hits = new AtomicLong ();
+
+    /** Create a new HeaderProfile
+     * @param name the name of the profile
+     * @param ranges the client ip ranges, empty to match all clients
+     * @param users the user names, empty to match all users
+     * @param url the url pattern, null to match all urls
+     * @param headers the headers to set, null to leave requests as is
+     */
+    public HeaderProfile (String name, List<IPAccess> ranges,
+			  Set<String> users, Pattern url, HeaderSet headers) {
+	this.name = name;
+	this.ranges = ranges;
+	this.users = users;
+	this.url = url;
+	this.headers = headers;
+    }
+
+    /** Check if this profile needs the user name to select requests.
+     * @return true if the profile matches only some users
+     */
+    public boolean needsUser () {
+	return !users.isEmpty ();
+    }
+
+    /** Check if this profile should be used for a request.
+     * @param client the address of the client
+     * @param user the name of the user, may be null
+     * @param uri the request uri
+     * @return true if all the selectors of this profile match
+     */
+    public boolean matches (InetAddress client, String user, String uri) {
+	if (!ranges.isEmpty () && !inRange (client))
+	    return false;
+	if (!users.isEmpty () && (user == null || !users.contains (user)))
+	    return false;
+	return url == null || url.matcher (uri).find ();
+    }
+
+    private boolean inRange (InetAddress client) {
+	if (client == null)
+	    return false;
+	int s = ranges.size ();
+	for (int i = 0; i < s; i++)
+	    if (ranges.get (i).inrange (client))
+		return true;
+	return false;
+    }
+
+    /** Set the headers of this profile in a request.
+     * @param request the request to update
+     */
+    public void apply (HttpHeader request) {
+	requests.incrementAndGet ();
+	if (headers != null)
+	    headers.apply (request);
+    }
+
+    /** Note that a request that used this profile was a cache hit.
+     */
+    public void cacheHit () {
+	hits.incrementAndGet ();
+    }
+
+    /** Add the request and cache hit counts of this profile.
+     * @param stats the map to add the statistics to
+     */
+    public void addStatistics (Map<String, String> stats) {
+	long r = requests.get ();
+	long h = hits.get ();
+	String prefix = "Header profile " + name + " ";
+	stats.put (prefix + "requests", Long.toString (r));
+	stats.put (prefix + "cache hits", Long.toString (h));
+	long ratio = r > 0 ? h * 100 / r : 0;
+	stats.put (prefix + "hit ratio", ratio + "%");
+    }
+
+    @Override public String toString () {
+	return getClass ().getSimpleName () + "{" + name + "}";
+    }
+}
@@ -0,0 +1,190 @@
+package rabbit.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import rabbit.http.HeaderSet;
+import rabbit.http.HttpHeader;
+import rabbit.util.Base64;
+import rabbit.util.Config;
+import rabbit.util.IPAccess;
+import rabbit.util.PatternHelper;
+import rabbit.util.SProperties;
+
+/** The header profiles that rewrite the headers of client requests.
+ *
+ *  Each profile is given in its own section, "header_profile.name",
+ *  and sets or removes a few request headers. The first profile that
+ *  matches a request is used, requests that no profile matches are
+ *  left as they are. Since clients that use the same profile send the
+ *  same headers they also share the variants of cached resources, the
+ *  requests and cache hits of each profile are counted to show that.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HeaderProfiles {
+    /** The profile that is used if nothing else is configured. */
+    public static final String DEFAULT_PROFILES = "desktop";
+
+    /** The headers of the desktop profile if it has no section. */
+    private static final String[] DESKTOP = {
+	"User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.5; " +
+	"rv:11.0) Gecko/20100101 Firefox/11.0",
+	"Accept", "text/html,application/xhtml+xml,application/xml;q=0.9," +
+	"*/*;q=0.8",
+	"Accept-Encoding", "gzip, deflate",
+	"Accept-Language", "en-us,en;q=0.5"
+    };
+
+    private static final String HEADER = "header.";
+
+    private volatile List<HeaderProfile> profiles = Collections.emptyList ();
+    private volatile HeaderProfile none = createNone ();
+    private volatile boolean needsUser = false;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    private static HeaderProfile createNone () {
+	return new HeaderProfile ("none", Collections.<IPAccess>emptyList (),
+				  Collections.<String>emptySet (), null, null);
+    }
+
+    /** Set up the profiles.
+     * @param names the comma separated names of the profiles, in the
+     *        order they are tried
+     * @param config the Config holding the profile sections
+     */
+    public void setup (String names, Config config) {
+	List<HeaderProfile> ls = new ArrayList<HeaderProfile> ();
+	boolean user = false;
+	for (String name : names.split (",")) {
+	    name = name.trim ();
+	    if (name.isEmpty ())
+		continue;
+	    HeaderProfile p = createProfile (name, config);
+	    if (p != null) {
+		ls.add (p);
+		user |= p.needsUser ();
+	    }
+	}
+	profiles = ls;
+	needsUser = user;
+	none = createNone ();
+    }
+
+    private HeaderProfile createProfile (String name, Config config) {
+	String section = "header_profile." + name;
+	if (!config.getSections ().contains (section)) {
+	    if (name.equals ("desktop"))
+		return createDesktop ();
+	    logger.warning ("No section for header profile: " + name);
+	    return null;
+	}
+	SProperties props = config.getProperties (section);
+	Map<String, String> values =
+	    new TreeMap<String, String> (String.CASE_INSENSITIVE_ORDER);
+	for (Map.Entry<String, String> me : props.entrySet ()) {
+	    String key = me.getKey ();
+	    if (key.startsWith (HEADER))
+		values.put (key.substring (HEADER.length ()), me.getValue ());
+	}
+	List<IPAccess> ranges = getRanges (props.getProperty ("ip_ranges", ""));
+	Set<String> users = new HashSet<String> ();
+	for (String u : props.getProperty ("users", "").split (",")) {
+	    u = u.trim ();
+	    if (!u.isEmpty ())
+		users.add (u);
+	}
+	PatternHelper ph = new PatternHelper ();
+	Pattern url = ph.getPattern (props, "url_pattern",
+				     "Bad url_pattern for header profile: " +
+				     name);
+	return new HeaderProfile (name, ranges, users, url,
+				  new HeaderSet (values));
+    }
+
+    private HeaderProfile createDesktop () {
+	Map<String, String> values = new LinkedHashMap<String, String> ();
+	for (int i = 0; i < DESKTOP.length; i += 2)
+	    values.put (DESKTOP[i], DESKTOP[i + 1]);
+	return new HeaderProfile ("desktop",
+				  Collections.<IPAccess>emptyList (),
+				  Collections.<String>emptySet (), null,
+				  new HeaderSet (values));
+    }
+
+    /** Parse ip ranges like "10.0.0.0-10.255.255.255,192.168.1.7"
+     */
+    private List<IPAccess> getRanges (String ranges) {
+	List<IPAccess> ls = new ArrayList<IPAccess> ();
+	for (String r : ranges.split (",")) {
+	    r = r.trim ();
+	    if (r.isEmpty ())
+		continue;
+	    int i = r.indexOf ('-');
+	    String low = i < 0 ? r : r.substring (0, i).trim ();
+	    String high = i < 0 ? r : r.substring (i + 1).trim ();
+	    try {
+		ls.add (new IPAccess (InetAddress.getByName (low),
+				      InetAddress.getByName (high)));
+	    } catch (UnknownHostException e) {
+		logger.warning ("Bad ip range for header profile: " + r);
+	    }
+	}
+	return ls;
+    }
+
+    /** Find the profile to use for a request and set its headers.
+     * @param request the request to update
+     * @param client the address of the client
+     * @return the profile that was used, never null
+     */
+    HeaderProfile apply (HttpHeader request, InetAddress client) {
+	String user = needsUser ? getUser (request) : null;
+	String uri = request.getRequestURI ();
+	List<HeaderProfile> ls = profiles;
+	int s = ls.size ();
+	for (int i = 0; i < s; i++) {
+	    HeaderProfile p = ls.get (i);
+	    if (p.matches (client, user, uri)) {
+		p.apply (request);
+		return p;
+	    }
+	}
+	HeaderProfile p = none;
+	p.apply (request);
+	return p;
+    }
+
+    /** Get the user of a request with basic proxy authentication, the
+     *  filters have not run yet so Connection does not know it.
+     */
+    private String getUser (HttpHeader request) {
+	String auth = request.getHeader ("Proxy-Authorization");
+	if (auth == null || !auth.startsWith ("Basic "))
+	    return null;
+	String userpass = Base64.decode (auth.substring ("Basic ".length ()));
+	int i = userpass.indexOf (':');
+	return i < 0 ? null : userpass.substring (0, i);
+    }
+
+    /** Get the statistics of the profiles.
+     * @return the requests, cache hits and hit ratio of each profile
+     */
+    public Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	for (HeaderProfile p : profiles)
+	    p.addStatistics (stats);
+	none.addStatistics (stats);
+	return stats;
+    }
+}
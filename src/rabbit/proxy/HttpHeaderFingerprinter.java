@@ -0,0 +1,30 @@
+package rabbit.proxy;
+
+import rabbit.cache.ncache.KeyFingerprinter;
+import rabbit.http.HttpHeader;
+
+/** A KeyFingerprinter for HttpHeader.
+ *
+ *  Cached headers are equal if their lower cased request uris are
+ *  equal, so this fingerprints the lower cased request uri using
+ *  64 bit FNV-1a.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HttpHeaderFingerprinter implements KeyFingerprinter<HttpHeader> {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public long fingerprint (HttpHeader h) {
+	String uri = h.getRequestURI ().toLowerCase ();
+	long fp = FNV_OFFSET;
+	for (int i = 0, s = uri.length (); i < s; i++) {
+	    char c = uri.charAt (i);
+	    fp ^= c & 0xff;
+	    fp *= FNV_PRIME;
+	    fp ^= c >>> 8;
+	    fp *= FNV_PRIME;
+	}
+	return fp;
+    }
+}
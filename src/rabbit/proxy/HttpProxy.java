@@ -27,12 +27,16 @@ import org.khelekore.rnio.impl.CachingBufferHandler;
 import org.khelekore.rnio.impl.MultiSelectorNioHandler;
 import org.khelekore.rnio.impl.SimpleThreadFactory;
 import rabbit.cache.Cache;
+import rabbit.cache.CacheWriter;
+import rabbit.cache.MemoryTier;
+import rabbit.cache.ncache.FileHandler;
+import rabbit.cache.ncache.KeyFingerprinter;
 import rabbit.cache.ncache.NCache;
 import rabbit.dns.DNSHandler;
 import rabbit.dns.DNSJavaHandler;
 import rabbit.dns.DNSSunHandler;
 import rabbit.handler.HandlerFactory;
-import rabbit.http.HttpDateParser;
+import rabbit.http.Header;
 import rabbit.http.HttpHeader;
 import rabbit.httpio.ProxiedProxyChain;
 import rabbit.httpio.SimpleProxyChain;
@@ -114,7 +118,38 @@ public class HttpProxy {
     private final Counter counter = new Counter ();
 
     /** The cache-handler */
-    private NCache<HttpHeader, HttpHeader> cache;
+    private Cache<HttpHeader, HttpHeader> cache;
+
+    /** The sizes up to which resources are always cached. */
+    private AdmissionThresholds admissionThresholds =
+	new AdmissionThresholds (null);
+
+    /** The memory tier for popular cached resources. */
+    private MemoryTier memoryTier;
+
+    /** The writer of the cache files. */
+    private CacheWriter cacheWriter;
+
+    /** The collapser of concurrent cache misses. */
+    private final MissCollapser missCollapser = new MissCollapser ();
+
+    /** The index of the cached variants of varying resources. */
+    private final VaryIndex varyIndex = new VaryIndex ();
+
+    /** The revalidator of stale and nearly stale cache entries. */
+    private final Revalidator revalidator = new Revalidator (this);
+
+    /** The memory cache of error and redirect responses. */
+    private final NegativeCache negativeCache = new NegativeCache ();
+
+    /** The profiles that rewrite the client request headers. */
+    private final HeaderProfiles headerProfiles = new HeaderProfiles ();
+
+    /** The number of pipelined client requests that are handled at once. */
+    private int pipelineDepth = 4;
+
+    /** The response bytes pipelined requests may hold while they wait. */
+    private int pipelineMaxBuffered = 262144;
 
     /** Are we allowed to proxy ssl? */
     protected boolean proxySSL = false;
@@ -163,8 +198,25 @@ public class HttpProxy {
 	}
     }
 
-    private void setupDateParsing () {
-	HttpDateParser.setOffset (getOffset ());
+    private void setupStringCache () {
+	String types = config.getProperty (getClass ().getName (),
+					   "uncached_header_values",
+					   Header.DEFAULT_UNCACHED);
+	Header.setUncachedTypes (types);
+    }
+
+    private void setupPipelining () {
+	String section = getClass ().getName ();
+	pipelineDepth = getInt (section, "pipeline_depth", 4);
+	pipelineMaxBuffered = getInt (section, "pipeline_max_buffered",
+				      262144);
+    }
+
+    private void setupHeaderProfiles () {
+	String names = config.getProperty (getClass ().getName (),
+					   "header_profiles",
+					   HeaderProfiles.DEFAULT_PROFILES);
+	headerProfiles.setup (names, config);
     }
 
     private void setup3rdPartyClassLoader () {
@@ -293,17 +345,90 @@ public class HttpProxy {
     }
 
     private void setupCache () {
-	SProperties props =
-	    config.getProperties (NCache.class.getName ());
+	String def = NCache.class.getName ();
+	String cacheClass = config.getProperty (getClass ().getName (),
+						"cache_class", def);
+	String sizes = config.getProperty (getClass ().getName (),
+					   "cache_admit_sizes", "");
+	admissionThresholds = new AdmissionThresholds (sizes);
+	String collapse = config.getProperty (getClass ().getName (),
+					      "collapse_misses", "true");
+	int collapseTimeout = getInt (getClass ().getName (),
+				      "collapse_timeout", 10);
+	missCollapser.setup (collapse.equals ("true"), collapseTimeout * 1000L);
+	String swr = config.getProperty (getClass ().getName (),
+					 "stale_while_revalidate", "true");
+	int refreshAhead = getInt (getClass ().getName (), "refresh_ahead", 10);
+	int refreshAheadHits = getInt (getClass ().getName (),
+				       "refresh_ahead_hits", 2);
+	revalidator.setup (swr.equals ("true"), refreshAhead, refreshAheadHits);
+	int varyResources = getInt (getClass ().getName (),
+				    "max_vary_resources", 10000);
+	int variants = getInt (getClass ().getName (), "max_variants", 16);
+	varyIndex.setup (varyResources, variants);
+	String ttls = config.getProperty (getClass ().getName (),
+					  "negative_cache_ttls",
+					  "301:300,302:30,307:30,308:300," +
+					  "404:30,410:300,502:5,503:5,504:5");
+	int negativeSize = getInt (getClass ().getName (),
+				   "negative_cache_max_size", 16384);
+	int negativeEntries = getInt (getClass ().getName (),
+				      "negative_cache_entries", 1000);
+	negativeCache.setup (ttls, negativeSize, negativeEntries);
 	HttpHeaderFileHandler hhfh = new HttpHeaderFileHandler ();
+	HttpHeaderFingerprinter hhfp = new HttpHeaderFingerprinter ();
 	try {
-	    cache = new NCache<HttpHeader, HttpHeader> (props, hhfh, hhfh);
-	    cache.start ();
-	} catch (IOException e) {
-	    logger.log (Level.SEVERE,
-			"Failed to setup cache",
+	    cache = createCache (cacheClass, hhfh, hhfp);
+	} catch (Exception e) {
+	    logger.log (Level.WARNING,
+			"Unable to create the cache: " + cacheClass +
+			", will fall back to the default one.",
 			e);
+	    try {
+		SProperties props = config.getProperties (def);
+		cache = new NCache<HttpHeader, HttpHeader> (props, hhfh, hhfh,
+							    hhfp);
+	    } catch (IOException ex) {
+		logger.log (Level.SEVERE,
+			    "Failed to setup cache",
+			    ex);
+		return;
+	    }
 	}
+	cache.start ();
+    }
+
+    private void setupMemoryTier () {
+	SProperties props = config.getProperties (MemoryTier.class.getName ());
+	if (memoryTier == null)
+	    memoryTier = new MemoryTier (props);
+	else
+	    memoryTier.setup (props);
+    }
+
+    private void setupCacheWriter () {
+	SProperties props = config.getProperties (CacheWriter.class.getName ());
+	if (cacheWriter == null)
+	    cacheWriter = new CacheWriter (props, bufferHandler);
+	else
+	    cacheWriter.setup (props);
+    }
+
+    /** Create a cache of the given class, the cache class has to have a
+     *  constructor like the one in NCache. It is set up with the
+     *  properties of the section for the class name of the cache.
+     */
+    @SuppressWarnings ("unchecked")
+    private Cache<HttpHeader, HttpHeader>
+    createCache (String cacheClass, HttpHeaderFileHandler hhfh,
+		 HttpHeaderFingerprinter hhfp) throws Exception {
+	Class<?> clz = load3rdPartyClass (cacheClass, Cache.class);
+	SProperties props = config.getProperties (clz.getName ());
+	Object cache =
+	    clz.getConstructor (SProperties.class, FileHandler.class,
+				FileHandler.class, KeyFingerprinter.class)
+	    .newInstance (props, hhfh, hhfh, hhfp);
+	return (Cache<HttpHeader, HttpHeader>)cache;
     }
 
     /** Configure the SSL support RabbIT should have.
@@ -393,7 +518,7 @@ public class HttpProxy {
     private void setConfig (Config config) {
 	this.config = config;
 	setupLogging ();
-	setupDateParsing ();
+	setupStringCache ();
 	setup3rdPartyClassLoader ();
 	setupDNSHandler ();
 	setupNioHandler ();
@@ -403,8 +528,12 @@ public class HttpProxy {
 	String strictHttp = config.getProperty (cn, "StrictHTTP", "true");
 	setStrictHttp (strictHttp.equals ("true"));
 	setupMaxConnections ();
+	setupHeaderProfiles ();
+	setupPipelining ();
 	setupResources ();
 	setupCache ();
+	setupMemoryTier ();
+	setupCacheWriter ();
 	setupSSLSupport ();	
 	loadClasses ();
 	openSocket ();
@@ -512,6 +641,7 @@ public class HttpProxy {
 	    // TODO: wait for remaining connections.
 	    // TODO: as it is now, it will just close connections in the middle.
 	    closeNioHandler ();
+	    cacheWriter.shutdown ();
 	    cache.flush ();
 	    cache.stop ();
 	}
@@ -531,6 +661,82 @@ public class HttpProxy {
 	return cache;
     }
 
+    /** Get the sizes up to which resources are cached without asking
+     *  the admission filter of the cache.
+     * @return the current AdmissionThresholds
+     */
+    public AdmissionThresholds getAdmissionThresholds () {
+	return admissionThresholds;
+    }
+
+    /** Get the memory tier that holds the popular cached resources.
+     * @return the MemoryTier in use
+     */
+    public MemoryTier getMemoryTier () {
+	return memoryTier;
+    }
+
+    /** Get the collapser that lets concurrent cache misses for the same
+     *  resource share one fetch.
+     * @return the MissCollapser in use
+     */
+    public MissCollapser getMissCollapser () {
+	return missCollapser;
+    }
+
+    /** Get the index of the cached variants of varying resources.
+     * @return the VaryIndex in use
+     */
+    public VaryIndex getVaryIndex () {
+	return varyIndex;
+    }
+
+    /** Get the revalidator that revalidates cache entries in the
+     *  background.
+     * @return the Revalidator in use
+     */
+    public Revalidator getRevalidator () {
+	return revalidator;
+    }
+
+    /** Get the cache of error and redirect responses.
+     * @return the NegativeCache in use
+     */
+    public NegativeCache getNegativeCache () {
+	return negativeCache;
+    }
+
+    /** Get the largest number of pipelined requests from one client
+     *  that are handled at the same time.
+     * @return the pipeline depth, 1 or less if requests are handled
+     *         one at a time
+     */
+    public int getPipelineDepth () {
+	return pipelineDepth;
+    }
+
+    /** Get the number of response bytes that pipelined requests may
+     *  hold while they wait for their turn.
+     * @return the number of bytes
+     */
+    public int getPipelineMaxBuffered () {
+	return pipelineMaxBuffered;
+    }
+
+    /** Get the profiles that rewrite the client request headers.
+     * @return the HeaderProfiles in use
+     */
+    public HeaderProfiles getHeaderProfiles () {
+	return headerProfiles;
+    }
+
+    /** Get the writer that writes the cache files in the background.
+     * @return the CacheWriter in use
+     */
+    public CacheWriter getCacheWriter () {
+	return cacheWriter;
+    }
+
     /** Get the time offset, that is the time between GMT and local time.
      * @return the current time offset in millis
      */
@@ -0,0 +1,94 @@
+package rabbit.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import org.khelekore.rnio.BufferHandler;
+import rabbit.cache.MemoryTier;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.io.BufferHandle;
+import rabbit.io.CacheBufferHandle;
+
+/** A resource that comes from the memory tier of the cache, or from
+ *  some other memory.
+ *
+ *  Transfers are written straight from the memory to the client,
+ *  block listeners get copies of the data.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class MemoryResourceSource implements ResourceSource {
+    private final MemoryTier.Body body;
+    private final ByteBuffer data;
+    private BufferHandle bufHandle;
+    private int sent = 0;
+
+    /** Create a new MemoryResourceSource.
+     * @param body the resource in memory, released with this source
+     * @param bufHandler the BufferHandler to use for block listeners
+     */
+    public MemoryResourceSource (MemoryTier.Body body,
+				 BufferHandler bufHandler) {
+	this.body = body;
+	this.data = body.getBuffer ();
+	this.bufHandle = new CacheBufferHandle (bufHandler);
+    }
+
+    /** Create a new MemoryResourceSource for data that is not in the
+     *  memory tier.
+     * @param data the resource, from position 0 to the limit
+     * @param bufHandler the BufferHandler to use for block listeners
+     */
+    public MemoryResourceSource (ByteBuffer data, BufferHandler bufHandler) {
+	this.body = null;
+	this.data = data;
+	this.bufHandle = new CacheBufferHandle (bufHandler);
+    }
+
+    /** Memory can always be transferred.
+     * @return true
+     */
+    public boolean supportsTransfer () {
+	return true;
+    }
+
+    public long length () {
+	return data.limit ();
+    }
+
+    public long transferTo (long position, long count,
+			    WritableByteChannel target)
+	throws IOException {
+	ByteBuffer buf = data.duplicate ();
+	long end = Math.min (data.limit (), position + count);
+	buf.limit ((int)end);
+	buf.position ((int)position);
+	return target.write (buf);
+    }
+
+    public void addBlockListener (BlockListener listener) {
+	if (sent >= data.limit ()) {
+	    bufHandle.possiblyFlush ();
+	    listener.finishedRead ();
+	    return;
+	}
+	ByteBuffer buffer = bufHandle.getBuffer ();
+	ByteBuffer src = data.duplicate ();
+	src.position (sent);
+	src.limit (Math.min (data.limit (), sent + buffer.remaining ()));
+	sent += src.remaining ();
+	buffer.put (src);
+	buffer.flip ();
+	listener.bufferRead (bufHandle);
+    }
+
+    public void release () {
+	if (body != null)
+	    body.release ();
+	if (bufHandle != null) {
+	    bufHandle.possiblyFlush ();
+	    bufHandle = null;
+	}
+    }
+}
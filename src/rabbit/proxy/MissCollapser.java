@@ -0,0 +1,399 @@
+package rabbit.proxy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import rabbit.http.HttpHeader;
+
+/** A class that collapses concurrent cache misses for the same resource
+ *  into one fetch from the web.
+ *
+ *  The first request for a resource that is not in the cache leads the
+ *  miss and fetches the resource. Requests for the same resource that
+ *  come in while the leader is fetching it wait for the leader to write
+ *  the first data to the cache file and then read the cache file as it
+ *  grows.
+ *
+ *  If the leader finds that the resource will not be cached, in a way
+ *  that the followers can read, or if it fails or takes too long before
+ *  it has written any data, the followers are released to fetch the
+ *  resource themselves. A follower that has started to read the cache
+ *  file gives up if the leader writes nothing for the timeout.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class MissCollapser {
+    private static final String[] HOP_HEADERS = {
+	"Connection", "Proxy-Connection", "Keep-Alive", "Transfer-Encoding"
+    };
+    private static final String[] CONDITIONAL_HEADERS = {
+	"Range", "If-Range", "If-Match", "If-None-Match", "If-Modified-Since",
+	"If-Unmodified-Since", "Authorization"
+    };
+
+    private final Timer timer = new Timer ("MissCollapser", true);
+
+    // all fields below are guarded by this
+    private final Map<String, Miss> misses = new HashMap<String, Miss> ();
+    private boolean enabled = true;
+    private long timeout = 10000;
+    private long led = 0;
+    private long collapsed = 0;
+    private long abandoned = 0;
+    private long timedOut = 0;
+    private long stalled = 0;
+
+    /** A request that waits for a miss. */
+    public interface Listener {
+	/** The leader has written the first data of the resource to the
+	 *  cache.
+	 * @param miss the miss that can be read
+	 */
+	void missStarted (Miss miss);
+
+	/** The leader will not cache the resource, the resource has to
+	 *  be fetched by the listener.
+	 */
+	void missAbandoned ();
+    }
+
+    /** Set the configuration of this collapser.
+     * @param enabled if false no misses are collapsed
+     * @param timeout the time, in millis, a follower waits for the
+     *        leader to start writing the resource or to write more of it
+     */
+    public synchronized void setup (boolean enabled, long timeout) {
+	this.enabled = enabled;
+	this.timeout = timeout;
+    }
+
+    /** Get the key to collapse the given request on.
+     * @param request the request to check
+     * @return the key, or null if the request can not be collapsed
+     */
+    public String getKey (HttpHeader request) {
+	synchronized (this) {
+	    if (!enabled)
+		return null;
+	}
+	if (!"GET".equals (request.getMethod ()) || request.isDot9Request ()
+	    || request.getContent () != null)
+	    return null;
+	for (String h : CONDITIONAL_HEADERS)
+	    if (request.getHeader (h) != null)
+		return null;
+	return request.getRequestURI ().toLowerCase ();
+    }
+
+    /** Join the miss for the given key.
+     *  If no request is fetching the resource a new miss is created that
+     *  the caller leads, otherwise the listener is told when the leader
+     *  has started to write the resource or when the caller has to fetch
+     *  the resource itself.
+     * @param key the key of the resource
+     * @param listener the listener to tell about the miss
+     * @return the miss that the caller leads, or null if the caller follows
+     */
+    public Miss join (String key, Listener listener) {
+	Miss m;
+	synchronized (this) {
+	    m = misses.get (key);
+	    if (m == null) {
+		m = new Miss (key);
+		misses.put (key, m);
+		led++;
+		return m;
+	    }
+	    collapsed++;
+	    if (!m.hasData) {
+		Follower f = new Follower (m, listener);
+		m.followers.add (f);
+		timer.schedule (f, timeout);
+		return null;
+	    }
+	}
+	listener.missStarted (m);
+	return null;
+    }
+
+    /** Get the statistics of this collapser.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Collapsed misses in progress",
+		   Integer.toString (misses.size ()));
+	stats.put ("Collapsed misses led", Long.toString (led));
+	stats.put ("Collapsed requests", Long.toString (collapsed));
+	stats.put ("Collapsed requests abandoned", Long.toString (abandoned));
+	stats.put ("Collapsed requests timed out", Long.toString (timedOut));
+	stats.put ("Collapsed requests stalled", Long.toString (stalled));
+	return stats;
+    }
+
+    /** A follower that waits for the leader to start. */
+    private class Follower extends TimerTask {
+	private final Miss miss;
+	private final Listener listener;
+
+	public Follower (Miss miss, Listener listener) {
+	    this.miss = miss;
+	    this.listener = listener;
+	}
+
+	public void run () {
+	    synchronized (MissCollapser.this) {
+		if (!miss.followers.remove (this))
+		    return;
+		timedOut++;
+	    }
+	    listener.missAbandoned ();
+	}
+    }
+
+    /** One resource that is being fetched.
+     */
+    public class Miss {
+	private final String key;
+	// all fields below are guarded by the MissCollapser
+	private final List<Follower> followers = new ArrayList<Follower> ();
+	private final Map<Runnable, Waker> waiters =
+	    new HashMap<Runnable, Waker> ();
+	private boolean started = false;
+	private boolean hasData = false;
+	private boolean done = false;
+	private boolean failed = false;
+	private HttpHeader header;
+	private File file;
+	private long size;
+	private long version = 0;
+	private long lastWrite;
+
+	private Miss (String key) {
+	    this.key = key;
+	}
+
+	/** The leader has started to write the resource to the cache file.
+	 * @param header the response header, without any private parts
+	 * @param file the cache file that is being written
+	 * @param size the size of the resource
+	 */
+	public void start (HttpHeader header, File file, long size) {
+	    synchronized (MissCollapser.this) {
+		if (started || done)
+		    return;
+		this.header = header;
+		this.file = file;
+		this.size = size;
+		started = true;
+		lastWrite = System.currentTimeMillis ();
+	    }
+	}
+
+	/** The leader has handed more data to the cache file.
+	 *  The followers are let in on the first data, so that they can
+	 *  still fetch the resource themselves if the leader fails before
+	 *  that.
+	 */
+	public void dataWritten () {
+	    List<Follower> ls = null;
+	    synchronized (MissCollapser.this) {
+		if (started && !done && !hasData) {
+		    hasData = true;
+		    ls = takeFollowers ();
+		}
+	    }
+	    if (ls != null)
+		for (Follower f : ls)
+		    f.listener.missStarted (this);
+	    wakeUp ();
+	}
+
+	/** The leader is done with the cache file.
+	 * @param ok true if the whole resource has been written
+	 */
+	public void finished (boolean ok) {
+	    List<Follower> ls;
+	    synchronized (MissCollapser.this) {
+		if (done)
+		    return;
+		done = true;
+		failed = !ok;
+		removeMiss ();
+		ls = takeFollowers ();
+		abandoned += ls.size ();
+	    }
+	    for (Follower f : ls)
+		f.listener.missAbandoned ();
+	    wakeUp ();
+	}
+
+	/** The leader has finished its request, if it never started to
+	 *  write the resource the followers have to fetch it themselves.
+	 */
+	public void leaderDone () {
+	    synchronized (MissCollapser.this) {
+		if (started)
+		    return;
+	    }
+	    finished (false);
+	}
+
+	private List<Follower> takeFollowers () {
+	    List<Follower> ls = new ArrayList<Follower> (followers);
+	    followers.clear ();
+	    for (Follower f : ls)
+		f.cancel ();
+	    return ls;
+	}
+
+	private void removeMiss () {
+	    if (misses.get (key) == this)
+		misses.remove (key);
+	}
+
+	private void wakeUp () {
+	    List<Runnable> ls;
+	    synchronized (MissCollapser.this) {
+		version++;
+		lastWrite = System.currentTimeMillis ();
+		ls = new ArrayList<Runnable> (waiters.keySet ());
+		for (Waker w : waiters.values ())
+		    w.cancel ();
+		waiters.clear ();
+	    }
+	    for (Runnable r : ls)
+		r.run ();
+	}
+
+	/** Get a copy of the response header, without the headers that
+	 *  only were meant for the leaders client.
+	 * @return a new response header
+	 */
+	public HttpHeader getHeader () {
+	    HttpHeader h = new HttpHeader ();
+	    synchronized (MissCollapser.this) {
+		h.setStatusLine (header.getStatusLine ());
+		header.copyHeader (h);
+	    }
+	    for (String hop : HOP_HEADERS)
+		h.removeHeader (hop);
+	    return h;
+	}
+
+	/** Get the cache file that is being written.
+	 * @return the cache file
+	 */
+	public File getFile () {
+	    synchronized (MissCollapser.this) {
+		return file;
+	    }
+	}
+
+	/** Get the size of the resource.
+	 * @return the number of bytes in the resource
+	 */
+	public long getSize () {
+	    synchronized (MissCollapser.this) {
+		return size;
+	    }
+	}
+
+	/** Check if the leader failed to write the resource.
+	 * @return true if the cache file will not be completed
+	 */
+	public boolean isFailed () {
+	    synchronized (MissCollapser.this) {
+		return failed;
+	    }
+	}
+
+	/** Check if the leader is done with the cache file.
+	 * @return true if no more data will be written
+	 */
+	public boolean isDone () {
+	    synchronized (MissCollapser.this) {
+		return done;
+	    }
+	}
+
+	/** Check if the leader has stopped writing to the cache file.
+	 * @return true if the leader is not done but has not written
+	 *         anything for the timeout
+	 */
+	public boolean isStalled () {
+	    synchronized (MissCollapser.this) {
+		return !done &&
+		    System.currentTimeMillis () - lastWrite >= timeout;
+	    }
+	}
+
+	/** Get the current version, it changes every time data is
+	 *  written or the leader finishes.
+	 * @return the current version
+	 */
+	public long getVersion () {
+	    synchronized (MissCollapser.this) {
+		return version;
+	    }
+	}
+
+	/** Wait for more data.
+	 * @param version the version that the caller has seen
+	 * @param r the task to run once the version has changed, it is
+	 *        run at once if the version already has changed and it is
+	 *        also run if the leader writes nothing for the timeout
+	 */
+	public void await (long version, Runnable r) {
+	    synchronized (MissCollapser.this) {
+		if (version == this.version) {
+		    Waker w = new Waker (this, r);
+		    waiters.put (r, w);
+		    long idle = System.currentTimeMillis () - lastWrite;
+		    timer.schedule (w, Math.max (timeout - idle, 0));
+		    return;
+		}
+	    }
+	    r.run ();
+	}
+
+	/** Stop waiting for more data.
+	 * @param r the task given to await
+	 */
+	public void removeWaiter (Runnable r) {
+	    synchronized (MissCollapser.this) {
+		Waker w = waiters.remove (r);
+		if (w != null)
+		    w.cancel ();
+	    }
+	}
+    }
+
+    /** Wakes a follower when its leader has written nothing for the
+     *  timeout.
+     */
+    private class Waker extends TimerTask {
+	private final Miss miss;
+	private final Runnable task;
+
+	public Waker (Miss miss, Runnable task) {
+	    this.miss = miss;
+	    this.task = task;
+	}
+
+	public void run () {
+	    synchronized (MissCollapser.this) {
+		if (miss.waiters.get (task) != this)
+		    return;
+		miss.waiters.remove (task);
+		stalled++;
+	    }
+	    task.run ();
+	}
+    }
+}
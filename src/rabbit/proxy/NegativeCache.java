@@ -0,0 +1,396 @@
+package rabbit.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.khelekore.rnio.BufferHandler;
+import rabbit.http.HttpDateParser;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.io.BufferHandle;
+
+/** A small memory cache of error and redirect responses.
+ *
+ *  Responses like "404 Not found" or "301 Moved permanently" are not
+ *  stored in the real cache, but they are often requested over and
+ *  over. A response with a status that has a time to live configured
+ *  and a small body is kept in memory for that time, or for the time
+ *  that the Cache-Control or Expires headers of the response give it,
+ *  and is handled like a response from the server when it is used.
+ *  Requests with credentials or cookies may get a response for that
+ *  user only, so they are never cached or answered from the cache.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class NegativeCache {
+    private static final String[] REMOVED_HEADERS = {
+	"Connection", "Proxy-Connection", "Keep-Alive", "Transfer-Encoding",
+	"Content-Length", "Age"
+    };
+    private static final String[] PRIVATE_HEADERS = {
+	"Authorization", "Cookie", "Cookie2"
+    };
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    // all fields below are guarded by this
+    private final Map<Integer, Long> timesToLive =
+	new HashMap<Integer, Long> ();
+    private int maxSize = 16384;
+    private int maxEntries = 1000;
+    private final Map<String, Response> entries =
+	new LinkedHashMap<String, Response> (16, 0.75f, true) {
+	    private static final long serialVersionUID = 20261017;
+
+	    @Override
+	    protected boolean removeEldestEntry (Map.Entry<String,
+						 Response> eldest) {
+		return size () > maxEntries;
+	    }
+	};
+    private long stored = 0;
+    private long hits = 0;
+
+    /** One cached response. */
+    private static class Response {
+	private final HttpHeader response;
+	private final byte[] content;
+	private final long age;
+	private final long storedAt;
+	private final long expires;
+
+	public Response (HttpHeader response, byte[] content, long age,
+			 long storedAt, long expires) {
+	    this.response = response;
+	    this.content = content;
+	    this.age = age;
+	    this.storedAt = storedAt;
+	    this.expires = expires;
+	}
+    }
+
+    /** Set the configuration of this cache.
+     * @param ttls the status codes to cache and the number of seconds
+     *        to cache them, like "404:30,410:300"
+     * @param maxSize the largest response body to cache, in bytes
+     * @param maxEntries the number of responses to cache
+     */
+    public synchronized void setup (String ttls, int maxSize,
+				    int maxEntries) {
+	timesToLive.clear ();
+	for (String s : ttls.split (",")) {
+	    s = s.trim ();
+	    if (s.isEmpty ())
+		continue;
+	    int i = s.indexOf (':');
+	    try {
+		if (i < 0)
+		    throw new NumberFormatException ("no time to live");
+		int status = Integer.parseInt (s.substring (0, i).trim ());
+		long ttl = Long.parseLong (s.substring (i + 1).trim ());
+		if (ttl > 0)
+		    timesToLive.put (status, ttl * 1000);
+	    } catch (NumberFormatException e) {
+		logger.warning ("Bad negative cache time to live: '" + s +
+				"': " + e);
+	    }
+	}
+	this.maxSize = Math.max (0, maxSize);
+	this.maxEntries = Math.max (1, maxEntries);
+	entries.clear ();
+    }
+
+    /** Cache a response once all of it has been read.
+     * @param request the request that the response is for
+     * @param response the response from the server
+     * @param content the resource of the response
+     * @return the resource to read the response from, the given
+     *         resource if the response should not be cached
+     */
+    public ResourceSource capture (HttpHeader request, HttpHeader response,
+				   ResourceSource content) {
+	if (!"GET".equals (request.getMethod ()) || isPrivate (request)
+	    || hasToken (request, "no-store")
+	    || response.getHeader ("Vary") != null
+	    || response.getHeader ("Set-Cookie") != null
+	    || response.getHeader ("Set-Cookie2") != null)
+	    return content;
+	long ttl = getTimeToLive (response);
+	if (ttl <= 0)
+	    return content;
+	long size = -1;
+	String cl = response.getHeader ("Content-Length");
+	if (cl != null && response.getHeader ("Transfer-Encoding") == null) {
+	    try {
+		size = Long.parseLong (cl.trim ());
+	    } catch (NumberFormatException e) {
+		return content;
+	    }
+	}
+	int max;
+	synchronized (this) {
+	    max = maxSize;
+	}
+	if (size > max)
+	    return content;
+	HttpHeader h = new HttpHeader ();
+	h.setStatusLine (response.getStatusLine ());
+	response.copyHeader (h);
+	return new Capture (request.getRequestURI (), h, content, ttl, size,
+			    max);
+    }
+
+    /** Get the time to live of a response.
+     * @return the time to live in millis, 0 if the response may not
+     *         be cached
+     */
+    private long getTimeToLive (HttpHeader response) {
+	int status;
+	try {
+	    status = Integer.parseInt (response.getStatusCode ().trim ());
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+	Long ttl;
+	synchronized (this) {
+	    ttl = timesToLive.get (status);
+	}
+	if (ttl == null)
+	    return 0;
+	long maxAge = -1;
+	for (String cc : response.getHeaders ("Cache-Control")) {
+	    for (String c : cc.split (",")) {
+		c = c.trim ().toLowerCase ();
+		if (c.equals ("no-store") || c.equals ("no-cache")
+		    || c.startsWith ("private"))
+		    return 0;
+		if (c.startsWith ("s-maxage="))
+		    maxAge = getSeconds (c);
+		else if (c.startsWith ("max-age=") && maxAge < 0)
+		    maxAge = getSeconds (c);
+	    }
+	}
+	if (maxAge >= 0)
+	    return maxAge * 1000;
+	String expires = response.getHeader ("Expires");
+	if (expires != null) {
+	    long exp = HttpDateParser.getTime (expires);
+	    if (exp == -1)
+		return 0;
+	    long now = HttpDateParser.getTime (response.getHeader ("Date"));
+	    if (now == -1)
+		now = System.currentTimeMillis ();
+	    return Math.max (0, exp - now);
+	}
+	return ttl;
+    }
+
+    private long getSeconds (String directive) {
+	try {
+	    String s = directive.substring (directive.indexOf ('=') + 1);
+	    return Math.max (0, Long.parseLong (s.trim ()));
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    private boolean isPrivate (HttpHeader request) {
+	for (String h : PRIVATE_HEADERS)
+	    if (request.getHeader (h) != null)
+		return true;
+	return false;
+    }
+
+    private boolean hasToken (HttpHeader header, String token) {
+	for (String cc : header.getHeaders ("Cache-Control"))
+	    for (String c : cc.split (","))
+		if (c.trim ().equalsIgnoreCase (token))
+		    return true;
+	return false;
+    }
+
+    private synchronized void store (String uri, Response e) {
+	entries.put (uri, e);
+	stored++;
+    }
+
+    /** Get a cached response for a request.
+     * @param request the request from the client
+     * @param rh the RequestHandler to set the response and its resource in
+     * @param bufHandler the BufferHandler to read the resource with
+     * @return true if a cached response was found
+     */
+    public boolean getResponse (HttpHeader request, RequestHandler rh,
+				BufferHandler bufHandler) {
+	if (!"GET".equals (request.getMethod ()) || isPrivate (request))
+	    return false;
+	String uri = request.getRequestURI ();
+	long now = System.currentTimeMillis ();
+	Response r;
+	synchronized (this) {
+	    if (entries.isEmpty ())
+		return false;
+	    r = entries.get (uri);
+	    if (r == null)
+		return false;
+	    if (r.expires <= now) {
+		entries.remove (uri);
+		return false;
+	    }
+	    hits++;
+	}
+	HttpHeader h = new HttpHeader ();
+	h.setStatusLine (r.response.getStatusLine ());
+	r.response.copyHeader (h);
+	long age = r.age + (now - r.storedAt) / 1000;
+	if (age > 0)
+	    h.setHeader ("Age", Long.toString (age));
+	rh.setWebHeader (h);
+	rh.setContent (new MemoryResourceSource (ByteBuffer.wrap (r.content),
+						 bufHandler));
+	rh.setSize (r.content.length);
+	return true;
+    }
+
+    /** Remove any cached response for the resource of a request.
+     * @param request the request that may change the resource
+     */
+    public synchronized void remove (HttpHeader request) {
+	if (!entries.isEmpty ())
+	    entries.remove (request.getRequestURI ());
+    }
+
+    /** Get the statistics of this cache.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Negative cache entries", Integer.toString (entries.size ()));
+	stats.put ("Negative cache stored", Long.toString (stored));
+	stats.put ("Negative cache hits", Long.toString (hits));
+	return stats;
+    }
+
+    /** A resource that keeps a copy of the data that is read from it,
+     *  the copy is cached once all of the resource has been read.
+     */
+    private class Capture implements ResourceSource, BlockListener {
+	private final String uri;
+	private final HttpHeader response;
+	private final ResourceSource source;
+	private final long ttl;
+	private final long size;
+	private final int max;
+	private BlockListener listener;
+	private byte[] data;
+	private int pos = 0;
+
+	public Capture (String uri, HttpHeader response, ResourceSource source,
+			long ttl, long size, int max) {
+	    this.uri = uri;
+	    this.response = response;
+	    this.source = source;
+	    this.ttl = ttl;
+	    this.size = size;
+	    this.max = max;
+	    data = new byte[size >= 0 ? (int)size : Math.min (max, 1024)];
+	}
+
+	/** Transfers would not be seen, so always use block listeners.
+	 * @return false
+	 */
+	public boolean supportsTransfer () {
+	    return false;
+	}
+
+	public long length () {
+	    return source.length ();
+	}
+
+	public long transferTo (long position, long count,
+				WritableByteChannel target)
+	    throws IOException {
+	    data = null;
+	    return source.transferTo (position, count, target);
+	}
+
+	public void addBlockListener (BlockListener listener) {
+	    this.listener = listener;
+	    source.addBlockListener (this);
+	}
+
+	public void release () {
+	    source.release ();
+	}
+
+	public void bufferRead (BufferHandle bufHandle) {
+	    if (data != null)
+		write (bufHandle.getBuffer ());
+	    listener.bufferRead (bufHandle);
+	}
+
+	private void write (ByteBuffer buf) {
+	    int len = buf.remaining ();
+	    if (pos + len > max) {
+		data = null;
+		return;
+	    }
+	    if (pos + len > data.length) {
+		byte[] b = new byte[Math.min (max, Math.max (pos + len,
+							     data.length * 2))];
+		System.arraycopy (data, 0, b, 0, pos);
+		data = b;
+	    }
+	    buf.duplicate ().get (data, pos, len);
+	    pos += len;
+	}
+
+	public void finishedRead () {
+	    finished ();
+	    listener.finishedRead ();
+	}
+
+	public void failed (Exception cause) {
+	    data = null;
+	    listener.failed (cause);
+	}
+
+	public void timeout () {
+	    data = null;
+	    listener.timeout ();
+	}
+
+	private void finished () {
+	    if (data == null || (size >= 0 && pos != size))
+		return;
+	    byte[] content = data;
+	    data = null;
+	    if (pos != content.length) {
+		byte[] b = new byte[pos];
+		System.arraycopy (content, 0, b, 0, pos);
+		content = b;
+	    }
+	    long age = 0;
+	    String a = response.getHeader ("Age");
+	    if (a != null) {
+		try {
+		    age = Math.max (0, Long.parseLong (a.trim ()));
+		} catch (NumberFormatException e) {
+		    // treat it as a new response
+		}
+	    }
+	    for (String h : REMOVED_HEADERS)
+		response.removeHeader (h);
+	    response.setHeader ("Content-Length", Integer.toString (pos));
+	    long now = System.currentTimeMillis ();
+	    long expires = now + ttl - age * 1000;
+	    if (expires > now)
+		store (uri, new Response (response, content, age, now, expires));
+	}
+    }
+}
@@ -1,6 +1,5 @@
 package rabbit.proxy;
 
-import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 import rabbit.cache.CacheEntry;
@@ -42,22 +41,22 @@ class NotModifiedHandler {
 	String range = in.getHeader ("Range");
 	boolean mustUseStrong = range != null;
 	boolean etagMatch = false;
-	Date ims = null;
-	Date ums = null;
-	Date dm = null;
+	long ims = -1;
+	long ums = -1;
+	long dm = -1;
 	if (sims != null) 
-	    ims = HttpDateParser.getDate (sims);
+	    ims = HttpDateParser.getTime (sims);
 	if (sums != null)
-	    ums = HttpDateParser.getDate (sums);
-	if (ims != null || ums != null) {
+	    ums = HttpDateParser.getTime (sums);
+	if (ims != -1 || ums != -1) {
 	    String lm = oldresp.getHeader ("Last-Modified");
 	    if (lm == null)
 		return ematch (httpGenerator, etagMatch, oldresp);
-	    dm = HttpDateParser.getDate (lm);
+	    dm = HttpDateParser.getTime (lm);
 	}
 	
 	long diff;
-	if (ums != null && (diff = dm.getTime () - ums.getTime ()) >= 0) {
+	if (ums != -1 && dm != -1 && (diff = dm - ums) >= 0) {
 	    if (mustUseStrong && diff > 60000)
 		return httpGenerator.get412 ();
 	    return httpGenerator.get412 ();
@@ -83,20 +82,20 @@ class NotModifiedHandler {
 	/* Here we may or may not have a etagMatch.
 	 * Etagmatch and bad(nonexistant/unparsable..) IMS => act on etag
 	 */
-	if (ims == null) {
+	if (ims == -1) {
 	    Logger logger = Logger.getLogger (getClass ().getName ());
 	    logger.info ("unparseable date: " + sims + 
 			 " for URL: " + in.getRequestURI ());
 	    return ematch (httpGenerator, etagMatch, oldresp);
 	}
 	
-	if (dm == null)
+	if (dm == -1)
 	    return ematch (httpGenerator, etagMatch, oldresp);
 	
-	if (dm.after (ims)) 
+	if (dm > ims) 
 	    return null;
 	if (vinm.size () < 1) {
-	    if (mustUseStrong && dm.getTime () - ims.getTime () < 60000) 
+	    if (mustUseStrong && dm - ims < 60000) 
 		return null;
 	    return httpGenerator.get304 (oldresp);
 	}
@@ -110,9 +109,9 @@ class NotModifiedHandler {
 	return null;
     }
 
-    private void updateHeader (RequestHandler rh, 
+    private void updateHeader (HttpHeader webHeader,
 			       HttpHeader cachedHeader, String header) {
-	String h = rh.getWebHeader ().getHeader (header);
+	String h = webHeader.getHeader (header);
 	if (h != null)
 	    cachedHeader.setHeader (header, h);
     }
@@ -120,17 +119,25 @@ class NotModifiedHandler {
     void updateHeader (RequestHandler rh) {
 	if (rh.getEntry () == null)
 	    return;
-	HttpHeader cachedHeader = rh.getDataHook ();
-	updateHeader (rh, cachedHeader, "Date");
-	updateHeader (rh, cachedHeader, "Expires");
-	updateHeader (rh, cachedHeader, "Content-Location");
-	List<String> ccs = rh.getWebHeader ().getHeaders ("Cache-Control");
+	updateHeader (rh.getDataHook (), rh.getWebHeader ());
+    }
+
+    /** Update a cached response header with the headers of a
+     *  "304 Not modified" response.
+     * @param cachedHeader the cached response header to update
+     * @param webHeader the 304 response
+     */
+    void updateHeader (HttpHeader cachedHeader, HttpHeader webHeader) {
+	updateHeader (webHeader, cachedHeader, "Date");
+	updateHeader (webHeader, cachedHeader, "Expires");
+	updateHeader (webHeader, cachedHeader, "Content-Location");
+	List<String> ccs = webHeader.getHeaders ("Cache-Control");
 	if (ccs.size () > 0) {
 	    cachedHeader.removeHeader ("Cache-Control");
 	    for (String cc : ccs)
 		cachedHeader.addHeader ("Cache-Control", cc);
 	}
-	List<String> varys = rh.getWebHeader ().getHeaders ("Vary");
+	List<String> varys = webHeader.getHeaders ("Vary");
 	if (varys.size () > 0) {
 	    cachedHeader.removeHeader ("Vary");
 	    for (String v : varys) 
@@ -139,6 +146,6 @@ class NotModifiedHandler {
 	
 	WarningsHandler wh = new WarningsHandler ();
 	wh.removeWarnings (cachedHeader, true); 
-	wh.updateWarnings (cachedHeader, rh.getWebHeader ());	
+	wh.updateWarnings (cachedHeader, webHeader);	
     }   
 }
@@ -0,0 +1,165 @@
+package rabbit.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/** The requests that a client has sent on one connection without
+ *  waiting for the responses, that is http/1.1 pipelining.
+ *
+ *  Each request is handled by its own Connection so the requests are
+ *  filtered, looked up in the cache and fetched at the same time, but
+ *  only the first connection in the pipeline may write to the client.
+ *  The other connections wait with their responses until the ones
+ *  before them are done, so the responses are sent in the order that
+ *  the requests came in. A waiting response is not read further than
+ *  the data that came with its header, the rest is left with the
+ *  server until it is the turn of the response. Once the waiting
+ *  responses hold too much data the requests that need to go to a
+ *  server wait for their turn before they do.
+ *
+ *  If the client connection is closed the waiting connections are
+ *  aborted.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class Pipeline {
+    // all fields are guarded by this
+    private final LinkedList<Connection> connections =
+	new LinkedList<Connection> ();
+    private final Map<Connection, Turn> waiting =
+	new HashMap<Connection, Turn> ();
+    private int buffered = 0;
+    private boolean closed = false;
+
+    /** What a connection does once it may write its response. */
+    private static class Turn {
+	private final Runnable task;
+	private final int bytes;
+
+	public Turn (Runnable task, int bytes) {
+	    this.task = task;
+	    this.bytes = bytes;
+	}
+    }
+
+    /** Create a new Pipeline.
+     * @param first the connection that currently handles the client
+     */
+    public Pipeline (Connection first) {
+	connections.add (first);
+    }
+
+    /** Check if another request may be handled ahead of its turn.
+     * @param maxDepth the largest number of requests in the pipeline
+     * @return true if a new connection may be added
+     */
+    public synchronized boolean mayGrow (int maxDepth) {
+	return !closed && connections.size () < maxDepth;
+    }
+
+    /** Check if the waiting connections hold too much response data
+     *  for more responses to be fetched ahead of their turn.
+     * @param maxBuffered the largest number of response bytes that may
+     *        be held by waiting connections
+     * @return true if no more responses should be fetched
+     */
+    public synchronized boolean isFull (int maxBuffered) {
+	return buffered >= maxBuffered;
+    }
+
+    /** Add a connection last in the pipeline.
+     * @param con the connection to add
+     */
+    public synchronized void add (Connection con) {
+	connections.add (con);
+    }
+
+    /** Remove a connection that did not get a request.
+     * @param con the connection to remove
+     */
+    public synchronized void remove (Connection con) {
+	connections.remove (con);
+    }
+
+    /** Check if a connection is the one that may write to the client.
+     * @param con the connection to check
+     * @return true if the connection is first in the pipeline
+     */
+    public synchronized boolean isFirst (Connection con) {
+	return connections.getFirst () == con;
+    }
+
+    /** Check if a connection may write its response now. If it may not
+     *  the task is run once it is the turn of the connection.
+     *  If the client connection has been closed the connection is
+     *  aborted instead.
+     * @param con the connection that has a response to write
+     * @param task what to do when it is the turn of the connection
+     * @param bytes the number of response bytes that are held while
+     *        the connection waits
+     * @return true if the connection may write now
+     */
+    public boolean takeTurn (Connection con, Runnable task, int bytes) {
+	synchronized (this) {
+	    if (!closed) {
+		if (connections.getFirst () == con)
+		    return true;
+		waiting.put (con, new Turn (task, bytes));
+		buffered += bytes;
+		return false;
+	    }
+	}
+	con.pipelineAborted ();
+	return false;
+    }
+
+    /** The first connection is done and the client connection is kept
+     *  alive. Let the next connection write its response.
+     * @param con the first connection
+     * @return the task the next connection waits with, null if it is
+     *         not waiting yet
+     * @throws IllegalStateException if there is no next connection
+     */
+    public Runnable handOver (Connection con) {
+	synchronized (this) {
+	    if (connections.size () < 2 || connections.getFirst () != con)
+		throw new IllegalStateException ("Not first in pipeline: " +
+						 con);
+	    connections.removeFirst ();
+	    Turn t = waiting.remove (connections.getFirst ());
+	    if (t == null)
+		return null;
+	    buffered -= t.bytes;
+	    return t.task;
+	}
+    }
+
+    /** Check if the first connection has other connections after it.
+     * @param con the first connection
+     * @return true if there are requests waiting
+     */
+    public synchronized boolean hasNext (Connection con) {
+	return connections.size () > 1 && connections.getFirst () == con;
+    }
+
+    /** The client connection has been closed, abort the connections
+     *  that wait for their turn. Connections that are still working
+     *  are aborted once they try to write their responses.
+     */
+    public void close () {
+	List<Connection> aborted;
+	synchronized (this) {
+	    if (closed)
+		return;
+	    closed = true;
+	    aborted = new ArrayList<Connection> (waiting.keySet ());
+	    waiting.clear ();
+	    buffered = 0;
+	}
+	for (Connection c : aborted)
+	    c.pipelineAborted ();
+    }
+}
@@ -3,7 +3,6 @@ package rabbit.proxy;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -14,6 +13,7 @@ import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import rabbit.http.HttpDateParser;
 import rabbit.util.SProperties;
 
 /** A class to handle proxy logging.
@@ -25,19 +25,12 @@ public class ProxyLogger implements ConnectionLogger {
     /** Output for accesses */
     private Logger accessLog;
 
-    /** The format we write dates on. */
-    private final SimpleDateFormat sdf =
-    new SimpleDateFormat ("dd/MMM/yyyy:HH:mm:ss 'GMT'");
-
-    /** The monitor for sdf. */
-    private final Object sdfMonitor = new Object ();
-
     /** The distance to GMT in milis. */
     private final long offset;
 
     /** Create a new ProxyLogger. */
     public ProxyLogger () {
-	TimeZone tz = sdf.getTimeZone ();
+	TimeZone tz = TimeZone.getDefault ();
 	GregorianCalendar gc = new GregorianCalendar ();
 	gc.setTime (new Date ());
 	offset = tz.getOffset (gc.get (Calendar.ERA),
@@ -125,11 +118,7 @@ public class ProxyLogger implements ConnectionLogger {
 	sb.append (" - ");
 	sb.append ((con.getUserName () != null ? con.getUserName () : "-"));
 	sb.append (" ");
-	long now = System.currentTimeMillis ();
-	Date d = new Date (now - offset);
-	synchronized (sdfMonitor) {
-	    sb.append (sdf.format (d));
-	}
+	sb.append (HttpDateParser.getCurrentLogDateString ());
 	sb.append (" \"");
 	sb.append (con.getRequestLine ());
 	sb.append ("\" ");
@@ -76,7 +76,7 @@ public class RandomCacheResourceSource extends CacheResourceSource {
     private void updateBufferAndPosition (ByteBuffer buffer, Range r) 
 	throws IOException {
 	if (startBlock) {
-	    fc.position (r.getStart ());
+	    fc.position (offset + r.getStart ());
 	    currentIndex = r.getStart ();
 	    startBlock = false;
 	}
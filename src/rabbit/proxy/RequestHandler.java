@@ -18,6 +18,7 @@ class RequestHandler {
     private ResourceSource content = null;
     private HttpHeader webHeader = null;
     private CacheEntry<HttpHeader, HttpHeader> entry = null;
+    private HttpHeader cacheKey = null; // the key the entry was looked up by
     private HttpHeader dataHook = null; // the entrys datahook if any.
     private HandlerFactory handlerFactory = null;
     private long size = -1;
@@ -65,6 +66,14 @@ class RequestHandler {
 	this.entry = entry;
     }
 
+    public synchronized HttpHeader getCacheKey () {
+	return cacheKey;
+    }
+
+    public synchronized void setCacheKey (HttpHeader cacheKey) {
+	this.cacheKey = cacheKey;
+    }
+
     public synchronized WebConnection getWebConnection () {
 	return wc;
     }
@@ -0,0 +1,361 @@
+package rabbit.proxy;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.khelekore.rnio.impl.Closer;
+import org.khelekore.rnio.impl.DefaultTaskIdentifier;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.http.HttpDateParser;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.HttpResponseListener;
+import rabbit.httpio.HttpResponseReader;
+import rabbit.io.BufferHandle;
+import rabbit.io.Resolver;
+import rabbit.io.WebConnection;
+import rabbit.io.WebConnectionListener;
+
+/** A class that revalidates cached resources in the background.
+ *
+ *  A cached resource that has gone stale, but that is still within the
+ *  stale-while-revalidate time that the server gave it, is served from
+ *  the cache while a conditional request is sent to the server. A
+ *  resource that is requested often in the last part of its freshness
+ *  lifetime is refreshed ahead of time, so that it never goes stale.
+ *
+ *  Only one revalidation is made for each resource at a time. A
+ *  "304 Not modified" response updates the cache entry, any other full
+ *  response removes the entry so that the next request fetches the new
+ *  resource.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class Revalidator {
+    private static final String[] REMOVED_HEADERS = {
+	"Connection", "Proxy-Connection", "Keep-Alive", "Range", "If-Range",
+	"If-Match", "If-None-Match", "If-Modified-Since",
+	"If-Unmodified-Since", "Cache-Control", "Pragma"
+    };
+    private static final int MAX_TRACKED = 10000;
+
+    private final HttpProxy proxy;
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    // all fields below are guarded by this
+    private final Set<String> running = new HashSet<String> ();
+    private final Map<String, Integer> nearExpiry =
+	new HashMap<String, Integer> ();
+    private boolean staleWhileRevalidate = true;
+    private int refreshAhead = 10;
+    private int refreshAheadHits = 2;
+    private long started = 0;
+    private long notModified = 0;
+    private long changed = 0;
+    private long failed = 0;
+    private long refreshedAhead = 0;
+
+    /** Create a new Revalidator.
+     * @param proxy the HttpProxy to get web connections from
+     */
+    public Revalidator (HttpProxy proxy) {
+	this.proxy = proxy;
+    }
+
+    /** Set the configuration of this revalidator.
+     * @param staleWhileRevalidate if false stale resources are always
+     *        revalidated before they are used
+     * @param refreshAhead the last part, in percent, of the freshness
+     *        lifetime of a resource in which it may be refreshed, 0 to
+     *        never refresh ahead
+     * @param refreshAheadHits the number of requests in that part that
+     *        makes a resource popular enough to refresh
+     */
+    public synchronized void setup (boolean staleWhileRevalidate,
+				    int refreshAhead, int refreshAheadHits) {
+	this.staleWhileRevalidate = staleWhileRevalidate;
+	this.refreshAhead = Math.max (0, Math.min (100, refreshAhead));
+	this.refreshAheadHits = Math.max (1, refreshAheadHits);
+    }
+
+    /** Get the time a response may be used while it is revalidated,
+     *  after it has gone stale.
+     * @param resp the response header
+     * @return the stale-while-revalidate time in millis, 0 if the
+     *         response may not be used once it is stale
+     */
+    public long getStaleWhileRevalidate (HttpHeader resp) {
+	synchronized (this) {
+	    if (!staleWhileRevalidate)
+		return 0;
+	}
+	long swr = getCacheControlSeconds (resp, "stale-while-revalidate=");
+	return Math.max (0, swr * 1000);
+    }
+
+    /** Get the number of seconds of a Cache-Control directive.
+     * @param resp the response header
+     * @param directive the directive, including the '='
+     * @return the seconds or -1 if the directive is missing or bad
+     */
+    private long getCacheControlSeconds (HttpHeader resp, String directive) {
+	for (String cc : resp.getHeaders ("Cache-Control")) {
+	    for (String c : cc.split (",")) {
+		c = c.trim ();
+		if (c.startsWith (directive)) {
+		    try {
+			String v = c.substring (directive.length ());
+			long l = Long.parseLong (v);
+			return Math.max (0, l);
+		    } catch (NumberFormatException e) {
+			logger.warning ("Bad number for " + directive + " '" +
+					c + "'");
+			return -1;
+		    }
+		}
+	    }
+	}
+	return -1;
+    }
+
+    /** Count a request for a fresh resource and check if it should be
+     *  refreshed ahead of time.
+     * @param id the uri of the cache key of the resource
+     * @param age the current age of the resource, in millis
+     * @param lifetime the freshness lifetime of the resource, in millis
+     * @return true if the resource should be revalidated now
+     */
+    public synchronized boolean shouldRefreshAhead (String id, long age,
+						    long lifetime) {
+	if (refreshAhead == 0 || lifetime <= 0
+	    || age < lifetime - lifetime * refreshAhead / 100)
+	    return false;
+	if (running.contains (id))
+	    return false;
+	Integer i = nearExpiry.get (id);
+	int hits = i == null ? 1 : i + 1;
+	if (hits < refreshAheadHits) {
+	    if (nearExpiry.size () >= MAX_TRACKED)
+		nearExpiry.clear ();
+	    nearExpiry.put (id, hits);
+	    return false;
+	}
+	nearExpiry.remove (id);
+	refreshedAhead++;
+	return true;
+    }
+
+    /** Revalidate a cached resource in the background, unless it is
+     *  already being revalidated.
+     * @param request the request for the resource
+     * @param cacheKey the key the entry was found by
+     * @param entry the cache entry to revalidate
+     */
+    public void revalidate (HttpHeader request, HttpHeader cacheKey,
+			    CacheEntry<HttpHeader, HttpHeader> entry) {
+	String id = cacheKey.getRequestURI ();
+	// The connection adds its own headers to the cached response
+	// header, so take a copy of it now.
+	HttpHeader cached = copyResponse (entry.getDataHook ());
+	HttpHeader key = copy (cacheKey);
+	HttpHeader req = copy (request);
+	for (String h : REMOVED_HEADERS)
+	    req.removeHeader (h);
+	String etag = cached.getHeader ("ETag");
+	String lmod = cached.getHeader ("Last-Modified");
+	if (etag != null)
+	    req.setHeader ("If-None-Match", etag);
+	else if (lmod != null)
+	    req.setHeader ("If-Modified-Since", lmod);
+	else
+	    return;
+	synchronized (this) {
+	    if (!running.add (id))
+		return;
+	    nearExpiry.remove (id);
+	    started++;
+	}
+	Revalidation r = new Revalidation (id, key, req, cached, entry);
+	proxy.getWebConnection (req, r);
+    }
+
+    private HttpHeader copy (HttpHeader request) {
+	HttpHeader h = new HttpHeader ();
+	h.setRequestLine (request.getRequestLine ());
+	request.copyHeader (h);
+	return h;
+    }
+
+    private HttpHeader copyResponse (HttpHeader response) {
+	HttpHeader h = new HttpHeader ();
+	h.setStatusLine (response.getStatusLine ());
+	response.copyHeader (h);
+	return h;
+    }
+
+    private synchronized void done (String id) {
+	running.remove (id);
+    }
+
+    /** Get the statistics of this revalidator.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Background revalidations in progress",
+		   Integer.toString (running.size ()));
+	stats.put ("Background revalidations", Long.toString (started));
+	stats.put ("Background revalidations refreshing ahead",
+		   Long.toString (refreshedAhead));
+	stats.put ("Background revalidations not modified",
+		   Long.toString (notModified));
+	stats.put ("Background revalidations changed",
+		   Long.toString (changed));
+	stats.put ("Background revalidations failed", Long.toString (failed));
+	return stats;
+    }
+
+    /** One conditional request for a cached resource.
+     */
+    private class Revalidation
+	implements WebConnectionListener, HttpResponseListener {
+	private final String id;
+	private final String uri;
+	private final HttpHeader key;
+	private final HttpHeader request;
+	private final HttpHeader cached;
+	private final CacheEntry<HttpHeader, HttpHeader> entry;
+	private final TrafficLoggerHandler tlh = new TrafficLoggerHandler ();
+	private WebConnection wc;
+
+	public Revalidation (String id, HttpHeader key, HttpHeader request,
+			     HttpHeader cached,
+			     CacheEntry<HttpHeader, HttpHeader> entry) {
+	    this.id = id;
+	    this.uri = request.getRequestURI ();
+	    this.key = key;
+	    this.request = request;
+	    this.cached = cached;
+	    this.entry = entry;
+	}
+
+	public void connectionEstablished (WebConnection wc) {
+	    this.wc = wc;
+	    Resolver resolver = proxy.getProxyChain ().getResolver (uri);
+	    try {
+		HttpResponseReader hrr =
+		    new HttpResponseReader (wc.getChannel (),
+					    proxy.getNioHandler (),
+					    tlh.getNetwork (),
+					    proxy.getBufferHandler (), request,
+					    resolver.isProxyConnected (),
+					    proxy.getStrictHttp (), this);
+		hrr.sendRequestAndWaitForResponse ();
+	    } catch (IOException e) {
+		failed (e);
+	    }
+	}
+
+	public void httpResponse (final HttpHeader response, BufferHandle bh,
+				  boolean keepalive, boolean isChunked,
+				  long dataSize) {
+	    bh.possiblyFlush ();
+	    final String status = response.getStatusCode ().trim ();
+	    // Only a 304 has no body, so only then may the connection be reused.
+	    wc.setKeepalive (keepalive && status.equals ("304"));
+	    proxy.releaseWebConnection (wc);
+	    proxy.getNioHandler ().runThreadTask (new Runnable () {
+		    public void run () {
+			update (status, response);
+		    }
+		}, new DefaultTaskIdentifier (getClass ().getSimpleName (),
+					      "update: " + uri));
+	}
+
+	private void update (String status, HttpHeader response) {
+	    Cache<HttpHeader, HttpHeader> cache = proxy.getCache ();
+	    try {
+		if (status.equals ("304")) {
+		    NotModifiedHandler nmh = new NotModifiedHandler ();
+		    nmh.updateHeader (cached, response);
+		    updateExpiry ();
+		    cache.entryChanged (entry, key, cached);
+		    synchronized (Revalidator.this) {
+			notModified++;
+		    }
+		} else if (status.startsWith ("5")) {
+		    logger.info ("Background revalidation of: " + uri +
+				 " got: " + status);
+		    synchronized (Revalidator.this) {
+			failed++;
+		    }
+		} else {
+		    // the resource has changed, let the next request get it.
+		    cache.remove (key);
+		    synchronized (Revalidator.this) {
+			changed++;
+		    }
+		}
+	    } catch (CacheException e) {
+		logger.log (Level.WARNING, "Failed to update cache entry for: " +
+			    uri, e);
+	    } finally {
+		finish ();
+	    }
+	}
+
+	/** Extend the life of the entry from the max-age of the updated
+	 *  header, or from its Expires if it has no max-age.
+	 */
+	private void updateExpiry () {
+	    long exp = -1;
+	    long maxAge = getCacheControlSeconds (cached, "s-maxage=");
+	    if (maxAge < 0)
+		maxAge = getCacheControlSeconds (cached, "max-age=");
+	    if (maxAge >= 0) {
+		exp = System.currentTimeMillis () + maxAge * 1000;
+	    } else {
+		String expires = cached.getHeader ("Expires");
+		if (expires != null)
+		    exp = HttpDateParser.getTime (expires);
+	    }
+	    if (exp == -1)
+		return;
+	    long e = exp + getStaleWhileRevalidate (cached);
+	    if (e > entry.getExpires ())
+		entry.setExpires (e);
+	}
+
+	public void timeout () {
+	    logger.info ("Timeout when revalidating: " + uri);
+	    fail ();
+	}
+
+	public void failed (Exception e) {
+	    logger.log (Level.INFO, "Failed to revalidate: " + uri, e);
+	    fail ();
+	}
+
+	private void fail () {
+	    if (wc != null) {
+		Closer.close (wc, logger);
+		wc = null;
+	    }
+	    synchronized (Revalidator.this) {
+		failed++;
+	    }
+	    finish ();
+	}
+
+	private void finish () {
+	    done (id);
+	    proxy.updateTrafficLog (tlh);
+	}
+    }
+}
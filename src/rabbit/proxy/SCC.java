@@ -3,7 +3,14 @@ package rabbit.proxy;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.khelekore.rnio.TaskIdentifier;
+import org.khelekore.rnio.impl.Closer;
+import org.khelekore.rnio.impl.DefaultTaskIdentifier;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheRegion;
+import rabbit.cache.MemoryTier;
 import rabbit.handler.BaseHandler;
 import rabbit.http.ContentRangeParser;
 import rabbit.http.HttpHeader;
@@ -82,11 +89,7 @@ public class SCC {
 	    }
 	    setupRangedEntry (ifRange, ranges, totalSize);
 	} else {
-	    HttpProxy proxy = con.getProxy ();
-	    rh.setContent (new CacheResourceSource (proxy.getCache (), 
-						    rh.getEntry (), 
-						    con.getNioHandler (),
-						    proxy.getBufferHandler ()));
+	    setupEntry ();
 	    rh.setSize (rh.getEntry ().getSize ());
 	    rh.getWebHeader ().setStatusCode ("200");
 	    rh.getWebHeader ().setReasonPhrase ("OK");
@@ -105,6 +108,54 @@ public class SCC {
 	return null;
     }
 
+    /** Serve the resource from memory if it is there, otherwise from
+     *  the disk cache, possibly promoting it to memory.
+     */
+    private void setupEntry () throws IOException {
+	HttpProxy proxy = con.getProxy ();
+	CacheEntry<HttpHeader, HttpHeader> entry = rh.getEntry ();
+	MemoryTier tier = proxy.getMemoryTier ();
+	MemoryTier.Body body = tier.get (entry.getId (), entry.getSize ());
+	if (body != null) {
+	    rh.setContent (new MemoryResourceSource (body,
+						     proxy.getBufferHandler ()));
+	    return;
+	}
+	rh.setContent (new CacheResourceSource (proxy.getCache (), entry,
+						con.getNioHandler (),
+						proxy.getBufferHandler ()));
+	if (tier.shouldPromote (entry.getId (), entry.getSize ()))
+	    promote (entry);
+    }
+
+    /** Read the resource into the memory tier in a background thread.
+     */
+    private void promote (final CacheEntry<HttpHeader, HttpHeader> entry) {
+	final HttpProxy proxy = con.getProxy ();
+	TaskIdentifier ti =
+	    new DefaultTaskIdentifier (getClass ().getSimpleName (),
+				       "promote: " + entry.getId ());
+	con.getNioHandler ().runThreadTask (new Runnable () {
+		public void run () {
+		    Logger logger = Logger.getLogger (getClass ().getName ());
+		    try {
+			CacheRegion region = proxy.getCache ().getRegion (entry);
+			try {
+			    proxy.getMemoryTier ().load (entry.getId (),
+							 entry.getSize (),
+							 region.getChannel (),
+							 region.getOffset ());
+			} finally {
+			    Closer.close (region.getChannel (), logger);
+			}
+		    } catch (IOException e) {
+			logger.log (Level.FINE, "Failed to promote cache entry: " +
+				    entry.getId (), e);
+		    }
+		}
+	    }, ti);
+    }
+
     private void setupRangedEntry (String ifRange, List<Range> ranges, 
 				   long totalSize) 
 	throws IOException {
@@ -136,7 +187,7 @@ public class SCC {
     private void setAge () {
 	String age = rh.getWebHeader ().getHeader ("Age");
 	long now = System.currentTimeMillis ();
-	long secs = (now - rh.getEntry ().getCacheTime ()) / 1000;
+	long secs = (now - rh.getCond ().getResponseTime (rh)) / 1000;
 	if (age != null) {
 	    try {
 		long l = Long.parseLong (age);
@@ -195,7 +195,9 @@ public class SSLHandler implements TunnelDoneListener {
 	try {
 	    HttpHeaderSender hhs =
 		new HttpHeaderSender (channel, proxy.getNioHandler (),
-				      tlh.getClient (), reply, false, tc);
+				      tlh.getClient (),
+				      proxy.getBufferHandler (), reply,
+				      false, tc);
 	    hhs.sendHeader ();
 	} catch (IOException e) {
 	    warn ("IOException when sending header", e);
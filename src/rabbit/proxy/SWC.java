@@ -1,7 +1,6 @@
 package rabbit.proxy;
 
 import java.io.IOException;
-import java.util.Date;
 import java.util.logging.Logger;
 import org.khelekore.rnio.impl.Closer;
 import rabbit.http.HttpDateParser;
@@ -12,6 +11,7 @@ import rabbit.httpio.HttpHeaderSender;
 import rabbit.httpio.HttpHeaderSentListener;
 import rabbit.httpio.WebConnectionResourceSource;
 import rabbit.io.BufferHandle;
+import rabbit.io.CircuitOpenException;
 import rabbit.io.ConnectionHandler;
 import rabbit.io.Resolver;
 import rabbit.io.WebConnection;
@@ -96,8 +96,9 @@ public class SWC implements HttpHeaderSentListener,
 
 	    HttpHeaderSender hhs =
 		new HttpHeaderSender (wc.getChannel (), con.getNioHandler (),
-				      tlh.getNetwork (), header,
-				      useFullURI (), this);
+				      tlh.getNetwork (),
+				      con.getProxy ().getBufferHandler (),
+				      header, useFullURI (), this);
 	    hhs.sendHeader ();
 	} catch (IOException e) {
 	    failed (e);
@@ -168,7 +169,8 @@ public class SWC implements HttpHeaderSentListener,
 	String sc = rh.getWebHeader ().getStatusCode ();
 	//if client is using http/1.1
 	if (sc.length () > 0 && (status = sc.charAt (0)) == '1' &&
-	    con.getRequestVersion ().endsWith ("1.1")) {
+	    con.getRequestVersion ().endsWith ("1.1") &&
+	    con.mayWriteToClient ()) {
 	    // tell client
 	    Looper l = new Looper ();
 	    con.getCounter ().inc ("WebConnection got 1xx reply " +
@@ -177,7 +179,9 @@ public class SWC implements HttpHeaderSentListener,
 		HttpHeaderSender hhs =
 		    new HttpHeaderSender (con.getChannel (),
 					  con.getNioHandler (),
-					  tlh.getClient (), header, false, l);
+					  tlh.getClient (),
+					  con.getProxy ().getBufferHandler (),
+					  header, false, l);
 		hhs.sendHeader ();
 		return;
 	    } catch (IOException e) {
@@ -228,10 +232,9 @@ public class SWC implements HttpHeaderSentListener,
 	long now = System.currentTimeMillis ();
 	String age = rh.getWebHeader ().getHeader ("Age");
 	String date = rh.getWebHeader ().getHeader ("Date");
-	Date dd = HttpDateParser.getDate (date);
-	long ddt = now;
-	if (dd != null)
-	    ddt = dd.getTime ();
+	long ddt = HttpDateParser.getTime (date);
+	if (ddt == -1)
+	    ddt = now;
 	long lage = 0;
 	try {
 	    if (age != null)
@@ -288,6 +291,11 @@ public class SWC implements HttpHeaderSentListener,
 	con.getCounter ().inc ("WebConnections failed: " +
 			       attempts + ": " + e);
 	closeDownWebConnection ();
+	// the host is known to be down, do not try again
+	if (e instanceof CircuitOpenException) {
+	    con.webConnectionSetupFailed (rh, e);
+	    return;
+	}
 	// retry
 	establish ();
     }
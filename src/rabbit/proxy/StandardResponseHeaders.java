@@ -3,7 +3,6 @@ package rabbit.proxy;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.net.URL;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -65,7 +64,7 @@ class StandardResponseHeaders implements HttpGenerator {
 	ret.setHeader ("Cache-Control", "no-cache");
 	// Set pragma for compatibility with old browsers.
 	ret.setHeader ("Pragma", "no-cache");
-	ret.setHeader ("Date", HttpDateParser.getDateString (new Date ()));
+	ret.setHeader ("Date", HttpDateParser.getCurrentDateString ());
 	return ret;
     }
 
@@ -0,0 +1,322 @@
+package rabbit.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheException;
+import rabbit.http.HttpHeader;
+
+/** An index of the resources that have responses that vary on some
+ *  request headers.
+ *
+ *  Each variant of such a resource is cached under its own key, the
+ *  request uri with a fragment that holds the values of the request
+ *  headers named in the Vary header of the response. Since fragments
+ *  are never sent in http requests the variant keys can not be mixed
+ *  up with real requests, and the keys compare and fingerprint like
+ *  any other key.
+ *
+ *  The index remembers the Vary header names for each resource, so
+ *  that the variant key for a request is found without reading any
+ *  of the stored variants. The values are normalized, so that requests
+ *  that would get the same response share a variant. When a resource
+ *  has too many variants the least recently used one is removed.
+ *
+ *  The index is only kept in memory, after a restart the first request
+ *  for each varying resource is a miss.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class VaryIndex {
+    private static final String VARIANT = "#vary:";
+    /** Longer values are replaced by a hash of the value. */
+    private static final int MAX_VALUE_LENGTH = 64;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+    // all fields below are guarded by this
+    private int maxResources = 10000;
+    private int maxVariants = 16;
+    private final Map<String, Variants> index =
+	new LinkedHashMap<String, Variants> (16, 0.75f, true) {
+	    private static final long serialVersionUID = 20261017;
+
+	    @Override
+	    protected boolean removeEldestEntry (Map.Entry<String,
+						 Variants> eldest) {
+		return size () > maxResources;
+	    }
+	};
+    private long variantsStored = 0;
+    private long variantsEvicted = 0;
+    private long refused = 0;
+
+    /** The Vary header names and known variants of one resource. */
+    private static class Variants {
+	private final String[] names;
+	/** The variant keys, least recently used first. */
+	private final Map<String, Boolean> keys =
+	    new LinkedHashMap<String, Boolean> (16, 0.75f, true);
+
+	public Variants (String[] names) {
+	    this.names = names;
+	}
+    }
+
+    /** Set the configuration of this index.
+     * @param maxResources the number of varying resources to remember
+     * @param maxVariants the number of variants to cache for one resource
+     */
+    public synchronized void setup (int maxResources, int maxVariants) {
+	this.maxResources = Math.max (1, maxResources);
+	this.maxVariants = Math.max (1, maxVariants);
+    }
+
+    /** Check if a cache key is the key of a variant.
+     * @param key the cache key
+     * @return true if the key selects one variant of a resource
+     */
+    public static boolean isVariant (HttpHeader key) {
+	return key.getRequestURI ().indexOf (VARIANT) >= 0;
+    }
+
+    /** Get the key to look up the cached response for a request with.
+     * @param request the request
+     * @return the key of the variant for the request, or the request
+     *         itself if the resource is not known to vary
+     */
+    public HttpHeader getLookupKey (HttpHeader request) {
+	String uri = request.getRequestURI ().toLowerCase ();
+	String[] names;
+	synchronized (this) {
+	    Variants v = index.get (uri);
+	    if (v == null)
+		return request;
+	    names = v.names;
+	}
+	HttpHeader key = createKey (request, names);
+	String lkey = key.getRequestURI ().toLowerCase ();
+	synchronized (this) {
+	    Variants v = index.get (uri);
+	    if (v != null)
+		v.keys.get (lkey); // mark the variant as used
+	}
+	return key;
+    }
+
+    /** Get the key to cache a response under. The Vary header names of
+     *  the response are remembered for the resource. If the resource
+     *  has too many variants the least recently used variant is
+     *  removed from the cache.
+     * @param cache the cache the response is stored in
+     * @param request the request
+     * @param response the response to cache
+     * @return the key to cache the response under, or null if the
+     *         response may not be cached
+     */
+    public HttpHeader getStoreKey (Cache<HttpHeader, HttpHeader> cache,
+				   HttpHeader request, HttpHeader response) {
+	String[] names = getVaryNames (response);
+	String uri = request.getRequestURI ().toLowerCase ();
+	if (names == null) {
+	    synchronized (this) {
+		refused++;
+	    }
+	    return null;
+	}
+	if (names.length == 0) {
+	    synchronized (this) {
+		// The resource no longer varies, any old variants are
+		// evicted from the cache as they are not used.
+		index.remove (uri);
+	    }
+	    return request;
+	}
+	HttpHeader key = createKey (request, names);
+	String lkey = key.getRequestURI ().toLowerCase ();
+	List<String> evicted = null;
+	synchronized (this) {
+	    Variants v = index.get (uri);
+	    if (v == null || !Arrays.equals (v.names, names)) {
+		v = new Variants (names);
+		index.put (uri, v);
+	    }
+	    if (v.keys.put (lkey, Boolean.TRUE) == null) {
+		variantsStored++;
+		Iterator<String> i = v.keys.keySet ().iterator ();
+		while (v.keys.size () > maxVariants) {
+		    if (evicted == null)
+			evicted = new ArrayList<String> ();
+		    evicted.add (i.next ());
+		    i.remove ();
+		    variantsEvicted++;
+		}
+	    }
+	}
+	if (evicted != null)
+	    removeKeys (cache, evicted);
+	return key;
+    }
+
+    private void removeKeys (Cache<HttpHeader, HttpHeader> cache,
+			     List<String> keys) {
+	for (String k : keys) {
+	    HttpHeader h = new HttpHeader ();
+	    h.setRequestURI (k);
+	    try {
+		cache.remove (h);
+	    } catch (CacheException e) {
+		logger.log (Level.WARNING, "Failed to remove variant: " + k, e);
+	    }
+	}
+    }
+
+    /** Remove all the known variants of the resource of a request.
+     * @param cache the cache to remove the variants from
+     * @param request a request for the resource
+     * @throws CacheException if the removal fails
+     */
+    public void removeVariants (Cache<HttpHeader, HttpHeader> cache,
+				HttpHeader request)
+	throws CacheException {
+	String uri = request.getRequestURI ();
+	List<String> keys;
+	synchronized (this) {
+	    Variants v = index.remove (uri.toLowerCase ());
+	    if (v == null)
+		return;
+	    keys = new ArrayList<String> (v.keys.keySet ());
+	}
+	for (String k : keys) {
+	    HttpHeader h = new HttpHeader ();
+	    h.setRequestURI (k);
+	    cache.remove (h);
+	}
+    }
+
+    /** Get the sorted, lower cased, header names of the Vary headers of
+     *  a response.
+     * @return the names, an empty array if the response does not vary,
+     *         or null if the response varies on everything
+     */
+    private String[] getVaryNames (HttpHeader response) {
+	Set<String> names = new TreeSet<String> ();
+	for (String vary : response.getHeaders ("Vary")) {
+	    for (String name : vary.split (",")) {
+		name = name.trim ().toLowerCase ();
+		if (name.equals ("*"))
+		    return null;
+		if (name.length () > 0)
+		    names.add (name);
+	    }
+	}
+	return names.toArray (new String[names.size ()]);
+    }
+
+    private HttpHeader createKey (HttpHeader request, String[] names) {
+	StringBuilder sb = new StringBuilder (request.getRequestURI ());
+	sb.append (VARIANT);
+	for (int i = 0; i < names.length; i++) {
+	    if (i > 0)
+		sb.append ('&');
+	    String value = normalize (names[i], request.getHeaders (names[i]));
+	    if (value.length () > MAX_VALUE_LENGTH)
+		value = Long.toHexString (hash (value));
+	    sb.append (names[i]).append ('=').append (value);
+	}
+	HttpHeader key = new HttpHeader ();
+	key.setRequestLine (request.getRequestLine ());
+	request.copyHeader (key);
+	key.setRequestURI (sb.toString ());
+	return key;
+    }
+
+    /** Normalize the values of a request header so that requests that
+     *  should get the same variant have the same value.
+     */
+    private String normalize (String name, List<String> values) {
+	if (name.equals ("accept-encoding"))
+	    return normalizeAcceptEncoding (values);
+	StringBuilder sb = new StringBuilder ();
+	for (String value : values) {
+	    for (String part : value.split (",")) {
+		part = part.trim ();
+		if (part.length () == 0)
+		    continue;
+		if (sb.length () > 0)
+		    sb.append (',');
+		sb.append (part);
+	    }
+	}
+	return sb.toString ();
+    }
+
+    /** Get the sorted content codings that are acceptable.
+     */
+    private String normalizeAcceptEncoding (List<String> values) {
+	Set<String> codings = new TreeSet<String> ();
+	for (String value : values) {
+	    for (String part : value.split (",")) {
+		String[] params = part.split (";");
+		String coding = params[0].trim ().toLowerCase ();
+		if (coding.length () == 0 || !isAcceptable (params))
+		    continue;
+		if (coding.startsWith ("x-"))
+		    coding = coding.substring (2);
+		codings.add (coding);
+	    }
+	}
+	StringBuilder sb = new StringBuilder ();
+	for (String coding : codings) {
+	    if (sb.length () > 0)
+		sb.append (',');
+	    sb.append (coding);
+	}
+	return sb.toString ();
+    }
+
+    private boolean isAcceptable (String[] params) {
+	for (int i = 1; i < params.length; i++) {
+	    String p = params[i].trim ();
+	    if (p.startsWith ("q=")) {
+		try {
+		    return Double.parseDouble (p.substring (2)) > 0;
+		} catch (NumberFormatException e) {
+		    return true;
+		}
+	    }
+	}
+	return true;
+    }
+
+    private long hash (String s) {
+	long fp = FNV_OFFSET;
+	for (int i = 0, l = s.length (); i < l; i++) {
+	    fp ^= s.charAt (i);
+	    fp *= FNV_PRIME;
+	}
+	return fp;
+    }
+
+    /** Get the statistics of this index.
+     * @return a Map with the name and value of each statistic
+     */
+    public synchronized Map<String, String> getStatistics () {
+	Map<String, String> stats = new LinkedHashMap<String, String> ();
+	stats.put ("Varying resources", Integer.toString (index.size ()));
+	stats.put ("Variants stored", Long.toString (variantsStored));
+	stats.put ("Variants evicted", Long.toString (variantsEvicted));
+	stats.put ("Variants refused", Long.toString (refused));
+	return stats;
+    }
+}
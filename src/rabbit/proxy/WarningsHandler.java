@@ -1,6 +1,5 @@
 package rabbit.proxy;
 
-import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 import rabbit.http.HttpDateParser;
@@ -69,12 +68,12 @@ class WarningsHandler {
 			   && ((s = val.charAt (start)) == ' ' || s == ','))
 			start++;
 		    
-		    Date d1 = null, d2 = null;
+		    long d1 = -1, d2 = -1;
 		    if (date != null) 
-			d1 = HttpDateParser.getDate (date);
+			d1 = HttpDateParser.getTime (date);
 		    if (rdate != null)
-			d2 = HttpDateParser.getDate (rdate);
-		    if (!((d1 != null && !d1.equals (d2)) 
+			d2 = HttpDateParser.getTime (rdate);
+		    if (!((d1 != -1 && d1 != d2) 
 			  || (remove1xx && code.charAt (0) == '1') 
 			  && !"RabbIT".equals (agent))) {
 			if (!first)
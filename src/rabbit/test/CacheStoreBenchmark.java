@@ -0,0 +1,173 @@
+package rabbit.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.cache.CacheRegion;
+import rabbit.cache.ncache.NCache;
+import rabbit.cache.ncache.SegmentCache;
+import rabbit.http.HttpHeader;
+import rabbit.proxy.HttpHeaderFileHandler;
+import rabbit.proxy.HttpHeaderFingerprinter;
+import rabbit.util.SProperties;
+
+/** A small benchmark that compares the file per entry layout of
+ *  NCache with the segment files of SegmentCache for small resources.
+ *
+ *  Usage: CacheStoreBenchmark [directory] [entries] [resource size]
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CacheStoreBenchmark {
+    private final Cache<HttpHeader, HttpHeader> cache;
+    private final File dir;
+    private final int entries;
+    private final byte[] resource;
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	String dir = args.length > 0 ? args[0] : "/tmp/rabbit/benchstore";
+	int entries = args.length > 1 ? Integer.parseInt (args[1]) : 20000;
+	int size = args.length > 2 ? Integer.parseInt (args[2]) : 4096;
+	try {
+	    HttpHeaderFileHandler hhfh = new HttpHeaderFileHandler ();
+	    HttpHeaderFingerprinter hhfp = new HttpHeaderFingerprinter ();
+	    SProperties props = getProperties (dir + "/ncache");
+	    run ("NCache", new NCache<HttpHeader, HttpHeader> (props, hhfh,
+							       hhfh, hhfp),
+		 props, entries, size);
+	    props = getProperties (dir + "/segment");
+	    run ("SegmentCache",
+		 new SegmentCache<HttpHeader, HttpHeader> (props, hhfh, hhfh,
+							   hhfp),
+		 props, entries, size);
+	} catch (Exception e) {
+	    e.printStackTrace ();
+	}
+    }
+
+    private static SProperties getProperties (String dir) {
+	SProperties props = new SProperties ();
+	props.put ("directory", dir);
+	props.put ("maxsize", "100000");
+	return props;
+    }
+
+    private static void run (String name, Cache<HttpHeader, HttpHeader> cache,
+			     SProperties props, int entries, int size)
+	throws IOException, CacheException {
+	CacheStoreBenchmark b =
+	    new CacheStoreBenchmark (cache, props, entries, size);
+	cache.clear ();
+	long start = System.nanoTime ();
+	b.fill ();
+	cache.flush ();
+	long filled = System.nanoTime ();
+	long read = b.read ();
+	long end = System.nanoTime ();
+	System.out.println (name + ": " + entries + " entries of " + size +
+			    " bytes");
+	System.out.println ("  add/s: " + perSecond (entries, filled - start) +
+			    ", read/s: " + perSecond (entries, end - filled) +
+			    ", bytes read: " + read);
+	System.out.println ("  files: " + b.countFiles (b.dir) +
+			    ", disk use: " + b.diskUse (b.dir) + " bytes");
+	cache.clear ();
+	cache.stop ();
+    }
+
+    private static long perSecond (int count, long nanos) {
+	return count * 1000000000L / Math.max (1, nanos);
+    }
+
+    private CacheStoreBenchmark (Cache<HttpHeader, HttpHeader> cache,
+				 SProperties props, int entries, int size) {
+	this.cache = cache;
+	this.dir = new File (props.getProperty ("directory"));
+	this.entries = entries;
+	resource = new byte[size];
+	new Random (0).nextBytes (resource);
+    }
+
+    private HttpHeader getKey (int i) {
+	HttpHeader h = new HttpHeader ();
+	h.setRequestLine ("GET http://www.example.com/img/" + i + ".png HTTP/1.1");
+	return h;
+    }
+
+    private void fill () throws IOException, CacheException {
+	for (int i = 0; i < entries; i++) {
+	    CacheEntry<HttpHeader, HttpHeader> ce = cache.newEntry (getKey (i));
+	    File f = cache.getEntryName (ce.getId (), false, null);
+	    FileOutputStream fos = new FileOutputStream (f);
+	    try {
+		fos.write (resource);
+	    } finally {
+		fos.close ();
+	    }
+	    HttpHeader resp = new HttpHeader ();
+	    resp.setStatusLine ("HTTP/1.1 200 OK");
+	    resp.setHeader ("Content-Type", "image/png");
+	    resp.setHeader ("Content-Length", Integer.toString (resource.length));
+	    ce.setDataHook (resp);
+	    cache.addEntry (ce);
+	}
+    }
+
+    /** Look up every entry and read its resource.
+     * @return the number of resource bytes read
+     */
+    private long read () throws IOException, CacheException {
+	ByteBuffer buf = ByteBuffer.allocate (resource.length);
+	long total = 0;
+	for (int i = 0; i < entries; i++) {
+	    CacheEntry<HttpHeader, HttpHeader> ce = cache.getEntry (getKey (i));
+	    if (ce == null)
+		continue;
+	    CacheRegion region = cache.getRegion (ce);
+	    try {
+		buf.clear ();
+		long pos = region.getOffset ();
+		long end = pos + region.getLength ();
+		while (pos < end) {
+		    int n = region.getChannel ().read (buf, pos);
+		    if (n <= 0)
+			break;
+		    pos += n;
+		    total += n;
+		    buf.clear ();
+		}
+	    } finally {
+		region.getChannel ().close ();
+	    }
+	}
+	return total;
+    }
+
+    private long countFiles (File f) {
+	File[] files = f.listFiles ();
+	if (files == null)
+	    return 1;
+	long count = 0;
+	for (File c : files)
+	    count += countFiles (c);
+	return count;
+    }
+
+    private long diskUse (File f) {
+	File[] files = f.listFiles ();
+	if (files == null)
+	    return f.length ();
+	long size = 0;
+	for (File c : files)
+	    size += diskUse (c);
+	return size;
+    }
+}
@@ -0,0 +1,110 @@
+package rabbit.test;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import rabbit.http.HttpDateParser;
+
+/** A small benchmark that compares HttpDateParser with the shared and
+ *  synchronized SimpleDateFormats that it used before.
+ *
+ *  Usage: HttpDateBenchmark [iterations] [rounds]
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HttpDateBenchmark {
+    private static final String[] DATES = {
+	"Sun, 06 Nov 1994 08:49:37 GMT",
+	"Sunday, 06-Nov-94 08:49:37 GMT",
+	"Sun Nov  6 08:49:37 1994"
+    };
+
+    private final int iterations;
+    private final SimpleDateFormat[] formats;
+    private long sum = 0;
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	int iterations = args.length > 0 ? Integer.parseInt (args[0]) : 200000;
+	int rounds = args.length > 1 ? Integer.parseInt (args[1]) : 5;
+	HttpDateBenchmark b = new HttpDateBenchmark (iterations);
+	for (int i = 0; i < rounds; i++)
+	    b.run (i == rounds - 1);
+	System.out.println ("(" + b.sum + ")");
+    }
+
+    private HttpDateBenchmark (int iterations) {
+	this.iterations = iterations;
+	String[] patterns = {
+	    "EE',' dd MMM yyyy HH:mm:ss 'GMT'",
+	    "EEEE, dd-MMM-yy HH:mm:ss 'GMT'",
+	    "EE MMM d HH:mm:ss yyyy",
+	    "EE MMM  d HH:mm:ss yyyy"
+	};
+	formats = new SimpleDateFormat[patterns.length];
+	for (int i = 0; i < patterns.length; i++) {
+	    formats[i] = new SimpleDateFormat (patterns[i], Locale.US);
+	    formats[i].setTimeZone (TimeZone.getTimeZone ("GMT"));
+	}
+    }
+
+    /** Parse a date the way HttpDateParser used to. */
+    private Date oldParse (String date) {
+	for (SimpleDateFormat sdf : formats) {
+	    ParsePosition pos = new ParsePosition (0);
+	    Date d;
+	    synchronized (sdf) {
+		d = sdf.parse (date, pos);
+	    }
+	    if (pos.getIndex () != 0 && pos.getIndex () == date.length ())
+		return d;
+	}
+	return null;
+    }
+
+    private String oldFormat (Date d) {
+	synchronized (formats[0]) {
+	    return formats[0].format (d);
+	}
+    }
+
+    private void run (boolean print) {
+	for (String date : DATES) {
+	    long start = System.nanoTime ();
+	    for (int i = 0; i < iterations; i++)
+		sum += oldParse (date).getTime ();
+	    long old = System.nanoTime () - start;
+	    start = System.nanoTime ();
+	    for (int i = 0; i < iterations; i++)
+		sum += HttpDateParser.getTime (date);
+	    long now = System.nanoTime () - start;
+	    if (print) {
+		System.out.println ("parse: " + date);
+		System.out.println ("  SimpleDateFormat: " +
+				    old / iterations + " ns/op");
+		System.out.println ("  HttpDateParser:   " +
+				    now / iterations + " ns/op");
+	    }
+	}
+
+	long start = System.nanoTime ();
+	for (int i = 0; i < iterations; i++)
+	    sum += oldFormat (new Date ()).length ();
+	long old = System.nanoTime () - start;
+	start = System.nanoTime ();
+	for (int i = 0; i < iterations; i++)
+	    sum += HttpDateParser.getCurrentDateString ().length ();
+	long now = System.nanoTime () - start;
+	if (print) {
+	    System.out.println ("format the current time");
+	    System.out.println ("  SimpleDateFormat: " +
+				old / iterations + " ns/op");
+	    System.out.println ("  HttpDateParser:   " +
+				now / iterations + " ns/op");
+	}
+    }
+}
@@ -0,0 +1,123 @@
+package rabbit.test;
+
+import java.nio.ByteBuffer;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.HttpHeaderParser;
+import rabbit.httpio.HttpHeaderScanner;
+
+/** A small benchmark that compares the String based HttpHeaderParser
+ *  with the byte based HttpHeaderScanner.
+ *
+ *  Usage: HttpHeaderParserBenchmark [iterations] [rounds]
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HttpHeaderParserBenchmark {
+    private static final String REQUEST =
+	"GET http://www.example.com/images/logo.png?size=large HTTP/1.1\r\n" +
+	"Host: www.example.com\r\n" +
+	"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) " +
+	"Gecko/20100101 Firefox/128.0\r\n" +
+	"Accept: image/avif,image/webp,image/png,image/*;q=0.8,*/*;q=0.5\r\n" +
+	"Accept-Language: en-US,en;q=0.5\r\n" +
+	"Accept-Encoding: gzip, deflate, br\r\n" +
+	"Referer: http://www.example.com/index.html\r\n" +
+	"Cookie: session=8f2a9c1d7e6b5a4f3c2d1e0f; theme=dark\r\n" +
+	"Proxy-Connection: keep-alive\r\n" +
+	"If-Modified-Since: Sat, 10 Oct 2026 08:12:31 GMT\r\n" +
+	"If-None-Match: \"5f3a-61b2c9e4a7d80\"\r\n" +
+	"Cache-Control: max-age=0\r\n" +
+	"\r\n";
+
+    private static final String RESPONSE =
+	"HTTP/1.1 200 OK\r\n" +
+	"Date: Sat, 17 Oct 2026 10:00:00 GMT\r\n" +
+	"Server: Apache/2.4.62 (Unix)\r\n" +
+	"Last-Modified: Sat, 10 Oct 2026 08:12:31 GMT\r\n" +
+	"ETag: \"5f3a-61b2c9e4a7d80\"\r\n" +
+	"Accept-Ranges: bytes\r\n" +
+	"Content-Length: 24378\r\n" +
+	"Cache-Control: max-age=86400, public\r\n" +
+	"Expires: Sun, 18 Oct 2026 10:00:00 GMT\r\n" +
+	"Vary: Accept-Encoding\r\n" +
+	"X-Backend-Id: web-07\r\n" +
+	"Keep-Alive: timeout=5, max=100\r\n" +
+	"Connection: Keep-Alive\r\n" +
+	"Content-Type: image/png\r\n" +
+	"\r\n";
+
+    private final int iterations;
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	int iterations = args.length > 0 ? Integer.parseInt (args[0]) : 200000;
+	int rounds = args.length > 1 ? Integer.parseInt (args[1]) : 5;
+	HttpHeaderParserBenchmark b = new HttpHeaderParserBenchmark (iterations);
+	for (int i = 0; i < rounds; i++) {
+	    boolean last = i == rounds - 1;
+	    for (boolean strict : new boolean[] { true, false }) {
+		b.run ("request", REQUEST, true, strict, last);
+		b.run ("response", RESPONSE, false, strict, last);
+	    }
+	}
+    }
+
+    private HttpHeaderParserBenchmark (int iterations) {
+	this.iterations = iterations;
+    }
+
+    private ByteBuffer getBuffer (String s) {
+	byte[] b = s.getBytes ();
+	ByteBuffer buf = ByteBuffer.allocateDirect (b.length);
+	buf.put (b);
+	buf.flip ();
+	return buf;
+    }
+
+    private void run (String name, String header, boolean request,
+		      boolean strict, boolean print) {
+	ByteBuffer buf = getBuffer (header);
+	int headers = 0;
+	long start = System.nanoTime ();
+	for (int i = 0; i < iterations; i++) {
+	    buf.position (0);
+	    buf.mark ();
+	    HttpHeaderParser p = new HttpHeaderParser (request, strict);
+	    p.handleBuffer (buf);
+	    headers += use (p.getHeader ());
+	}
+	long parser = System.nanoTime () - start;
+
+	start = System.nanoTime ();
+	for (int i = 0; i < iterations; i++) {
+	    buf.position (0);
+	    buf.mark ();
+	    HttpHeaderScanner s = new HttpHeaderScanner (request, strict);
+	    s.handleBuffer (buf);
+	    headers += use (s.getHeader ());
+	}
+	long scanner = System.nanoTime () - start;
+	if (print) {
+	    System.out.println (name + ", strict: " + strict +
+				", headers: " + headers);
+	    System.out.println ("  HttpHeaderParser:  " +
+				parser / iterations + " ns/header");
+	    System.out.println ("  HttpHeaderScanner: " +
+				scanner / iterations + " ns/header");
+	}
+    }
+
+    /** Look at the headers that the proxy always reads. */
+    private int use (HttpHeader h) {
+	int n = h.size ();
+	if (h.getHeader ("Content-Length") != null)
+	    n++;
+	if (h.getHeader ("Transfer-Encoding") != null)
+	    n++;
+	if (h.getHeader ("Connection") != null)
+	    n++;
+	return n;
+    }
+}
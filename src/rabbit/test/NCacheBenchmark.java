@@ -0,0 +1,131 @@
+package rabbit.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.CacheException;
+import rabbit.cache.ncache.NCache;
+import rabbit.http.HttpHeader;
+import rabbit.proxy.HttpHeaderFileHandler;
+import rabbit.proxy.HttpHeaderFingerprinter;
+import rabbit.util.SProperties;
+
+/** A small benchmark that measures how NCache lookups and inserts
+ *  scale with the number of threads.
+ *
+ *  Usage: NCacheBenchmark [directory] [stripes] [entries] [seconds]
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class NCacheBenchmark {
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    private final NCache<HttpHeader, HttpHeader> cache;
+    private final int entries;
+    private final long runTime;
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	String dir = args.length > 0 ? args[0] : "/tmp/rabbit/benchcache";
+	String stripes = args.length > 1 ? args[1] : "16";
+	int entries = args.length > 2 ? Integer.parseInt (args[2]) : 10000;
+	int seconds = args.length > 3 ? Integer.parseInt (args[3]) : 3;
+	try {
+	    NCacheBenchmark b =
+		new NCacheBenchmark (dir, stripes, entries, seconds);
+	    b.fill ();
+	    b.run ("get", 0);
+	    b.run ("get/add 90/10", 10);
+	    b.cache.clear ();
+	    b.cache.stop ();
+	} catch (Exception e) {
+	    e.printStackTrace ();
+	}
+    }
+
+    private NCacheBenchmark (String dir, String stripes, int entries,
+			     int seconds) throws IOException {
+	SProperties props = new SProperties ();
+	props.put ("directory", dir);
+	props.put ("stripes", stripes);
+	props.put ("maxsize", "100000");
+	HttpHeaderFileHandler hhfh = new HttpHeaderFileHandler ();
+	HttpHeaderFingerprinter hhfp = new HttpHeaderFingerprinter ();
+	cache = new NCache<HttpHeader, HttpHeader> (props, hhfh, hhfh, hhfp);
+	this.entries = entries;
+	this.runTime = seconds * 1000L;
+    }
+
+    private HttpHeader getKey (int i) {
+	HttpHeader h = new HttpHeader ();
+	h.setRequestLine ("GET http://www.example.com/page/" + i + " HTTP/1.1");
+	return h;
+    }
+
+    private void add (HttpHeader key) throws IOException, CacheException {
+	CacheEntry<HttpHeader, HttpHeader> ce = cache.newEntry (key);
+	File f = cache.getEntryName (ce.getId (), false, null);
+	FileOutputStream fos = new FileOutputStream (f);
+	try {
+	    fos.write (new byte[100]);
+	} finally {
+	    fos.close ();
+	}
+	HttpHeader resp = new HttpHeader ();
+	resp.setStatusLine ("HTTP/1.1 200 OK");
+	resp.setHeader ("Content-Type", "text/html");
+	resp.setHeader ("Content-Length", "100");
+	ce.setDataHook (resp);
+	cache.addEntry (ce);
+    }
+
+    private void fill () throws IOException, CacheException {
+	cache.clear ();
+	for (int i = 0; i < entries; i++)
+	    add (getKey (i));
+    }
+
+    private void run (String name, final int addPercent)
+	throws InterruptedException {
+	String stripes = cache.getStatistics ().get ("Index stripes");
+	System.out.println (name + ", " + stripes + " stripes");
+	for (int threads : THREADS) {
+	    final AtomicLong ops = new AtomicLong ();
+	    final long end = System.currentTimeMillis () + runTime;
+	    final CountDownLatch done = new CountDownLatch (threads);
+	    for (int t = 0; t < threads; t++) {
+		final long seed = t;
+		new Thread () {
+		    @Override public void run () {
+			Random r = new Random (seed);
+			long count = 0;
+			try {
+			    while (System.currentTimeMillis () < end) {
+				HttpHeader key = getKey (r.nextInt (entries));
+				if (r.nextInt (100) < addPercent)
+				    add (key);
+				else
+				    cache.getEntry (key);
+				count++;
+			    }
+			} catch (Exception e) {
+			    e.printStackTrace ();
+			}
+			ops.addAndGet (count);
+			done.countDown ();
+		    }
+		}.start ();
+	    }
+	    done.await ();
+	    long opsPerSecond = ops.get () * 1000 / runTime;
+	    System.out.println ("  threads: " + threads +
+				", ops/s: " + opsPerSecond);
+	}
+    }
+}
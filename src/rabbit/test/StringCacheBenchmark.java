@@ -0,0 +1,107 @@
+package rabbit.test;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.util.StringCache;
+
+/** A small benchmark that measures how the StringCache scales with the
+ *  number of threads, compared to a synchronized weak cache like the
+ *  one that was used before.
+ *
+ *  Usage: StringCacheBenchmark [seconds] [unique percent]
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class StringCacheBenchmark {
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    private static final String[] TOKENS = {
+	"GET", "HTTP/1.1", "keep-alive", "gzip, deflate", "text/html",
+	"max-age=0", "www.example.com", "Accept-Encoding", "200", "OK",
+	"Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101",
+	"en-US,en;q=0.5", "image/png", "bytes", "Apache/2.4.62 (Unix)",
+	"X-Backend-Id", "web-07", "close", "no-cache", "*/*"
+    };
+
+    private final long runTime;
+    private final int uniquePercent;
+
+    /** A cache of strings that works like the StringCache used to. */
+    private static class WeakCache {
+	private final WeakHashMap<String, WeakReference<String>> map =
+	    new WeakHashMap<String, WeakReference<String>> ();
+
+	public synchronized String getCachedString (String s) {
+	    WeakReference<String> wr = map.get (s);
+	    String k;
+	    if (wr != null && ((k = wr.get ()) != null))
+		return k;
+	    map.put (s, new WeakReference<String> (s));
+	    return s;
+	}
+    }
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	int seconds = args.length > 0 ? Integer.parseInt (args[0]) : 2;
+	int unique = args.length > 1 ? Integer.parseInt (args[1]) : 10;
+	StringCacheBenchmark b = new StringCacheBenchmark (seconds, unique);
+	try {
+	    b.run ("weak synchronized", new WeakCache (), null);
+	    b.run ("StringCache", null, new StringCache (4096));
+	} catch (InterruptedException e) {
+	    e.printStackTrace ();
+	}
+    }
+
+    private StringCacheBenchmark (int seconds, int uniquePercent) {
+	this.runTime = seconds * 1000L;
+	this.uniquePercent = uniquePercent;
+    }
+
+    private void run (String name, final WeakCache weak,
+		      final StringCache cache)
+	throws InterruptedException {
+	System.out.println (name + ", " + uniquePercent + "% unique strings");
+	for (int threads : THREADS) {
+	    final AtomicLong ops = new AtomicLong ();
+	    final long end = System.currentTimeMillis () + runTime;
+	    final CountDownLatch done = new CountDownLatch (threads);
+	    for (int t = 0; t < threads; t++) {
+		final long seed = t;
+		new Thread () {
+		    @Override public void run () {
+			Random r = new Random (seed);
+			int n = TOKENS.length;
+			long count = 0;
+			while (System.currentTimeMillis () < end) {
+			    for (int i = 0; i < 1000; i++) {
+				String s;
+				if (r.nextInt (100) < uniquePercent)
+				    s = "session=" + r.nextLong ();
+				else
+				    s = new String (TOKENS[r.nextInt (n)]);
+				if (weak != null)
+				    weak.getCachedString (s);
+				else
+				    cache.getCachedString (s);
+			    }
+			    count += 1000;
+			}
+			ops.addAndGet (count);
+			done.countDown ();
+		    }
+		}.start ();
+	    }
+	    done.await ();
+	    long opsPerSecond = ops.get () * 1000 / runTime;
+	    System.out.println ("  threads: " + threads +
+				", ops/s: " + opsPerSecond);
+	}
+    }
+}
@@ -0,0 +1,141 @@
+package rabbit.test;
+
+import rabbit.io.CircuitBreaker;
+import rabbit.io.CircuitBreaker.State;
+
+/** A class to test the CircuitBreaker.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TestCircuitBreaker {
+    private static final long WINDOW = 10000;
+    private static final long OPEN_TIME = 5000;
+
+    /** Start the tests
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	TestCircuitBreaker tester = new TestCircuitBreaker ();
+	tester.runTests ();
+    }
+
+    private void runTests () {
+	testOpens ();
+	testFailureRate ();
+	testWindowRolls ();
+	testHalfOpenSuccess ();
+	testHalfOpenFailure ();
+	testLostProbe ();
+	testStale ();
+    }
+
+    private void testOpens () {
+	CircuitBreaker cb = getBreaker (0);
+	for (int i = 0; i < 2; i++)
+	    check (!cb.failed (i), "opened after " + (i + 1) + " failures");
+	check (cb.failed (2), "did not open on third failure");
+	checkState (cb, State.OPEN);
+	check (cb.getOpenedAt () == 2, "wrong open time: " + cb.getOpenedAt ());
+	check (cb.getTimesOpened () == 1, "wrong times opened");
+	check (!cb.allowRequest (3), "open breaker allowed request");
+	check (!cb.failed (4), "open breaker opened again");
+    }
+
+    private void testFailureRate () {
+	CircuitBreaker cb = getBreaker (0);
+	for (int i = 0; i < 10; i++)
+	    cb.succeeded (i);
+	// 3 failures out of 13 attempts is less than 50%
+	for (int i = 0; i < 3; i++)
+	    check (!cb.failed (20 + i), "opened below the failure rate");
+	checkState (cb, State.CLOSED);
+	check (cb.getAttempts () == 13 && cb.getFailures () == 3,
+	       "wrong counts: " + cb.getAttempts () + "/" + cb.getFailures ());
+	for (int i = 0; i < 6; i++)
+	    cb.failed (30 + i);
+	// 9 failures out of 19 attempts is still less than 50%
+	checkState (cb, State.CLOSED);
+	check (cb.failed (40), "did not open at the failure rate");
+    }
+
+    private void testWindowRolls () {
+	CircuitBreaker cb = getBreaker (0);
+	cb.failed (0);
+	cb.failed (1);
+	// the old failures are forgotten when the window has passed
+	check (!cb.failed (WINDOW + 1), "old failures counted");
+	check (cb.getFailures () == 1, "window not rolled: " +
+	       cb.getFailures ());
+	checkState (cb, State.CLOSED);
+    }
+
+    private void testHalfOpenSuccess () {
+	CircuitBreaker cb = getOpenBreaker ();
+	long t = OPEN_TIME - 1;
+	check (!cb.allowRequest (t), "allowed request before open time");
+	t = OPEN_TIME;
+	check (cb.allowRequest (t), "no probe after open time");
+	checkState (cb, State.HALF_OPEN);
+	check (!cb.allowRequest (t + 1), "second probe let through");
+	check (cb.succeeded (t + 2), "successful probe did not close");
+	checkState (cb, State.CLOSED);
+	check (cb.allowRequest (t + 3), "closed breaker blocked request");
+	check (cb.getFailures () == 0, "failures left after close");
+    }
+
+    private void testHalfOpenFailure () {
+	CircuitBreaker cb = getOpenBreaker ();
+	long t = OPEN_TIME;
+	check (cb.allowRequest (t), "no probe after open time");
+	check (cb.failed (t + 1), "failed probe did not open");
+	checkState (cb, State.OPEN);
+	check (cb.getOpenedAt () == t + 1, "open time not updated");
+	check (cb.getTimesOpened () == 2, "wrong times opened");
+	check (!cb.allowRequest (t + OPEN_TIME), "reopened breaker allowed " +
+	       "request before open time");
+	check (cb.allowRequest (t + 1 + OPEN_TIME), "no second probe");
+    }
+
+    private void testLostProbe () {
+	CircuitBreaker cb = getOpenBreaker ();
+	long t = OPEN_TIME;
+	check (cb.allowRequest (t), "no probe after open time");
+	check (!cb.allowRequest (t + OPEN_TIME - 1), "probe not waited for");
+	check (cb.allowRequest (t + OPEN_TIME), "lost probe kept breaker " +
+	       "half open");
+	checkState (cb, State.HALF_OPEN);
+    }
+
+    private void testStale () {
+	CircuitBreaker cb = getBreaker (0);
+	check (!cb.isStale (WINDOW - 1), "stale within window");
+	check (cb.isStale (WINDOW), "not stale after window");
+	cb = getOpenBreaker ();
+	check (!cb.isStale (OPEN_TIME + WINDOW - 1), "open breaker stale");
+	check (cb.isStale (OPEN_TIME + WINDOW), "open breaker not stale");
+    }
+
+    /** Get a breaker that opened at time 0. */
+    private CircuitBreaker getOpenBreaker () {
+	CircuitBreaker cb = getBreaker (0);
+	cb.failed (0);
+	cb.failed (0);
+	cb.failed (0);
+	checkState (cb, State.OPEN);
+	return cb;
+    }
+
+    private CircuitBreaker getBreaker (long now) {
+	return new CircuitBreaker (WINDOW, 3, 50, OPEN_TIME, now);
+    }
+
+    private void checkState (CircuitBreaker cb, State expected) {
+	check (cb.getState () == expected, "wrong state, expected: " +
+	       expected + ", got: " + cb.getState ());
+    }
+
+    private void check (boolean ok, String msg) {
+	if (!ok)
+	    throw new RuntimeException (msg);
+    }
+}
@@ -0,0 +1,103 @@
+package rabbit.test;
+
+import java.util.Random;
+import rabbit.http.HttpDateParser;
+
+/** A class to test the HttpDateParser.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TestHttpDateParser {
+    /** Sun, 06 Nov 1994 08:49:37 GMT */
+    private static final long NOV_6_1994 = 784111777000L;
+
+    /** Start the tests
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	TestHttpDateParser tester = new TestHttpDateParser ();
+	tester.runTests ();
+    }
+
+    private void runTests () {
+	testRfc1123 ();
+	testRfc850 ();
+	testAsctime ();
+	testRoundTrip ();
+	testInvalid ();
+    }
+
+    private void testRfc1123 () {
+	checkTime ("Sun, 06 Nov 1994 08:49:37 GMT", NOV_6_1994);
+	checkTime ("Thu, 01 Jan 1970 00:00:00 GMT", 0);
+	checkTime ("Tue, 29 Feb 2000 23:59:59 GMT", 951868799000L);
+	checkTime ("Fri, 31 Dec 2038 12:00:00 GMT", 2177409600000L);
+	// the name of the day is not checked, and case does not matter
+	checkTime ("Mon, 06 nov 1994 08:49:37 GMT", NOV_6_1994);
+	checkTime ("Sun, 6 Nov 1994 08:49:37 GMT", NOV_6_1994);
+    }
+
+    private void testRfc850 () {
+	checkTime ("Sunday, 06-Nov-94 08:49:37 GMT", NOV_6_1994);
+	checkTime ("Thursday, 01-Jan-15 00:00:00 GMT", 1420070400000L);
+	// some servers send a four digit year
+	checkTime ("Sunday, 06-Nov-1994 08:49:37 GMT", NOV_6_1994);
+    }
+
+    private void testAsctime () {
+	checkTime ("Sun Nov  6 08:49:37 1994", NOV_6_1994);
+	checkTime ("Sun Nov 06 08:49:37 1994", NOV_6_1994);
+	checkTime ("Wed Nov 16 08:49:37 1994", NOV_6_1994 + 10 * 86400000L);
+    }
+
+    private void testRoundTrip () {
+	Random r = new Random (4711);
+	for (int i = 0; i < 10000; i++) {
+	    long t = (r.nextLong () >>> 1) % 4102444800000L;
+	    t -= t % 1000;
+	    String s = HttpDateParser.getDateString (t);
+	    check (HttpDateParser.getTime (s) == t, "round trip failed for: " +
+		   t + ", " + s + " gave: " + HttpDateParser.getTime (s));
+	}
+    }
+
+    private void testInvalid () {
+	String[] invalid = {
+	    null,
+	    "",
+	    "garbage",
+	    "Sun,",
+	    "Sun, 06 Nov 1994",
+	    "Sun, 06 Nov 1994 08:49:37",
+	    "Sun, 06 Nov 1994 08:49:37 GMT+1",
+	    "Sun, 06 Nov 1994 08:49:37 CET",
+	    "Sun, 06 Nox 1994 08:49:37 GMT",
+	    "Sun, 06 Nov 1994 08:49 GMT",
+	    "Sun, 06 Nov 1994 25:49:37 GMT",
+	    "Sun, xx Nov 1994 08:49:37 GMT",
+	    "Sun, 06/Nov/1994 08:49:37 GMT",
+	    "Sun, 06-Nov 1994 08:49:37 GMT",
+	    "06 Nov 1994 08:49:37 GMT",
+	    "Sunday, 06-Nov-94 08:49:37",
+	    "Sun Nov  6 08:49:37",
+	    "Sun Nov  6 08:49:37 1994 GMT",
+	    "Sun Nov 6 08:49 1994",
+	    "Sun Nov  6 1994"
+	};
+	for (String s : invalid)
+	    checkTime (s, -1);
+	check (HttpDateParser.getDate ("garbage") == null,
+	       "got a Date for garbage");
+    }
+
+    private void checkTime (String date, long expected) {
+	long t = HttpDateParser.getTime (date);
+	check (t == expected, "wrong time for: '" + date + "', expected: " +
+	       expected + ", got: " + t);
+    }
+
+    private void check (boolean ok, String msg) {
+	if (!ok)
+	    throw new RuntimeException (msg);
+    }
+}
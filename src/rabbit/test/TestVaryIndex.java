@@ -0,0 +1,178 @@
+package rabbit.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import rabbit.cache.Cache;
+import rabbit.cache.CacheException;
+import rabbit.http.HttpHeader;
+import rabbit.proxy.VaryIndex;
+
+/** A class to test the VaryIndex.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TestVaryIndex {
+    private static final String URI = "http://www.khelekore.org/index.html";
+
+    /** The keys that the index removes from the cache. */
+    private final List<String> removed = new ArrayList<String> ();
+    private final Cache<HttpHeader, HttpHeader> cache;
+
+    /** Start the tests
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	TestVaryIndex tester = new TestVaryIndex ();
+	tester.runTests ();
+    }
+
+    @SuppressWarnings ("unchecked")
+    private TestVaryIndex () {
+	InvocationHandler h = new InvocationHandler () {
+		public Object invoke (Object proxy, Method m, Object[] args) {
+		    if (!m.getName ().equals ("remove"))
+			throw new UnsupportedOperationException (m.getName ());
+		    removed.add (((HttpHeader)args[0]).getRequestURI ());
+		    return null;
+		}
+	    };
+	cache = (Cache<HttpHeader, HttpHeader>)
+	    Proxy.newProxyInstance (getClass ().getClassLoader (),
+				    new Class<?>[] { Cache.class }, h);
+    }
+
+    private void runTests () {
+	testNotVarying ();
+	testVariantKeys ();
+	testNormalizedEncodings ();
+	testVaryStar ();
+	testEviction ();
+	testRemoveVariants ();
+    }
+
+    private void testNotVarying () {
+	VaryIndex vi = new VaryIndex ();
+	HttpHeader request = getRequest ("gzip");
+	check (vi.getLookupKey (request) == request,
+	       "unknown resource got a variant key");
+	HttpHeader key = vi.getStoreKey (cache, request, getResponse (null));
+	check (key == request, "response without Vary got a variant key");
+	check (!VaryIndex.isVariant (key), "plain key is a variant");
+    }
+
+    private void testVariantKeys () {
+	VaryIndex vi = new VaryIndex ();
+	HttpHeader gzip = getRequest ("gzip");
+	HttpHeader plain = getRequest ("identity");
+	HttpHeader gzipKey =
+	    vi.getStoreKey (cache, gzip, getResponse ("Accept-Encoding"));
+	check (VaryIndex.isVariant (gzipKey), "no variant key");
+	check (gzipKey.getRequestURI ().startsWith (URI),
+	       "variant key lost the uri: " + gzipKey.getRequestURI ());
+	// the index now knows that the resource varies
+	HttpHeader lookup = vi.getLookupKey (getRequest ("gzip"));
+	check (lookup.getRequestURI ().equals (gzipKey.getRequestURI ()),
+	       "lookup key differs from store key: " +
+	       lookup.getRequestURI () + " != " + gzipKey.getRequestURI ());
+	HttpHeader plainKey = vi.getLookupKey (plain);
+	check (!plainKey.getRequestURI ().equals (gzipKey.getRequestURI ()),
+	       "different variants got the same key");
+	// a response that no longer varies makes the resource plain again
+	HttpHeader key = vi.getStoreKey (cache, gzip, getResponse (null));
+	check (key == gzip, "no longer varying resource got variant key");
+	check (vi.getLookupKey (gzip) == gzip, "resource still varies");
+    }
+
+    private void testNormalizedEncodings () {
+	VaryIndex vi = new VaryIndex ();
+	HttpHeader a = getRequest ("gzip, deflate");
+	HttpHeader b = getRequest ("Deflate;q=0.5,x-gzip, br;q=0");
+	HttpHeader ka =
+	    vi.getStoreKey (cache, a, getResponse ("accept-encoding"));
+	HttpHeader kb = vi.getLookupKey (b);
+	check (ka.getRequestURI ().equals (kb.getRequestURI ()),
+	       "equal encodings got different keys: " + ka.getRequestURI () +
+	       " != " + kb.getRequestURI ());
+	// the order of the Vary header names does not matter either
+	HttpHeader k1 =
+	    vi.getStoreKey (cache, a, getResponse ("Accept-Encoding, Cookie"));
+	HttpHeader k2 =
+	    vi.getStoreKey (cache, a, getResponse ("cookie,accept-encoding"));
+	check (k1.getRequestURI ().equals (k2.getRequestURI ()),
+	       "vary names not sorted: " + k1.getRequestURI () + " != " +
+	       k2.getRequestURI ());
+    }
+
+    private void testVaryStar () {
+	VaryIndex vi = new VaryIndex ();
+	HttpHeader key = vi.getStoreKey (cache, getRequest ("gzip"),
+					 getResponse ("Accept-Encoding, *"));
+	check (key == null, "Vary: * response may be cached");
+	check (vi.getStatistics ().get ("Variants refused").equals ("1"),
+	       "refused response not counted");
+    }
+
+    private void testEviction () {
+	VaryIndex vi = new VaryIndex ();
+	vi.setup (10, 2);
+	removed.clear ();
+	HttpHeader response = getResponse ("Accept-Encoding");
+	String k1 =
+	    vi.getStoreKey (cache, getRequest ("a"), response).getRequestURI ();
+	String k2 =
+	    vi.getStoreKey (cache, getRequest ("b"), response).getRequestURI ();
+	check (removed.isEmpty (), "evicted within the limit: " + removed);
+	// using the first variant makes the second one the oldest
+	vi.getLookupKey (getRequest ("a"));
+	vi.getStoreKey (cache, getRequest ("c"), response);
+	check (removed.size () == 1, "wrong number evicted: " + removed);
+	check (removed.get (0).equalsIgnoreCase (k2),
+	       "evicted the wrong variant: " + removed.get (0));
+	// storing a known variant again evicts nothing
+	vi.getStoreKey (cache, getRequest ("a"), response);
+	check (removed.size () == 1, "known variant evicted: " + removed);
+	check (!removed.get (0).equalsIgnoreCase (k1), "used variant evicted");
+	check (vi.getStatistics ().get ("Variants evicted").equals ("1"),
+	       "eviction not counted");
+    }
+
+    private void testRemoveVariants () {
+	VaryIndex vi = new VaryIndex ();
+	removed.clear ();
+	HttpHeader response = getResponse ("Accept-Encoding");
+	vi.getStoreKey (cache, getRequest ("a"), response);
+	vi.getStoreKey (cache, getRequest ("b"), response);
+	try {
+	    vi.removeVariants (cache, getRequest ("a"));
+	} catch (CacheException e) {
+	    throw new RuntimeException (e);
+	}
+	check (removed.size () == 2, "wrong number removed: " + removed);
+	HttpHeader r = getRequest ("a");
+	check (vi.getLookupKey (r) == r, "removed resource still varies");
+    }
+
+    private HttpHeader getRequest (String acceptEncoding) {
+	HttpHeader h = new HttpHeader ();
+	h.setRequestLine ("GET " + URI + " HTTP/1.1");
+	h.setHeader ("Host", "www.khelekore.org");
+	h.setHeader ("Accept-Encoding", acceptEncoding);
+	return h;
+    }
+
+    private HttpHeader getResponse (String vary) {
+	HttpHeader h = new HttpHeader ();
+	h.setStatusLine ("HTTP/1.1 200 OK");
+	if (vary != null)
+	    h.setHeader ("Vary", vary);
+	return h;
+    }
+
+    private void check (boolean ok, String msg) {
+	if (!ok)
+	    throw new RuntimeException (msg);
+    }
+}
@@ -0,0 +1,217 @@
+package rabbit.test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import rabbit.cache.ncache.EvictionPolicy;
+import rabbit.cache.ncache.FifoPolicy;
+import rabbit.cache.ncache.LruPolicy;
+import rabbit.cache.ncache.SlruPolicy;
+import rabbit.cache.ncache.TinyLfuAdmission;
+import rabbit.http.HttpHeader;
+import rabbit.proxy.HttpHeaderFingerprinter;
+
+/** Replay an access log against a simulated cache and report the hit
+ *  ratios with and without the TinyLFU admission filter.
+ *
+ *  The simulation uses the eviction policies and the admission filter
+ *  of NCache, but keeps the cache in memory and evicts at once.
+ *
+ *  Usage: TraceReplay [access log] [cache size in MB] [eviction]
+ *  Without an access log a synthetic trace with a few popular
+ *  resources and many one time resources is used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class TraceReplay {
+    private final long[] fps;
+    private final long[] sizes;
+
+    /** Run the benchmark
+     * @param args the command line arguments
+     */
+    public static void main (String[] args) {
+	String log = args.length > 0 ? args[0] : "-";
+	long cacheSize = (args.length > 1 ? Long.parseLong (args[1]) : 100) *
+	    1024 * 1024;
+	String eviction = args.length > 2 ? args[2] : "lru";
+	try {
+	    TraceReplay t = log.equals ("-") ? synthetic () : read (log);
+	    System.out.println ("requests: " + t.fps.length +
+				", cache size: " + cacheSize + ", eviction: " +
+				eviction);
+	    t.run ("no admission", cacheSize, eviction, false);
+	    t.run ("tinylfu", cacheSize, eviction, true);
+	} catch (IOException e) {
+	    e.printStackTrace ();
+	}
+    }
+
+    private TraceReplay (long[] fps, long[] sizes) {
+	this.fps = fps;
+	this.sizes = sizes;
+    }
+
+    /** Read the GET requests with a size from an access log in the
+     *  common log format.
+     */
+    private static TraceReplay read (String log) throws IOException {
+	HttpHeaderFingerprinter hhfp = new HttpHeaderFingerprinter ();
+	List<Long> fps = new ArrayList<Long> ();
+	List<Long> sizes = new ArrayList<Long> ();
+	BufferedReader br =
+	    new BufferedReader (new InputStreamReader (new FileInputStream (log),
+						       "UTF-8"));
+	try {
+	    String line;
+	    while ((line = br.readLine ()) != null) {
+		int start = line.indexOf ('"');
+		int end = line.indexOf ('"', start + 1);
+		if (start < 0 || end < 0)
+		    continue;
+		String requestLine = line.substring (start + 1, end);
+		if (!requestLine.startsWith ("GET "))
+		    continue;
+		String[] rest = line.substring (end + 1).trim ().split (" ");
+		if (rest.length < 2 || !rest[0].equals ("200"))
+		    continue;
+		long size;
+		try {
+		    size = Long.parseLong (rest[1]);
+		} catch (NumberFormatException e) {
+		    continue;
+		}
+		HttpHeader h = new HttpHeader ();
+		h.setRequestLine (requestLine);
+		fps.add (hhfp.fingerprint (h));
+		sizes.add (size);
+	    }
+	} finally {
+	    br.close ();
+	}
+	long[] f = new long[fps.size ()];
+	long[] s = new long[f.length];
+	for (int i = 0; i < f.length; i++) {
+	    f[i] = fps.get (i);
+	    s[i] = sizes.get (i);
+	}
+	return new TraceReplay (f, s);
+    }
+
+    /** A zipf like trace where every other request is for a resource
+     *  that is only used once.
+     */
+    private static TraceReplay synthetic () {
+	int requests = 1000000;
+	int popular = 50000;
+	Random r = new Random (0);
+	long[] sizes = new long[popular];
+	for (int i = 0; i < popular; i++)
+	    sizes[i] = 1024 + r.nextInt (32 * 1024);
+	double[] weights = new double[popular];
+	double sum = 0;
+	for (int i = 0; i < popular; i++) {
+	    sum += 1.0 / (i + 1);
+	    weights[i] = sum;
+	}
+	long[] f = new long[requests];
+	long[] s = new long[requests];
+	for (int i = 0; i < requests; i++) {
+	    if (r.nextBoolean ()) {
+		// one time resource
+		f[i] = r.nextLong ();
+		s[i] = 1024 + r.nextInt (256 * 1024);
+	    } else {
+		int idx = Arrays.binarySearch (weights, r.nextDouble () * sum);
+		if (idx < 0)
+		    idx = -idx - 1;
+		f[i] = idx * 0x9E3779B97F4A7C15L;
+		s[i] = sizes[idx];
+	    }
+	}
+	return new TraceReplay (f, s);
+    }
+
+    private static EvictionPolicy createPolicy (String name) {
+	if (name.equalsIgnoreCase ("fifo"))
+	    return new FifoPolicy ();
+	if (name.equalsIgnoreCase ("slru"))
+	    return new SlruPolicy ();
+	return new LruPolicy ();
+    }
+
+    private void run (String name, long cacheSize, String eviction,
+		      boolean useAdmission) {
+	EvictionPolicy policy = createPolicy (eviction);
+	TinyLfuAdmission admission = useAdmission ?
+	    new TinyLfuAdmission ((int)Math.max (1 << 16, cacheSize / 8192), 1) :
+	    null;
+	Map<Long, Integer> slots = new HashMap<Long, Integer> ();
+	long[] slotFps = new long[1024];
+	long[] slotSizes = new long[1024];
+	int[] free = new int[1024];
+	int freeCount = 0;
+	int nextSlot = 0;
+	long current = 0;
+	long hits = 0;
+	long bytes = 0;
+	long hitBytes = 0;
+	long written = 0;
+	long start = System.nanoTime ();
+	for (int i = 0; i < fps.length; i++) {
+	    long fp = fps[i];
+	    long size = sizes[i];
+	    bytes += size;
+	    if (admission != null)
+		admission.record (fp);
+	    Integer slot = slots.get (fp);
+	    if (slot != null) {
+		hits++;
+		hitBytes += size;
+		policy.accessed (slot);
+		continue;
+	    }
+	    if (size > cacheSize)
+		continue;
+	    if (admission != null && current + size > cacheSize) {
+		int victim = policy.first ();
+		if (victim >= 0 && !admission.admit (fp, slotFps[victim]))
+		    continue;
+	    }
+	    while (current + size > cacheSize) {
+		int victim = policy.first ();
+		policy.removed (victim);
+		slots.remove (slotFps[victim]);
+		current -= slotSizes[victim];
+		if (freeCount == free.length)
+		    free = Arrays.copyOf (free, freeCount * 2);
+		free[freeCount++] = victim;
+	    }
+	    int s = freeCount > 0 ? free[--freeCount] : nextSlot++;
+	    if (s >= slotFps.length) {
+		slotFps = Arrays.copyOf (slotFps, s * 2);
+		slotSizes = Arrays.copyOf (slotSizes, s * 2);
+	    }
+	    slotFps[s] = fp;
+	    slotSizes[s] = size;
+	    slots.put (fp, s);
+	    policy.inserted (s);
+	    current += size;
+	    written += size;
+	}
+	long millis = (System.nanoTime () - start) / 1000000;
+	System.out.println (name + ":");
+	System.out.println (String.format ("  hit ratio: %.2f%%, byte hit ratio: " +
+					   "%.2f%%, written: %d MB, time: %d ms",
+					   hits * 100.0 / fps.length,
+					   hitBytes * 100.0 / bytes,
+					   written / (1024 * 1024), millis));
+    }
+}
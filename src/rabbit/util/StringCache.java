@@ -1,45 +1,98 @@
 package rabbit.util;
 
-import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-/** A cache for strings. The cache is weak so GC can happen quickly.
+/** A cache for strings.
  *
- * String.intern may seem similar, but String.intern is a hard cache, 
- * that is no GC will remove interned strings.
+ *  The cache has a fixed table of strings that are common in http
+ *  headers, like methods, versions and common values, that are always
+ *  shared. Other strings are kept in a small table with one slot for
+ *  each hash, a new string simply replaces the one in its slot. The
+ *  cache never grows, never locks and needs no weak references, so GC
+ *  can happen quickly.
+ *
+ *  String.intern may seem similar, but String.intern is a hard cache,
+ *  that is no GC will remove interned strings.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
-public class StringCache extends WeakHashMap<String, WeakReference<String>> {
+public class StringCache {
+    /** Strings longer than this are not worth caching. */
+    private static final int MAX_LENGTH = 128;
+
+    private static final String[] COMMON = {
+	// methods and versions
+	"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE",
+	"CONNECT", "PATCH", "HTTP/1.0", "HTTP/1.1",
+	// status codes and reasons
+	"200", "204", "206", "301", "302", "303", "304", "307", "308",
+	"400", "401", "403", "404", "407", "410", "500", "502", "503",
+	"504", "OK", "No Content", "Partial Content", "Moved Permanently",
+	"Found", "See Other", "Not Modified", "Temporary Redirect",
+	"Permanent Redirect", "Bad Request", "Unauthorized", "Forbidden",
+	"Not Found", "Gone", "Internal Server Error", "Bad Gateway",
+	"Service Unavailable", "Gateway Timeout",
+	// common values
+	"0", "1", "close", "keep-alive", "Keep-Alive", "Close", "chunked",
+	"identity", "gzip", "deflate", "br", "gzip, deflate",
+	"gzip, deflate, br", "bytes", "none", "*", "*/*", "no-cache",
+	"no-store", "private", "public", "must-revalidate", "max-age=0",
+	"Accept-Encoding", "Cookie", "text/html", "text/plain", "text/css",
+	"text/xml", "text/javascript", "application/javascript",
+	"application/json", "application/xml", "application/octet-stream",
+	"image/gif", "image/jpeg", "image/png", "image/webp",
+	"image/svg+xml", "text/html; charset=utf-8",
+	"text/html; charset=UTF-8", "text/html; charset=iso-8859-1",
+	"HTTP/1.0 RabbIT", "HTTP/1.1 RabbIT"
+    };
+
+    private static final StringCache instance = new StringCache (4096);
+
+    private final Map<String, String> common;
+    private final AtomicReferenceArray<String> cache;
+    private final int mask;
 
-    private static StringCache instance;
-    
     /** Get the shared instance of the string caches.
      * @return the StringCache
      */
-    public static synchronized StringCache getSharedInstance () {
-	if (instance == null)
-	    instance = new StringCache ();
+    public static StringCache getSharedInstance () {
 	return instance;
     }
-    
+
+    /** Create a new StringCache
+     * @param size the number of strings to cache, besides the common
+     *        strings, it is rounded up to a power of two
+     */
+    public StringCache (int size) {
+	Map<String, String> m = new HashMap<String, String> (COMMON.length * 2);
+	for (String s : COMMON)
+	    m.put (s, s);
+	common = m;
+	int slots = Integer.highestOneBit (Math.max (2, size) - 1) << 1;
+	cache = new AtomicReferenceArray<String> (slots);
+	mask = slots - 1;
+    }
+
     /** Get a cached string with the same contents as the given string.
-     *  If the string given is not null then the cache will hold one
-     *  entry with the same value as the given string after this method has completed.
+     *  If the string is common or already cached the cached string is
+     *  returned, otherwise the given string is cached and returned.
      * @param s the string to get a shared string for.
      * @return the shared string
      */
     public String getCachedString (String s) {
-	if (s == null)
-	    return null;
-	synchronized (this) {
-	    WeakReference<String> wr = get (s);
-	    String k; 
-	    if (wr != null && ((k = wr.get ()) != null))
-		return k;
-	    wr = new WeakReference<String> (s);
-	    put (s, wr);  
+	if (s == null || s.length () > MAX_LENGTH)
 	    return s;
-	}
+	String c = common.get (s);
+	if (c != null)
+	    return c;
+	int h = s.hashCode ();
+	int slot = (h ^ (h >>> 16)) & mask;
+	c = cache.get (slot);
+	if (c != null && c.equals (s))
+	    return c;
+	cache.lazySet (slot, s);
+	return s;
     }
 }
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.channels.SocketChannel;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.khelekore.rnio.NioHandler;
@@ -90,7 +89,7 @@ public class Connection {
 			resp.setHeader ("Content-Type", type);
 		    resp.setHeader ("Content-Length", 
 				    Long.toString (f.length ()));
-		    Date d = new Date (f.lastModified ());
+		    long d = f.lastModified ();
 		    resp.setHeader ("Last-Modified", 
 				    HttpDateParser.getDateString (d));
 		    if ("HTTP/1.0".equals (header.getHTTPVersion ()))
@@ -152,7 +151,8 @@ public class Connection {
 		new ResponseSentListener ();
 	    HttpHeaderSender sender = 
 		new HttpHeaderSender (sc, sws.getNioHandler (),
-				      sws.getTrafficLogger (), response, 
+				      sws.getTrafficLogger (),
+				      sws.getBufferHandler (), response,
 				      false, sentListener);
 	    sender.sendHeader ();
 	} catch (IOException e) {
@@ -175,7 +175,7 @@ public class Connection {
 	HttpHeader ret = new HttpHeader ();
 	ret.setStatusLine (statusLine);
 	ret.setHeader ("Server", sws.getClass ().getName ());
-	ret.setHeader ("Date", HttpDateParser.getDateString (new Date ()));
+	ret.setHeader ("Date", HttpDateParser.getCurrentDateString ());
 	return ret;    
     }
 